@@ -15,7 +15,35 @@
  */
 package de.mirkosertic.bytecoder.api.opencl;
 
+import java.util.concurrent.Future;
+
 public interface Context extends AutoCloseable {
 
     void compute(int aNumberOfStreams, Kernel aKernel);
+
+    /**
+     * Enqueues a computation and returns without waiting for it. Computations of a context are executed
+     * in the order they were enqueued, so a kernel sees the results of all kernels enqueued before it
+     * in bound arrays. Other arrays used by the kernel are updated when the returned future completes,
+     * and must not be modified before.
+     */
+    Future<Void> computeAsync(int aNumberOfStreams, Kernel aKernel);
+
+    /**
+     * Binds a kernel argument array to a device buffer, which is kept until the array is unbound
+     * or the context is closed. The array data is uploaded once, and the following computations
+     * work on the device buffer without any further transfer. Supported are float[], int[] and
+     * arrays of vector types.
+     */
+    void bind(Object aArray);
+
+    /**
+     * Waits for all enqueued computations and copies the device buffer of a bound array back to the array.
+     */
+    void read(Object aArray);
+
+    /**
+     * Copies the device buffer of a bound array back to the array if it was modified, and releases the buffer.
+     */
+    void unbind(Object aArray);
 }
@@ -15,8 +15,33 @@
  */
 package de.mirkosertic.bytecoder.api.opencl;
 
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinWorkerThread;
+
 public class GlobalFunctions {
 
+    /**
+     * A thread executing work items on the CPU. The state of the current work item is kept
+     * in the thread itself, so reading it is a plain field access instead of a thread local lookup.
+     */
+    public static class WorkItemThread extends ForkJoinWorkerThread {
+
+        private int globalId;
+        private int globalSize;
+
+        public WorkItemThread(ForkJoinPool aPool) {
+            super(aPool);
+        }
+
+        public void setGlobalId(int aId) {
+            globalId = aId;
+        }
+
+        public void setGlobalSize(int aSize) {
+            globalSize = aSize;
+        }
+    }
+
     private static class Context {
         int currentWorkItekId;
         int size;
@@ -35,19 +60,37 @@ public class GlobalFunctions {
 
     @OpenCLFunction("get_global_id")
     public static int get_global_id(int aDimension) {
+        Thread theThread = Thread.currentThread();
+        if (theThread instanceof WorkItemThread) {
+            return ((WorkItemThread) theThread).globalId;
+        }
         return current().currentWorkItekId;
     }
 
     @OpenCLFunction("get_global_size")
     public static int get_global_size(int aDimension) {
+        Thread theThread = Thread.currentThread();
+        if (theThread instanceof WorkItemThread) {
+            return ((WorkItemThread) theThread).globalSize;
+        }
         return current().size;
     }
 
     public static void set_global_id(int aDimension, int aId) {
+        Thread theThread = Thread.currentThread();
+        if (theThread instanceof WorkItemThread) {
+            ((WorkItemThread) theThread).globalId = aId;
+            return;
+        }
         current().currentWorkItekId = aId;
     }
 
     public static void set_global_size(int aDimension, int aSize) {
+        Thread theThread = Thread.currentThread();
+        if (theThread instanceof WorkItemThread) {
+            ((WorkItemThread) theThread).globalSize = aSize;
+            return;
+        }
         current().size = aSize;
     }
 }
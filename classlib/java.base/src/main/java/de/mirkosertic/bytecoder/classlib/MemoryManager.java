@@ -19,60 +19,217 @@ import de.mirkosertic.bytecoder.api.Export;
 import de.mirkosertic.bytecoder.api.Import;
 
 /**
- * A simple Memory Manager.
+ * A segregated free list Memory Manager.
  *
- * It basically holds zwo linked lists. One for the free memory blocks,
- * and one for the reserved blocks.
+ * The heap is a contiguous sequence of blocks. Every block starts with an 8 byte header,
+ * the first word holds the block size including the header plus two flag bits, the second
+ * word is free for use by the garbage collector. Free blocks also carry a footer with their
+ * size in the last word, so a block being freed can find and coalesce with its free
+ * neighbours in constant time. The heap is terminated by a zero sized used sentinel block.
+ * The compiler might place a snapshot of used blocks at the start of the heap, for instance
+ * the runtime classes and the objects created by static initializers evaluated at compile time.
+ *
+ * Free blocks are kept in doubly linked lists. Small blocks have one list for every exact
+ * size, so small allocations are served in constant time. Larger blocks are grouped
+ * by power of two size classes.
+ *
+ * Garbage collection is a precise mark and sweep. The compiler emits a reference map for
+ * every type into the static data area in front of the heap, and every runtime class points
+ * to its map. Marking starts at the shadow stack and follows the reference fields of every
+ * reached object using the second header word as an intrusive worklist. The sweep is a single
+ * linear walk over the heap.
+ *
+ * The shadow stack is a chain of frames. Every frame starts with a header word holding the number
+ * of roots in the upper and the frame size in the lower half, followed by the roots. Compiled code
+ * spills its live references into its frame before every call that might allocate, so a collection
+ * is run as soon as an allocation does not find a free block.
  */
 public class MemoryManager {
 
+    // Flag bits in the first header word, block sizes are always a multiple of 8
+    private static final int BLOCK_USED = 1;
+    private static final int PREVIOUS_BLOCK_FREE = 2;
+    private static final int BLOCK_FLAGS = 7;
+
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int MINIMUM_BLOCK_SIZE = 16;
+
+    // One list for every exact block size below this limit
+    private static final int SMALL_BLOCK_LIMIT = 512;
+    private static final int SMALL_FREE_LISTS = 62;
+
+    // Power of two size classes starting at SMALL_BLOCK_LIMIT, the last one is open ended
+    private static final int NUMBER_OF_FREE_LISTS = 84;
+
+    // Bounds of the heap, the start is written by the compiler as it depends on the static data size
+    private static final int HEAP_START_ADDRESS = 4;
+    private static final int HEAP_END_ADDRESS = 8;
+    private static final int HEAP_SNAPSHOT_END_ADDRESS = 12;
+
+    private static final int FREE_LISTS_START = 16;
+    private static final int STATIC_DATA_START = 352;
+
+    // Marks in the second header word of used blocks. Everything else is a link in the mark worklist
+    private static final int NOT_MARKED = 0;
+    private static final int MARKED = 1;
+
+    // Object layout as generated by the compiler
+    private static final int RUNTIME_CLASS_TYPE = -1;
+    private static final int RUNTIME_CLASS_REFERENCE_MAP = 16;
+    private static final int ARRAY_REFERENCE_MAP = -1;
+    private static final int ARRAY_ELEMENTS = 8;
+    private static final int ARRAY_ELEMENT_REFERENCES = 16;
+    private static final int ARRAY_LENGTH = 12;
+    private static final int ARRAY_DATA = 16;
+
+    // Space at the top of the linear memory reserved for the stack
+    private static final int STACK_SIZE = 1048576;
+
+    // Stack frame header, the upper half holds the number of roots and the lower half the frame size
+    private static final int FRAME_SIZE_MASK = 0xFFFF;
+    private static final int FRAME_HEADER_SIZE = 4;
+
     public static Object[] data;
 
+    // An object under construction, which is not yet visible to compiled code
+    private static int pinned;
+
     public static void initTestMemory(int aSize) {
         data = new Object[aSize];
     }
 
     public static void initWithSize(int aSize) {
         initTestMemory(aSize);
-        initInternal(aSize);
+        initHeap(STATIC_DATA_START, aSize);
     }
 
     @Export("initMemory")
     public static void initNative() {
-        initInternal(Address.getMemorySize());
+        int theHeapStart = Address.getIntValue(new Address(HEAP_START_ADDRESS), 0);
+        if (theHeapStart == 0) {
+            // No static data was generated
+            theHeapStart = STATIC_DATA_START;
+        }
+        int theFreeStart = Address.getIntValue(new Address(HEAP_SNAPSHOT_END_ADDRESS), 0);
+        if (theFreeStart == 0) {
+            // There is no heap snapshot
+            theFreeStart = theHeapStart;
+        }
+        initHeap(theHeapStart, theFreeStart, Address.getMemorySize() - STACK_SIZE);
     }
 
     @Import(module = "profiler", name = "logMemoryLayoutBlock")
     public static native void logMemoryLayoutBlock(int aStart, int aUsed, int aNext);
 
-    private static void initInternal(int aSize) {
-        // This is the list of free blocks
-        Address theFreeStart = new Address(4); // At the beginning, we have one giant free block
-        Address.setIntValue(theFreeStart, 0, 28);
+    static void initHeap(int aHeapStart, int aHeapEnd) {
+        initHeap(aHeapStart, aHeapStart, aHeapEnd);
+    }
+
+    static void initHeap(int aHeapStart, int aFreeStart, int aHeapEnd) {
+        // All free lists are empty
+        Address theFreeLists = new Address(FREE_LISTS_START);
+        for (int i=0;i<NUMBER_OF_FREE_LISTS;i++) {
+            Address.setIntValue(theFreeLists, i * 4, 0);
+        }
+
+        // Sentinel at the end of the heap, so coalescing never runs past it
+        int theSentinelStart = (aHeapEnd & ~BLOCK_FLAGS) - BLOCK_HEADER_SIZE;
+        if (theSentinelStart - aFreeStart < MINIMUM_BLOCK_SIZE) {
+            // No space left for even a single block
+            theSentinelStart = aFreeStart;
+        }
+        Address theSentinel = new Address(theSentinelStart);
+        Address.setIntValue(theSentinel, 0, BLOCK_USED);
+        Address.setIntValue(theSentinel, 4, 0);
+
+        Address.setIntValue(new Address(HEAP_START_ADDRESS), 0, aHeapStart);
+        Address.setIntValue(new Address(HEAP_END_ADDRESS), 0, theSentinelStart);
+
+        // At the beginning, we have one giant free block behind the snapshot
+        int theSize = theSentinelStart - aFreeStart;
+        if (theSize > 0) {
+            Address theFree = new Address(aFreeStart);
+            Address.setIntValue(theFree, 0, theSize);
+            Address.setIntValue(theFree, 4, 0);
+            markAsFree(theFree, theSize);
+            addToFreeList(theFree, theSize);
+        }
+    }
+
+    private static int heapStart() {
+        return Address.getIntValue(new Address(HEAP_START_ADDRESS), 0);
+    }
+
+    private static int freeListIndexFor(int aBlockSize) {
+        if (aBlockSize < SMALL_BLOCK_LIMIT) {
+            return (aBlockSize >> 3) - 2;
+        }
+        int theIndex = SMALL_FREE_LISTS;
+        int theLimit = SMALL_BLOCK_LIMIT << 1;
+        while (aBlockSize >= theLimit && theIndex < NUMBER_OF_FREE_LISTS - 1) {
+            theLimit = theLimit << 1;
+            theIndex++;
+        }
+        return theIndex;
+    }
+
+    private static int blockSize(Address aBlock) {
+        return Address.getIntValue(aBlock, 0) & ~BLOCK_FLAGS;
+    }
+
+    private static boolean isUsedBlock(Address aBlock) {
+        return (Address.getIntValue(aBlock, 0) & BLOCK_USED) != 0;
+    }
 
-        // Free memory block
-        Address theFree = new Address(28);
-        Address.setIntValue(theFree, 0, aSize);
-        Address.setIntValue(theFree, 4, 0);
+    private static void addToFreeList(Address aBlock, int aSize) {
+        Address theListHead = new Address(FREE_LISTS_START + freeListIndexFor(aSize) * 4);
+        int theFirst = Address.getIntValue(theListHead, 0);
+        int theStart = Address.getStart(aBlock);
 
-        // This is the List of reserved blocks
-        Address theReserved = new Address(8);
-        Address.setIntValue(theReserved, 0, 0);
+        Address.setIntValue(aBlock, 4, theFirst);
+        Address.setIntValue(aBlock, 8, 0);
+        if (theFirst != 0) {
+            Address.setIntValue(new Address(theFirst), 8, theStart);
+        }
+        Address.setIntValue(theListHead, 0, theStart);
+    }
+
+    private static void removeFromFreeList(Address aBlock, int aSize) {
+        int theNext = Address.getIntValue(aBlock, 4);
+        int thePrevious = Address.getIntValue(aBlock, 8);
+
+        if (thePrevious == 0) {
+            Address theListHead = new Address(FREE_LISTS_START + freeListIndexFor(aSize) * 4);
+            Address.setIntValue(theListHead, 0, theNext);
+        } else {
+            Address.setIntValue(new Address(thePrevious), 4, theNext);
+        }
+        if (theNext != 0) {
+            Address.setIntValue(new Address(theNext), 8, thePrevious);
+        }
+    }
+
+    private static void markAsFree(Address aBlock, int aSize) {
+        // Free blocks never follow another free block, they are coalesced
+        Address.setIntValue(aBlock, 0, aSize);
+        Address.setIntValue(aBlock, aSize - 4, aSize);
+
+        Address theFollowing = new Address(Address.getStart(aBlock) + aSize);
+        Address.setIntValue(theFollowing, 0, Address.getIntValue(theFollowing, 0) | PREVIOUS_BLOCK_FREE);
     }
 
     @Export("freeMem")
     public static long freeMem() {
         long theResult = 0;
 
-        Address theFreeStart = new Address(4);
-        int theFreeStartPtr = Address.getIntValue(theFreeStart, 0);
-
-        Address theCurrent = new Address(theFreeStartPtr);
-        while (Address.getStart(theCurrent) != 0) {
-            int theSize = Address.getIntValue(theCurrent, 0);
-            theResult += theSize;
-            int theNext = Address.getIntValue(theCurrent, 4);
-            theCurrent = new Address(theNext);
+        for (int i=0;i<NUMBER_OF_FREE_LISTS;i++) {
+            Address theListHead = new Address(FREE_LISTS_START + i * 4);
+            int theCurrent = Address.getIntValue(theListHead, 0);
+            while (theCurrent != 0) {
+                Address theBlock = new Address(theCurrent);
+                theResult += blockSize(theBlock);
+                theCurrent = Address.getIntValue(theBlock, 4);
+            }
         }
         return theResult;
     }
@@ -81,15 +238,14 @@ public class MemoryManager {
     public static long usedMem() {
         long theResult = 0;
 
-        Address theUsedStart = new Address(8);
-        int theUsedStartPtr = Address.getIntValue(theUsedStart, 0);
-
-        Address theCurrent = new Address(theUsedStartPtr);
-        while (Address.getStart(theCurrent) != 0) {
-            int theSize = Address.getIntValue(theCurrent, 0);
-            theResult += theSize;
-            int theNext = Address.getIntValue(theCurrent, 4);
-            theCurrent = new Address(theNext);
+        Address theCurrent = new Address(heapStart());
+        int theSize = blockSize(theCurrent);
+        while (theSize != 0) {
+            if (isUsedBlock(theCurrent)) {
+                theResult += theSize;
+            }
+            theCurrent = new Address(Address.getStart(theCurrent) + theSize);
+            theSize = blockSize(theCurrent);
         }
         return theResult;
     }
@@ -97,243 +253,316 @@ public class MemoryManager {
     @Export("logMemoryLayout")
     public static void logMemoryLayout() {
 
-        Address theFreeStart = new Address(4);
-        int theFreeStartPtr = Address.getIntValue(theFreeStart, 0);
-
-        Address theCurrent = new Address(theFreeStartPtr);
-        while (Address.getStart(theCurrent) != 0) {
-            int theNext = Address.getIntValue(theCurrent, 4);
+        Address theCurrent = new Address(heapStart());
+        int theSize = blockSize(theCurrent);
+        while (theSize != 0) {
             int theStart = Address.getStart(theCurrent);
+            int theNext = theStart + theSize;
 
-            logMemoryLayoutBlock(theStart, 0, theNext);
+            if (isUsedBlock(theCurrent)) {
+                logMemoryLayoutBlock(theStart, 1, theNext);
+            } else {
+                logMemoryLayoutBlock(theStart, 0, theNext);
+            }
 
             theCurrent = new Address(theNext);
+            theSize = blockSize(theCurrent);
         }
+    }
 
-        Address theUsedStart = new Address(8);
-        int theUsedStartPtr = Address.getIntValue(theUsedStart, 0);
+    private static void internalFree(Address aBlock) {
 
-        theCurrent = new Address(theUsedStartPtr);
-        while (Address.getStart(theCurrent) != 0) {
-            int theStart = Address.getStart(theCurrent);
-            int theNext = Address.getIntValue(theCurrent, 4);
+        int theHeader = Address.getIntValue(aBlock, 0);
+        if ((theHeader & BLOCK_USED) == 0) {
+            // Already free
+            return;
+        }
 
-            logMemoryLayoutBlock(theStart, 1, theNext);
+        int theStart = Address.getStart(aBlock);
+        int theSize = theHeader & ~BLOCK_FLAGS;
 
-            theCurrent = new Address(theNext);
+        // Merge with the following block if it is free
+        Address theFollowing = new Address(theStart + theSize);
+        if (!isUsedBlock(theFollowing)) {
+            int theFollowingSize = blockSize(theFollowing);
+            removeFromFreeList(theFollowing, theFollowingSize);
+            theSize += theFollowingSize;
         }
-   }
 
-    private static void internalFree(Address aPointer) {
+        // Merge with the preceding block if it is free, its size is taken from the footer
+        if ((theHeader & PREVIOUS_BLOCK_FREE) != 0) {
+            int thePreviousSize = Address.getIntValue(aBlock, -4);
+            theStart -= thePreviousSize;
+            removeFromFreeList(new Address(theStart), thePreviousSize);
+            theSize += thePreviousSize;
+        }
 
-        int theStart = Address.getStart(aPointer);
+        Address theFree = new Address(theStart);
+        markAsFree(theFree, theSize);
+        addToFreeList(theFree, theSize);
+    }
 
-        // Remove the block from the list of allocated blocks
-        Address theAllocatedStart = new Address(8);
-        int theAllocatedStartPtr = Address.getIntValue(theAllocatedStart, 0);
+    @Export("free")
+    public static void free(Address aPointer) {
 
-        Address theCurrent = new Address(theAllocatedStartPtr);
-        int thePrevious = 0;
-        while(Address.getStart(theCurrent) != 0) {
+        int theStart = Address.getStart(aPointer);
+        theStart-=BLOCK_HEADER_SIZE;
 
-            int theCurrentStart = Address.getStart(theCurrent);
-            int theNext = Address.getIntValue(theCurrent, 4);
+        internalFree(new Address(theStart));
+    }
 
-            if (theCurrentStart == theStart) {
-                // This is the block
-                // Remove it from the list of allocated blocks
-                if (thePrevious == 0) {
-                    Address.setIntValue(theAllocatedStart, 0, theNext);
-                } else {
-                    Address thePrevPtr = new Address(thePrevious);
-                    Address.setIntValue(thePrevPtr, 4, theNext);
-                }
+    private static int findFreeBlock(int aBlockSize) {
 
-                // Ok, now we prepend it to the list of free blocks
-                Address theFreeStart = new Address(4);
-                int theFreeStartPtr = Address.getIntValue(theFreeStart, 0);
+        int theIndex = freeListIndexFor(aBlockSize);
 
-                Address.setIntValue(theCurrent, 4, theFreeStartPtr);
-                Address.setIntValue(theFreeStart, 0, theCurrentStart);
-                return;
+        // Exact small size, or first fit in the size class of the requested block
+        Address theListHead = new Address(FREE_LISTS_START + theIndex * 4);
+        int theCurrent = Address.getIntValue(theListHead, 0);
+        while (theCurrent != 0) {
+            Address theBlock = new Address(theCurrent);
+            if (blockSize(theBlock) >= aBlockSize) {
+                return theCurrent;
             }
-
-            thePrevious = theCurrentStart;
-            theCurrent = new Address(theNext);
+            theCurrent = Address.getIntValue(theBlock, 4);
         }
-    }
 
-    @Export("free")
-    public static void free(Address aPointer) {
-
-        int theStart = Address.getStart(aPointer);
-        theStart-=8;
+        // Every block in a larger list is big enough, so we just take the first one
+        for (int i=theIndex + 1;i<NUMBER_OF_FREE_LISTS;i++) {
+            theListHead = new Address(FREE_LISTS_START + i * 4);
+            theCurrent = Address.getIntValue(theListHead, 0);
+            if (theCurrent != 0) {
+                return theCurrent;
+            }
+        }
 
-        internalFree(new Address(theStart));
+        return 0;
     }
 
     @Export("malloc")
     public static Address malloc(int aSize) {
 
-        // Overhead for header
-        aSize+=8;
-
-        Address theFreeStart = new Address(4);
-        int theFreeStartPtr = Address.getIntValue(theFreeStart, 0);
-
-        // We search the free list for a suitable sized block
-        int thePrevious = 0;
-        Address theCurrent = new Address(theFreeStartPtr);
-        while(Address.getStart(theCurrent) != 0) {
-            int theSize = Address.getIntValue(theCurrent, 0);
-            int theNext = Address.getIntValue(theCurrent, 4);
-            if (theSize >= aSize) {
-                int theRemaining = theSize - aSize;
-
-
-                if (theRemaining > 8) {
-                    Address.setIntValue(theCurrent, 0, aSize);
-
-                    // Block can be safely split
-                    int theNewFreeStart = Address.getStart(theCurrent) + aSize;
-                    int theNewFreeSize = theSize - aSize;
-                    Address theNewFree = new Address(theNewFreeStart);
-                    Address.setIntValue(theNewFree, 0, theNewFreeSize);
-                    Address.setIntValue(theNewFree, 4, theNext);
-
-                    if (thePrevious == 0) {
-                        Address.setIntValue(theFreeStart, 0, theNewFreeStart);
-                    } else {
-                        Address thePrev = new Address(thePrevious);
-                        Address.setIntValue(thePrev, 4, theNewFreeStart);
-                    }
-                } else {
-                    // Remaining size would be too small, be have to completely occupy it
-                    Address.setIntValue(theCurrent, 0, theSize);
-
-                    if (thePrevious == 0) {
-                        Address.setIntValue(theFreeStart, 0, theNext);
-                    } else {
-                        Address thePrev = new Address(thePrevious);
-                        Address.setIntValue(thePrev, 4, theNext);
-                    }
-                }
-
-                // Add the current block to the allocated block ist by prepending it to the list
-                Address theReservedListStart = new Address(8);
+        // Overhead for header, aligned to 8 bytes
+        int theBlockSize = (aSize + BLOCK_HEADER_SIZE + 7) & ~BLOCK_FLAGS;
+        if (theBlockSize < MINIMUM_BLOCK_SIZE) {
+            theBlockSize = MINIMUM_BLOCK_SIZE;
+        }
 
-                int theReservedListPtr = Address.getIntValue(theReservedListStart, 0);
-                int theCurrentStart = Address.getStart(theCurrent);
+        int theFreeStart = findFreeBlock(theBlockSize);
+        if (theFreeStart == 0) {
+            GC();
+            theFreeStart = findFreeBlock(theBlockSize);
+            if (theFreeStart == 0) {
+                Address.unreachable();
+            }
+        }
 
-                Address.setIntValue(theCurrent, 4, theReservedListPtr);
-                Address.setIntValue(theReservedListStart, 0, theCurrentStart);
+        Address theCurrent = new Address(theFreeStart);
+        int theSize = blockSize(theCurrent);
+        removeFromFreeList(theCurrent, theSize);
+
+        int theRemaining = theSize - theBlockSize;
+        if (theRemaining >= MINIMUM_BLOCK_SIZE) {
+            // Block can be safely split
+            Address theNewFree = new Address(theFreeStart + theBlockSize);
+            markAsFree(theNewFree, theRemaining);
+            addToFreeList(theNewFree, theRemaining);
+        } else {
+            // Remaining size would be too small, be have to completely occupy it
+            theBlockSize = theSize;
+            Address theFollowing = new Address(theFreeStart + theSize);
+            Address.setIntValue(theFollowing, 0, Address.getIntValue(theFollowing, 0) & ~PREVIOUS_BLOCK_FREE);
+        }
 
-                // Wipeout data
-                int theDataStart = theCurrentStart + 8;
-                Address theNewData = new Address(theDataStart);
+        // The preceding block is always in use, as free blocks are coalesced
+        Address.setIntValue(theCurrent, 0, theBlockSize | BLOCK_USED);
+        Address.setIntValue(theCurrent, 4, 0);
 
-                for (int i=0;i<aSize-16;i+=4) {
-                    Address.setIntValue(theNewData, i, 0);
-                }
+        // Wipeout data
+        int theDataStart = theFreeStart + BLOCK_HEADER_SIZE;
+        Address theNewData = new Address(theDataStart);
 
-                return theNewData;
-            }
-
-            thePrevious = Address.getStart(theCurrent);
-            theCurrent = new Address(theNext);
+        for (int i=0;i<theBlockSize - BLOCK_HEADER_SIZE;i+=4) {
+            Address.setIntValue(theNewData, i, 0);
         }
-        Address.unreachable();
-        return new Address(0);
+
+        return theNewData;
     }
 
     @Export("newObject")
-    public static Address newObject(int aSize, int aType, int aVTableIndex) {
+    public static Address newObject(int aSize, int aType, int aVTableAddress) {
 
         Address theAddress = malloc(aSize);
         Address.setIntValue(theAddress, 0, aType);
-        Address.setIntValue(theAddress, 4, aVTableIndex);
+        Address.setIntValue(theAddress, 4, aVTableAddress);
 
         return theAddress;
     }
 
-    private static boolean isUsed(Address aOwningBlock) {
+    private static boolean isObject(int aReference) {
+        // References always point to the data of a used block. Everything else,
+        // for instance opaque values passed in by the host, is ignored
+        if ((aReference & BLOCK_FLAGS) != 0) {
+            return false;
+        }
+        int theBlockStart = aReference - BLOCK_HEADER_SIZE;
+        if (theBlockStart < heapStart() || aReference >= Address.getIntValue(new Address(HEAP_END_ADDRESS), 0)) {
+            return false;
+        }
+        return isUsedBlock(new Address(theBlockStart));
+    }
 
-        int theOwningStart = Address.getStart(aOwningBlock);
-        int theOwningData = theOwningStart + 8;
+    private static int mark(int aReference, int aWorklist) {
+        if (aReference == 0 || !isObject(aReference)) {
+            return aWorklist;
+        }
+        Address theBlock = new Address(aReference - BLOCK_HEADER_SIZE);
+        if (Address.getIntValue(theBlock, 4) != NOT_MARKED) {
+            // Already marked or on the worklist
+            return aWorklist;
+        }
+        Address.setIntValue(theBlock, 4, aWorklist);
+        return Address.getStart(theBlock);
+    }
 
-        // First of all we check the stack
-        int theStackStart = Address.getStackTop();
-        int theStackTop = Address.getMemorySize();
-        while(theStackStart < theStackTop) {
-            Address theCurrent = new Address(theStackStart);
-            int theReference = Address.getIntValue(theCurrent, 0);
-            if (theReference == theOwningData) {
-                return true;
-            }
-            theStackStart += 4;
-        }
-
-        // Nothing on the stack, we check the allocated memory blovks
-        Address theAllocatedStart= new Address(8);
-        int theAllocatedStartPtr = Address.getIntValue(theAllocatedStart, 0);
-
-        Address theCurrent = new Address(theAllocatedStartPtr);
-        while(Address.getStart(theCurrent) != 0) {
-
-            int theCurrentStart = Address.getStart(theCurrent);
-            if (theOwningStart != theCurrentStart) {
-                int theSize = Address.getIntValue(theCurrent, 0) - 8;
-                int thePosition = 8;
-                while(thePosition < theSize) {
-                    int theReference = Address.getIntValue(theCurrent, thePosition);
-                    if (theReference == theOwningData) {
-                        return true;
-                    }
-                    thePosition += 4;
+    private static int markBitmap(Address aObject, int aBitmap, int aWorklist) {
+        // Bit n of bitmap word m stands for the object word 32 * m + n
+        Address theBitmap = new Address(aBitmap);
+        int theWords = Address.getIntValue(theBitmap, 0);
+        int theWorklist = aWorklist;
+        for (int i=0;i<theWords;i++) {
+            int theBits = Address.getIntValue(theBitmap, 4 + i * 4);
+            int theOffset = i * 128;
+            while (theBits != 0) {
+                if ((theBits & 1) != 0) {
+                    theWorklist = mark(Address.getIntValue(aObject, theOffset), theWorklist);
                 }
+                theBits = theBits >>> 1;
+                theOffset += 4;
             }
+        }
+        return theWorklist;
+    }
 
-            int theNext = Address.getIntValue(theCurrent, 4);
-            theCurrent = new Address(theNext);
+    private static int markChildren(Address aObject, int aWorklist) {
+        int theType = Address.getIntValue(aObject, 0);
+
+        if (theType == RUNTIME_CLASS_TYPE) {
+            // Runtime classes use the static part of their own reference map
+            int theMap = Address.getIntValue(aObject, RUNTIME_CLASS_REFERENCE_MAP);
+            if (theMap == 0) {
+                return aWorklist;
+            }
+            int theInstanceWords = Address.getIntValue(new Address(theMap), 0);
+            if (theInstanceWords == ARRAY_REFERENCE_MAP) {
+                theInstanceWords = 0;
+            }
+            return markBitmap(aObject, theMap + 4 + theInstanceWords * 4, aWorklist);
+        }
+
+        int theWorklist = mark(theType, aWorklist);
+        if (!isObject(theType) || Address.getIntValue(new Address(theType), 0) != RUNTIME_CLASS_TYPE) {
+            // No valid type, so we do not know anything about its references
+            return theWorklist;
         }
 
-        return false;
+        int theMap = Address.getIntValue(new Address(theType), RUNTIME_CLASS_REFERENCE_MAP);
+        if (theMap == 0) {
+            return theWorklist;
+        }
+        if (Address.getIntValue(new Address(theMap), 0) == ARRAY_REFERENCE_MAP) {
+            if ((Address.getIntValue(aObject, ARRAY_ELEMENTS) & ARRAY_ELEMENT_REFERENCES) != 0) {
+                int theLength = Address.getIntValue(aObject, ARRAY_LENGTH);
+                for (int i=0;i<theLength;i++) {
+                    theWorklist = mark(Address.getIntValue(aObject, ARRAY_DATA + i * 4), theWorklist);
+                }
+            }
+            return theWorklist;
+        }
+        return markBitmap(aObject, theMap, theWorklist);
     }
 
-    @Export("GC")
-    public static void GC() {
-        Address theUsedStart = new Address(8);
+    static void collect(int aStackTop, int aStackBottom) {
+
+        // Mark phase. Roots are pushed to the worklist, which is linked
+        // through the second header word of the blocks
+        int theWorklist = mark(pinned, MARKED);
+        int theFrame = aStackTop;
+        while (theFrame < aStackBottom) {
+            int theHeader = Address.getIntValue(new Address(theFrame), 0);
+            int theFrameSize = theHeader & FRAME_SIZE_MASK;
+            if (theFrameSize == 0) {
+                // Corrupt stack, there is nothing more we can safely follow
+                break;
+            }
+            // Slots behind the roots might hold stale values of an earlier safepoint
+            int theRoots = theHeader >>> 16;
+            for (int i=0;i<theRoots;i++) {
+                theWorklist = mark(Address.getIntValue(new Address(theFrame), FRAME_HEADER_SIZE + i * 4), theWorklist);
+            }
+            theFrame += theFrameSize;
+        }
+        while (theWorklist != MARKED) {
+            Address theBlock = new Address(theWorklist);
+            theWorklist = Address.getIntValue(theBlock, 4);
+            Address.setIntValue(theBlock, 4, MARKED);
 
-        int theUsedStartPtr = Address.getIntValue(theUsedStart, 0);
-        Address theCurrent = new Address(theUsedStartPtr);
-        while(Address.getStart(theCurrent) != 0) {
+            theWorklist = markChildren(new Address(Address.getStart(theBlock) + BLOCK_HEADER_SIZE), theWorklist);
+        }
 
-            int theNext = Address.getIntValue(theCurrent, 4);
+        // Sweep phase. Stale headers of coalesced blocks still describe
+        // free blocks of the right size, so the walk stays on block boundaries
+        Address theCurrent = new Address(heapStart());
+        int theSize = blockSize(theCurrent);
+        while(theSize != 0) {
+            int theNext = Address.getStart(theCurrent) + theSize;
 
-            if (!isUsed(theCurrent)) {
-                internalFree(theCurrent);
+            if (isUsedBlock(theCurrent)) {
+                if (Address.getIntValue(theCurrent, 4) == NOT_MARKED) {
+                    internalFree(theCurrent);
+                } else {
+                    Address.setIntValue(theCurrent, 4, NOT_MARKED);
+                }
             }
 
             theCurrent = new Address(theNext);
+            theSize = blockSize(theCurrent);
         }
     }
 
-    public static Address newArray(int aSize, int aType, int aVTableIndex) {
+    @Export("GC")
+    public static void GC() {
+        // The bottom frame of the shadow stack pins the runtime classes
+        collect(Address.getStackTop(), Address.getMemorySize());
+    }
 
-        // Arrays are normal objects. Their data are a length field plus n * data
-        Address theObject = newObject(16 + 4 + 4 * aSize, aType, aVTableIndex);
+    public static Address newArray(int aSize, int aElementSize, int aType, int aVTableAddress, boolean aReferences) {
 
-        Address.setIntValue(theObject, 16, aSize);
+        // Arrays are normal objects. Their data are a length field plus n * data,
+        // the data starts 8 byte aligned
+        Address theObject = newObject(ARRAY_DATA + aElementSize * aSize, aType, aVTableAddress);
+
+        // The element size is kept for System.arraycopy, the flag tells the garbage collector
+        // to follow the elements
+        if (aReferences) {
+            Address.setIntValue(theObject, ARRAY_ELEMENTS, aElementSize | ARRAY_ELEMENT_REFERENCES);
+        } else {
+            Address.setIntValue(theObject, ARRAY_ELEMENTS, aElementSize);
+        }
+        Address.setIntValue(theObject, ARRAY_LENGTH, aSize);
         return theObject;
     }
 
-    public static Address newArray(int aSize1, int aSize2, int aType, int aVTableIndex) {
-        Address theResult = newArray(aSize1, aType, aVTableIndex);
+    public static Address newArray(int aSize1, int aSize2, int aElementSize, int aType, int aVTableAddress, boolean aReferences) {
+        Address theResult = newArray(aSize1, 4, aType, aVTableAddress, true);
+
+        // The outer array is only known here, so it is pinned while the subarrays are allocated
+        pinned = Address.getStart(theResult);
         for (int i=0;i<aSize1;i++) {
-            int theOffset = 16 + 4 + 4 * i;
-            Address theSubArray = newArray(aSize2, aType, aVTableIndex);
+            int theOffset = ARRAY_DATA + 4 * i;
+            Address theSubArray = newArray(aSize2, aElementSize, aType, aVTableAddress, aReferences);
             Address.setIntValue(theResult, theOffset, Address.getStart(theSubArray));
         }
+        pinned = 0;
         return theResult;
     }
-}
\ No newline at end of file
+}
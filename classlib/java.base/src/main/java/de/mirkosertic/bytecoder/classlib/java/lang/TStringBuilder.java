@@ -23,21 +23,38 @@ public class TStringBuilder extends TAbstractStringBuilder implements TSerializa
 
     private static final TDecimalFormatSymbols FORMAT_SYMBOLS = new TDecimalFormatSymbols();
 
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Floating point values are written with up to four fraction digits
+    private static final int FRACTION_DIGITS = 4;
+    private static final long FRACTION_MULTIPLIER = 10000;
+
     private byte[] byteData;
+    private int length;
 
     @NoExceptionCheck
     public TStringBuilder() {
-        byteData = new byte[0];
+        byteData = new byte[DEFAULT_CAPACITY];
+    }
+
+    @NoExceptionCheck
+    public TStringBuilder(int aCapacity) {
+        byteData = new byte[aCapacity];
     }
 
     @NoExceptionCheck
     public TStringBuilder(byte[] aData) {
         byteData = aData;
+        length = aData.length;
     }
 
     @Override
     @NoExceptionCheck
     public int length() {
+        return length;
+    }
+
+    public int capacity() {
         return byteData.length;
     }
 
@@ -46,24 +63,32 @@ public class TStringBuilder extends TAbstractStringBuilder implements TSerializa
         return (char) byteData[aIndex];
     }
 
-    public void internalAdd(byte[] aOtherData) {
-        byte[] theNewData = new byte[byteData.length + aOtherData.length];
-        int offset = 0;
-        for (int i = 0; i< byteData.length; i++) {
-            theNewData[offset++] = byteData[i];
-        }
-        for (int i=0;i<aOtherData.length;i++) {
-            theNewData[offset++] = aOtherData[i];
+    public void ensureCapacity(int aMinimumCapacity) {
+        if (aMinimumCapacity > byteData.length) {
+            // Grow geometrically, so appending n characters copies O(n) bytes in total
+            int theNewCapacity = byteData.length * 2 + 2;
+            if (theNewCapacity < aMinimumCapacity) {
+                theNewCapacity = aMinimumCapacity;
+            }
+            byte[] theNewData = new byte[theNewCapacity];
+            System.arraycopy(byteData, 0, theNewData, 0, length);
+            byteData = theNewData;
         }
-        byteData = theNewData;
+    }
+
+    public void internalAdd(byte[] aOtherData) {
+        int theLength = aOtherData.length;
+        ensureCapacity(length + theLength);
+        System.arraycopy(aOtherData, 0, byteData, length, theLength);
+        length += theLength;
     }
 
     public TStringBuilder reverse() {
-        byte[] theReversed = new byte[byteData.length];
-        for (int i=0;i<byteData.length;i++) {
-            theReversed[byteData.length -1 -i] = byteData[i];
+        for (int i=0, j=length - 1;i<j;i++, j--) {
+            byte theTemp = byteData[i];
+            byteData[i] = byteData[j];
+            byteData[j] = theTemp;
         }
-        byteData = theReversed;
         return this;
     }
 
@@ -81,79 +106,85 @@ public class TStringBuilder extends TAbstractStringBuilder implements TSerializa
     }
 
     public TStringBuilder append(char aValue) {
-        internalAdd(new byte[] {(byte) aValue});
+        ensureCapacity(length + 1);
+        byteData[length++] = (byte) aValue;
         return this;
     }
 
     public TStringBuilder append(float aValue) {
-        appendInternal(aValue, 1000000000);
+        appendDecimal(aValue);
         return this;
     }
 
     public TStringBuilder append(double aValue) {
-        appendInternal(aValue, 1000000000);
+        appendDecimal(aValue);
         return this;
     }
 
-    public void appendInternal(double aValue, long aMultiplier) {
-        long theA;
-        long theB;
+    private void appendDecimal(double aValue) {
         if (aValue < 0) {
-            theA = (long) Math.ceil(aValue);
-            theB = - (long) Math.ceil((aValue % 1) * 10000);
+            append('-');
+            appendPositiveDecimal(-aValue);
         } else {
-            theA = (long) Math.floor(aValue);
-            theB = (long) Math.floor((aValue % 1) * 10000);
+            appendPositiveDecimal(aValue);
         }
-        append(theA);
-
-        StringBuilder theTemp = new StringBuilder();
-        theTemp.append(theB);
-
-        for (int i=theTemp.length()-1;i>=0;i--) {
-            char theChar = theTemp.charAt(i);
-            if (theChar != '0') {
-                append(FORMAT_SYMBOLS.getDecimalSeparator());
-                for (int j=0;j<=i;j++) {
-                    append(theTemp.charAt(j));
-                }
-                return;
-            }
+    }
+
+    private void appendPositiveDecimal(double aValue) {
+        long theIntegral = (long) Math.floor(aValue);
+        long theFraction = (long) Math.floor((aValue - theIntegral) * FRACTION_MULTIPLIER + 0.5d);
+        if (theFraction >= FRACTION_MULTIPLIER) {
+            // Rounding carried over into the integral part
+            theIntegral++;
+            theFraction -= FRACTION_MULTIPLIER;
         }
+        appendDigits(theIntegral);
 
         append(FORMAT_SYMBOLS.getDecimalSeparator());
-        append('0');
-    }
 
-    public TStringBuilder append(long aValue) {
-        boolean isNegative = false;
-        if (aValue < 0) {
-            isNegative = true;
-            aValue=-aValue;
+        // Trailing zeros are omitted, but at least one digit is written
+        int theDigits = FRACTION_DIGITS;
+        while (theDigits > 1 && theFraction % 10 == 0) {
+            theFraction = theFraction / 10;
+            theDigits--;
         }
-        byte[] theBytes = new byte[20];
-        int theOffset = 0;
-        do {
-            int theRemainder = (int) aValue % 10;
-            theBytes[theOffset++] = (byte) theRemainder;
-            aValue = aValue / 10;
-        } while (aValue > 0);
-
-        byte[] theNewData;
-        int theStart;
-        if (isNegative) {
-            theNewData = new byte[theOffset + 1];
-            theNewData[0] = '-';
-            theStart = 1;
-        } else {
-            theNewData = new byte[theOffset];
-            theStart = 0;
+        writeDigits(theFraction, theDigits);
+    }
+
+    private void appendDigits(long aPositiveValue) {
+        // A long has at most 19 digits, so the limit never overflows
+        int theDigits = 1;
+        long theLimit = 10;
+        while (theDigits < 19 && aPositiveValue >= theLimit) {
+            theLimit = theLimit * 10;
+            theDigits++;
         }
-        for (int i=0;i<theOffset;i++) {
-            theNewData[theStart + i] = (byte) (48 + theBytes[theOffset - 1 - i]);
+        writeDigits(aPositiveValue, theDigits);
+    }
+
+    private void writeDigits(long aPositiveValue, int aDigits) {
+        // Digits are written from the right, leading positions are padded with zeros
+        ensureCapacity(length + aDigits);
+        long theRemaining = aPositiveValue;
+        for (int i=length + aDigits - 1;i>=length;i--) {
+            byteData[i] = (byte) (48 + (int) (theRemaining % 10));
+            theRemaining = theRemaining / 10;
         }
+        length += aDigits;
+    }
 
-        internalAdd(theNewData);
+    public TStringBuilder append(long aValue) {
+        if (aValue < 0) {
+            if (aValue == Long.MIN_VALUE) {
+                // Cannot be negated
+                internalAdd("-9223372036854775808".getBytes());
+                return this;
+            }
+            append('-');
+            appendDigits(-aValue);
+            return this;
+        }
+        appendDigits(aValue);
         return this;
     }
 
@@ -195,12 +226,16 @@ public class TStringBuilder extends TAbstractStringBuilder implements TSerializa
     @Override
     @NoExceptionCheck
     public byte[] getBytes() {
-        return byteData;
+        // The buffer has spare capacity and is modified by further appends, so it is never
+        // handed out directly
+        byte[] theResult = new byte[length];
+        System.arraycopy(byteData, 0, theResult, 0, length);
+        return theResult;
     }
 
     @Override
     @NoExceptionCheck
     public String toString() {
-        return new String(byteData);
+        return new String(getBytes());
     }
-}
\ No newline at end of file
+}
@@ -53,9 +53,18 @@ public class TSystem {
 
     public static native void logDebug(Object aValue);
 
+    // The backends replace this by an intrinsic copying the element data in bulk, this
+    // generic implementation is only valid for arrays of references
     public static void arraycopy(Object aSource, int aSourcePos, Object aTarget, int aTargetPos, int aLength) {
         Object[] theSource = (Object[]) aSource;
         Object[] theTarget = (Object[]) aTarget;
+        if (theSource == theTarget && aSourcePos < aTargetPos) {
+            // Overlapping regions are copied backwards, so no element is overwritten before it is read
+            for (int i=aLength - 1;i>=0;i--) {
+                theTarget[aTargetPos + i] = theSource[aSourcePos + i];
+            }
+            return;
+        }
         for (int i=0;i<aLength;i++) {
             theTarget[aTargetPos + i] = theSource[aSourcePos + i];
         }
@@ -17,11 +17,27 @@ package de.mirkosertic.bytecoder.classlib.java.lang.invoke;
 
 public class TStringConcatFactory {
 
+    // Expected length of an argument that is not a string
+    private static final int ESTIMATED_ARGUMENT_LENGTH = 16;
+
+    private static int estimatedLengthOf(Object aValue) {
+        if (aValue instanceof String) {
+            return ((String) aValue).length();
+        }
+        return ESTIMATED_ARGUMENT_LENGTH;
+    }
+
     public static TCallSite makeConcat(TMethodHandles.Lookup aLookup, String aName, TMethodType aConcatType) {
         return new TConstantCallSite(new TMethodHandle() {
             @Override
             public Object invokeExact(Object[] args) {
-                StringBuilder theResult = new StringBuilder();
+                int theLength = 0;
+                if (args != null) {
+                    for (int i=0;i<args.length;i++) {
+                        theLength += estimatedLengthOf(args[i]);
+                    }
+                }
+                StringBuilder theResult = new StringBuilder(theLength);
                 if (args != null) {
                     for (int i=0;i<args.length;i++) {
                         theResult.append(args[i]);
@@ -33,12 +49,29 @@ public class TStringConcatFactory {
     }
 
     public static TCallSite	makeConcatWithConstants(TMethodHandles.Lookup aLookup, String aName, TMethodType aConcatType, String aRecipe, Object... aConstants) {
+        // The recipe does not change, so the length of its literal parts is only computed once
+        // per call site
+        int theRecipeLength = 0;
+        for (int i=0;i<aRecipe.length();i++) {
+            char theChar = aRecipe.charAt(i);
+            if (theChar != 1 && theChar != 2) {
+                theRecipeLength++;
+            }
+        }
+        for (int i=0;i<aConstants.length;i++) {
+            theRecipeLength += estimatedLengthOf(aConstants[i]);
+        }
+        int theConstantLength = theRecipeLength;
         return new TConstantCallSite(new TMethodHandle() {
             @Override
             public Object invokeExact(Object[] args) {
+                int theLength = theConstantLength;
+                for (int i=0;i<args.length;i++) {
+                    theLength += estimatedLengthOf(args[i]);
+                }
                 int theConstIndex = 0;
                 int theDynIndex = 0;
-                StringBuilder theResult = new StringBuilder();
+                StringBuilder theResult = new StringBuilder(theLength);
                 for (int i=0;i<aRecipe.length();i++) {
                     char theChar = aRecipe.charAt(i);
                     if (theChar == 1) {
@@ -53,4 +86,4 @@ public class TStringConcatFactory {
             }
         }, aConcatType);
     }
-}
\ No newline at end of file
+}
@@ -17,8 +17,6 @@ package de.mirkosertic.bytecoder.classlib.java.util;
 
 import java.util.Collection;
 
-import de.mirkosertic.bytecoder.classlib.java.lang.TSystem;
-
 public class TArrayList<T> implements TList<T> {
 
     private static final int INITIAL_CAPACITY = 10;
@@ -35,6 +33,32 @@ public class TArrayList<T> implements TList<T> {
         currentLength =0;
     }
 
+    public TArrayList(int aInitialCapacity) {
+        data = new Object[aInitialCapacity];
+        currentLength = 0;
+    }
+
+    public void ensureCapacity(int aMinimumCapacity) {
+        if (aMinimumCapacity > data.length) {
+            // Grow by half of the current capacity, so adding n elements copies O(n) elements in total
+            int theNewCapacity = data.length + (data.length >> 1) + 1;
+            if (theNewCapacity < aMinimumCapacity) {
+                theNewCapacity = aMinimumCapacity;
+            }
+            Object[] theNewData = new Object[theNewCapacity];
+            System.arraycopy(data, 0, theNewData, 0, currentLength);
+            data = theNewData;
+        }
+    }
+
+    public void trimToSize() {
+        if (currentLength < data.length) {
+            Object[] theNewData = new Object[currentLength];
+            System.arraycopy(data, 0, theNewData, 0, currentLength);
+            data = theNewData;
+        }
+    }
+
     @Override
     public Object[] toArray() {
         Object[] theNewArray = new Object[currentLength];
@@ -50,13 +74,8 @@ public class TArrayList<T> implements TList<T> {
 
     @Override
     public boolean add(T aObject) {
-        currentLength++;
-        if (currentLength >= data.length) {
-            Object[] theNewData = new Object[data.length + INITIAL_CAPACITY];
-            TSystem.arraycopy(data, 0, theNewData, 0, data.length);
-            data = theNewData;
-        }
-        data[currentLength-1] = aObject;
+        ensureCapacity(currentLength + 1);
+        data[currentLength++] = aObject;
         return true;
     }
 
@@ -99,11 +118,11 @@ public class TArrayList<T> implements TList<T> {
             if (theData != null) {
                 if (data[i].equals(aObject)) {
                     if (i!= currentLength -1) {
-                        for (int k = i + 1; k < currentLength; k++) {
-                            data[k - 1] = data[k];
-                        }
+                        System.arraycopy(data, i + 1, data, i, currentLength - i - 1);
                     }
                     currentLength--;
+                    // Release the reference for the garbage collector
+                    data[currentLength] = null;
                     return true;
                 }
             }
@@ -136,6 +155,7 @@ public class TArrayList<T> implements TList<T> {
 
     @Override
     public boolean addAll(Collection<T> aOtherCollection) {
+        ensureCapacity(currentLength + aOtherCollection.size());
         boolean theChanged = false;
         for (T aValue : aOtherCollection) {
             if (add(aValue)) {
@@ -15,165 +15,363 @@
  */
 package de.mirkosertic.bytecoder.classlib.java.util;
 
-import java.util.Map;
+import java.util.Collection;
 
 import de.mirkosertic.bytecoder.classlib.java.io.TSerializable;
 import de.mirkosertic.bytecoder.classlib.java.lang.TCloneable;
 
+/**
+ * A hash table with open addressing and linear probing.
+ *
+ * The capacity is always a power of two, and the table grows once three quarters of it are used.
+ * Removed entries are not marked as deleted. Instead, the following entries of the probe sequence
+ * are shifted back, so lookups never have to skip deleted slots.
+ */
 public class THashMap<K, V> extends TAbstractMap<K, V> implements TSerializable, TCloneable {
 
-    private static class Bucket<K, V> {
+    private static final int DEFAULT_CAPACITY = 16;
 
-        private final int hashCode;
-        private final TArrayList<AbstractEntry<K, V>> values;
+    private static class Node<K, V> extends AbstractEntry<K, V> {
 
-        public Bucket(int aHashCode) {
-            hashCode = aHashCode;
-            values = new TArrayList<>();
+        private final int hash;
+
+        public Node(int aHash, K aKey, V aValue) {
+            super(aKey, aValue);
+            hash = aHash;
         }
+    }
 
-        public boolean containsKey(K aKey) {
-            for (int i=0;i<values.size();i++) {
-                Entry<K, V> theEntry = values.get(i);
-                if (theEntry.getKey().equals(aKey)) {
-                    return true;
-                }
-            }
-            return false;
+    private Node<K, V>[] table;
+    private int size;
+
+    public THashMap() {
+        table = newTable(DEFAULT_CAPACITY);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <K, V> Node<K, V>[] newTable(int aCapacity) {
+        return (Node<K, V>[]) new Node[aCapacity];
+    }
+
+    private static int hashOf(Object aKey) {
+        if (aKey == null) {
+            return 0;
         }
+        // Spread the high bits, as only the low bits select the slot
+        int theHash = aKey.hashCode();
+        return theHash ^ (theHash >>> 16);
+    }
 
-        public V put(K aKey, V aValue) {
-            for (int i=0;i<values.size();i++) {
-                AbstractEntry<K, V> theEntry = values.get(i);
-                if (theEntry.key.equals(aKey)) {
-                    V theOldValue = theEntry.value;
-                    theEntry.value = aValue;
-                    return theOldValue;
-                }
+    private int indexOf(Object aKey, int aHash) {
+        int theMask = table.length - 1;
+        int theIndex = aHash & theMask;
+        while (true) {
+            Node<K, V> theNode = table[theIndex];
+            if (theNode == null) {
+                return -1;
+            }
+            if (theNode.hash == aHash && (theNode.key == aKey || (aKey != null && aKey.equals(theNode.key)))) {
+                return theIndex;
             }
-            AbstractEntry<K, V> theNewEntry = new AbstractEntry<>(aKey, aValue);
-            values.add(theNewEntry);
-            return null;
+            theIndex = (theIndex + 1) & theMask;
         }
+    }
 
-        public V get(K aKey) {
-            for (int i=0;i<values.size();i++) {
-                AbstractEntry<K, V> theEntry = values.get(i);
-                if (theEntry.key.equals(aKey)) {
-                    return theEntry.value;
-                }
-            }
-            return null;
+    private void insert(Node<K, V>[] aTable, Node<K, V> aNode) {
+        int theMask = aTable.length - 1;
+        int theIndex = aNode.hash & theMask;
+        while (aTable[theIndex] != null) {
+            theIndex = (theIndex + 1) & theMask;
         }
+        aTable[theIndex] = aNode;
+    }
 
-        public V remove(K aKey) {
-            for (int i=0;i<values.size();i++) {
-                AbstractEntry<K, V> theEntry = values.get(i);
-                if (theEntry.key.equals(aKey)) {
-                    V theOldValue = theEntry.value;
-                    values.remove(theEntry);
-                    return theOldValue;
-                }
+    private void resize(int aCapacity) {
+        Node<K, V>[] theOldTable = table;
+        table = newTable(aCapacity);
+        for (int i=0;i<theOldTable.length;i++) {
+            Node<K, V> theNode = theOldTable[i];
+            if (theNode != null) {
+                insert(table, theNode);
             }
-            return null;
         }
+    }
 
-        public boolean isEmpty() {
-            return values.isEmpty();
+    private void removeAt(int aIndex) {
+        int theMask = table.length - 1;
+        int theFree = aIndex;
+        table[theFree] = null;
+        size--;
+
+        // Shift back the following entries of the probe sequence, unless their own slot
+        // lies cyclically between the free slot and their current position
+        int theIndex = theFree;
+        while (true) {
+            theIndex = (theIndex + 1) & theMask;
+            Node<K, V> theNode = table[theIndex];
+            if (theNode == null) {
+                return;
+            }
+            int theSlot = theNode.hash & theMask;
+            boolean theStays = theFree <= theIndex
+                    ? theFree < theSlot && theSlot <= theIndex
+                    : theFree < theSlot || theSlot <= theIndex;
+            if (!theStays) {
+                table[theFree] = theNode;
+                table[theIndex] = null;
+                theFree = theIndex;
+            }
         }
     }
 
-    private final TArrayList<Bucket> buckets;
+    public int size() {
+        return size;
+    }
 
-    public THashMap() {
-        buckets = new TArrayList<>();
+    public boolean isEmpty() {
+        return size == 0;
     }
 
-    private Bucket<K, V> findByHashCode(int aHashCode) {
-        for (int i=0;i<buckets.size();i++) {
-            Bucket<K, V> theBuckets = buckets.get(i);
-            if (theBuckets.hashCode == aHashCode) {
-                return theBuckets;
-            }
+    public void clear() {
+        for (int i=0;i<table.length;i++) {
+            table[i] = null;
         }
-        return null;
+        size = 0;
     }
 
     @Override
     public boolean containsKey(K aKey) {
-        Bucket<K, V> theBucket = findByHashCode(aKey.hashCode());
-        if (theBucket != null) {
-            return theBucket.containsKey(aKey);
-        }
-        return false;
+        return indexOf(aKey, hashOf(aKey)) >= 0;
     }
 
     @Override
     public V put(K aKey, V aValue) {
-        int theHashCode = aKey.hashCode();
-        Bucket<K, V> theBucket = findByHashCode(theHashCode);
-        if (theBucket == null) {
-            theBucket = new Bucket<>(theHashCode);
-            buckets.add(theBucket);
+        int theHash = hashOf(aKey);
+        int theIndex = indexOf(aKey, theHash);
+        if (theIndex >= 0) {
+            Node<K, V> theNode = table[theIndex];
+            V theOldValue = theNode.value;
+            theNode.value = aValue;
+            return theOldValue;
         }
-        return theBucket.put(aKey, aValue);
+        if ((size + 1) * 4 > table.length * 3) {
+            resize(table.length * 2);
+        }
+        insert(table, new Node<>(theHash, aKey, aValue));
+        size++;
+        return null;
     }
 
     @Override
     public V get(K aKey) {
-        Bucket<K, V> theBucket = findByHashCode(aKey.hashCode());
-        if (theBucket != null) {
-            return theBucket.get(aKey);
+        int theIndex = indexOf(aKey, hashOf(aKey));
+        if (theIndex >= 0) {
+            return table[theIndex].value;
         }
         return null;
     }
 
     @Override
     public V remove(K aKey) {
-        Bucket<K, V> theBucket = findByHashCode(aKey.hashCode());
-        if (theBucket != null) {
-            V theOldValue = theBucket.remove(aKey);
-            if (theBucket.isEmpty()) {
-                buckets.remove(theBucket);
-            }
+        int theIndex = indexOf(aKey, hashOf(aKey));
+        if (theIndex >= 0) {
+            V theOldValue = table[theIndex].value;
+            removeAt(theIndex);
             return theOldValue;
         }
         return null;
     }
 
-    @Override
-    public TCollection<V> values() {
-        TSet<V> theResult = new THashSet<>();
-        for (int i=0;i<buckets.size();i++) {
-            TArrayList<Map.Entry<K,V>> theEntries = buckets.get(i).values;
-            for (int k=0;k<theEntries.size();k++) {
-                theResult.add(theEntries.get(k).getValue());
+    private abstract class View<T> implements TSet<T> {
+
+        protected abstract T elementOf(Node<K, V> aNode);
+
+        @Override
+        public TIterator<T> iterator() {
+            return new TIterator<T>() {
+
+                int index = nextIndex(0);
+
+                private int nextIndex(int aStart) {
+                    int theIndex = aStart;
+                    while (theIndex < table.length && table[theIndex] == null) {
+                        theIndex++;
+                    }
+                    return theIndex;
+                }
+
+                @Override
+                public T next() {
+                    T theResult = elementOf(table[index]);
+                    index = nextIndex(index + 1);
+                    return theResult;
+                }
+
+                @Override
+                public boolean hasNext() {
+                    return index < table.length;
+                }
+            };
+        }
+
+        @Override
+        public boolean add(T aObject) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void clear() {
+            THashMap.this.clear();
+        }
+
+        @Override
+        public boolean isEmpty() {
+            return size == 0;
+        }
+
+        @Override
+        public int size() {
+            return size;
+        }
+
+        @Override
+        public Object[] toArray() {
+            return toArray(new Object[size]);
+        }
+
+        @Override
+        public Object[] toArray(Object[] aTarget) {
+            int theIndex = 0;
+            for (int i=0;i<table.length;i++) {
+                Node<K, V> theNode = table[i];
+                if (theNode != null) {
+                    aTarget[theIndex++] = elementOf(theNode);
+                }
+            }
+            return aTarget;
+        }
+
+        @Override
+        public boolean addAll(Collection<T> aOtherCollection) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public boolean removeAll(Collection<T> aOtherCollection) {
+            boolean theChanged = false;
+            for (T aValue : aOtherCollection) {
+                if (remove(aValue)) {
+                    theChanged = true;
+                }
             }
+            return theChanged;
         }
-        return theResult;
     }
 
-    @Override
-    public TSet<TMap.Entry<K, V>> entrySet() {
-        TSet<TMap.Entry<K,V>> theResult = new THashSet<>();
-        for (int i=0;i<buckets.size();i++) {
-            TArrayList<AbstractEntry<K, V>> theValues = buckets.get(i).values;
-            for (int j=0;j<theValues.size();j++) {
-                theResult.add(theValues.get(j));
+    private class KeySet extends View<K> {
+
+        @Override
+        protected K elementOf(Node<K, V> aNode) {
+            return aNode.key;
+        }
+
+        @Override
+        public boolean contains(K aObject) {
+            return containsKey(aObject);
+        }
+
+        @Override
+        public boolean remove(K aObject) {
+            int theIndex = indexOf(aObject, hashOf(aObject));
+            if (theIndex >= 0) {
+                removeAt(theIndex);
+                return true;
             }
+            return false;
         }
-        return theResult;
     }
 
-    @Override
-    public TSet<K> keySet() {
-        TSet<K> theResult = new THashSet<>();
-        for (int i=0;i<buckets.size();i++) {
-            TArrayList<AbstractEntry<K,V>> theEntries = buckets.get(i).values;
-            for (int k=0;k<theEntries.size();k++) {
-                theResult.add(theEntries.get(k).key);
+    private class Values extends View<V> {
+
+        @Override
+        protected V elementOf(Node<K, V> aNode) {
+            return aNode.value;
+        }
+
+        private int indexOfValue(Object aValue) {
+            for (int i=0;i<table.length;i++) {
+                Node<K, V> theNode = table[i];
+                if (theNode != null && (theNode.value == aValue || (aValue != null && aValue.equals(theNode.value)))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean contains(V aObject) {
+            return indexOfValue(aObject) >= 0;
+        }
+
+        @Override
+        public boolean remove(V aObject) {
+            int theIndex = indexOfValue(aObject);
+            if (theIndex >= 0) {
+                removeAt(theIndex);
+                return true;
+            }
+            return false;
+        }
+    }
+
+    private class EntrySet extends View<TMap.Entry<K, V>> {
+
+        @Override
+        protected TMap.Entry<K, V> elementOf(Node<K, V> aNode) {
+            return aNode;
+        }
+
+        private int indexOfEntry(TMap.Entry<K, V> aEntry) {
+            K theKey = aEntry.getKey();
+            int theIndex = indexOf(theKey, hashOf(theKey));
+            if (theIndex >= 0) {
+                V theValue = table[theIndex].value;
+                Object theOtherValue = aEntry.getValue();
+                if (theValue == theOtherValue || (theOtherValue != null && theOtherValue.equals(theValue))) {
+                    return theIndex;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        public boolean contains(TMap.Entry<K, V> aObject) {
+            return indexOfEntry(aObject) >= 0;
+        }
+
+        @Override
+        public boolean remove(TMap.Entry<K, V> aObject) {
+            int theIndex = indexOfEntry(aObject);
+            if (theIndex >= 0) {
+                removeAt(theIndex);
+                return true;
             }
+            return false;
         }
-        return theResult;
     }
-}
\ No newline at end of file
+
+    @Override
+    public TCollection<V> values() {
+        return new Values();
+    }
+
+    @Override
+    public TSet<TMap.Entry<K, V>> entrySet() {
+        return new EntrySet();
+    }
+
+    @Override
+    public TSet<K> keySet() {
+        return new KeySet();
+    }
+}
@@ -17,154 +17,64 @@ package de.mirkosertic.bytecoder.classlib.java.util;
 
 import java.util.Collection;
 
+/**
+ * A set backed by the keys of a THashMap.
+ */
 public class THashSet<T> implements TSet<T> {
 
-    private static class Bucket<V> {
-
-        private final int hashCode;
-        private final TArrayList<V> values;
-
-        public Bucket(int aHashCode) {
-            hashCode = aHashCode;
-            values = new TArrayList<>();
-        }
-
-        public boolean contains(V aValue) {
-            for (int i=0;i<values.size();i++) {
-                V theValue = values.get(i);
-                if (theValue.equals(aValue)) {
-                    return true;
-                }
-            }
-            return false;
-        }
+    private static final Object PRESENT = new Object();
 
-        public void add(V aValue) {
-            values.add(aValue);
-        }
-
-        public boolean remove(V aObject) {
-            return values.remove(aObject);
-        }
-    }
-
-    private final TArrayList<Bucket<T>> buckets;
+    private final THashMap<T, Object> map;
+    private final TSet<T> keys;
 
     public THashSet() {
-        buckets = new TArrayList<>();
-    }
-
-    public Bucket<T> findByHashCode(int aHashCode) {
-        for (int i=0;i<buckets.size();i++) {
-            Bucket<T> theBucket = buckets.get(i);
-            if (theBucket.hashCode == aHashCode) {
-                return theBucket;
-            }
-        }
-        return null;
+        map = new THashMap<>();
+        keys = map.keySet();
     }
 
     @Override
     public TIterator<T> iterator() {
-        return new TIterator<T>() {
-
-            int index = -1;
-            Object[] data = toArray();
-
-            @Override
-            public T next() {
-                return (T) data[index++];
-            }
-
-            @Override
-            public boolean hasNext() {
-                return index < data.length;
-            }
-        };
+        return keys.iterator();
     }
 
     @Override
     public boolean add(T aObject) {
-        int theHashCode = aObject.hashCode();
-        Bucket<T> theBucket = findByHashCode(theHashCode);
-        if (theBucket == null) {
-            theBucket = new Bucket<>(theHashCode);
-            theBucket.add(aObject);
-            buckets.add(theBucket);
-            return true;
-        }
-        if (!theBucket.contains(aObject)) {
-            theBucket.add(aObject);
-            return true;
-        }
-        return false;
+        return map.put(aObject, PRESENT) == null;
     }
 
     @Override
     public void clear() {
-        buckets.clear();
+        map.clear();
     }
 
     @Override
     public boolean contains(T aObject) {
-        int theHashCode = aObject.hashCode();
-        Bucket<T> theBucket = findByHashCode(theHashCode);
-        if (theBucket == null) {
-            return false;
-        }
-        return theBucket.contains(aObject);
+        return map.containsKey(aObject);
     }
 
     @Override
     public boolean isEmpty() {
-        return size() == 0;
+        return map.isEmpty();
     }
 
     @Override
     public boolean remove(T aObject) {
-        int theHashcode = aObject.hashCode();
-        Bucket<T> theBucket = findByHashCode(theHashcode);
-        if (theBucket == null) {
-            return false;
-        }
-        return theBucket.remove(aObject);
+        return map.remove(aObject) != null;
     }
 
     @Override
     public int size() {
-        int theSize = 0;
-        for (int i=0;i<buckets.size();i++) {
-            Bucket<T> theBucket = buckets.get(i);
-            theSize+=theBucket.values.size();
-        }
-        return theSize;
+        return map.size();
     }
 
     @Override
     public Object[] toArray() {
-        int theSize = size();
-        int theIndex = 0;
-        Object[] theResult = new Object[theSize];
-        for (int i=0;i<buckets.size();i++) {
-            Bucket<T> theBucket = buckets.get(i);
-            for (int j=0;j<theBucket.values.size();j++) {
-                theResult[theIndex++] = theBucket.values.get(j);
-            }
-        }
-        return theResult;
+        return keys.toArray();
     }
 
     @Override
     public Object[] toArray(Object[] aTarget) {
-        int theIndex = 0;
-        Object[] theResult = aTarget;
-        for (int i=0;i<buckets.size();i++) {
-            Bucket<T> theBucket = buckets.get(i);
-            for (int j=0;j<theBucket.values.size();j++) {
-                theResult[theIndex++] = theBucket.values.get(j);
-            }
-        }
-        return theResult;
+        return keys.toArray(aTarget);
     }
 
     @Override
@@ -188,4 +98,4 @@ public class THashSet<T> implements TSet<T> {
         }
         return theChanged;
     }
-}
\ No newline at end of file
+}
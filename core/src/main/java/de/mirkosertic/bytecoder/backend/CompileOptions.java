@@ -23,11 +23,23 @@ public class CompileOptions {
     private final Logger logger;
     private final boolean debugOutput;
     private final Optimizer optimizer;
+    private final boolean parallelCodeGeneration;
+    private final boolean preInitializeStatics;
 
     public CompileOptions(Logger aLogger, boolean aDebugOutput, Optimizer aOptimizer) {
+        this(aLogger, aDebugOutput, aOptimizer, false);
+    }
+
+    public CompileOptions(Logger aLogger, boolean aDebugOutput, Optimizer aOptimizer, boolean aParallelCodeGeneration) {
+        this(aLogger, aDebugOutput, aOptimizer, aParallelCodeGeneration, false);
+    }
+
+    public CompileOptions(Logger aLogger, boolean aDebugOutput, Optimizer aOptimizer, boolean aParallelCodeGeneration, boolean aPreInitializeStatics) {
         logger = aLogger;
         debugOutput = aDebugOutput;
         optimizer = aOptimizer;
+        parallelCodeGeneration = aParallelCodeGeneration;
+        preInitializeStatics = aPreInitializeStatics;
     }
 
     public Logger getLogger() {
@@ -41,4 +53,12 @@ public class CompileOptions {
     public Optimizer getOptimizer() {
         return optimizer;
     }
+
+    public boolean isParallelCodeGeneration() {
+        return parallelCodeGeneration;
+    }
+
+    public boolean isPreInitializeStatics() {
+        return preInitializeStatics;
+    }
 }
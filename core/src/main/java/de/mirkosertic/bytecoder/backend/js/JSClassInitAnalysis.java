@@ -0,0 +1,192 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.js;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.mirkosertic.bytecoder.core.BytecodeFieldRefConstant;
+import de.mirkosertic.bytecoder.core.BytecodeLinkedClass;
+import de.mirkosertic.bytecoder.core.BytecodeLinkerContext;
+import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
+import de.mirkosertic.bytecoder.ssa.ControlFlowGraph;
+import de.mirkosertic.bytecoder.ssa.Expression;
+import de.mirkosertic.bytecoder.ssa.ExpressionList;
+import de.mirkosertic.bytecoder.ssa.ExpressionListContainer;
+import de.mirkosertic.bytecoder.ssa.GetStaticExpression;
+import de.mirkosertic.bytecoder.ssa.GotoExpression;
+import de.mirkosertic.bytecoder.ssa.InvokeStaticMethodExpression;
+import de.mirkosertic.bytecoder.ssa.NewObjectExpression;
+import de.mirkosertic.bytecoder.ssa.Program;
+import de.mirkosertic.bytecoder.ssa.PutStaticExpression;
+import de.mirkosertic.bytecoder.ssa.RegionNode;
+import de.mirkosertic.bytecoder.ssa.ReturnExpression;
+import de.mirkosertic.bytecoder.ssa.ReturnValueExpression;
+import de.mirkosertic.bytecoder.ssa.ThrowExpression;
+import de.mirkosertic.bytecoder.ssa.Value;
+import de.mirkosertic.bytecoder.ssa.Variable;
+
+/**
+ * Finds the static field accesses and instantiations that do not need a class initialization check.
+ *
+ * A class is known to be initialized inside its own methods, after a statement accessing it and in all
+ * regions dominated by a region accessing it. Static method invocations are always known to initialize
+ * their class, as static methods are replaced by an initializing stub until the class is initialized.
+ */
+public class JSClassInitAnalysis {
+
+    private final BytecodeLinkerContext linkerContext;
+    private final Map<Value, Boolean> initialized;
+
+    public JSClassInitAnalysis(BytecodeLinkerContext aLinkerContext, Program aProgram, BytecodeLinkedClass aOwningClass) {
+        linkerContext = aLinkerContext;
+        initialized = new IdentityHashMap<>();
+
+        Set<BytecodeObjectTypeRef> theEntryState = new HashSet<>();
+        addWithSuperClasses(theEntryState, aOwningClass);
+
+        ControlFlowGraph theGraph = aProgram.getControlFlowGraph();
+        List<RegionNode> theNodes = theGraph.getDominatedNodes();
+
+        // Exception handlers can be entered from the middle of a region, so classes are only
+        // propagated along normal control flow
+        boolean theNormalFlowOnly = true;
+        for (RegionNode theNode : theNodes) {
+            if (theNode.getType() != RegionNode.BlockType.NORMAL) {
+                theNormalFlowOnly = false;
+                break;
+            }
+        }
+
+        // Classes initialized by the statements every region executes before it can be left
+        Map<RegionNode, Set<BytecodeObjectTypeRef>> theInitializedOnExit = new HashMap<>();
+        for (RegionNode theNode : theNodes) {
+            Set<BytecodeObjectTypeRef> theInitialized = new HashSet<>();
+            for (Expression theExpression : theNode.getExpressions().toList()) {
+                if (theExpression instanceof ExpressionListContainer || isJump(theExpression)) {
+                    break;
+                }
+                collectInitializedBy(theExpression, theInitialized);
+            }
+            theInitializedOnExit.put(theNode, theInitialized);
+        }
+
+        for (RegionNode theNode : theNodes) {
+            Set<BytecodeObjectTypeRef> theState = new HashSet<>(theEntryState);
+            if (theNormalFlowOnly) {
+                for (RegionNode theDominator : theNodes) {
+                    if (theDominator != theNode && theNode.isOnlyReachableThru(theDominator)) {
+                        theState.addAll(theInitializedOnExit.get(theDominator));
+                    }
+                }
+            }
+            analyze(theNode.getExpressions(), theState);
+        }
+    }
+
+    private static boolean isJump(Expression aExpression) {
+        return aExpression instanceof GotoExpression || aExpression instanceof ReturnExpression
+                || aExpression instanceof ReturnValueExpression || aExpression instanceof ThrowExpression;
+    }
+
+    private void addWithSuperClasses(Set<BytecodeObjectTypeRef> aResult, BytecodeLinkedClass aClass) {
+        // Initializing a class initializes its super classes first
+        BytecodeLinkedClass theCurrent = aClass;
+        while (theCurrent != null) {
+            aResult.add(theCurrent.getClassName());
+            theCurrent = theCurrent.getSuperClass();
+        }
+    }
+
+    private BytecodeObjectTypeRef classInitializedBy(Value aValue) {
+        // Static members only initialize their declaring class, and not the class they are referenced through
+        if (aValue instanceof GetStaticExpression) {
+            return declaringClassOf(((GetStaticExpression) aValue).getField());
+        }
+        if (aValue instanceof PutStaticExpression) {
+            return declaringClassOf(((PutStaticExpression) aValue).getField());
+        }
+        if (aValue instanceof NewObjectExpression) {
+            return linkerContext.resolveClass(BytecodeObjectTypeRef.fromUtf8Constant(((NewObjectExpression) aValue).getType().getConstant())).getClassName();
+        }
+        if (aValue instanceof InvokeStaticMethodExpression) {
+            InvokeStaticMethodExpression theInvocation = (InvokeStaticMethodExpression) aValue;
+            return linkerContext.resolveClass(theInvocation.getClassName())
+                    .declaringClassOfStaticMethod(theInvocation.getMethodName(), theInvocation.getSignature()).getClassName();
+        }
+        return null;
+    }
+
+    private BytecodeObjectTypeRef declaringClassOf(BytecodeFieldRefConstant aField) {
+        return linkerContext.resolveClass(BytecodeObjectTypeRef.fromUtf8Constant(aField.getClassIndex().getClassConstant().getConstant()))
+                .declaringClassOfStaticField(aField.getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue()).getClassName();
+    }
+
+    private static List<Value> valuesOf(Expression aExpression) {
+        // The values evaluated by a statement, not including nested statements. Variables are
+        // assigned by their own statements, so they are not followed
+        List<Value> theResult = new ArrayList<>();
+        List<Value> theWorkList = new ArrayList<>();
+        theWorkList.add(aExpression);
+        while (!theWorkList.isEmpty()) {
+            Value theValue = theWorkList.remove(theWorkList.size() - 1);
+            theResult.add(theValue);
+            for (Value theIncoming : theValue.<Value>incomingDataFlows()) {
+                if (!(theIncoming instanceof Variable)) {
+                    theWorkList.add(theIncoming);
+                }
+            }
+        }
+        return theResult;
+    }
+
+    private void collectInitializedBy(Expression aExpression, Set<BytecodeObjectTypeRef> aResult) {
+        for (Value theValue : valuesOf(aExpression)) {
+            BytecodeObjectTypeRef theClass = classInitializedBy(theValue);
+            if (theClass != null) {
+                addWithSuperClasses(aResult, linkerContext.resolveClass(theClass));
+            }
+        }
+    }
+
+    private void analyze(ExpressionList aList, Set<BytecodeObjectTypeRef> aState) {
+        for (Expression theExpression : aList.toList()) {
+            // The order of evaluation inside a statement is not tracked, so only classes initialized
+            // by previous statements are known to be initialized
+            for (Value theValue : valuesOf(theExpression)) {
+                BytecodeObjectTypeRef theClass = classInitializedBy(theValue);
+                if (theClass != null && aState.contains(theClass)) {
+                    initialized.put(theValue, Boolean.TRUE);
+                }
+            }
+            if (theExpression instanceof ExpressionListContainer) {
+                for (ExpressionList theNested : ((ExpressionListContainer) theExpression).getExpressionLists()) {
+                    analyze(theNested, new HashSet<>(aState));
+                }
+            }
+            collectInitializedBy(theExpression, aState);
+        }
+    }
+
+    public boolean isInitialized(Value aValue) {
+        return initialized.containsKey(aValue);
+    }
+}
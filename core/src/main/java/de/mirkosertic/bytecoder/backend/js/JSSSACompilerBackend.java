@@ -22,6 +22,7 @@ import de.mirkosertic.bytecoder.backend.wasm.WASMWriterUtils;
 import de.mirkosertic.bytecoder.classlib.ExceptionRethrower;
 import de.mirkosertic.bytecoder.classlib.java.lang.TArray;
 import de.mirkosertic.bytecoder.classlib.java.lang.TString;
+import de.mirkosertic.bytecoder.classlib.java.lang.TSystem;
 import de.mirkosertic.bytecoder.classlib.java.lang.TThrowable;
 import de.mirkosertic.bytecoder.core.BytecodeArrayTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodeClassinfoConstant;
@@ -37,6 +38,7 @@ import de.mirkosertic.bytecoder.core.BytecodeMethodSignature;
 import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodePrimitiveTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodeProgram;
+import de.mirkosertic.bytecoder.core.BytecodeTypeEncoding;
 import de.mirkosertic.bytecoder.core.BytecodeTypeRef;
 import de.mirkosertic.bytecoder.relooper.Relooper;
 import de.mirkosertic.bytecoder.ssa.Program;
@@ -46,9 +48,12 @@ import de.mirkosertic.bytecoder.ssa.Variable;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.HashSet;
-import java.util.Objects;
-import java.util.Set;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class JSSSACompilerBackend implements CompileBackend<JSCompileResult> {
 
@@ -70,6 +75,9 @@ public class JSSSACompilerBackend implements CompileBackend<JSCompileResult> {
         theExceptionRethrower.resolveStaticMethod("registerExceptionOutcome", registerExceptionOutcomeSignature);
         theExceptionRethrower.resolveStaticMethod("getLastOutcomeOrNullAndReset", getLastExceptionOutcomeSignature);
 
+        // Type ids and interface bits for constant time instanceof checks
+        BytecodeTypeEncoding theTypeEncoding = new BytecodeTypeEncoding(aLinkerContext);
+
         StringWriter theStrWriter = new StringWriter();
         PrintWriter theWriter = new PrintWriter(theStrWriter);
         theWriter.println("'use strict';");
@@ -106,19 +114,22 @@ public class JSSSACompilerBackend implements CompileBackend<JSCompileResult> {
         // Construct a String
         theWriter.println("          var theNewString = new " + JSWriterUtils.toClassName(theStringTypeRef) + ".Create();");
         theWriter.println("          var theBytes = new " + JSWriterUtils.toClassName(theArrayTypeRef) + ".Create();");
-        theWriter.println("          theBytes.data = aByteArray;");
+        theWriter.println("          theBytes.data = new Int8Array(aByteArray);");
         theWriter.println("          " + JSWriterUtils.toClassName(theStringTypeRef) + "." + JSWriterUtils.toMethodName("init", theStringConstructorSignature) + "(theNewString, theBytes);");
         theWriter.println("          return theNewString;");
         theWriter.println("     },");
         theWriter.println();
-        theWriter.println("     newMultiArray : function(aDimensions, aDefault) {");
+        theWriter.println("     newMultiArray : function(aDimensions, aTypedArray) {");
         theWriter.println("         var theLength = aDimensions[0];");
-        theWriter.println("         var theArray = bytecoder.newArray(theLength, aDefault);");
+        theWriter.println("         if (aDimensions.length == 1 && aTypedArray) {");
+        theWriter.println("             return bytecoder.newTypedArray(new aTypedArray(theLength));");
+        theWriter.println("         }");
+        theWriter.println("         var theArray = bytecoder.newArray(theLength, null);");
         theWriter.println("         if (aDimensions.length > 1) {");
         theWriter.println("             var theNewDimensions = aDimensions.slice(0);");
         theWriter.println("             theNewDimensions.shift();");
         theWriter.println("             for (var i=0;i<theLength;i++) {");
-        theWriter.println("                 theArray.data[i] = bytecoder.newMultiArray(theNewDimensions, aDefault);");
+        theWriter.println("                 theArray.data[i] = bytecoder.newMultiArray(theNewDimensions, aTypedArray);");
         theWriter.println("             }");
         theWriter.println("         }");
         theWriter.println("         return theArray;");
@@ -128,18 +139,43 @@ public class JSSSACompilerBackend implements CompileBackend<JSCompileResult> {
 
         BytecodeObjectTypeRef theArrayType = BytecodeObjectTypeRef.fromRuntimeClass(TArray.class);
         theWriter.println("          var theInstance = new " + JSWriterUtils.toClassName(theArrayType)+ ".Create();");
-        theWriter.println("          theInstance.data = [];");
-        theWriter.println("          theInstance.data.length = aLength;");
-        theWriter.println("          for (var i=0;i<aLength;i++) {");
-        theWriter.println("             theInstance.data[i] = aDefault;");
-        theWriter.println("          }");
+        theWriter.println("          theInstance.data = new Array(aLength).fill(aDefault);");
+        theWriter.println("          return theInstance;");
+        theWriter.println("     },");
+        theWriter.println();
+        theWriter.println("     newTypedArray : function(aData) {");
+        theWriter.println("          var theInstance = new " + JSWriterUtils.toClassName(theArrayType)+ ".Create();");
+        theWriter.println("          theInstance.data = aData;");
         theWriter.println("          return theInstance;");
         theWriter.println("     },");
+        theWriter.println();
 
+        // Copies inside an array and between typed arrays are done natively
+        theWriter.println("     arraycopy : function(aSource, aSourcePos, aTarget, aTargetPos, aLength) {");
+        theWriter.println("          var theSource = aSource.data;");
+        theWriter.println("          var theTarget = aTarget.data;");
+        theWriter.println("          if (theSource === theTarget) {");
+        theWriter.println("             theTarget.copyWithin(aTargetPos, aSourcePos, aSourcePos + aLength);");
+        theWriter.println("          } else if (ArrayBuffer.isView(theSource) && ArrayBuffer.isView(theTarget)) {");
+        theWriter.println("             theTarget.set(theSource.subarray(aSourcePos, aSourcePos + aLength), aTargetPos);");
+        theWriter.println("          } else {");
+        theWriter.println("             for (var i=0;i<aLength;i++) {");
+        theWriter.println("                 theTarget[aTargetPos + i] = theSource[aSourcePos + i];");
+        theWriter.println("             }");
+        theWriter.println("          }");
+        theWriter.println("     },");
         theWriter.println();
-        theWriter.println("     dynamicType : function(aFunction) { ");
-        theWriter.println("         return new Proxy({}, {");
+        theWriter.println("     dynamicType : function(aType, aFunction) { ");
+        theWriter.println("         var theTarget = {};");
+        theWriter.println("         if (aType && aType.__interfaceBits) {");
+        theWriter.println("             theTarget.__typeId = aType.__typeId;");
+        theWriter.println("             theTarget.__interfaceBits = aType.__interfaceBits;");
+        theWriter.println("         }");
+        theWriter.println("         return new Proxy(theTarget, {");
         theWriter.println("             get: function(target, name) {");
+        theWriter.println("                 if (target.hasOwnProperty(name)) {");
+        theWriter.println("                    return target[name];");
+        theWriter.println("                 }");
         theWriter.println("                 return function(inst, _p1, _p2, _p3, _p4, _p5, _p6, _p7, _p8, _p9) {");
         theWriter.println("                    return aFunction(_p1, _p2, _p3, _p4, _p5, _p6, _p7, _p8, _p9);");
         theWriter.println("                 }");
@@ -158,14 +194,33 @@ public class JSSSACompilerBackend implements CompileBackend<JSCompileResult> {
         theWriter.println("     },");
         theWriter.println();
 
+        // Static methods initialize their class on the first invocation. The stubs are
+        // replaced by the original methods once the class is initialized
+        theWriter.println("     lazyStatics : function(aClass, aMethodNames) {");
+        theWriter.println("         var theMethods = {};");
+        theWriter.println("         aMethodNames.forEach(function(aMethodName) {");
+        theWriter.println("             var theMethod = aClass[aMethodName];");
+        theWriter.println("             theMethods[aMethodName] = theMethod;");
+        theWriter.println("             aClass[aMethodName] = function() {");
+        theWriter.println("                 aClass.classInitCheck();");
+        theWriter.println("                 return theMethod.apply(aClass, arguments);");
+        theWriter.println("             };");
+        theWriter.println("         });");
+        theWriter.println("         aClass.__staticMethods = theMethods;");
+        theWriter.println("     },");
+        theWriter.println();
+
         theWriter.println("     imports : [],");
         theWriter.println();
 
+        // Classes are initialized on demand, only the classes instantiated by the runtime
+        // functions above are initialized in advance
         theWriter.println("     bootstrap : function() {");
         aLinkerContext.linkedClasses().forEach(aEntry -> {
-            if (!aEntry.targetNode().getBytecodeClass().getAccessFlags().isInterface()) {
+            BytecodeObjectTypeRef theType = aEntry.edgeType().objectTypeRef();
+            if (theType.equals(theStringTypeRef) || theType.equals(theArrayTypeRef)) {
                 theWriter.print("          ");
-                theWriter.print(JSWriterUtils.toClassName(aEntry.edgeType().objectTypeRef()));
+                theWriter.print(JSWriterUtils.toClassName(theType));
                 theWriter.println(".classInitCheck();");
             }
         });
@@ -173,6 +228,27 @@ public class JSSSACompilerBackend implements CompileBackend<JSCompileResult> {
         theWriter.println("};");
         theWriter.println();
 
+        // Linking is complete, so the methods can be compiled independently of each other
+        aLinkerContext.freeze();
+
+        List<BytecodeResolvedMethods.MethodEntry> theMethodsToCompile = new ArrayList<>();
+        aLinkerContext.linkedClasses().forEach(theEntry -> theEntry.targetNode().resolvedMethods().stream().forEach(aEntry -> {
+            // Do not generate code for abstract methods or methods not implemented in this class
+            if (!aEntry.getValue().getAccessFlags().isAbstract() && aEntry.getProvidingClass() == theEntry.targetNode()) {
+                theMethodsToCompile.add(aEntry);
+            }
+        }));
+        Stream<BytecodeResolvedMethods.MethodEntry> theMethodStream = aOptions.isParallelCodeGeneration()
+                ? theMethodsToCompile.parallelStream()
+                : theMethodsToCompile.stream();
+        List<String> theCompiledMethodList = theMethodStream
+                .map(aEntry -> compileMethod(aOptions, aLinkerContext, theTypeEncoding, aEntry))
+                .collect(Collectors.toList());
+        Map<BytecodeResolvedMethods.MethodEntry, String> theCompiledMethods = new HashMap<>();
+        for (int i=0;i<theMethodsToCompile.size();i++) {
+            theCompiledMethods.put(theMethodsToCompile.get(i), theCompiledMethodList.get(i));
+        }
+
         aLinkerContext.linkedClasses().forEach(theEntry -> {
 
             String theJSClassName = JSWriterUtils.toClassName(theEntry.edgeType().objectTypeRef());
@@ -183,17 +259,17 @@ public class JSSSACompilerBackend implements CompileBackend<JSCompileResult> {
             theWriter.println("    __initialized : false,");
             theWriter.println("    __staticCallSites : [],");
             theWriter.print("    __typeId : ");
-            theWriter.print(theEntry.targetNode().getUniqueId());
+            theWriter.print(theTypeEncoding.typeIdOf(theEntry.targetNode()));
             theWriter.println(",");
-            theWriter.print("    __implementedTypes : [");
+            theWriter.print("    __interfaceBits : [");
             {
                 boolean first = true;
-                for (BytecodeLinkedClass theType : theEntry.targetNode().getImplementingTypes()) {
+                for (int theWord : theTypeEncoding.interfaceBitsetOf(theEntry.targetNode())) {
                     if (!first) {
                         theWriter.print(",");
                     }
                     first = false;
-                    theWriter.print(theType.getUniqueId());
+                    theWriter.print(theWord);
                 }
             }
             theWriter.println("],");
@@ -201,25 +277,23 @@ public class JSSSACompilerBackend implements CompileBackend<JSCompileResult> {
             // then we add class specific static fields
             BytecodeResolvedFields theStaticFields = theEntry.targetNode().resolvedFields();
             theStaticFields.streamForStaticFields().forEach(
-                    aFieldEntry -> theWriter.println("    " + aFieldEntry.getValue().getName().stringValue() + " : null, // declared in " + aFieldEntry.getProvidingClass().getClassName().name()));
+                    aFieldEntry -> theWriter.println("    " + aFieldEntry.getValue().getName().stringValue() + " : "
+                            + JSWriterUtils.toDefaultValue(aFieldEntry.getValue().getTypeRef()) + ", // declared in " + aFieldEntry.getProvidingClass().getClassName().name()));
             theWriter.println();
 
             if (!theEntry.targetNode().getBytecodeClass().getAccessFlags().isAbstract()) {
-                // The Constructor function initializes all object members with null
+                // The Constructor function initializes all object members with their default value,
+                // super class members first, so all instances of a type share the same shape
                 // Only non abstract classes can be instantiated
                 BytecodeResolvedFields theInstanceFields = theEntry.targetNode().resolvedFields();
                 theWriter.println("    Create : function() {");
                 theInstanceFields.streamForInstanceFields().forEach(
-                        aFieldEntry -> theWriter.println("        this." + aFieldEntry.getValue().getName().stringValue() + " = null; // declared in " + aFieldEntry.getProvidingClass().getClassName().name()));
+                        aFieldEntry -> theWriter.println("        this." + aFieldEntry.getValue().getName().stringValue() + " = "
+                                + JSWriterUtils.toDefaultValue(aFieldEntry.getValue().getTypeRef()) + "; // declared in " + aFieldEntry.getProvidingClass().getClassName().name()));
                 theWriter.println("    },");
                 theWriter.println();
             }
 
-            theWriter.println("    instanceOf : function(aType) {");
-            theWriter.println("        return " + theJSClassName + ".__implementedTypes.includes(aType.__typeId);");
-            theWriter.println("    },");
-            theWriter.println();
-
             theWriter.println("    TClassgetClass : function() {");
             theWriter.println("        return " + theJSClassName + ";");
             theWriter.println("    },");
@@ -231,160 +305,209 @@ public class JSSSACompilerBackend implements CompileBackend<JSCompileResult> {
             theWriter.println();
 
             theWriter.println("    A1TObjectgetEnumConstants : function(aClazz) {");
-            theWriter.println("        return aClazz.$VALUES;");
+            theWriter.println("        return aClazz.classInitCheck().$VALUES;");
             theWriter.println("    },");
 
-            Set<BytecodeObjectTypeRef> theStaticReferences = new HashSet<>();
+            List<String> theStaticMethods = new ArrayList<>();
 
             BytecodeResolvedMethods theMethods = theEntry.targetNode().resolvedMethods();
 
             theMethods.stream().forEach(aEntry -> {
-                BytecodeMethod theMethod = aEntry.getValue();
+                String theCompiledMethod = theCompiledMethods.get(aEntry);
+                if (theCompiledMethod != null && !theCompiledMethod.isEmpty()) {
+                    theWriter.print(theCompiledMethod);
 
-                // Do not generate code for abstract methods
-                if (theMethod.getAccessFlags().isAbstract()) {
-                    return;
+                    BytecodeMethod theMethod = aEntry.getValue();
+                    if (theMethod.getAccessFlags().isStatic() && !theMethod.isClassInitializer()) {
+                        theStaticMethods.add(JSWriterUtils.toMethodName(theMethod.getName().stringValue(), theMethod.getSignature()));
+                    }
                 }
+            });
 
-                if (!(aEntry.getProvidingClass() == theEntry.targetNode())) {
-                    // Skip methods not implemented in this class
-                    return;
-                }
 
-                aLinkerContext.getLogger().info("Compiling {}", theEntry.targetNode().getClassName().name()  + "." + theMethod.getName().stringValue());
+            theWriter.println();
+            theWriter.println("    classInitCheck : function() {");
+            theWriter.println("        if (!" + theJSClassName + ".__initialized) {");
+            theWriter.println("            " + theJSClassName + ".__initialized = true;");
+            if (!theStaticMethods.isEmpty()) {
+                theWriter.println("            Object.assign(" + theJSClassName + ", " + theJSClassName + ".__staticMethods);");
+            }
 
-                ProgramGenerator theGenerator = programGeneratorFactory.createFor(aLinkerContext);
-                Program theSSAProgram = theGenerator.generateFrom(aEntry.getProvidingClass().getBytecodeClass(), theMethod);
+            // Super classes are initialized first, other classes are initialized on demand
+            BytecodeLinkedClass theSuperClass = theEntry.targetNode().getSuperClass();
+            if (theSuperClass != null) {
+                theWriter.print("            ");
+                theWriter.print(JSWriterUtils.toClassName(theSuperClass.getClassName()));
+                theWriter.println(".classInitCheck();");
+            }
+            if (theEntry.targetNode().hasClassInitializer()) {
+                theWriter.println("            " + theJSClassName + ".VOIDclinit();");
+            }
+            theWriter.println("        }");
+            theWriter.println("        return " + theJSClassName + ";");
 
-                //Run optimizer
-                aOptions.getOptimizer().optimize(theSSAProgram.getControlFlowGraph(), aLinkerContext);
+            theWriter.println("    },");
+            theWriter.println();
 
-                BytecodeMethodSignature theCurrentMethodSignature = theMethod.getSignature();
-                StringBuilder theArguments = new StringBuilder();
-                for (Program.Argument theArgument : theSSAProgram.getArguments()) {
-                    if (theArguments.length() > 0) {
-                        theArguments.append(",");
+            theWriter.println("};");
+            if (!theStaticMethods.isEmpty()) {
+                theWriter.print("bytecoder.lazyStatics(");
+                theWriter.print(theJSClassName);
+                theWriter.print(", [");
+                for (int i=0;i<theStaticMethods.size();i++) {
+                    if (i > 0) {
+                        theWriter.print(",");
                     }
-                    theArguments.append(theArgument.getVariable().getName());
+                    theWriter.print("'");
+                    theWriter.print(theStaticMethods.get(i));
+                    theWriter.print("'");
                 }
+                theWriter.println("]);");
+            }
+            theWriter.println();
+        });
 
-                if (theMethod.getAccessFlags().isNative()) {
-                    if (theEntry.targetNode().getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) != null) {
-                        return;
-                    }
+        // The prototypes are set up once all classes are defined, and not when a class is initialized,
+        // so the shape of the prototypes does not change while the program runs
+        aLinkerContext.linkedClasses().forEach(theEntry -> {
+            // Only in case this class can be instantiated of course
+            if (theEntry.targetNode().getBytecodeClass().getAccessFlags().isAbstract()) {
+                return;
+            }
+            String theJSClassName = JSWriterUtils.toClassName(theEntry.edgeType().objectTypeRef());
+            theWriter.println("var thePrototype = " + theJSClassName + ".Create.prototype;");
+            theWriter.println("thePrototype.__typeId = " + theJSClassName + ".__typeId;");
+            theWriter.println("thePrototype.__interfaceBits = " + theJSClassName + ".__interfaceBits;");
+            theWriter.println("thePrototype.TClassgetClass = " + theJSClassName + ".TClassgetClass;");
 
-                    BytecodeImportedLink theLink = theEntry.targetNode().linkfor(theMethod);
+            theEntry.targetNode().resolvedMethods().stream().forEach(aEntry -> {
+                BytecodeMethod theMethod = aEntry.getValue();
+                if (!theMethod.getAccessFlags().isStatic() &&
+                        !theMethod.getAccessFlags().isAbstract() &&
+                        !theMethod.isConstructor() &&
+                        !theMethod.isClassInitializer()) {
+                    String theMethodName = JSWriterUtils.toMethodName(theMethod.getName().stringValue(), theMethod.getSignature());
+                    theWriter.print("thePrototype.");
+                    theWriter.print(theMethodName);
+                    theWriter.print(" = ");
+                    theWriter.print(WASMWriterUtils.toClassName(aEntry.getProvidingClass().getClassName()));
+                    theWriter.print(".");
+                    theWriter.print(theMethodName);
+                    theWriter.println(";");
+                }
+            });
+            theWriter.println();
+        });
 
-                    theWriter.println();
-                    theWriter.println("    " + JSWriterUtils.toMethodName(theMethod.getName().stringValue(), theCurrentMethodSignature) + " : function(" + theArguments
-                            + ") {");
+        theWriter.flush();
 
-                    theWriter.print("         return bytecoder.imports.");
-                    theWriter.print(theLink.getModuleName());
-                    theWriter.print(".");
-                    theWriter.print(theLink.getLinkName());
-                    theWriter.print("(");
-                    theWriter.print(theArguments);
-                    theWriter.println(");");
+        return new JSCompileResult(theStrWriter.toString());
+    }
 
-                    theWriter.println("    },");
-                    return;
-                }
+    private String compileMethod(CompileOptions aOptions, BytecodeLinkerContext aLinkerContext, BytecodeTypeEncoding aTypeEncoding,
+            BytecodeResolvedMethods.MethodEntry aEntry) {
+        BytecodeLinkedClass theLinkedClass = aEntry.getProvidingClass();
+        BytecodeMethod theMethod = aEntry.getValue();
 
-                theWriter.println();
-                theWriter.println("    " + JSWriterUtils.toMethodName(theMethod.getName().stringValue(), theCurrentMethodSignature) + " : function(" + theArguments
-                        + ") {");
+        StringWriter theStrWriter = new StringWriter();
+        PrintWriter theWriter = new PrintWriter(theStrWriter);
 
-                aOptions.getLogger().info("Compiling " + theEntry.targetNode().getClassName().name() + "." + theMethod.getName().stringValue());
+        aLinkerContext.getLogger().info("Compiling {}", theLinkedClass.getClassName().name()  + "." + theMethod.getName().stringValue());
 
-                theStaticReferences.addAll(theSSAProgram.getStaticReferences());
+        ProgramGenerator theGenerator = programGeneratorFactory.createFor(aLinkerContext);
+        Program theSSAProgram = theGenerator.generateFrom(aEntry.getProvidingClass().getBytecodeClass(), theMethod);
 
-                if (aOptions.isDebugOutput()) {
-                    theWriter.println("        /**");
-                    theWriter.println("        " + theSSAProgram.getControlFlowGraph().toDOT());
-                    theWriter.println("        */");
-                }
+        //Run optimizer
+        aOptions.getOptimizer().optimize(theSSAProgram.getControlFlowGraph(), aLinkerContext);
 
-                JSSSAWriter theVariablesWriter = new JSSSAWriter(aOptions, theSSAProgram, "        ", theWriter, aLinkerContext);
-                for (Variable theVariable : theSSAProgram.globalVariables()) {
-                    if (!theVariable.isSynthetic()) {
-                        theVariablesWriter.print("var ");
-                        theVariablesWriter.print(theVariable.getName());
-                        theVariablesWriter.print(" = null;");
-                        theVariablesWriter.print(" // type is ");
-                        theVariablesWriter.print(theVariable.resolveType().resolve().name());
-                        theVariablesWriter.print(" # of inits = " + theVariable.incomingDataFlows().size());
-                        theVariablesWriter.println();
-                    }
-                }
+        BytecodeMethodSignature theCurrentMethodSignature = theMethod.getSignature();
+        StringBuilder theArguments = new StringBuilder();
+        for (Program.Argument theArgument : theSSAProgram.getArguments()) {
+            if (theArguments.length() > 0) {
+                theArguments.append(",");
+            }
+            theArguments.append(theArgument.getVariable().getName());
+        }
 
-                // Try to reloop it!
-                try {
-                    Relooper theRelooper = new Relooper();
-                    Relooper.Block theReloopedBlock = theRelooper.reloop(theSSAProgram.getControlFlowGraph());
+        if (theLinkedClass.getClassName().equals(BytecodeObjectTypeRef.fromRuntimeClass(TSystem.class))
+                && "arraycopy".equals(theMethod.getName().stringValue())) {
+            // Replaced by the runtime, which copies typed arrays natively
+            theWriter.println();
+            theWriter.println("    " + JSWriterUtils.toMethodName(theMethod.getName().stringValue(), theCurrentMethodSignature) + " : function(" + theArguments
+                    + ") {");
+            theWriter.println("         bytecoder.arraycopy(" + theArguments + ");");
+            theWriter.println("    },");
+            theWriter.flush();
 
-                    theVariablesWriter.printRelooped(theReloopedBlock);
-                } catch (Exception e) {
-                    System.out.println(theSSAProgram.getControlFlowGraph().toDOT());
-                    throw new IllegalStateException("Error relooping cfg for " + theEntry.targetNode().getClassName().name() + "." + theMethod.getName().stringValue(), e);
-                }
+            return theStrWriter.toString();
+        }
 
-                theWriter.println("    },");
-            });
+        if (theMethod.getAccessFlags().isNative()) {
+            if (theLinkedClass.getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) != null) {
+                return "";
+            }
 
+            BytecodeImportedLink theLink = theLinkedClass.linkfor(theMethod);
 
             theWriter.println();
-            theWriter.println("    classInitCheck : function() {");
-            theWriter.println("        if (!" + theJSClassName + ".__initialized) {");
-            theWriter.println("            " + theJSClassName + ".__initialized = true;");
+            theWriter.println("    " + JSWriterUtils.toMethodName(theMethod.getName().stringValue(), theCurrentMethodSignature) + " : function(" + theArguments
+                    + ") {");
 
-            if (!theEntry.targetNode().getBytecodeClass().getAccessFlags().isAbstract()) {
-                // Now we have to setup the prototype
-                // Only in case this class can be instantiated of course
-                theWriter.println("            var thePrototype = " + theJSClassName + ".Create.prototype;");
-                theWriter.println("            thePrototype.instanceOf = " + theJSClassName + ".instanceOf;");
-                theWriter.println("            thePrototype.TClassgetClass = " + theJSClassName + ".TClassgetClass;");
+            theWriter.print("         return bytecoder.imports.");
+            theWriter.print(theLink.getModuleName());
+            theWriter.print(".");
+            theWriter.print(theLink.getLinkName());
+            theWriter.print("(");
+            theWriter.print(theArguments);
+            theWriter.println(");");
 
-                theMethods.stream().forEach(aEntry -> {
-                    BytecodeMethod theMethod = aEntry.getValue();
-                    if (!theMethod.getAccessFlags().isStatic() &&
-                            !theMethod.getAccessFlags().isAbstract() &&
-                            !theMethod.isConstructor() &&
-                            !theMethod.isClassInitializer()) {
-                        String theMethodName = JSWriterUtils.toMethodName(theMethod.getName().stringValue(), theMethod.getSignature());
-                        theWriter.print("            thePrototype.");
-                        theWriter.print(theMethodName);
-                        theWriter.print(" = ");
-                        theWriter.print(WASMWriterUtils.toClassName(aEntry.getProvidingClass().getClassName()));
-                        theWriter.print(".");
-                        theWriter.print(theMethodName);
-                        theWriter.println(";");
-                    }
-                });
-            }
+            theWriter.println("    },");
+            theWriter.flush();
 
-            for (BytecodeObjectTypeRef theRef : theStaticReferences) {
-                if (!Objects.equals(theRef, theEntry.edgeType().objectTypeRef())) {
-                    theWriter.print("            ");
-                    theWriter.print(JSWriterUtils.toClassName(theRef));
-                    theWriter.println(".classInitCheck();");
-                }
-            }
-            if (theEntry.targetNode().hasClassInitializer()) {
-                theWriter.println("            " + theJSClassName + ".VOIDclinit();");
+            return theStrWriter.toString();
+        }
+
+        theWriter.println();
+        theWriter.println("    " + JSWriterUtils.toMethodName(theMethod.getName().stringValue(), theCurrentMethodSignature) + " : function(" + theArguments
+                + ") {");
+
+        aOptions.getLogger().info("Compiling " + theLinkedClass.getClassName().name() + "." + theMethod.getName().stringValue());
+
+        if (aOptions.isDebugOutput()) {
+            theWriter.println("        /**");
+            theWriter.println("        " + theSSAProgram.getControlFlowGraph().toDOT());
+            theWriter.println("        */");
+        }
+
+        JSClassInitAnalysis theClassInitAnalysis = new JSClassInitAnalysis(aLinkerContext, theSSAProgram, theLinkedClass);
+        JSSSAWriter theVariablesWriter = new JSSSAWriter(aOptions, theSSAProgram, "        ", theWriter, aLinkerContext, aTypeEncoding, theClassInitAnalysis);
+        for (Variable theVariable : theSSAProgram.globalVariables()) {
+            if (!theVariable.isSynthetic()) {
+                theVariablesWriter.print("var ");
+                theVariablesWriter.print(theVariable.getName());
+                theVariablesWriter.print(" = null;");
+                theVariablesWriter.print(" // type is ");
+                theVariablesWriter.print(theVariable.resolveType().resolve().name());
+                theVariablesWriter.print(" # of inits = " + theVariable.incomingDataFlows().size());
+                theVariablesWriter.println();
             }
-            theWriter.println("        }");
+        }
 
-            theWriter.println("    },");
-            theWriter.println();
+        // Try to reloop it!
+        try {
+            Relooper theRelooper = new Relooper();
+            Relooper.Block theReloopedBlock = theRelooper.reloop(theSSAProgram.getControlFlowGraph());
 
-            theWriter.println("};");
-            theWriter.println();
-        });
+            theVariablesWriter.printRelooped(theReloopedBlock);
+        } catch (Exception e) {
+            System.out.println(theSSAProgram.getControlFlowGraph().toDOT());
+            throw new IllegalStateException("Error relooping cfg for " + theLinkedClass.getClassName().name() + "." + theMethod.getName().stringValue(), e);
+        }
 
+        theWriter.println("    },");
         theWriter.flush();
 
-        return new JSCompileResult(theStrWriter.toString());
+        return theStrWriter.toString();
     }
 
     private void writeExceptionHandlerCode(BytecodeLinkerContext aLinkerContext, BytecodeLinkedClass aExceptionRethrower,
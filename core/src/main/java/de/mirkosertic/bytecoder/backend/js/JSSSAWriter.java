@@ -16,20 +16,28 @@
 package de.mirkosertic.bytecoder.backend.js;
 
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import de.mirkosertic.bytecoder.backend.CompileOptions;
 import de.mirkosertic.bytecoder.backend.IndentSSAWriter;
-import de.mirkosertic.bytecoder.backend.wasm.WASMWriterUtils;
+import de.mirkosertic.bytecoder.core.BytecodeArrayTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodeFieldRefConstant;
 import de.mirkosertic.bytecoder.core.BytecodeLinkedClass;
 import de.mirkosertic.bytecoder.core.BytecodeLinkerContext;
 import de.mirkosertic.bytecoder.core.BytecodeMethodSignature;
+import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodeOpcodeAddress;
+import de.mirkosertic.bytecoder.core.BytecodePrimitiveTypeRef;
+import de.mirkosertic.bytecoder.core.BytecodeTypeEncoding;
 import de.mirkosertic.bytecoder.core.BytecodeTypeRef;
-import de.mirkosertic.bytecoder.core.BytecodeVirtualMethodIdentifier;
 import de.mirkosertic.bytecoder.relooper.Relooper;
 import de.mirkosertic.bytecoder.ssa.ArrayEntryExpression;
 import de.mirkosertic.bytecoder.ssa.ArrayLengthExpression;
@@ -98,12 +106,18 @@ import de.mirkosertic.bytecoder.ssa.VariableAssignmentExpression;
 
 public class JSSSAWriter extends IndentSSAWriter {
 
-    public JSSSAWriter(CompileOptions aOptions, Program aProgram, String aIndent, PrintWriter aWriter, BytecodeLinkerContext aLinkerContext) {
+    private final BytecodeTypeEncoding typeEncoding;
+    private final JSClassInitAnalysis classInitAnalysis;
+
+    public JSSSAWriter(CompileOptions aOptions, Program aProgram, String aIndent, PrintWriter aWriter, BytecodeLinkerContext aLinkerContext,
+            BytecodeTypeEncoding aTypeEncoding, JSClassInitAnalysis aClassInitAnalysis) {
         super(aOptions, aProgram, aIndent, aWriter, aLinkerContext);
+        typeEncoding = aTypeEncoding;
+        classInitAnalysis = aClassInitAnalysis;
     }
 
     private JSSSAWriter withDeeperIndent() {
-        return new JSSSAWriter(options, program, indent + "    ", writer, linkerContext);
+        return new JSSSAWriter(options, program, indent + "    ", writer, linkerContext, typeEncoding, classInitAnalysis);
     }
 
     private void print(Value aValue) {
@@ -242,11 +256,23 @@ public class JSSSAWriter extends IndentSSAWriter {
 
     private void print(RuntimeGeneratedTypeExpression aValue) {
         print("bytecoder.dynamicType(");
+        print(aValue.getType());
+        print(", ");
         print(aValue.getMethodRef());
         print(")");
     }
 
     private void print(MethodTypeExpression aValue) {
+        // Method types returning a functional interface are represented by the interface, so lambdas
+        // created for them carry its type id and interface bitset
+        BytecodeTypeRef theReturnType = aValue.getSignature().getReturnType();
+        if (theReturnType instanceof BytecodeObjectTypeRef) {
+            BytecodeLinkedClass theLinkedClass = linkerContext.isLinkedOrNull((BytecodeObjectTypeRef) theReturnType);
+            if (theLinkedClass != null && theLinkedClass.getBytecodeClass().getAccessFlags().isInterface()) {
+                print(JSWriterUtils.toClassName(theLinkedClass.getClassName()));
+                return;
+            }
+        }
         print("'");
         print(aValue.getSignature().toString());
         print("'");
@@ -308,12 +334,10 @@ public class JSSSAWriter extends IndentSSAWriter {
     }
 
     private void print(NewMultiArrayExpression aValue) {
-        BytecodeTypeRef theType = aValue.getType();
-        Object theDefaultValue = theType.defaultValue();
-        String theStrDefault = theDefaultValue != null ? theDefaultValue.toString() : "null";
+        BytecodeArrayTypeRef theType = (BytecodeArrayTypeRef) aValue.getType();
+        List<Value> theDimensions = aValue.incomingDataFlows();
         print("bytecoder.newMultiArray(");
         print("[");
-        List<Value> theDimensions = aValue.incomingDataFlows();
         for (int i=0;i<theDimensions.size();i++) {
             if (i>0) {
                 print(",");
@@ -322,7 +346,12 @@ public class JSSSAWriter extends IndentSSAWriter {
         }
         print("]");
         print(",");
-        print(theStrDefault);
+        // The innermost dimension is only created if all dimensions are given
+        if (theType.getType().isPrimitive() && theDimensions.size() == theType.getDepth()) {
+            print(JSWriterUtils.toTypedArrayName((BytecodePrimitiveTypeRef) theType.getType()));
+        } else {
+            print("null");
+        }
         print(")");
     }
 
@@ -335,14 +364,32 @@ public class JSSSAWriter extends IndentSSAWriter {
         print("(");
         print(theValue);
         print(" == null ? false : ");
-        print(theValue);
-        print(".instanceOf(");
 
         BytecodeLinkedClass theLinkedClass = linkerContext.isLinkedOrNull(aValue.getType().getConstant());
-        print(WASMWriterUtils.toClassName(theLinkedClass.getClassName()));
+        if (typeEncoding.isInterface(theLinkedClass)) {
+            // Test the bit of the interface in the bitset of the type
+            int theBit = typeEncoding.interfaceBitOf(theLinkedClass);
+            print("(");
+            print(theValue);
+            print(".__interfaceBits[");
+            print(theBit / 32);
+            print("] & ");
+            print(1 << (theBit % 32));
+            print(") != 0");
+        } else {
+            // Subclasses have type ids in the interval from the class type id to its last subtype id
+            print("(");
+            print(theValue);
+            print(".__typeId >= ");
+            print(typeEncoding.typeIdOf(theLinkedClass));
+            print(" && ");
+            print(theValue);
+            print(".__typeId <= ");
+            print(typeEncoding.lastSubtypeIdOf(theLinkedClass));
+            print(")");
+        }
 
         print(")");
-        print(")");
     }
 
     private void print(LongValue aValue) {
@@ -381,13 +428,18 @@ public class JSSSAWriter extends IndentSSAWriter {
     private void print(NewArrayExpression aValue) {
         BytecodeTypeRef theType = aValue.getType();
         Value theLength =aValue.incomingDataFlows().get(0);
-        Object theDefaultValue = theType.defaultValue();
-        String theStrDefault = theDefaultValue != null ? theDefaultValue.toString() : "null";
+        if (theType.isPrimitive()) {
+            // Primitive arrays are backed by typed arrays, which are zero initialized
+            print("bytecoder.newTypedArray(new ");
+            print(JSWriterUtils.toTypedArrayName((BytecodePrimitiveTypeRef) theType));
+            print("(");
+            print(theLength);
+            print("))");
+            return;
+        }
         print("bytecoder.newArray(");
         print(theLength);
-        print(",");
-        print(theStrDefault);
-        print(")");
+        print(",null)");
     }
 
     private void print(IntegerValue aValue) {
@@ -543,9 +595,15 @@ public class JSSSAWriter extends IndentSSAWriter {
     }
 
     private void print(NewObjectExpression aValue) {
-        print("new ");
-        print(JSWriterUtils.toClassName(aValue.getType()));
-        print(".Create()");
+        if (classInitAnalysis.isInitialized(aValue)) {
+            print("new ");
+            print(JSWriterUtils.toClassName(aValue.getType()));
+            print(".Create()");
+        } else {
+            print("new (");
+            print(JSWriterUtils.toClassName(aValue.getType()));
+            print(".classInitCheck().Create)()");
+        }
     }
 
     private void print(InvokeStaticMethodExpression aValue) {
@@ -554,7 +612,9 @@ public class JSSSAWriter extends IndentSSAWriter {
 
         List<Value> theVariables = aValue.incomingDataFlows();
 
-        print(JSWriterUtils.toClassName(aValue.getClassName()));
+        // Static methods are invoked on their declaring class, so only this class is initialized
+        BytecodeLinkedClass theDeclaringClass = linkerContext.resolveClass(aValue.getClassName()).declaringClassOfStaticMethod(theMethodName, theSignature);
+        print(JSWriterUtils.toClassName(theDeclaringClass.getClassName()));
         print(".");
         print(JSWriterUtils.toMethodName(theMethodName, theSignature));
         print("(");
@@ -607,8 +667,6 @@ public class JSSSAWriter extends IndentSSAWriter {
         Value theTarget = theIncomingData.get(0);
         List<Value> theArguments = theIncomingData.subList(1, theIncomingData.size());
 
-        BytecodeVirtualMethodIdentifier theMethodIdentifier = linkerContext.getMethodCollection().identifierFor(theMethodName, theSignature);
-
         if (Objects.equals(aValue.getMethodName(), "invokeWithMagicBehindTheScenes")) {
             print("(");
         } else {
@@ -631,15 +689,22 @@ public class JSSSAWriter extends IndentSSAWriter {
     }
 
     private void print(GetStaticExpression aValue) {
-        printStaticFieldReference(aValue.getField());
+        printStaticFieldReference(aValue.getField(), classInitAnalysis.isInitialized(aValue));
     }
 
     private void printVariableName(Variable aVariable) {
         print(aVariable.getName());
     }
 
-    private void printStaticFieldReference(BytecodeFieldRefConstant aField) {
-        print(JSWriterUtils.toClassName(aField.getClassIndex().getClassConstant()));
+    private void printStaticFieldReference(BytecodeFieldRefConstant aField, boolean aInitialized) {
+        // Static fields are accessed on their declaring class, so only this class is initialized
+        BytecodeLinkedClass theDeclaringClass = linkerContext.resolveClass(BytecodeObjectTypeRef.fromUtf8Constant(aField.getClassIndex().getClassConstant().getConstant()))
+                .declaringClassOfStaticField(aField.getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue());
+        print(JSWriterUtils.toClassName(theDeclaringClass.getClassName()));
+        if (!aInitialized) {
+            // The check returns the class, so it can be used in place
+            print(".classInitCheck()");
+        }
         print(".");
         print(aField.getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue());
     }
@@ -688,7 +753,7 @@ public class JSSSAWriter extends IndentSSAWriter {
                 PutStaticExpression theE = (PutStaticExpression) theExpression;
                 BytecodeFieldRefConstant theField = theE.getField();
                 Value theValue = theE.incomingDataFlows().get(0);
-                printStaticFieldReference(theField);
+                printStaticFieldReference(theField, classInitAnalysis.isInitialized(theE));
                 print(" = ");
                 print(theValue);
                 println(";");
@@ -761,56 +826,15 @@ public class JSSSAWriter extends IndentSSAWriter {
                 // Completely ignored
             } else if (theExpression instanceof TableSwitchExpression) {
                 TableSwitchExpression theE = (TableSwitchExpression) theExpression;
-                Value theValue = theE.incomingDataFlows().get(0);
-
-                print("if (");
-                print(theValue);
-                print(" < ");
-                print(theE.getLowValue());
-                print(" || ");
-                print(theValue);
-                print(" > ");
-                print(theE.getHighValue());
-                println(") {");
-                print(" ");
-
-                writeExpressions(theE.getDefaultExpressions());
-
-                println("}");
-                print("switch(");
-                print(theValue);
-                print(" - ");
-                print(theE.getLowValue());
-                println(") {");
-
+                // The cases are stored as offsets to the low value
+                SortedMap<Long, ExpressionList> theCases = new TreeMap<>();
                 for (Map.Entry<Long, ExpressionList> theEntry : theE.getOffsets().entrySet()) {
-                    print(" case ");
-                    print(theEntry.getKey());
-                    println(":");
-                    print("     ");
-                    writeExpressions(theEntry.getValue());
+                    theCases.put(theE.getLowValue() + theEntry.getKey(), theEntry.getValue());
                 }
-
-                println("}");
-                println("throw 'Illegal jump target!';");
+                writeSwitch(theE.incomingDataFlows().get(0), theCases, theE.getDefaultExpressions());
             } else if (theExpression instanceof LookupSwitchExpression) {
                 LookupSwitchExpression theE = (LookupSwitchExpression) theExpression;
-                print("switch(");
-                print(theE.incomingDataFlows().get(0));
-                println(") {");
-
-                for (Map.Entry<Long, ExpressionList> theEntry : theE.getPairs().entrySet()) {
-                    print(" case ");
-                    print(theEntry.getKey());
-                    println(":");
-
-                    print("     ");
-                    writeExpressions(theEntry.getValue());
-                }
-
-                println("}");
-
-                writeExpressions(theE.getDefaultExpressions());
+                writeSwitch(theE.incomingDataFlows().get(0), new TreeMap<>(theE.getPairs()), theE.getDefaultExpressions());
             } else if (theExpression instanceof SetMemoryLocationExpression) {
                 SetMemoryLocationExpression theE = (SetMemoryLocationExpression) theExpression;
 
@@ -854,6 +878,71 @@ public class JSSSAWriter extends IndentSSAWriter {
         }
     }
 
+    private String generateCodeFor(ExpressionList aExpressions) {
+        StringWriter theCode = new StringWriter();
+        PrintWriter theWriter = new PrintWriter(theCode);
+        new JSSSAWriter(options, program, indent, theWriter, linkerContext, typeEncoding, classInitAnalysis).writeExpressions(aExpressions);
+        theWriter.flush();
+        return theCode.toString();
+    }
+
+    private static boolean endsWithJump(ExpressionList aExpressions) {
+        List<Expression> theExpressions = aExpressions.toList();
+        if (theExpressions.isEmpty()) {
+            return false;
+        }
+        Expression theLast = theExpressions.get(theExpressions.size() - 1);
+        if (theLast instanceof BreakExpression) {
+            return !((BreakExpression) theLast).isSilent();
+        }
+        return theLast instanceof ContinueExpression || theLast instanceof GotoExpression || theLast instanceof ReturnExpression
+                || theLast instanceof ReturnValueExpression || theLast instanceof ThrowExpression;
+    }
+
+    private void writeSwitch(Value aValue, SortedMap<Long, ExpressionList> aCases, ExpressionList aDefault) {
+        // A native switch over the original int keys, so the engine can use a jump table for dense
+        // keys. The relooper gives every case its own jump, so cases generating the same code are
+        // grouped. Silent relooper breaks continue after the switch, so such cases end with a break
+        JSSSAWriter theCaseWriter = withDeeperIndent();
+        JSSSAWriter theCodeWriter = theCaseWriter.withDeeperIndent();
+        String theDefaultCode = theCodeWriter.generateCodeFor(aDefault);
+        Map<String, List<Long>> theKeysByCode = new LinkedHashMap<>();
+        Map<String, ExpressionList> theExpressionsByCode = new HashMap<>();
+        for (Map.Entry<Long, ExpressionList> theEntry : aCases.entrySet()) {
+            String theCode = theCodeWriter.generateCodeFor(theEntry.getValue());
+            theKeysByCode.computeIfAbsent(theCode, t -> new ArrayList<>()).add(theEntry.getKey());
+            theExpressionsByCode.put(theCode, theEntry.getValue());
+        }
+
+        print("switch (");
+        print(aValue);
+        println(") {");
+
+        for (Map.Entry<String, List<Long>> theEntry : theKeysByCode.entrySet()) {
+            if (theEntry.getKey().equals(theDefaultCode)) {
+                continue;
+            }
+            for (Long theKey : theEntry.getValue()) {
+                theCaseWriter.print("case ");
+                theCaseWriter.print(theKey);
+                theCaseWriter.println(":");
+            }
+            writer.print(theEntry.getKey());
+            if (!endsWithJump(theExpressionsByCode.get(theEntry.getKey()))) {
+                theCodeWriter.println("break;");
+            }
+        }
+
+        // Cases with the same code as the default are left to the default
+        theCaseWriter.println("default:");
+        writer.print(theDefaultCode);
+        if (!endsWithJump(aDefault)) {
+            theCodeWriter.println("break;");
+        }
+
+        println("}");
+    }
+
     public void printRelooped(Relooper.Block aBlock) {
         println("var __label__ = null;");
         print(aBlock);
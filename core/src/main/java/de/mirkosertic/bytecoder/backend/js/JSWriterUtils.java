@@ -65,6 +65,35 @@ public class JSWriterUtils {
         return toClassNameInternal(aTypeRef.getConstant().stringValue().replace("/","."));
     }
 
+    public static String toDefaultValue(BytecodeTypeRef aTypeRef) {
+        // Booleans are stored as numbers, as everywhere else
+        if (aTypeRef.isPrimitive()) {
+            return "0";
+        }
+        return "null";
+    }
+
+    public static String toTypedArrayName(BytecodePrimitiveTypeRef aType) {
+        // Floats and longs are plain JS numbers, so they are stored without loss of precision
+        switch (aType) {
+            case BOOLEAN:
+            case BYTE:
+                return "Int8Array";
+            case SHORT:
+                return "Int16Array";
+            case CHAR:
+                return "Uint16Array";
+            case INT:
+                return "Int32Array";
+            case FLOAT:
+            case DOUBLE:
+            case LONG:
+                return "Float64Array";
+            default:
+                throw new IllegalArgumentException("No typed array for " + aType);
+        }
+    }
+
     public static String toArray(byte[] aData) {
         StringBuilder theResult = new StringBuilder("[");
         for (int i=0;i<aData.length;i++) {
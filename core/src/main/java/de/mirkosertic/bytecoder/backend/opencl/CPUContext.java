@@ -15,60 +15,112 @@
  */
 package de.mirkosertic.bytecoder.backend.opencl;
 
-import static de.mirkosertic.bytecoder.api.opencl.GlobalFunctions.set_global_id;
-import static de.mirkosertic.bytecoder.api.opencl.GlobalFunctions.set_global_size;
-
-import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import de.mirkosertic.bytecoder.api.opencl.Context;
+import de.mirkosertic.bytecoder.api.opencl.GlobalFunctions;
 import de.mirkosertic.bytecoder.api.opencl.Kernel;
 import de.mirkosertic.bytecoder.api.Logger;
 
 public class CPUContext implements Context {
 
-    private final ExecutorService executorService;
+    // Every worker gets several chunks, so idle workers can steal from busy ones
+    private static final int CHUNKS_PER_WORKER = 8;
+
+    private static class WorkItemRange extends RecursiveAction {
+
+        private final Kernel kernel;
+        private final int from;
+        private final int to;
+        private final int size;
+        private final int chunkSize;
+
+        WorkItemRange(Kernel aKernel, int aFrom, int aTo, int aSize, int aChunkSize) {
+            kernel = aKernel;
+            from = aFrom;
+            to = aTo;
+            size = aSize;
+            chunkSize = aChunkSize;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from > chunkSize) {
+                int theMiddle = (from + to) >>> 1;
+                invokeAll(new WorkItemRange(kernel, from, theMiddle, size, chunkSize),
+                        new WorkItemRange(kernel, theMiddle, to, size, chunkSize));
+                return;
+            }
+            GlobalFunctions.WorkItemThread theThread = (GlobalFunctions.WorkItemThread) Thread.currentThread();
+            theThread.setGlobalSize(size);
+            for (int i=from;i<to;i++) {
+                theThread.setGlobalId(i);
+                kernel.processWorkItem();
+            }
+        }
+    }
+
+    private final ForkJoinPool pool;
     private final Logger logger;
+    private CompletableFuture<Void> lastComputation;
 
     public CPUContext(Logger aLogger) {
         logger = aLogger;
-        executorService = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+        AtomicInteger theCounter = new AtomicInteger();
+        pool = new ForkJoinPool(Runtime.getRuntime().availableProcessors(), aPool -> {
+            GlobalFunctions.WorkItemThread theThread = new GlobalFunctions.WorkItemThread(aPool);
+            theThread.setName("OpenCL-CPU#" + theCounter.getAndIncrement());
+            return theThread;
+        }, null, false);
+        lastComputation = CompletableFuture.completedFuture(null);
+    }
+
+    @Override
+    public void compute(int aNumberOfStreams, Kernel aKernel) {
+        int theChunkSize = Math.max(1, aNumberOfStreams / (pool.getParallelism() * CHUNKS_PER_WORKER));
+        pool.invoke(new WorkItemRange(aKernel, 0, aNumberOfStreams, aNumberOfStreams, theChunkSize));
+    }
 
-            int counter = 0;
+    @Override
+    public synchronized Future<Void> computeAsync(int aNumberOfStreams, Kernel aKernel) {
+        // Computations run one after another, like the kernels of an in-order command queue
+        CompletableFuture<Void> theComputation = lastComputation.thenRunAsync(() -> compute(aNumberOfStreams, aKernel), pool);
+        // A failed kernel is only reported by its own future, and does not prevent the following ones
+        lastComputation = theComputation.handle((aResult, aError) -> null);
+        return theComputation;
+    }
 
-            @Override
-            public Thread newThread(Runnable aRunnable) {
-                return new Thread(aRunnable, "OpenCL-CPU#" + (counter ++));
-            }
-        });
+    // Kernels work on the host memory, so there are no device buffers to manage
+
+    @Override
+    public void bind(Object aArray) {
     }
 
     @Override
-    public void compute(int aNumberOfStreams, Kernel aKernel) {
-        CountDownLatch theLatch = new CountDownLatch(aNumberOfStreams);
-        for (int i=0;i<aNumberOfStreams;i++) {
-            final int theWorkItemId = i;
-            executorService.submit(() -> {
-                try {
-                    set_global_id(0, theWorkItemId);
-                    set_global_size(0, aNumberOfStreams);
-                    aKernel.processWorkItem();
-                } finally {
-                    theLatch.countDown();
-                }
-            });
-        }
-        try {
-            theLatch.await();
-        } catch (InterruptedException e) {
-            throw new IllegalStateException("Something went wrong", e);
+    public void read(Object aArray) {
+        awaitComputations();
+    }
+
+    @Override
+    public void unbind(Object aArray) {
+        awaitComputations();
+    }
+
+    private void awaitComputations() {
+        CompletableFuture<Void> theLast;
+        synchronized (this) {
+            theLast = lastComputation;
         }
+        theLast.join();
     }
 
     @Override
     public void close() {
-        executorService.shutdownNow();
+        awaitComputations();
+        pool.shutdownNow();
     }
 }
@@ -0,0 +1,59 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.opencl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Direct buffers are expensive to allocate and are only freed by the garbage collector, so the
+ * staging buffers for transfers between host and device are reused.
+ */
+class DirectBufferPool {
+
+    private final TreeMap<Integer, Deque<ByteBuffer>> freeBuffers;
+
+    DirectBufferPool() {
+        freeBuffers = new TreeMap<>();
+    }
+
+    synchronized ByteBuffer acquire(int aSize) {
+        Map.Entry<Integer, Deque<ByteBuffer>> theEntry = freeBuffers.ceilingEntry(aSize);
+        // Much larger buffers are kept for larger requests
+        if (theEntry != null && theEntry.getKey() / 2 <= aSize) {
+            ByteBuffer theBuffer = theEntry.getValue().pop();
+            if (theEntry.getValue().isEmpty()) {
+                freeBuffers.remove(theEntry.getKey());
+            }
+            theBuffer.limit(aSize);
+            return theBuffer;
+        }
+        return ByteBuffer.allocateDirect(aSize).order(ByteOrder.nativeOrder());
+    }
+
+    synchronized void release(ByteBuffer aBuffer) {
+        aBuffer.clear();
+        freeBuffers.computeIfAbsent(aBuffer.capacity(), k -> new ArrayDeque<>()).push(aBuffer);
+    }
+
+    synchronized void clear() {
+        freeBuffers.clear();
+    }
+}
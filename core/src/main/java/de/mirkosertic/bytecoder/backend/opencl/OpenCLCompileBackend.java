@@ -15,6 +15,7 @@
  */
 package de.mirkosertic.bytecoder.backend.opencl;
 
+import de.mirkosertic.bytecoder.api.opencl.GlobalFunctions;
 import de.mirkosertic.bytecoder.backend.CompileBackend;
 import de.mirkosertic.bytecoder.backend.CompileOptions;
 import de.mirkosertic.bytecoder.core.BytecodeResolvedFields;
@@ -29,18 +30,40 @@ import de.mirkosertic.bytecoder.core.BytecodePackageReplacer;
 import de.mirkosertic.bytecoder.core.BytecodePrimitiveTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodeTypeRef;
 import de.mirkosertic.bytecoder.relooper.Relooper;
+import de.mirkosertic.bytecoder.ssa.ArrayEntryExpression;
+import de.mirkosertic.bytecoder.ssa.ArrayStoreExpression;
+import de.mirkosertic.bytecoder.ssa.CheckCastExpression;
+import de.mirkosertic.bytecoder.ssa.DirectInvokeMethodExpression;
+import de.mirkosertic.bytecoder.ssa.Expression;
 import de.mirkosertic.bytecoder.ssa.ExpressionList;
+import de.mirkosertic.bytecoder.ssa.ExpressionListContainer;
 import de.mirkosertic.bytecoder.ssa.GetFieldExpression;
+import de.mirkosertic.bytecoder.ssa.IntegerValue;
+import de.mirkosertic.bytecoder.ssa.InvocationExpression;
+import de.mirkosertic.bytecoder.ssa.InvokeStaticMethodExpression;
 import de.mirkosertic.bytecoder.ssa.NaiveProgramGenerator;
+import de.mirkosertic.bytecoder.ssa.PHIExpression;
 import de.mirkosertic.bytecoder.ssa.Program;
 import de.mirkosertic.bytecoder.ssa.ProgramGenerator;
 import de.mirkosertic.bytecoder.ssa.ProgramGeneratorFactory;
+import de.mirkosertic.bytecoder.ssa.PutFieldExpression;
 import de.mirkosertic.bytecoder.ssa.RegionNode;
+import de.mirkosertic.bytecoder.ssa.TypeRef;
 import de.mirkosertic.bytecoder.ssa.Value;
+import de.mirkosertic.bytecoder.ssa.Variable;
+import de.mirkosertic.bytecoder.ssa.VariableAssignmentExpression;
 
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 public class OpenCLCompileBackend implements CompileBackend<OpenCLCompileResult> {
 
@@ -80,20 +103,8 @@ public class OpenCLCompileBackend implements CompileBackend<OpenCLCompileResult>
         //Run optimizer
         aOptions.getOptimizer().optimize(theSSAProgram.getControlFlowGraph(), aLinkerContext);
 
-        // Ok, at this point we have to map kernel arguments
-        // Every member of the kernel class becomes a kernel function argument
-        try {
-            theInputOutputs = inputOutputsFor(theLinkerContext, theKernelClass, theSSAProgram);
-        } catch (Exception e) {
-            throw new RuntimeException(e);
-        }
-
-        // And then we ca pass it to the code generator to generate the kernel code
-        OpenCLWriter theSSAWriter = new OpenCLWriter(theKernelClass, aOptions, theSSAProgram, "", new PrintWriter(theStrWriter), aLinkerContext, theInputOutputs);
-
-        // We use the relooper here
-        Relooper theRelooper = new Relooper();
-
+        // The other methods of the kernel class are inlined helpers, which can access kernel members, too
+        Map<BytecodeMethod, Program> theHelperPrograms = new LinkedHashMap<>();
         theMethodMap.stream().forEach(aMethodMapEntry -> {
             BytecodeMethod theMethod = aMethodMapEntry.getValue();
 
@@ -107,18 +118,39 @@ public class OpenCLCompileBackend implements CompileBackend<OpenCLCompileResult>
                 //Run optimizer
                 aOptions.getOptimizer().optimize(theSSAProgram1.getControlFlowGraph(), aLinkerContext);
 
-                // Write the method to the output
-                // Try to reloop it!
-                try {
-                    Relooper.Block theReloopedBlock = theRelooper.reloop(theSSAProgram1.getControlFlowGraph());
+                theHelperPrograms.put(theMethod, theSSAProgram1);
+            }
+        });
 
-                    theSSAWriter.printReloopedInline(theMethod, theSSAProgram1, theReloopedBlock);
-                } catch (Exception e) {
-                    throw new IllegalStateException("Error relooping cfg", e);
-                }
+        // Ok, at this point we have to map kernel arguments
+        // Every member of the kernel class accessed by the kernel or its helpers becomes a kernel function argument
+        try {
+            theInputOutputs = new OpenCLInputOutputs();
+            fillInputOutputs(theLinkerContext, theKernelClass, theSSAProgram, true, theInputOutputs);
+            for (Program theHelperProgram : theHelperPrograms.values()) {
+                fillInputOutputs(theLinkerContext, theKernelClass, theHelperProgram, false, theInputOutputs);
+            }
+        } catch (Exception e) {
+            throw new RuntimeException(e);
+        }
 
+        // And then we ca pass it to the code generator to generate the kernel code
+        OpenCLWriter theSSAWriter = new OpenCLWriter(theKernelClass, aOptions, theSSAProgram, "", new PrintWriter(theStrWriter), aLinkerContext, theInputOutputs);
+
+        // We use the relooper here
+        Relooper theRelooper = new Relooper();
+
+        for (Map.Entry<BytecodeMethod, Program> theEntry : theHelperPrograms.entrySet()) {
+            // Write the method to the output
+            // Try to reloop it!
+            try {
+                Relooper.Block theReloopedBlock = theRelooper.reloop(theEntry.getValue().getControlFlowGraph());
+
+                theSSAWriter.printReloopedInline(theEntry.getKey(), theEntry.getValue(), theReloopedBlock);
+            } catch (Exception e) {
+                throw new IllegalStateException("Error relooping cfg", e);
             }
-        });
+        }
 
         // Finally, we write the kernel method
         try {
@@ -137,33 +169,186 @@ public class OpenCLCompileBackend implements CompileBackend<OpenCLCompileResult>
         return "BytecoderKernel";
     }
 
-    private OpenCLInputOutputs inputOutputsFor(BytecodeLinkerContext aLinkerContext, BytecodeLinkedClass aKernelClass, Program aProgram) {
-        OpenCLInputOutputs theResult = new OpenCLInputOutputs();
+    /**
+     * Classifies the kernel members accessed by a program as inputs, outputs or both. Only the data of
+     * array members is transferred, so a member is read if an element of it is read, and it is written if
+     * an element of it is stored. Writing a single field of a vector element keeps its other fields, so
+     * this counts as both. Array data passed to inlined helpers might be modified there, and is treated
+     * the same way.
+     *
+     * An array that is only written is transferred back without uploading it first. This is only safe
+     * if every work item writes its element, so the kernel method has to store at the global id before
+     * any control flow.
+     */
+    private void fillInputOutputs(BytecodeLinkerContext aContext, BytecodeLinkedClass aKernelClass, Program aProgram, boolean aKernelMethod, OpenCLInputOutputs aInputOutputs) {
+        List<Expression> theExpressions = new ArrayList<>();
         for (RegionNode theNode : aProgram.getControlFlowGraph().getKnownNodes()) {
-            fillInputOutputs(aLinkerContext, aKernelClass, theNode.getExpressions(), theResult);
+            collectExpressions(theNode.getExpressions(), theExpressions);
+        }
+
+        // SSA variables might be assigned more than once, so we have to follow all assignments
+        Map<Variable, List<Value>> theAssignments = new HashMap<>();
+        for (Expression theExpression : theExpressions) {
+            if (theExpression instanceof VariableAssignmentExpression) {
+                VariableAssignmentExpression theAssignment = (VariableAssignmentExpression) theExpression;
+                theAssignments.computeIfAbsent(theAssignment.getVariable(), k -> new ArrayList<>()).add(theAssignment.getValue());
+            }
+        }
+
+        for (Expression theExpression : theExpressions) {
+            registerAccesses(aContext, aKernelClass, theExpression, theAssignments, aInputOutputs);
+        }
+
+        if (aKernelMethod) {
+            for (Expression theExpression : aProgram.getControlFlowGraph().startNode().getExpressions().toList()) {
+                if (theExpression instanceof ArrayStoreExpression) {
+                    List<Value> theIncomingData = theExpression.incomingDataFlows();
+                    Set<BytecodeResolvedFields.FieldEntry> theArrays = arraysOf(aContext, aKernelClass, theIncomingData.get(0), theAssignments, new HashSet<>());
+                    if (theArrays.size() == 1 && isGlobalId(theIncomingData.get(1), theAssignments)) {
+                        aInputOutputs.registerCompleteWriteTo(theArrays.iterator().next());
+                    }
+                } else if (!(theExpression instanceof VariableAssignmentExpression) && !(theExpression instanceof PutFieldExpression)) {
+                    // Everything after this might not be executed by all work items
+                    break;
+                }
+            }
         }
-        return theResult;
     }
 
-    private void fillInputOutputs(BytecodeLinkerContext aContext, BytecodeLinkedClass aKernelClass, ExpressionList aExpressionList, OpenCLInputOutputs aInputOutputs) {
-        BytecodeResolvedFields theInstanceFields = aKernelClass.resolvedFields();
-        theInstanceFields.streamForInstanceFields().forEach(aEntry -> {
-            aInputOutputs.registerReadFrom(aEntry);
-            aInputOutputs.registerWriteTo(aEntry);
-        });
+    private boolean isGlobalId(Value aValue, Map<Variable, List<Value>> aAssignments) {
+        if (aValue instanceof Variable) {
+            List<Value> theValues = aAssignments.get(aValue);
+            return theValues != null && theValues.size() == 1 && isGlobalId(theValues.get(0), aAssignments);
+        }
+        if (aValue instanceof InvokeStaticMethodExpression) {
+            InvokeStaticMethodExpression theInvocation = (InvokeStaticMethodExpression) aValue;
+            if (theInvocation.getClassName().equals(BytecodeObjectTypeRef.fromRuntimeClass(GlobalFunctions.class))
+                    && "get_global_id".equals(theInvocation.getMethodName())) {
+                Value theDimension = theInvocation.incomingDataFlows().get(0);
+                return theDimension instanceof IntegerValue && ((IntegerValue) theDimension).getIntValue() == 0;
+            }
+        }
+        return false;
+    }
+
+    private void collectExpressions(ExpressionList aList, List<Expression> aResult) {
+        for (Expression theExpression : aList.toList()) {
+            if (theExpression instanceof ExpressionListContainer) {
+                for (ExpressionList theList : ((ExpressionListContainer) theExpression).getExpressionLists()) {
+                    collectExpressions(theList, aResult);
+                }
+            }
+            aResult.add(theExpression);
+        }
+    }
+
+    private void registerAccesses(BytecodeLinkerContext aContext, BytecodeLinkedClass aKernelClass, Value aValue, Map<Variable, List<Value>> aAssignments, OpenCLInputOutputs aInputOutputs) {
+        // Variables are visited by their assignments
+        if (aValue instanceof Variable) {
+            return;
+        }
+
+        List<Value> theIncomingData = aValue.incomingDataFlows();
+        if (aValue instanceof GetFieldExpression) {
+            BytecodeResolvedFields.FieldEntry theField = kernelFieldOf(aContext, aKernelClass, (GetFieldExpression) aValue);
+            if (theField != null) {
+                aInputOutputs.registerReferenceTo(theField);
+            } else {
+                for (BytecodeResolvedFields.FieldEntry theArray : arraysOfElement(aContext, aKernelClass, theIncomingData.get(0), aAssignments, new HashSet<>())) {
+                    aInputOutputs.registerReadFrom(theArray);
+                }
+            }
+        } else if (aValue instanceof ArrayEntryExpression) {
+            if (aValue.resolveType().resolve() != TypeRef.Native.REFERENCE) {
+                for (BytecodeResolvedFields.FieldEntry theArray : arraysOf(aContext, aKernelClass, theIncomingData.get(0), aAssignments, new HashSet<>())) {
+                    aInputOutputs.registerReadFrom(theArray);
+                }
+            }
+        } else if (aValue instanceof ArrayStoreExpression) {
+            for (BytecodeResolvedFields.FieldEntry theArray : arraysOf(aContext, aKernelClass, theIncomingData.get(0), aAssignments, new HashSet<>())) {
+                aInputOutputs.registerWriteTo(theArray);
+            }
+        } else if (aValue instanceof PutFieldExpression) {
+            for (BytecodeResolvedFields.FieldEntry theArray : arraysOfElement(aContext, aKernelClass, theIncomingData.get(0), aAssignments, new HashSet<>())) {
+                aInputOutputs.registerReadFrom(theArray);
+                aInputOutputs.registerWriteTo(theArray);
+            }
+        } else if (aValue instanceof InvocationExpression) {
+            boolean theHelper = aValue instanceof DirectInvokeMethodExpression;
+            for (Value theArgument : theIncomingData) {
+                Set<BytecodeResolvedFields.FieldEntry> theArrays = arraysOf(aContext, aKernelClass, theArgument, aAssignments, new HashSet<>());
+                if (theArgument.resolveType().resolve() == TypeRef.Native.REFERENCE) {
+                    // Vector elements are passed by reference
+                    theArrays.addAll(arraysOfElement(aContext, aKernelClass, theArgument, aAssignments, new HashSet<>()));
+                }
+                for (BytecodeResolvedFields.FieldEntry theArray : theArrays) {
+                    aInputOutputs.registerReadFrom(theArray);
+                    if (theHelper) {
+                        aInputOutputs.registerWriteTo(theArray);
+                    }
+                }
+            }
+        }
+
+        for (Value theIncoming : theIncomingData) {
+            registerAccesses(aContext, aKernelClass, theIncoming, aAssignments, aInputOutputs);
+        }
     }
 
-    private void registerInputs(BytecodeLinkerContext aContext, BytecodeLinkedClass aKernelClass, Value aValue, OpenCLInputOutputs aInputOutputs) {
+    private BytecodeResolvedFields.FieldEntry kernelFieldOf(BytecodeLinkerContext aContext, BytecodeLinkedClass aKernelClass, GetFieldExpression aGetField) {
+        BytecodeLinkedClass theClass = aContext.resolveClass(BytecodeObjectTypeRef.fromUtf8Constant(aGetField.getField().getClassIndex().getClassConstant().getConstant()));
+        if (theClass == aKernelClass) {
+            BytecodeResolvedFields theInstanceFields = aKernelClass.resolvedFields();
+            return theInstanceFields.fieldByName(
+                    aGetField.getField().getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue());
+        }
+        return null;
+    }
+
+    /**
+     * Computes the kernel members an array reference might originate from.
+     */
+    private Set<BytecodeResolvedFields.FieldEntry> arraysOf(BytecodeLinkerContext aContext, BytecodeLinkedClass aKernelClass, Value aValue, Map<Variable, List<Value>> aAssignments, Set<Value> aVisited) {
+        Set<BytecodeResolvedFields.FieldEntry> theResult = new HashSet<>();
+        if (!aVisited.add(aValue)) {
+            return theResult;
+        }
         if (aValue instanceof GetFieldExpression) {
-            GetFieldExpression theGetField = (GetFieldExpression) aValue;
+            BytecodeResolvedFields.FieldEntry theField = kernelFieldOf(aContext, aKernelClass, (GetFieldExpression) aValue);
+            if (theField != null) {
+                theResult.add(theField);
+            }
+        } else if (aValue instanceof Variable || aValue instanceof PHIExpression || aValue instanceof CheckCastExpression) {
+            for (Value theSource : sourcesOf(aValue, aAssignments)) {
+                theResult.addAll(arraysOf(aContext, aKernelClass, theSource, aAssignments, aVisited));
+            }
+        }
+        return theResult;
+    }
 
-            BytecodeLinkedClass theClass = aContext.resolveClass(BytecodeObjectTypeRef.fromUtf8Constant(theGetField.getField().getClassIndex().getClassConstant().getConstant()));
-            if (theClass == aKernelClass) {
-                BytecodeResolvedFields theInstanceFields = aKernelClass.resolvedFields();
-                BytecodeResolvedFields.FieldEntry theField = theInstanceFields.fieldByName(
-                        theGetField.getField().getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue());
-                aInputOutputs.registerReadFrom(theField);
+    /**
+     * Computes the kernel members an array element reference might originate from.
+     */
+    private Set<BytecodeResolvedFields.FieldEntry> arraysOfElement(BytecodeLinkerContext aContext, BytecodeLinkedClass aKernelClass, Value aValue, Map<Variable, List<Value>> aAssignments, Set<Value> aVisited) {
+        Set<BytecodeResolvedFields.FieldEntry> theResult = new HashSet<>();
+        if (!aVisited.add(aValue)) {
+            return theResult;
+        }
+        if (aValue instanceof ArrayEntryExpression) {
+            theResult.addAll(arraysOf(aContext, aKernelClass, aValue.incomingDataFlows().get(0), aAssignments, new HashSet<>()));
+        } else if (aValue instanceof Variable || aValue instanceof PHIExpression || aValue instanceof CheckCastExpression) {
+            for (Value theSource : sourcesOf(aValue, aAssignments)) {
+                theResult.addAll(arraysOfElement(aContext, aKernelClass, theSource, aAssignments, aVisited));
             }
         }
+        return theResult;
+    }
+
+    private List<Value> sourcesOf(Value aValue, Map<Variable, List<Value>> aAssignments) {
+        List<Value> theResult = new ArrayList<>(aValue.incomingDataFlows());
+        if (aValue instanceof Variable) {
+            theResult.addAll(aAssignments.getOrDefault(aValue, Collections.emptyList()));
+        }
+        return theResult;
     }
-}
\ No newline at end of file
+}
@@ -15,10 +15,16 @@
  */
 package de.mirkosertic.bytecoder.backend.opencl;
 
+import static org.jocl.CL.CL_COMPLETE;
 import static org.jocl.CL.CL_CONTEXT_PLATFORM;
 import static org.jocl.CL.CL_DEVICE_TYPE_ALL;
+import static org.jocl.CL.CL_EVENT_COMMAND_EXECUTION_STATUS;
+import static org.jocl.CL.CL_FALSE;
+import static org.jocl.CL.CL_MEM_COPY_HOST_PTR;
+import static org.jocl.CL.CL_MEM_READ_ONLY;
 import static org.jocl.CL.CL_MEM_READ_WRITE;
-import static org.jocl.CL.CL_MEM_USE_HOST_PTR;
+import static org.jocl.CL.CL_MEM_WRITE_ONLY;
+import static org.jocl.CL.CL_SUCCESS;
 import static org.jocl.CL.CL_TRUE;
 import static org.jocl.CL.clBuildProgram;
 import static org.jocl.CL.clCreateBuffer;
@@ -28,26 +34,42 @@ import static org.jocl.CL.clCreateKernel;
 import static org.jocl.CL.clCreateProgramWithSource;
 import static org.jocl.CL.clEnqueueNDRangeKernel;
 import static org.jocl.CL.clEnqueueReadBuffer;
-import static org.jocl.CL.clFinish;
+import static org.jocl.CL.clFlush;
+import static org.jocl.CL.clGetEventInfo;
 import static org.jocl.CL.clReleaseCommandQueue;
 import static org.jocl.CL.clReleaseContext;
+import static org.jocl.CL.clReleaseEvent;
 import static org.jocl.CL.clReleaseKernel;
 import static org.jocl.CL.clReleaseMemObject;
 import static org.jocl.CL.clReleaseProgram;
 import static org.jocl.CL.clSetKernelArg;
+import static org.jocl.CL.clWaitForEvents;
 
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
 import java.nio.FloatBuffer;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import org.jocl.CL;
 import org.jocl.Pointer;
 import org.jocl.Sizeof;
 import org.jocl.cl_command_queue;
 import org.jocl.cl_context;
 import org.jocl.cl_context_properties;
+import org.jocl.cl_event;
 import org.jocl.cl_kernel;
 import org.jocl.cl_mem;
 import org.jocl.cl_program;
@@ -70,12 +92,14 @@ class OpenCLContext implements Context {
 
     private static class CachedKernel {
 
-        private final OpenCLInputOutputs inputOutputs;
+        private final List<OpenCLInputOutputs.KernelArgument> arguments;
+        private final MethodHandle[] accessors;
         private final cl_program program;
         private final cl_kernel kernel;
 
-        CachedKernel(OpenCLInputOutputs aInputOutputs, cl_program aProgram, cl_kernel aKernel) {
-            inputOutputs = aInputOutputs;
+        CachedKernel(List<OpenCLInputOutputs.KernelArgument> aArguments, MethodHandle[] aAccessors, cl_program aProgram, cl_kernel aKernel) {
+            arguments = aArguments;
+            accessors = aAccessors;
             program = aProgram;
             kernel = aKernel;
         }
@@ -86,20 +110,146 @@ class OpenCLContext implements Context {
         }
     }
 
-    private static class DataRef {
+    static class DataRef {
 
         private final Pointer pointer;
+        private final ByteBuffer uploadBuffer;
         private final int size;
+        protected ByteBuffer readBuffer;
 
-        DataRef(Pointer aPointer, int aSize) {
+        DataRef(Pointer aPointer, ByteBuffer aUploadBuffer, int aSize) {
             pointer = aPointer;
+            uploadBuffer = aUploadBuffer;
             size = aSize;
         }
 
+        void uploaded(DirectBufferPool aPool) {
+            if (uploadBuffer != null) {
+                aPool.release(uploadBuffer);
+            }
+        }
+
+        Pointer readTarget(DirectBufferPool aPool) {
+            // Non blocking transfers need memory that is not moved by the garbage collector
+            readBuffer = aPool.acquire(size);
+            return Pointer.to(readBuffer);
+        }
+
+        void update(DirectBufferPool aPool) {
+            updateFromBuffer();
+            aPool.release(readBuffer);
+            readBuffer = null;
+        }
+
         void updateFromBuffer() {
         }
     }
 
+    private static class DeviceBuffer {
+
+        private final cl_mem mem;
+        private final DataRef dataRef;
+        private boolean modified;
+
+        DeviceBuffer(cl_mem aMem, DataRef aDataRef) {
+            mem = aMem;
+            dataRef = aDataRef;
+        }
+    }
+
+    static class PendingComputation implements Future<Void> {
+
+        private final cl_event[] events;
+        private final List<DataRef> outputs;
+        private final DirectBufferPool bufferPool;
+        private boolean done;
+        private int status;
+
+        PendingComputation(cl_event[] aEvents, List<DataRef> aOutputs, DirectBufferPool aBufferPool) {
+            events = aEvents;
+            outputs = aOutputs;
+            bufferPool = aBufferPool;
+        }
+
+        @Override
+        public boolean cancel(boolean aMayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public synchronized boolean isDone() {
+            if (done) {
+                return true;
+            }
+            if (!eventsCompleted()) {
+                return false;
+            }
+            // The host arrays have to be up to date once the computation is reported as done
+            complete();
+            return true;
+        }
+
+        boolean eventsCompleted() {
+            int[] theStatus = new int[1];
+            for (cl_event theEvent : events) {
+                clGetEventInfo(theEvent, CL_EVENT_COMMAND_EXECUTION_STATUS, Sizeof.cl_int, Pointer.to(theStatus), null);
+                // Negative values are error codes, which also terminate the command
+                if (theStatus[0] > CL_COMPLETE) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        int awaitEvents() {
+            int theStatus = clWaitForEvents(events.length, events);
+            for (cl_event theEvent : events) {
+                clReleaseEvent(theEvent);
+            }
+            return theStatus;
+        }
+
+        private void complete() {
+            if (!done) {
+                done = true;
+                status = awaitEvents();
+                for (DataRef theOutput : outputs) {
+                    if (status == CL_SUCCESS) {
+                        theOutput.update(bufferPool);
+                    } else {
+                        bufferPool.release(theOutput.readBuffer);
+                    }
+                }
+            }
+        }
+
+        @Override
+        public synchronized Void get() throws ExecutionException {
+            complete();
+            if (status != CL_SUCCESS) {
+                throw new ExecutionException(new IllegalStateException("Kernel execution failed with " + CL.stringFor_errorCode(status)));
+            }
+            return null;
+        }
+
+        @Override
+        public Void get(long aTimeout, TimeUnit aUnit) throws InterruptedException, ExecutionException, TimeoutException {
+            long theDeadline = System.nanoTime() + aUnit.toNanos(aTimeout);
+            while (!isDone()) {
+                if (System.nanoTime() > theDeadline) {
+                    throw new TimeoutException();
+                }
+                Thread.sleep(1);
+            }
+            return get();
+        }
+    }
+
     private static final Map<Class, OpenCLCompileResult> ALREADY_COMPILED = new HashMap<>();
 
     private final OpenCLCompileBackend backend;
@@ -109,11 +259,17 @@ class OpenCLContext implements Context {
     private final Map<Class, CachedKernel> cachedKernels;
     private final Logger logger;
     private final OpenCLPlatform platform;
+    private final Map<Object, DeviceBuffer> boundBuffers;
+    private final List<PendingComputation> pendingComputations;
+    private final DirectBufferPool bufferPool;
 
     OpenCLContext(OpenCLPlatform aPlatform, Logger aLogger) {
         logger = aLogger;
         platform = aPlatform;
         cachedKernels = new HashMap<>();
+        boundBuffers = new IdentityHashMap<>();
+        pendingComputations = new ArrayList<>();
+        bufferPool = new DirectBufferPool();
         backend = new OpenCLCompileBackend();
         compileOptions = new CompileOptions(new Slf4JLogger(), false, KnownOptimizer.ALL);
 
@@ -164,84 +320,123 @@ class OpenCLContext implements Context {
 
         cl_kernel theKernel = clCreateKernel(theCLProgram, "BytecoderKernel", null);
 
-        CachedKernel theCached = new CachedKernel(theResult.getInputOutputs(), theCLProgram, theKernel);
+        // Resolve the kernel arguments once, so no reflection is needed for every computation
+        List<OpenCLInputOutputs.KernelArgument> theArguments = theResult.getInputOutputs().arguments();
+        MethodHandle[] theAccessors = new MethodHandle[theArguments.size()];
+        for (int i = 0; i < theArguments.size(); i++) {
+            theAccessors[i] = accessorFor(theKernelClass, theArguments.get(i));
+        }
+
+        CachedKernel theCached = new CachedKernel(theArguments, theAccessors, theCLProgram, theKernel);
         cachedKernels.put(theKernelClass, theCached);
         return theCached;
     }
 
+    private static MethodHandle accessorFor(Class aKernelClass, OpenCLInputOutputs.KernelArgument aArgument) {
+        String theName = aArgument.getField().getValue().getName().stringValue();
+        TypeRef theFieldType = TypeRef.toType(aArgument.getField().getValue().getTypeRef());
+        if (!theFieldType.isArray()) {
+            throw new IllegalArgumentException("Type " + theFieldType + " is not supported for kernel argument " + theName);
+        }
+        try {
+            Field theField = aKernelClass.getDeclaredField(theName);
+            theField.setAccessible(true);
+            return MethodHandles.lookup().unreflectGetter(theField).asType(MethodType.methodType(Object.class, Kernel.class));
+        } catch (Exception e) {
+            throw new IllegalArgumentException("Error resolving kernel argument " + theName, e);
+        }
+    }
+
+    private static Object argumentValue(MethodHandle aAccessor, Kernel aKernel) {
+        try {
+            return (Object) aAccessor.invokeExact(aKernel);
+        } catch (Throwable e) {
+            throw new IllegalStateException("Error reading kernel argument", e);
+        }
+    }
+
+    @Override
     public void compute(int aNumberOfStreams, Kernel aKernel) {
+        try {
+            computeAsync(aNumberOfStreams, aKernel).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while waiting for kernel", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Error executing kernel", e.getCause());
+        }
+    }
+
+    @Override
+    public Future<Void> computeAsync(int aNumberOfStreams, Kernel aKernel) {
+
+        // Finished computations do not need to keep their events
+        pendingComputations.removeIf(PendingComputation::isDone);
 
-        Class theKernelClass = aKernel.getClass();
         CachedKernel theCachedKernel = kernelFor(aKernel);
 
         // Construct the input and output elements based on object properties
-        List<OpenCLInputOutputs.KernelArgument> theArguments = theCachedKernel.inputOutputs.arguments();
-        cl_mem theMemObjects[] = new cl_mem[theArguments.size()];
-        Map<Integer, DataRef> theOutputs = new HashMap<>();
+        // Bound arrays already have a device buffer, all others get a buffer for this computation only
+        List<OpenCLInputOutputs.KernelArgument> theArguments = theCachedKernel.arguments;
+        List<cl_mem> theTemporaryBuffers = new ArrayList<>();
+        Map<cl_mem, DataRef> theOutputs = new HashMap<>();
         try {
             for (int i = 0; i < theArguments.size(); i++) {
 
                 OpenCLInputOutputs.KernelArgument theArgument = theArguments.get(i);
+                Object theData = argumentValue(theCachedKernel.accessors[i], aKernel);
+                OpenCLInputOutputs.KernelArgument.Type theType = theArgument.getType();
+                if (theType == OpenCLInputOutputs.KernelArgument.Type.OUTPUT && Array.getLength(theData) != aNumberOfStreams) {
+                    // Only the elements up to the number of work items are written
+                    theType = OpenCLInputOutputs.KernelArgument.Type.INPUTOUTPUT;
+                }
 
-                TypeRef theFieldType = TypeRef.toType(theArgument.getField().getValue().getTypeRef());
-                DataRef theDataRef;
-                if (theFieldType.isArray()) {
-                    TypeRef.ArrayTypeRef theArrayTypeRef = (TypeRef.ArrayTypeRef) theFieldType;
-                    TypeRef theArrayElement = TypeRef.toType(theArrayTypeRef.arrayType().getType());
-                    switch (theArrayElement.resolve()) {
-                    case INT: {
-                        Field theField = theKernelClass.getDeclaredField(theArgument.getField().getValue().getName().stringValue());
-                        theField.setAccessible(true);
-                        int[] theData = (int[]) theField.get(aKernel);
-                        theDataRef = new DataRef(Pointer.to(theData), Sizeof.cl_int * theData.length);
-                        break;
-                    }
-                    case FLOAT: {
-                        Field theField = theKernelClass.getDeclaredField(theArgument.getField().getValue().getName().stringValue());
-                        theField.setAccessible(true);
-                        float[] theData = (float[]) theField.get(aKernel);
-                        theDataRef = new DataRef(Pointer.to(theData), Sizeof.cl_float * theData.length);
-                        break;
+                cl_mem theMemObject;
+                DeviceBuffer theBound = boundBuffers.get(theData);
+                if (theBound != null) {
+                    theMemObject = theBound.mem;
+                    if (theType != OpenCLInputOutputs.KernelArgument.Type.INPUT) {
+                        theBound.modified = true;
                     }
-                    case REFERENCE: {
-                        Field theField = theKernelClass.getDeclaredField(theArgument.getField().getValue().getName().stringValue());
-                        theField.setAccessible(true);
-                        Object[] theData = (Object[]) theField.get(aKernel);
+                } else {
+                    DataRef theDataRef = toDataRef(theData, theType != OpenCLInputOutputs.KernelArgument.Type.OUTPUT, bufferPool);
 
-                        Class theObjectType = theData.getClass().getComponentType();
+                    // Inputs are uploaded once and never read back, outputs are never uploaded
+                    switch (theType) {
+                    case INPUT:
+                        theMemObject = clCreateBuffer(context,
+                                CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
+                                theDataRef.size, theDataRef.pointer, null);
 
-                        theDataRef = toDataRef(theData, theObjectType);
                         break;
-                    }
-                    default:
-                        throw new IllegalArgumentException("Not supported array element type " + theArrayElement.resolve() + " for kernel argument " + theArgument.getField().getValue().getName());
-                    }
-                } else {
-                    throw new IllegalArgumentException("Type " + theFieldType + " is not supported for kernel argument " + theArgument.getField().getValue().getName().stringValue());
-                }
+                    case OUTPUT:
+                        theMemObject = clCreateBuffer(context,
+                                CL_MEM_WRITE_ONLY,
+                                theDataRef.size, null, null);
 
-                switch (theArgument.getType()) {
-                case INPUT:
-/*                    theMemObjects[i] = clCreateBuffer(context,
-                            CL_MEM_READ_ONLY | CL_MEM_COPY_HOST_PTR,
-                            theDataRef.size * aNumberOfStreams, theDataRef.pointer, null);
+                        theOutputs.put(theMemObject, theDataRef);
 
-                    break;*/
-                case OUTPUT:
-                case INPUTOUTPUT:
-                    theMemObjects[i] = clCreateBuffer(context,
-                            CL_MEM_READ_WRITE | CL_MEM_USE_HOST_PTR,
-                            theDataRef.size, theDataRef.pointer, null);
+                        break;
+                    default:
+                        theMemObject = clCreateBuffer(context,
+                                CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR,
+                                theDataRef.size, theDataRef.pointer, null);
 
-                    theOutputs.put(i, theDataRef);
+                        theOutputs.put(theMemObject, theDataRef);
 
-                    break;
+                        break;
+                    }
+                    theDataRef.uploaded(bufferPool);
+                    theTemporaryBuffers.add(theMemObject);
                 }
 
                 clSetKernelArg(theCachedKernel.kernel, i,
-                        Sizeof.cl_mem, Pointer.to(theMemObjects[i]));
+                        Sizeof.cl_mem, Pointer.to(theMemObject));
             }
         } catch (Exception e) {
+            for (cl_mem theMem : theTemporaryBuffers) {
+                clReleaseMemObject(theMem);
+            }
             throw new RuntimeException("Error extracting kernel parameter", e);
         }
 
@@ -251,57 +446,157 @@ class OpenCLContext implements Context {
         // Let the driver guess the optimal size
         long local_work_size[] = null; //new long[] {32};
 
-        // Execute the kernel
+        // Enqueue the kernel
+        cl_event theKernelEvent = new cl_event();
         clEnqueueNDRangeKernel(commandQueue, theCachedKernel.kernel, 1, null,
-                global_work_size, local_work_size, 0, null, null);
-
-        // Wait till everything is done
-        clFinish(commandQueue);
+                global_work_size, local_work_size, 0, null, theKernelEvent);
 
-        // Read the output data
-        for (Map.Entry<Integer, DataRef> theEntry : theOutputs.entrySet()) {
+        // Enqueue the transfers of the output data, they start as soon as the kernel is done
+        List<cl_event> theEvents = new ArrayList<>();
+        theEvents.add(theKernelEvent);
+        for (Map.Entry<cl_mem, DataRef> theEntry : theOutputs.entrySet()) {
             DataRef theDataRef = theEntry.getValue();
-            clEnqueueReadBuffer(commandQueue, theMemObjects[theEntry.getKey()], CL_TRUE, 0,
-                    theDataRef.size, theDataRef.pointer, 0, null, null);
-
-            theDataRef.updateFromBuffer();
+            cl_event theReadEvent = new cl_event();
+            clEnqueueReadBuffer(commandQueue, theEntry.getKey(), CL_FALSE, 0,
+                    theDataRef.size, theDataRef.readTarget(bufferPool), 1, new cl_event[] {theKernelEvent}, theReadEvent);
+            theEvents.add(theReadEvent);
         }
 
-        // Release memory
-        for (cl_mem theMem : theMemObjects) {
+        // Temporary buffers are freed by the driver once the enqueued commands are finished
+        for (cl_mem theMem : theTemporaryBuffers) {
             clReleaseMemObject(theMem);
         }
+
+        clFlush(commandQueue);
+
+        PendingComputation theResult = new PendingComputation(theEvents.toArray(new cl_event[theEvents.size()]), new ArrayList<>(theOutputs.values()), bufferPool);
+        pendingComputations.add(theResult);
+        return theResult;
+    }
+
+    @Override
+    public void bind(Object aArray) {
+        if (boundBuffers.containsKey(aArray)) {
+            return;
+        }
+        DataRef theDataRef = toDataRef(aArray, true, bufferPool);
+        cl_mem theMem = clCreateBuffer(context,
+                CL_MEM_READ_WRITE | CL_MEM_COPY_HOST_PTR,
+                theDataRef.size, theDataRef.pointer, null);
+        theDataRef.uploaded(bufferPool);
+        boundBuffers.put(aArray, new DeviceBuffer(theMem, theDataRef));
+    }
+
+    @Override
+    public void read(Object aArray) {
+        DeviceBuffer theBuffer = boundBuffers.get(aArray);
+        if (theBuffer == null) {
+            throw new IllegalArgumentException("Array is not bound to a device buffer");
+        }
+        readBack(theBuffer);
+    }
+
+    private void readBack(DeviceBuffer aBuffer) {
+        // This is a blocking read, so it waits for all kernels enqueued before
+        clEnqueueReadBuffer(commandQueue, aBuffer.mem, CL_TRUE, 0,
+                aBuffer.dataRef.size, aBuffer.dataRef.readTarget(bufferPool), 0, null, null);
+        aBuffer.dataRef.update(bufferPool);
+        aBuffer.modified = false;
+    }
+
+    @Override
+    public void unbind(Object aArray) {
+        DeviceBuffer theBuffer = boundBuffers.remove(aArray);
+        if (theBuffer == null) {
+            throw new IllegalArgumentException("Array is not bound to a device buffer");
+        }
+        if (theBuffer.modified) {
+            readBack(theBuffer);
+        }
+        clReleaseMemObject(theBuffer.mem);
+    }
+
+    private static DataRef toDataRef(Object aArray, boolean aSerialize, DirectBufferPool aPool) {
+        // Primitive arrays are handed to the driver as they are
+        if (aArray instanceof int[]) {
+            int[] theData = (int[]) aArray;
+            return new DataRef(Pointer.to(theData), null, Sizeof.cl_int * theData.length) {
+                @Override
+                void updateFromBuffer() {
+                    readBuffer.asIntBuffer().get(theData);
+                }
+            };
+        }
+        if (aArray instanceof float[]) {
+            float[] theData = (float[]) aArray;
+            return new DataRef(Pointer.to(theData), null, Sizeof.cl_float * theData.length) {
+                @Override
+                void updateFromBuffer() {
+                    readBuffer.asFloatBuffer().get(theData);
+                }
+            };
+        }
+        if (aArray instanceof Object[]) {
+            return toDataRef((Object[]) aArray, aArray.getClass().getComponentType(), aSerialize, aPool);
+        }
+        throw new IllegalArgumentException("Not supported kernel argument : " + aArray);
     }
 
-    private static DataRef toDataRef(Object[] aArray, Class aDataType) {
+    private static DataRef toDataRef(Object[] aArray, Class aDataType, boolean aSerialize, DirectBufferPool aPool) {
         if (FloatSerializable.class.isAssignableFrom(aDataType)) {
             OpenCLType theType = (OpenCLType) aDataType.getAnnotation(OpenCLType.class);
-            int theSize = aArray.length * theType.elementCount();
-            FloatBuffer theBuffer = FloatBuffer.allocate(theSize);
+            int theSize = Sizeof.cl_float * aArray.length * theType.elementCount();
+            if (!aSerialize) {
+                return new VectorDataRef(aArray, null, null, theSize);
+            }
+            ByteBuffer theBuffer = aPool.acquire(theSize);
+            FloatBuffer theFloats = theBuffer.asFloatBuffer();
             for (Object anAArray : aArray) {
                 FloatSerializable theVec = (FloatSerializable) anAArray;
-                theVec.writeTo(theBuffer);
+                theVec.writeTo(theFloats);
             }
-            return new DataRef(Pointer.to(theBuffer), Sizeof.cl_float * theSize) {
-                @Override
-                public void updateFromBuffer() {
-                    theBuffer.rewind();
-                    for (Object anAArray : aArray) {
-                        FloatSerializable theVec = (FloatSerializable) anAArray;
-                        theVec.readFrom(theBuffer);
-                    }
-                }
-            };
+            return new VectorDataRef(aArray, Pointer.to(theBuffer), theBuffer, theSize);
         }
         throw new IllegalArgumentException("Not supported datatype : " + aDataType);
     }
 
+    private static class VectorDataRef extends DataRef {
+
+        private final Object[] array;
+
+        VectorDataRef(Object[] aArray, Pointer aPointer, ByteBuffer aUploadBuffer, int aSize) {
+            super(aPointer, aUploadBuffer, aSize);
+            array = aArray;
+        }
+
+        @Override
+        void updateFromBuffer() {
+            FloatBuffer theFloats = readBuffer.asFloatBuffer();
+            for (Object anAArray : array) {
+                FloatSerializable theVec = (FloatSerializable) anAArray;
+                theVec.readFrom(theFloats);
+            }
+        }
+    }
+
     @Override
     public void close() {
+        for (PendingComputation theComputation : pendingComputations) {
+            try {
+                theComputation.get();
+            } catch (ExecutionException e) {
+                logger.warn("Computation failed before closing the context : {}", e.getCause().getMessage());
+            }
+        }
+        pendingComputations.clear();
+        for (Object theArray : new ArrayList<>(boundBuffers.keySet())) {
+            unbind(theArray);
+        }
         for (CachedKernel theCached : cachedKernels.values()) {
             theCached.close();
         }
+        bufferPool.clear();
         clReleaseCommandQueue(commandQueue);
         clReleaseContext(context);
     }
-}
\ No newline at end of file
+}
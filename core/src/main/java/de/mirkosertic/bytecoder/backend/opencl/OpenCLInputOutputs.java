@@ -32,11 +32,12 @@ public class OpenCLInputOutputs {
         }
 
         private final BytecodeResolvedFields.FieldEntry field;
-        private final Type type;
+        private boolean readFrom;
+        private boolean writtenTo;
+        private boolean writtenCompletely;
 
-        KernelArgument(BytecodeResolvedFields.FieldEntry aField, Type aType) {
+        KernelArgument(BytecodeResolvedFields.FieldEntry aField) {
             field = aField;
-            type = aType;
         }
 
         public BytecodeResolvedFields.FieldEntry getField() {
@@ -44,7 +45,11 @@ public class OpenCLInputOutputs {
         }
 
         public Type getType() {
-            return type;
+            if (writtenTo) {
+                // Elements not written by the kernel must keep their values
+                return readFrom || !writtenCompletely ? Type.INPUTOUTPUT : Type.OUTPUT;
+            }
+            return Type.INPUT;
         }
     }
 
@@ -54,22 +59,34 @@ public class OpenCLInputOutputs {
         values = new HashMap<>();
     }
 
+    private KernelArgument argumentFor(BytecodeResolvedFields.FieldEntry aLinkedField) {
+        return values.computeIfAbsent(aLinkedField.getValue().getName().stringValue(),
+                k -> new KernelArgument(aLinkedField));
+    }
+
+    /**
+     * Registers a field that is referenced by the kernel, without knowing whether its data is accessed.
+     * Such a field becomes an input argument, unless a read or a write is registered later.
+     */
+    public void registerReferenceTo(BytecodeResolvedFields.FieldEntry aLinkedField) {
+        argumentFor(aLinkedField);
+    }
+
     public void registerReadFrom(BytecodeResolvedFields.FieldEntry aLinkedField) {
-        values.computeIfAbsent(aLinkedField.getValue().getName().stringValue(),
-                k -> new KernelArgument(aLinkedField, KernelArgument.Type.INPUT));
+        argumentFor(aLinkedField).readFrom = true;
     }
 
     public void registerWriteTo(BytecodeResolvedFields.FieldEntry aLinkedField) {
-        KernelArgument theArgument = values.get(aLinkedField.getValue().getName().stringValue());
-        if (theArgument == null) {
-            theArgument = new KernelArgument(aLinkedField, KernelArgument.Type.OUTPUT);
-            values.put(aLinkedField.getValue().getName().stringValue(), theArgument);
-        } else {
-            if (theArgument.type == KernelArgument.Type.INPUT) {
-                theArgument = new KernelArgument(aLinkedField, KernelArgument.Type.INPUTOUTPUT);
-                values.put(aLinkedField.getValue().getName().stringValue(), theArgument);
-            }
-        }
+        argumentFor(aLinkedField).writtenTo = true;
+    }
+
+    /**
+     * Registers a field whose element at the global id is written by every work item.
+     */
+    public void registerCompleteWriteTo(BytecodeResolvedFields.FieldEntry aLinkedField) {
+        KernelArgument theArgument = argumentFor(aLinkedField);
+        theArgument.writtenTo = true;
+        theArgument.writtenCompletely = true;
     }
 
     public List<KernelArgument> arguments() {
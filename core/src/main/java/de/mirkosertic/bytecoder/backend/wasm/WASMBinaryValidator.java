@@ -0,0 +1,538 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Validates the structure of a WebAssembly binary.
+ *
+ * Every section is decoded, all sizes and counts must match, and every index, label and
+ * memory access in the function bodies must be in range. Operand types are checked by the
+ * WebAssembly runtime while compiling the module.
+ */
+public class WASMBinaryValidator {
+
+    private static class Reader {
+
+        private final byte[] data;
+        private int position;
+        private int end;
+
+        Reader(byte[] aData) {
+            data = aData;
+            end = aData.length;
+        }
+
+        IllegalStateException error(String aMessage) {
+            return new IllegalStateException("Invalid WebAssembly binary at offset " + position + " : " + aMessage);
+        }
+
+        boolean hasMore() {
+            return position < end;
+        }
+
+        int readByte() {
+            if (position >= end) {
+                throw error("Unexpected end of data");
+            }
+            return data[position++] & 0xFF;
+        }
+
+        long readLEB128(int aBits, boolean aSigned) {
+            long theResult = 0;
+            int theShift = 0;
+            int theMaxBytes = (aBits + 6) / 7;
+            for (int i=0;i<theMaxBytes;i++) {
+                int theByte = readByte();
+                theResult |= (long) (theByte & 0x7F) << theShift;
+                theShift += 7;
+                if ((theByte & 0x80) == 0) {
+                    if (aSigned && theShift < 64 && (theByte & 0x40) != 0) {
+                        theResult |= -1L << theShift;
+                    }
+                    return theResult;
+                }
+            }
+            throw error("LEB128 value exceeds " + aBits + " bits");
+        }
+
+        int readUnsigned() {
+            long theValue = readLEB128(32, false);
+            if (theValue > Integer.MAX_VALUE) {
+                throw error("Value out of range");
+            }
+            return (int) theValue;
+        }
+
+        void skip(int aCount) {
+            if (aCount < 0 || position + aCount > end) {
+                throw error("Unexpected end of data");
+            }
+            position += aCount;
+        }
+    }
+
+    private final List<Integer> functionTypes = new ArrayList<>();
+    private final List<Integer> globalTypes = new ArrayList<>();
+    private int typeCount;
+    private final List<Integer> typeParamCounts = new ArrayList<>();
+    private int importedFunctions;
+    private boolean hasTable;
+    private long tableMinimum;
+    private boolean hasMemory;
+    private long memoryMinimum;
+
+    public void validate(byte[] aBinary) {
+        Reader theReader = new Reader(aBinary);
+        if (aBinary.length < 8 || aBinary[0] != 0 || aBinary[1] != 'a' || aBinary[2] != 's' || aBinary[3] != 'm') {
+            throw theReader.error("Missing magic number");
+        }
+        theReader.skip(4);
+        if (theReader.readByte() != 1 || theReader.readByte() != 0 || theReader.readByte() != 0 || theReader.readByte() != 0) {
+            throw theReader.error("Unsupported version");
+        }
+
+        int theLastSection = 0;
+        int theCodeCount = -1;
+        while (theReader.hasMore()) {
+            int theId = theReader.readByte();
+            int theSize = theReader.readUnsigned();
+            int theSectionEnd = theReader.position + theSize;
+            if (theSectionEnd > aBinary.length) {
+                throw theReader.error("Section " + theId + " exceeds the binary");
+            }
+            if (theId != 0) {
+                if (theId > 11 || theId <= theLastSection) {
+                    throw theReader.error("Unexpected section " + theId);
+                }
+                theLastSection = theId;
+            }
+            theReader.end = theSectionEnd;
+            switch (theId) {
+                case 0:
+                    int theNameLength = theReader.readUnsigned();
+                    theReader.skip(theNameLength);
+                    theReader.position = theSectionEnd;
+                    break;
+                case 1:
+                    validateTypes(theReader);
+                    break;
+                case 2:
+                    validateImports(theReader);
+                    break;
+                case 3:
+                    validateFunctions(theReader);
+                    break;
+                case 4:
+                    validateTable(theReader);
+                    break;
+                case 5:
+                    validateMemory(theReader);
+                    break;
+                case 6:
+                    validateGlobals(theReader);
+                    break;
+                case 7:
+                    validateExports(theReader);
+                    break;
+                case 8:
+                    checkFunction(theReader, theReader.readUnsigned());
+                    break;
+                case 9:
+                    validateElements(theReader);
+                    break;
+                case 10:
+                    theCodeCount = validateCode(theReader);
+                    break;
+                case 11:
+                    validateData(theReader);
+                    break;
+            }
+            if (theReader.position != theSectionEnd) {
+                throw theReader.error("Section " + theId + " has a size mismatch");
+            }
+            theReader.end = aBinary.length;
+        }
+
+        int theDefinedFunctions = functionTypes.size() - importedFunctions;
+        if (theDefinedFunctions > 0 && theCodeCount != theDefinedFunctions) {
+            throw theReader.error("Function and code section do not match");
+        }
+    }
+
+    private static void checkValueType(Reader aReader, int aType) {
+        if (aType != WASMOpcodes.I32 && aType != WASMOpcodes.I64 && aType != WASMOpcodes.F32 && aType != WASMOpcodes.F64) {
+            throw aReader.error("Invalid value type " + aType);
+        }
+    }
+
+    private void checkFunction(Reader aReader, int aIndex) {
+        if (aIndex >= functionTypes.size()) {
+            throw aReader.error("Invalid function index " + aIndex);
+        }
+    }
+
+    private void checkType(Reader aReader, int aIndex) {
+        if (aIndex >= typeCount) {
+            throw aReader.error("Invalid type index " + aIndex);
+        }
+    }
+
+    private long readLimits(Reader aReader) {
+        int theFlags = aReader.readByte();
+        long theMinimum = aReader.readLEB128(32, false);
+        if (theFlags == 1) {
+            long theMaximum = aReader.readLEB128(32, false);
+            if (theMaximum < theMinimum) {
+                throw aReader.error("Maximum is smaller than minimum");
+            }
+        } else if (theFlags != 0) {
+            throw aReader.error("Invalid limits");
+        }
+        return theMinimum;
+    }
+
+    private void validateTypes(Reader aReader) {
+        typeCount = aReader.readUnsigned();
+        for (int i=0;i<typeCount;i++) {
+            if (aReader.readByte() != WASMOpcodes.FUNC) {
+                throw aReader.error("Expected a function type");
+            }
+            int theParams = aReader.readUnsigned();
+            for (int j=0;j<theParams;j++) {
+                checkValueType(aReader, aReader.readByte());
+            }
+            typeParamCounts.add(theParams);
+            int theResults = aReader.readUnsigned();
+            if (theResults > 1) {
+                throw aReader.error("Multiple results are not supported");
+            }
+            for (int j=0;j<theResults;j++) {
+                checkValueType(aReader, aReader.readByte());
+            }
+        }
+    }
+
+    private void validateImports(Reader aReader) {
+        int theCount = aReader.readUnsigned();
+        for (int i=0;i<theCount;i++) {
+            aReader.skip(aReader.readUnsigned());
+            aReader.skip(aReader.readUnsigned());
+            int theKind = aReader.readByte();
+            switch (theKind) {
+                case 0:
+                    int theType = aReader.readUnsigned();
+                    checkType(aReader, theType);
+                    functionTypes.add(theType);
+                    importedFunctions++;
+                    break;
+                case 1:
+                    aReader.readByte();
+                    tableMinimum = readLimits(aReader);
+                    hasTable = true;
+                    break;
+                case 2:
+                    memoryMinimum = readLimits(aReader);
+                    hasMemory = true;
+                    break;
+                case 3:
+                    int theGlobalType = aReader.readByte();
+                    checkValueType(aReader, theGlobalType);
+                    aReader.readByte();
+                    globalTypes.add(theGlobalType);
+                    break;
+                default:
+                    throw aReader.error("Invalid import kind " + theKind);
+            }
+        }
+    }
+
+    private void validateFunctions(Reader aReader) {
+        int theCount = aReader.readUnsigned();
+        for (int i=0;i<theCount;i++) {
+            int theType = aReader.readUnsigned();
+            checkType(aReader, theType);
+            functionTypes.add(theType);
+        }
+    }
+
+    private void validateTable(Reader aReader) {
+        int theCount = aReader.readUnsigned();
+        if (theCount > 1 || (theCount == 1 && hasTable)) {
+            throw aReader.error("Only one table is supported");
+        }
+        if (theCount == 1) {
+            if (aReader.readByte() != WASMOpcodes.ANYFUNC) {
+                throw aReader.error("Invalid table element type");
+            }
+            tableMinimum = readLimits(aReader);
+            hasTable = true;
+        }
+    }
+
+    private void validateMemory(Reader aReader) {
+        int theCount = aReader.readUnsigned();
+        if (theCount > 1 || (theCount == 1 && hasMemory)) {
+            throw aReader.error("Only one memory is supported");
+        }
+        if (theCount == 1) {
+            memoryMinimum = readLimits(aReader);
+            if (memoryMinimum > 65536) {
+                throw aReader.error("Memory exceeds 4GB");
+            }
+            hasMemory = true;
+        }
+    }
+
+    private void validateGlobals(Reader aReader) {
+        int theCount = aReader.readUnsigned();
+        for (int i=0;i<theCount;i++) {
+            int theType = aReader.readByte();
+            checkValueType(aReader, theType);
+            int theMutability = aReader.readByte();
+            if (theMutability > 1) {
+                throw aReader.error("Invalid mutability");
+            }
+            validateConstantExpression(aReader);
+            globalTypes.add(theType);
+        }
+    }
+
+    private void validateExports(Reader aReader) {
+        int theCount = aReader.readUnsigned();
+        Set<String> theNames = new HashSet<>();
+        for (int i=0;i<theCount;i++) {
+            int theLength = aReader.readUnsigned();
+            int theStart = aReader.position;
+            aReader.skip(theLength);
+            String theName = new String(aReader.data, theStart, theLength, StandardCharsets.UTF_8);
+            if (!theNames.add(theName)) {
+                throw aReader.error("Duplicate export " + theName);
+            }
+            int theKind = aReader.readByte();
+            int theIndex = aReader.readUnsigned();
+            switch (theKind) {
+                case 0:
+                    checkFunction(aReader, theIndex);
+                    break;
+                case 1:
+                    if (!hasTable || theIndex != 0) {
+                        throw aReader.error("Invalid table export");
+                    }
+                    break;
+                case 2:
+                    if (!hasMemory || theIndex != 0) {
+                        throw aReader.error("Invalid memory export");
+                    }
+                    break;
+                case 3:
+                    if (theIndex >= globalTypes.size()) {
+                        throw aReader.error("Invalid global export");
+                    }
+                    break;
+                default:
+                    throw aReader.error("Invalid export kind " + theKind);
+            }
+        }
+    }
+
+    private long validateConstantExpression(Reader aReader) {
+        int theOpcode = aReader.readByte();
+        long theValue = 0;
+        switch (theOpcode) {
+            case 0x41:
+                theValue = aReader.readLEB128(32, true);
+                break;
+            case 0x42:
+                theValue = aReader.readLEB128(64, true);
+                break;
+            case 0x43:
+                aReader.skip(4);
+                break;
+            case 0x44:
+                aReader.skip(8);
+                break;
+            case 0x23:
+                if (aReader.readUnsigned() >= globalTypes.size()) {
+                    throw aReader.error("Invalid global index");
+                }
+                break;
+            default:
+                throw aReader.error("Invalid constant expression");
+        }
+        if (aReader.readByte() != WASMOpcodes.END) {
+            throw aReader.error("Constant expression not terminated");
+        }
+        return theValue;
+    }
+
+    private void validateElements(Reader aReader) {
+        int theCount = aReader.readUnsigned();
+        for (int i=0;i<theCount;i++) {
+            if (aReader.readUnsigned() != 0 || !hasTable) {
+                throw aReader.error("Invalid table index");
+            }
+            long theOffset = validateConstantExpression(aReader);
+            int theFunctions = aReader.readUnsigned();
+            if (theOffset + theFunctions > tableMinimum) {
+                throw aReader.error("Element segment exceeds the table");
+            }
+            for (int j=0;j<theFunctions;j++) {
+                checkFunction(aReader, aReader.readUnsigned());
+            }
+        }
+    }
+
+    private void validateData(Reader aReader) {
+        int theCount = aReader.readUnsigned();
+        for (int i=0;i<theCount;i++) {
+            if (aReader.readUnsigned() != 0 || !hasMemory) {
+                throw aReader.error("Invalid memory index");
+            }
+            long theOffset = validateConstantExpression(aReader);
+            int theLength = aReader.readUnsigned();
+            if (theOffset + theLength > memoryMinimum * 65536) {
+                throw aReader.error("Data segment exceeds the memory");
+            }
+            aReader.skip(theLength);
+        }
+    }
+
+    private int validateCode(Reader aReader) {
+        int theCount = aReader.readUnsigned();
+        for (int i=0;i<theCount;i++) {
+            int theSize = aReader.readUnsigned();
+            int theBodyEnd = aReader.position + theSize;
+            int theSectionEnd = aReader.end;
+            if (theBodyEnd > theSectionEnd) {
+                throw aReader.error("Function body exceeds the code section");
+            }
+            aReader.end = theBodyEnd;
+
+            int theFunctionIndex = importedFunctions + i;
+            if (theFunctionIndex >= functionTypes.size()) {
+                throw aReader.error("Function body without declaration");
+            }
+            long theLocals = typeParamCounts.get(functionTypes.get(theFunctionIndex));
+            int theGroups = aReader.readUnsigned();
+            for (int j=0;j<theGroups;j++) {
+                theLocals += aReader.readUnsigned();
+                checkValueType(aReader, aReader.readByte());
+            }
+            if (theLocals > 50000) {
+                throw aReader.error("Too many locals");
+            }
+            validateInstructions(aReader, theLocals);
+
+            if (aReader.position != theBodyEnd) {
+                throw aReader.error("Function body has a size mismatch");
+            }
+            aReader.end = theSectionEnd;
+        }
+        return theCount;
+    }
+
+    private void validateInstructions(Reader aReader, long aLocals) {
+        // The function body itself is the outermost block
+        int theDepth = 1;
+        while (theDepth > 0) {
+            int theCode = aReader.readByte();
+            WASMOpcodes.Opcode theOpcode = WASMOpcodes.byCode(theCode);
+            if (theOpcode == null) {
+                throw aReader.error("Unknown opcode " + theCode);
+            }
+            switch (theOpcode.getImmediate()) {
+                case NONE:
+                    if (theCode == WASMOpcodes.END) {
+                        theDepth--;
+                    }
+                    break;
+                case BLOCKTYPE:
+                    int theBlockType = aReader.readByte();
+                    if (theBlockType != WASMOpcodes.VOID) {
+                        checkValueType(aReader, theBlockType);
+                    }
+                    theDepth++;
+                    break;
+                case LABEL:
+                    checkLabel(aReader, theDepth);
+                    break;
+                case LABELTABLE:
+                    int theTargets = aReader.readUnsigned();
+                    for (int i=0;i<=theTargets;i++) {
+                        checkLabel(aReader, theDepth);
+                    }
+                    break;
+                case FUNCTION:
+                    checkFunction(aReader, aReader.readUnsigned());
+                    break;
+                case TYPE:
+                    checkType(aReader, aReader.readUnsigned());
+                    if (aReader.readByte() != 0 || !hasTable) {
+                        throw aReader.error("Indirect call without table");
+                    }
+                    break;
+                case LOCAL:
+                    if (aReader.readUnsigned() >= aLocals) {
+                        throw aReader.error("Invalid local index");
+                    }
+                    break;
+                case GLOBAL:
+                    if (aReader.readUnsigned() >= globalTypes.size()) {
+                        throw aReader.error("Invalid global index");
+                    }
+                    break;
+                case MEMORY:
+                    if (aReader.readUnsigned() > theOpcode.getNaturalAlignment()) {
+                        throw aReader.error("Alignment of " + theOpcode.getName() + " exceeds natural alignment");
+                    }
+                    aReader.readLEB128(32, false);
+                    // Fall through, we need a memory
+                case MEMORYINDEX:
+                    if (theOpcode.getImmediate() == WASMOpcodes.Immediate.MEMORYINDEX && aReader.readByte() != 0) {
+                        throw aReader.error("Invalid memory index");
+                    }
+                    if (!hasMemory) {
+                        throw aReader.error("Memory access without memory");
+                    }
+                    break;
+                case I32:
+                    aReader.readLEB128(32, true);
+                    break;
+                case I64:
+                    aReader.readLEB128(64, true);
+                    break;
+                case F32:
+                    aReader.skip(4);
+                    break;
+                case F64:
+                    aReader.skip(8);
+                    break;
+            }
+        }
+    }
+
+    private static void checkLabel(Reader aReader, int aDepth) {
+        if (aReader.readUnsigned() >= aDepth) {
+            throw aReader.error("Invalid branch depth");
+        }
+    }
+}
@@ -0,0 +1,985 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Assembles the text format generated by the backend into the WebAssembly binary format.
+ *
+ * The result is validated by the {@link WASMBinaryValidator}, so no external tools like wat2wasm
+ * are required to get a loadable module.
+ */
+public class WASMBinaryWriter {
+
+    private static final int SECTION_CUSTOM = 0;
+    private static final int SECTION_TYPE = 1;
+    private static final int SECTION_IMPORT = 2;
+    private static final int SECTION_FUNCTION = 3;
+    private static final int SECTION_TABLE = 4;
+    private static final int SECTION_MEMORY = 5;
+    private static final int SECTION_GLOBAL = 6;
+    private static final int SECTION_EXPORT = 7;
+    private static final int SECTION_START = 8;
+    private static final int SECTION_ELEMENT = 9;
+    private static final int SECTION_CODE = 10;
+    private static final int SECTION_DATA = 11;
+
+    private static final int EXTERNAL_FUNCTION = 0;
+    private static final int EXTERNAL_TABLE = 1;
+    private static final int EXTERNAL_MEMORY = 2;
+    private static final int EXTERNAL_GLOBAL = 3;
+
+    private static class Signature {
+
+        private final List<Integer> params = new ArrayList<>();
+        private final List<Integer> results = new ArrayList<>();
+
+        @Override
+        public boolean equals(Object aOther) {
+            if (this == aOther) {
+                return true;
+            }
+            if (aOther == null || getClass() != aOther.getClass()) {
+                return false;
+            }
+            Signature theOther = (Signature) aOther;
+            return params.equals(theOther.params) && results.equals(theOther.results);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(params, results);
+        }
+    }
+
+    private static class Function {
+
+        private String name;
+        private WASMSExpression nameAtom;
+        private WASMSExpression typeUse;
+        private final Signature signature = new Signature();
+        private final List<String> localNames = new ArrayList<>();
+        private final List<Integer> localTypes = new ArrayList<>();
+        private final List<WASMSExpression> body = new ArrayList<>();
+        private String importModule;
+        private String importName;
+        private int typeIndex;
+    }
+
+    private static class Limits {
+
+        private long minimum;
+        private long maximum = -1;
+    }
+
+    private static class Global {
+
+        private String name;
+        private int type;
+        private boolean mutable;
+        private WASMSExpression init;
+    }
+
+    private static class Export {
+
+        private final String name;
+        private final int kind;
+        private final WASMSExpression target;
+
+        Export(String aName, int aKind, WASMSExpression aTarget) {
+            name = aName;
+            kind = aKind;
+            target = aTarget;
+        }
+    }
+
+    private static class Segment {
+
+        private WASMSExpression offset;
+        private final List<WASMSExpression> functions = new ArrayList<>();
+        private final WASMByteBuffer data = new WASMByteBuffer();
+    }
+
+    private static class Module {
+
+        private final List<Signature> types = new ArrayList<>();
+        private final Map<String, Integer> typeNames = new HashMap<>();
+        private final List<Function> imports = new ArrayList<>();
+        private final List<Function> functions = new ArrayList<>();
+        private final Map<String, Integer> functionNames = new HashMap<>();
+        private final List<Global> globals = new ArrayList<>();
+        private final Map<String, Integer> globalNames = new HashMap<>();
+        private final List<Export> exports = new ArrayList<>();
+        private final List<Segment> elements = new ArrayList<>();
+        private final List<Segment> data = new ArrayList<>();
+        private Limits table;
+        private Limits memory;
+        private WASMSExpression start;
+    }
+
+    private static class FunctionContext {
+
+        private final Map<String, Integer> locals = new HashMap<>();
+        private final List<String> labels = new ArrayList<>();
+    }
+
+    private final boolean writeNames;
+
+    public WASMBinaryWriter(boolean aWriteNames) {
+        writeNames = aWriteNames;
+    }
+
+    public byte[] toBinary(String aModuleText) {
+        WASMSExpression theModuleExpression = WASMSExpression.parse(aModuleText);
+        if (!theModuleExpression.isList("module")) {
+            throw theModuleExpression.error("Expected a module");
+        }
+
+        Module theModule = new Module();
+        for (WASMSExpression theField : theModuleExpression.children().subList(1, theModuleExpression.size())) {
+            collect(theModule, theField);
+        }
+        resolveTypes(theModule);
+
+        WASMByteBuffer theResult = new WASMByteBuffer();
+        // Magic number and version
+        theResult.writeInt32(0x6d736100);
+        theResult.writeInt32(1);
+
+        writeTypeSection(theModule, theResult);
+        writeImportSection(theModule, theResult);
+        writeFunctionSection(theModule, theResult);
+        writeTableSection(theModule, theResult);
+        writeMemorySection(theModule, theResult);
+        writeGlobalSection(theModule, theResult);
+        writeExportSection(theModule, theResult);
+        writeStartSection(theModule, theResult);
+        writeElementSection(theModule, theResult);
+        writeCodeSection(theModule, theResult);
+        writeDataSection(theModule, theResult);
+        if (writeNames) {
+            writeNameSection(theModule, theResult);
+        }
+
+        byte[] theBinary = theResult.toByteArray();
+        new WASMBinaryValidator().validate(theBinary);
+        return theBinary;
+    }
+
+    private void collect(Module aModule, WASMSExpression aField) {
+        switch (aField.head()) {
+            case "type":
+                collectType(aModule, aField);
+                break;
+            case "import":
+                collectImport(aModule, aField);
+                break;
+            case "func":
+                collectFunction(aModule, aField, null, null);
+                break;
+            case "memory":
+                aModule.memory = collectLimits(aModule, aField, EXTERNAL_MEMORY);
+                break;
+            case "table":
+                aModule.table = collectLimits(aModule, aField, EXTERNAL_TABLE);
+                break;
+            case "global":
+                collectGlobal(aModule, aField);
+                break;
+            case "export":
+                aModule.exports.add(new Export(aField.get(1).stringValue(), externalKind(aField.get(2)), aField.get(2).get(1)));
+                break;
+            case "elem":
+                aModule.elements.add(collectSegment(aField, false));
+                break;
+            case "data":
+                aModule.data.add(collectSegment(aField, true));
+                break;
+            case "start":
+                aModule.start = aField.get(1);
+                break;
+            default:
+                throw aField.error("Unsupported module field");
+        }
+    }
+
+    private static int externalKind(WASMSExpression aDescriptor) {
+        switch (aDescriptor.head()) {
+            case "func":
+                return EXTERNAL_FUNCTION;
+            case "table":
+                return EXTERNAL_TABLE;
+            case "memory":
+                return EXTERNAL_MEMORY;
+            case "global":
+                return EXTERNAL_GLOBAL;
+            default:
+                throw aDescriptor.error("Unknown external kind");
+        }
+    }
+
+    private void collectType(Module aModule, WASMSExpression aField) {
+        int theIndex = 1;
+        if (aField.get(theIndex).isName()) {
+            if (aModule.typeNames.put(aField.get(theIndex).atom(), aModule.types.size()) != null) {
+                throw aField.get(theIndex).error("Duplicate type");
+            }
+            theIndex++;
+        }
+        WASMSExpression theFunc = aField.get(theIndex);
+        if (!theFunc.isList("func")) {
+            throw theFunc.error("Expected a function type");
+        }
+        Signature theSignature = new Signature();
+        for (WASMSExpression theChild : theFunc.children().subList(1, theFunc.size())) {
+            collectSignature(theSignature, null, theChild);
+        }
+        aModule.types.add(theSignature);
+    }
+
+    private static boolean collectSignature(Signature aSignature, List<String> aNames, WASMSExpression aChild) {
+        if (aChild.isList("param")) {
+            if (aChild.size() == 3 && aChild.get(1).isName()) {
+                aSignature.params.add(WASMOpcodes.valueType(aChild.get(2).atom()));
+                if (aNames != null) {
+                    aNames.add(aChild.get(1).atom());
+                }
+                return true;
+            }
+            for (WASMSExpression theType : aChild.children().subList(1, aChild.size())) {
+                aSignature.params.add(WASMOpcodes.valueType(theType.atom()));
+                if (aNames != null) {
+                    aNames.add(null);
+                }
+            }
+            return true;
+        }
+        if (aChild.isList("result")) {
+            for (WASMSExpression theType : aChild.children().subList(1, aChild.size())) {
+                aSignature.results.add(WASMOpcodes.valueType(theType.atom()));
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private void collectImport(Module aModule, WASMSExpression aField) {
+        WASMSExpression theDescriptor = aField.get(3);
+        if (!theDescriptor.isList("func")) {
+            throw theDescriptor.error("Only function imports are supported");
+        }
+        collectFunction(aModule, theDescriptor, aField.get(1).stringValue(), aField.get(2).stringValue());
+    }
+
+    private void collectFunction(Module aModule, WASMSExpression aField, String aImportModule, String aImportName) {
+        Function theFunction = new Function();
+        theFunction.importModule = aImportModule;
+        theFunction.importName = aImportName;
+
+        List<WASMSExpression> theChildren = aField.children();
+        int theIndex = 1;
+        if (theIndex < theChildren.size() && theChildren.get(theIndex).isName()) {
+            theFunction.nameAtom = theChildren.get(theIndex);
+            theFunction.name = theFunction.nameAtom.atom();
+            theIndex++;
+        }
+        for (;theIndex < theChildren.size();theIndex++) {
+            WASMSExpression theChild = theChildren.get(theIndex);
+            if (theChild.isList("export")) {
+                if (theFunction.name == null) {
+                    throw theChild.error("Inline exports require a named function");
+                }
+                aModule.exports.add(new Export(theChild.get(1).stringValue(), EXTERNAL_FUNCTION, theChildren.get(1)));
+            } else if (theChild.isList("import")) {
+                theFunction.importModule = theChild.get(1).stringValue();
+                theFunction.importName = theChild.get(2).stringValue();
+            } else if (theChild.isList("type")) {
+                theFunction.typeUse = theChild.get(1);
+            } else if (!collectSignature(theFunction.signature, theFunction.localNames, theChild)) {
+                break;
+            }
+        }
+        for (;theIndex < theChildren.size();theIndex++) {
+            WASMSExpression theChild = theChildren.get(theIndex);
+            if (!theChild.isList("local")) {
+                break;
+            }
+            if (theChild.size() == 3 && theChild.get(1).isName()) {
+                theFunction.localNames.add(theChild.get(1).atom());
+                theFunction.localTypes.add(WASMOpcodes.valueType(theChild.get(2).atom()));
+            } else {
+                for (WASMSExpression theType : theChild.children().subList(1, theChild.size())) {
+                    theFunction.localNames.add(null);
+                    theFunction.localTypes.add(WASMOpcodes.valueType(theType.atom()));
+                }
+            }
+        }
+        theFunction.body.addAll(theChildren.subList(theIndex, theChildren.size()));
+
+        if (theFunction.importModule != null) {
+            if (!theFunction.body.isEmpty() || !theFunction.localTypes.isEmpty()) {
+                throw aField.error("Imported functions cannot have a body");
+            }
+            aModule.imports.add(theFunction);
+        } else {
+            aModule.functions.add(theFunction);
+        }
+    }
+
+    private Limits collectLimits(Module aModule, WASMSExpression aField, int aKind) {
+        Limits theLimits = new Limits();
+        theLimits.minimum = -1;
+        for (WASMSExpression theChild : aField.children().subList(1, aField.size())) {
+            if (theChild.isList("export")) {
+                aModule.exports.add(new Export(theChild.get(1).stringValue(), aKind, null));
+            } else if (theChild.isAtom() && !theChild.isName() && Character.isDigit(theChild.atom().charAt(0))) {
+                if (theLimits.minimum < 0) {
+                    theLimits.minimum = parseInteger(theChild);
+                } else {
+                    theLimits.maximum = parseInteger(theChild);
+                }
+            } else if (!theChild.isName() && !theChild.isAtom("anyfunc") && !theChild.isAtom("funcref")) {
+                throw theChild.error("Unsupported limits declaration");
+            }
+        }
+        if (theLimits.minimum < 0) {
+            throw aField.error("Missing limits");
+        }
+        return theLimits;
+    }
+
+    private void collectGlobal(Module aModule, WASMSExpression aField) {
+        Global theGlobal = new Global();
+        int theIndex = 1;
+        if (aField.get(theIndex).isName()) {
+            theGlobal.name = aField.get(theIndex).atom();
+            if (aModule.globalNames.put(theGlobal.name, aModule.globals.size()) != null) {
+                throw aField.get(theIndex).error("Duplicate global");
+            }
+            theIndex++;
+        }
+        while (aField.get(theIndex).isList("export")) {
+            aModule.exports.add(new Export(aField.get(theIndex).get(1).stringValue(), EXTERNAL_GLOBAL, aField.get(1)));
+            theIndex++;
+        }
+        WASMSExpression theType = aField.get(theIndex++);
+        if (theType.isList("mut")) {
+            theGlobal.mutable = true;
+            theGlobal.type = WASMOpcodes.valueType(theType.get(1).atom());
+        } else {
+            theGlobal.type = WASMOpcodes.valueType(theType.atom());
+        }
+        theGlobal.init = aField.get(theIndex);
+        aModule.globals.add(theGlobal);
+    }
+
+    private Segment collectSegment(WASMSExpression aField, boolean aData) {
+        Segment theSegment = new Segment();
+        int theIndex = 1;
+        if (aField.get(theIndex).isAtom()) {
+            // Table or memory index, there is only one of them in the MVP
+            theIndex++;
+        }
+        WASMSExpression theOffset = aField.get(theIndex++);
+        if (theOffset.isList("offset")) {
+            theOffset = theOffset.get(1);
+        }
+        theSegment.offset = theOffset;
+        for (WASMSExpression theChild : aField.children().subList(theIndex, aField.size())) {
+            if (aData) {
+                byte[] theBytes = theChild.stringBytes();
+                theSegment.data.write(theBytes, 0, theBytes.length);
+            } else {
+                theSegment.functions.add(theChild);
+            }
+        }
+        return theSegment;
+    }
+
+    private void resolveTypes(Module aModule) {
+        // Imported functions come first in the index space
+        List<Function> theAllFunctions = new ArrayList<>(aModule.imports);
+        theAllFunctions.addAll(aModule.functions);
+        for (int i=0;i<theAllFunctions.size();i++) {
+            Function theFunction = theAllFunctions.get(i);
+            if (theFunction.name != null) {
+                if (aModule.functionNames.put(theFunction.name, i) != null) {
+                    throw theFunction.nameAtom.error("Duplicate function");
+                }
+            }
+            if (theFunction.typeUse != null) {
+                theFunction.typeIndex = resolve(aModule.typeNames, theFunction.typeUse, aModule.types.size());
+                if (theFunction.signature.params.isEmpty() && theFunction.signature.results.isEmpty()) {
+                    // Type use without inline signature, so we take parameter information from the type
+                    Signature theType = aModule.types.get(theFunction.typeIndex);
+                    theFunction.signature.params.addAll(theType.params);
+                    theFunction.signature.results.addAll(theType.results);
+                    for (int j=0;j<theType.params.size();j++) {
+                        theFunction.localNames.add(j, null);
+                    }
+                }
+            } else {
+                int theIndex = aModule.types.indexOf(theFunction.signature);
+                if (theIndex < 0) {
+                    theIndex = aModule.types.size();
+                    aModule.types.add(theFunction.signature);
+                }
+                theFunction.typeIndex = theIndex;
+            }
+        }
+    }
+
+    private static int resolve(Map<String, Integer> aNames, WASMSExpression aReference, int aLimit) {
+        int theIndex;
+        if (aReference.isName()) {
+            Integer theResolved = aNames.get(aReference.atom());
+            if (theResolved == null) {
+                throw aReference.error("Unknown reference");
+            }
+            theIndex = theResolved;
+        } else {
+            theIndex = (int) parseInteger(aReference);
+        }
+        if (theIndex < 0 || theIndex >= aLimit) {
+            throw aReference.error("Index out of range");
+        }
+        return theIndex;
+    }
+
+    private int functionIndex(Module aModule, WASMSExpression aReference) {
+        return resolve(aModule.functionNames, aReference, aModule.imports.size() + aModule.functions.size());
+    }
+
+    private void writeTypeSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.types.isEmpty()) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(aModule.types.size());
+        for (Signature theSignature : aModule.types) {
+            theSection.writeByte(WASMOpcodes.FUNC);
+            theSection.writeUnsignedLEB128(theSignature.params.size());
+            for (int theType : theSignature.params) {
+                theSection.writeByte(theType);
+            }
+            theSection.writeUnsignedLEB128(theSignature.results.size());
+            for (int theType : theSignature.results) {
+                theSection.writeByte(theType);
+            }
+        }
+        aResult.writeSection(SECTION_TYPE, theSection);
+    }
+
+    private void writeImportSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.imports.isEmpty()) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(aModule.imports.size());
+        for (Function theFunction : aModule.imports) {
+            theSection.writeName(theFunction.importModule);
+            theSection.writeName(theFunction.importName);
+            theSection.writeByte(EXTERNAL_FUNCTION);
+            theSection.writeUnsignedLEB128(theFunction.typeIndex);
+        }
+        aResult.writeSection(SECTION_IMPORT, theSection);
+    }
+
+    private void writeFunctionSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.functions.isEmpty()) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(aModule.functions.size());
+        for (Function theFunction : aModule.functions) {
+            theSection.writeUnsignedLEB128(theFunction.typeIndex);
+        }
+        aResult.writeSection(SECTION_FUNCTION, theSection);
+    }
+
+    private static void writeLimits(WASMByteBuffer aTarget, Limits aLimits) {
+        if (aLimits.maximum < 0) {
+            aTarget.writeByte(0);
+            aTarget.writeUnsignedLEB128(aLimits.minimum);
+        } else {
+            aTarget.writeByte(1);
+            aTarget.writeUnsignedLEB128(aLimits.minimum);
+            aTarget.writeUnsignedLEB128(aLimits.maximum);
+        }
+    }
+
+    private void writeTableSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.table == null) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(1);
+        theSection.writeByte(WASMOpcodes.ANYFUNC);
+        writeLimits(theSection, aModule.table);
+        aResult.writeSection(SECTION_TABLE, theSection);
+    }
+
+    private void writeMemorySection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.memory == null) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(1);
+        writeLimits(theSection, aModule.memory);
+        aResult.writeSection(SECTION_MEMORY, theSection);
+    }
+
+    private void writeGlobalSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.globals.isEmpty()) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(aModule.globals.size());
+        for (Global theGlobal : aModule.globals) {
+            theSection.writeByte(theGlobal.type);
+            theSection.writeByte(theGlobal.mutable ? 1 : 0);
+            writeConstantExpression(aModule, theGlobal.init, theSection);
+        }
+        aResult.writeSection(SECTION_GLOBAL, theSection);
+    }
+
+    private void writeExportSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.exports.isEmpty()) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(aModule.exports.size());
+        for (Export theExport : aModule.exports) {
+            theSection.writeName(theExport.name);
+            theSection.writeByte(theExport.kind);
+            switch (theExport.kind) {
+                case EXTERNAL_FUNCTION:
+                    theSection.writeUnsignedLEB128(functionIndex(aModule, theExport.target));
+                    break;
+                case EXTERNAL_GLOBAL:
+                    theSection.writeUnsignedLEB128(resolve(aModule.globalNames, theExport.target, aModule.globals.size()));
+                    break;
+                default:
+                    // There is only one table and one memory
+                    theSection.writeUnsignedLEB128(0);
+                    break;
+            }
+        }
+        aResult.writeSection(SECTION_EXPORT, theSection);
+    }
+
+    private void writeStartSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.start == null) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(functionIndex(aModule, aModule.start));
+        aResult.writeSection(SECTION_START, theSection);
+    }
+
+    private void writeElementSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.elements.isEmpty()) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(aModule.elements.size());
+        for (Segment theSegment : aModule.elements) {
+            theSection.writeUnsignedLEB128(0);
+            writeConstantExpression(aModule, theSegment.offset, theSection);
+            theSection.writeUnsignedLEB128(theSegment.functions.size());
+            for (WASMSExpression theFunction : theSegment.functions) {
+                theSection.writeUnsignedLEB128(functionIndex(aModule, theFunction));
+            }
+        }
+        aResult.writeSection(SECTION_ELEMENT, theSection);
+    }
+
+    private void writeCodeSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.functions.isEmpty()) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(aModule.functions.size());
+        for (Function theFunction : aModule.functions) {
+            FunctionContext theContext = new FunctionContext();
+            for (int i=0;i<theFunction.localNames.size();i++) {
+                String theName = theFunction.localNames.get(i);
+                if (theName != null) {
+                    theContext.locals.put(theName, i);
+                }
+            }
+
+            WASMByteBuffer theBody = new WASMByteBuffer();
+
+            // Consecutive locals of the same type are grouped
+            List<Integer> theTypes = theFunction.localTypes;
+            int theGroups = 0;
+            for (int i=0;i<theTypes.size();i++) {
+                if (i == 0 || !theTypes.get(i).equals(theTypes.get(i - 1))) {
+                    theGroups++;
+                }
+            }
+            theBody.writeUnsignedLEB128(theGroups);
+            for (int i=0;i<theTypes.size();) {
+                int theCount = 1;
+                while (i + theCount < theTypes.size() && theTypes.get(i + theCount).equals(theTypes.get(i))) {
+                    theCount++;
+                }
+                theBody.writeUnsignedLEB128(theCount);
+                theBody.writeByte(theTypes.get(i));
+                i+= theCount;
+            }
+
+            writeInstructions(aModule, theContext, theFunction.body, 0, theBody);
+            theBody.writeByte(WASMOpcodes.END);
+
+            theSection.writeBuffer(theBody);
+        }
+        aResult.writeSection(SECTION_CODE, theSection);
+    }
+
+    private void writeDataSection(Module aModule, WASMByteBuffer aResult) {
+        if (aModule.data.isEmpty()) {
+            return;
+        }
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeUnsignedLEB128(aModule.data.size());
+        for (Segment theSegment : aModule.data) {
+            theSection.writeUnsignedLEB128(0);
+            writeConstantExpression(aModule, theSegment.offset, theSection);
+            theSection.writeBuffer(theSegment.data);
+        }
+        aResult.writeSection(SECTION_DATA, theSection);
+    }
+
+    private void writeNameSection(Module aModule, WASMByteBuffer aResult) {
+        List<Function> theAllFunctions = new ArrayList<>(aModule.imports);
+        theAllFunctions.addAll(aModule.functions);
+
+        WASMByteBuffer theFunctionNames = new WASMByteBuffer();
+        WASMByteBuffer theLocalNames = new WASMByteBuffer();
+        int theFunctionNameCount = 0;
+        for (int i=0;i<theAllFunctions.size();i++) {
+            Function theFunction = theAllFunctions.get(i);
+            if (theFunction.name != null) {
+                theFunctionNames.writeUnsignedLEB128(i);
+                theFunctionNames.writeName(theFunction.name.substring(1));
+                theFunctionNameCount++;
+            }
+            WASMByteBuffer theLocals = new WASMByteBuffer();
+            int theLocalCount = 0;
+            for (int j=0;j<theFunction.localNames.size();j++) {
+                String theName = theFunction.localNames.get(j);
+                if (theName != null) {
+                    theLocals.writeUnsignedLEB128(j);
+                    theLocals.writeName(theName.substring(1));
+                    theLocalCount++;
+                }
+            }
+            theLocalNames.writeUnsignedLEB128(i);
+            theLocalNames.writeUnsignedLEB128(theLocalCount);
+            theLocalNames.write(theLocals.toByteArray(), 0, theLocals.size());
+        }
+
+        WASMByteBuffer theSection = new WASMByteBuffer();
+        theSection.writeName("name");
+        if (theFunctionNameCount > 0) {
+            WASMByteBuffer theSubsection = new WASMByteBuffer();
+            theSubsection.writeUnsignedLEB128(theFunctionNameCount);
+            theSubsection.write(theFunctionNames.toByteArray(), 0, theFunctionNames.size());
+            theSection.writeByte(1);
+            theSection.writeBuffer(theSubsection);
+        }
+        if (!theAllFunctions.isEmpty()) {
+            WASMByteBuffer theSubsection = new WASMByteBuffer();
+            theSubsection.writeUnsignedLEB128(theAllFunctions.size());
+            theSubsection.write(theLocalNames.toByteArray(), 0, theLocalNames.size());
+            theSection.writeByte(2);
+            theSection.writeBuffer(theSubsection);
+        }
+        aResult.writeSection(SECTION_CUSTOM, theSection);
+    }
+
+    private void writeConstantExpression(Module aModule, WASMSExpression aExpression, WASMByteBuffer aTarget) {
+        writeFolded(aModule, new FunctionContext(), aExpression, aTarget);
+        aTarget.writeByte(WASMOpcodes.END);
+    }
+
+    private void writeInstructions(Module aModule, FunctionContext aContext, List<WASMSExpression> aInstructions, int aStart, WASMByteBuffer aTarget) {
+        for (int i=aStart;i<aInstructions.size();) {
+            WASMSExpression theInstruction = aInstructions.get(i);
+            if (theInstruction.isList()) {
+                writeFolded(aModule, aContext, theInstruction, aTarget);
+                i++;
+            } else {
+                // Plain instruction, the immediates are the following atoms
+                WASMOpcodes.Opcode theOpcode = opcodeFor(theInstruction, theInstruction.atom());
+                if (theOpcode.getImmediate() == WASMOpcodes.Immediate.BLOCKTYPE) {
+                    throw theInstruction.error("Structured instructions must be folded");
+                }
+                aTarget.writeByte(theOpcode.getCode());
+                i = writeImmediates(aModule, aContext, theOpcode, aInstructions, i + 1, aTarget);
+            }
+        }
+    }
+
+    private static WASMOpcodes.Opcode opcodeFor(WASMSExpression aInstruction, String aName) {
+        WASMOpcodes.Opcode theOpcode = WASMOpcodes.byName(aName);
+        if (theOpcode == null) {
+            throw aInstruction.error("Unknown instruction " + aName);
+        }
+        return theOpcode;
+    }
+
+    private void writeFolded(Module aModule, FunctionContext aContext, WASMSExpression aInstruction, WASMByteBuffer aTarget) {
+        WASMOpcodes.Opcode theOpcode = opcodeFor(aInstruction, aInstruction.head());
+        List<WASMSExpression> theChildren = aInstruction.children();
+
+        if (theOpcode.getImmediate() != WASMOpcodes.Immediate.BLOCKTYPE) {
+            // Immediates are written after the operands
+            WASMByteBuffer theImmediates = new WASMByteBuffer();
+            int theOperandStart = writeImmediates(aModule, aContext, theOpcode, theChildren, 1, theImmediates);
+            writeInstructions(aModule, aContext, theChildren, theOperandStart, aTarget);
+            aTarget.writeByte(theOpcode.getCode());
+            aTarget.write(theImmediates.toByteArray(), 0, theImmediates.size());
+            return;
+        }
+
+        int theIndex = 1;
+        String theLabel = null;
+        if (theIndex < theChildren.size() && theChildren.get(theIndex).isName()) {
+            theLabel = theChildren.get(theIndex).atom();
+            theIndex++;
+        }
+        int theBlockType = WASMOpcodes.VOID;
+        if (theIndex < theChildren.size() && theChildren.get(theIndex).isList("result")) {
+            theBlockType = WASMOpcodes.valueType(theChildren.get(theIndex).get(1).atom());
+            theIndex++;
+        }
+
+        if (theOpcode.getCode() != WASMOpcodes.IF) {
+            aTarget.writeByte(theOpcode.getCode());
+            aTarget.writeByte(theBlockType);
+            aContext.labels.add(theLabel);
+            writeInstructions(aModule, aContext, theChildren, theIndex, aTarget);
+            aContext.labels.remove(aContext.labels.size() - 1);
+            aTarget.writeByte(WASMOpcodes.END);
+            return;
+        }
+
+        // The condition comes first, followed by the then and else branches
+        WASMSExpression theThen = null;
+        WASMSExpression theElse = null;
+        List<WASMSExpression> theCondition = new ArrayList<>();
+        for (WASMSExpression theChild : theChildren.subList(theIndex, theChildren.size())) {
+            if (theChild.isList("then")) {
+                theThen = theChild;
+            } else if (theChild.isList("else")) {
+                theElse = theChild;
+            } else {
+                theCondition.add(theChild);
+            }
+        }
+        if (theThen == null) {
+            throw aInstruction.error("Missing then branch");
+        }
+        writeInstructions(aModule, aContext, theCondition, 0, aTarget);
+        aTarget.writeByte(WASMOpcodes.IF);
+        aTarget.writeByte(theBlockType);
+        aContext.labels.add(theLabel);
+        writeInstructions(aModule, aContext, theThen.children(), 1, aTarget);
+        if (theElse != null) {
+            aTarget.writeByte(WASMOpcodes.ELSE);
+            writeInstructions(aModule, aContext, theElse.children(), 1, aTarget);
+        }
+        aContext.labels.remove(aContext.labels.size() - 1);
+        aTarget.writeByte(WASMOpcodes.END);
+    }
+
+    private int writeImmediates(Module aModule, FunctionContext aContext, WASMOpcodes.Opcode aOpcode, List<WASMSExpression> aList, int aIndex, WASMByteBuffer aTarget) {
+        int theIndex = aIndex;
+        switch (aOpcode.getImmediate()) {
+            case NONE:
+                return theIndex;
+            case LABEL:
+                aTarget.writeUnsignedLEB128(labelDepth(aContext, argument(aList, theIndex)));
+                return theIndex + 1;
+            case LABELTABLE: {
+                List<Integer> theDepths = new ArrayList<>();
+                while (theIndex < aList.size() && aList.get(theIndex).isAtom()) {
+                    theDepths.add(labelDepth(aContext, aList.get(theIndex++)));
+                }
+                if (theDepths.isEmpty()) {
+                    throw argument(aList, aIndex).error("Missing default label");
+                }
+                // The last label is the default target
+                aTarget.writeUnsignedLEB128(theDepths.size() - 1);
+                for (int theDepth : theDepths) {
+                    aTarget.writeUnsignedLEB128(theDepth);
+                }
+                return theIndex;
+            }
+            case FUNCTION:
+                aTarget.writeUnsignedLEB128(functionIndex(aModule, argument(aList, theIndex)));
+                return theIndex + 1;
+            case TYPE: {
+                WASMSExpression theType = argument(aList, theIndex);
+                if (theType.isList("type")) {
+                    theType = theType.get(1);
+                }
+                aTarget.writeUnsignedLEB128(resolve(aModule.typeNames, theType, aModule.types.size()));
+                // Table index, there is only one table in the MVP
+                aTarget.writeByte(0);
+                return theIndex + 1;
+            }
+            case LOCAL:
+                aTarget.writeUnsignedLEB128(resolve(aContext.locals, argument(aList, theIndex), Integer.MAX_VALUE));
+                return theIndex + 1;
+            case GLOBAL:
+                aTarget.writeUnsignedLEB128(resolve(aModule.globalNames, argument(aList, theIndex), aModule.globals.size()));
+                return theIndex + 1;
+            case MEMORY: {
+                long theOffset = 0;
+                int theAlignment = aOpcode.getNaturalAlignment();
+                while (theIndex < aList.size() && aList.get(theIndex).isAtom()) {
+                    String theValue = aList.get(theIndex).atom();
+                    if (theValue.startsWith("offset=")) {
+                        theOffset = parseInteger(aList.get(theIndex), theValue.substring(7));
+                    } else if (theValue.startsWith("align=")) {
+                        theAlignment = Long.numberOfTrailingZeros(parseInteger(aList.get(theIndex), theValue.substring(6)));
+                    } else {
+                        break;
+                    }
+                    theIndex++;
+                }
+                aTarget.writeUnsignedLEB128(theAlignment);
+                aTarget.writeUnsignedLEB128(theOffset);
+                return theIndex;
+            }
+            case MEMORYINDEX:
+                aTarget.writeByte(0);
+                return theIndex;
+            case I32:
+                aTarget.writeSignedLEB128((int) parseInteger(argument(aList, theIndex)));
+                return theIndex + 1;
+            case I64:
+                aTarget.writeSignedLEB128(parseInteger(argument(aList, theIndex)));
+                return theIndex + 1;
+            case F32:
+                aTarget.writeInt32(parseFloat(argument(aList, theIndex)));
+                return theIndex + 1;
+            case F64:
+                aTarget.writeInt64(parseDouble(argument(aList, theIndex)));
+                return theIndex + 1;
+            default:
+                throw argument(aList, theIndex).error("Unsupported immediate");
+        }
+    }
+
+    private static WASMSExpression argument(List<WASMSExpression> aList, int aIndex) {
+        if (aIndex >= aList.size() || !(aList.get(aIndex).isAtom() || aList.get(aIndex).isList("type"))) {
+            throw aList.get(aIndex - 1).error("Missing immediate argument");
+        }
+        return aList.get(aIndex);
+    }
+
+    private static int labelDepth(FunctionContext aContext, WASMSExpression aLabel) {
+        if (!aLabel.isName()) {
+            return (int) parseInteger(aLabel);
+        }
+        int theDepth = aContext.labels.lastIndexOf(aLabel.atom());
+        if (theDepth < 0) {
+            throw aLabel.error("Unknown label");
+        }
+        return aContext.labels.size() - 1 - theDepth;
+    }
+
+    private static long parseInteger(WASMSExpression aValue) {
+        return parseInteger(aValue, aValue.atom());
+    }
+
+    private static long parseInteger(WASMSExpression aSource, String aValue) {
+        String theValue = aValue.replace("_", "");
+        boolean theNegative = theValue.startsWith("-");
+        if (theNegative || theValue.startsWith("+")) {
+            theValue = theValue.substring(1);
+        }
+        try {
+            long theResult;
+            if (theValue.startsWith("0x")) {
+                theResult = Long.parseUnsignedLong(theValue.substring(2), 16);
+            } else {
+                theResult = Long.parseUnsignedLong(theValue);
+            }
+            return theNegative ? -theResult : theResult;
+        } catch (NumberFormatException e) {
+            throw aSource.error("Invalid integer " + aValue);
+        }
+    }
+
+    private static int parseFloat(WASMSExpression aValue) {
+        String theValue = aValue.atom().replace("_", "");
+        int theSign = theValue.startsWith("-") ? 0x80000000 : 0;
+        String theMagnitude = theValue.startsWith("-") || theValue.startsWith("+") ? theValue.substring(1) : theValue;
+        if ("inf".equals(theMagnitude)) {
+            return theSign | 0x7f800000;
+        }
+        if ("nan".equals(theMagnitude)) {
+            return theSign | 0x7fc00000;
+        }
+        if (theMagnitude.startsWith("nan:0x")) {
+            return theSign | 0x7f800000 | Integer.parseInt(theMagnitude.substring(6), 16);
+        }
+        try {
+            return Float.floatToRawIntBits(Float.parseFloat(toJavaLiteral(theValue)));
+        } catch (NumberFormatException e) {
+            throw aValue.error("Invalid float " + theValue);
+        }
+    }
+
+    private static long parseDouble(WASMSExpression aValue) {
+        String theValue = aValue.atom().replace("_", "");
+        long theSign = theValue.startsWith("-") ? 0x8000000000000000L : 0;
+        String theMagnitude = theValue.startsWith("-") || theValue.startsWith("+") ? theValue.substring(1) : theValue;
+        if ("inf".equals(theMagnitude)) {
+            return theSign | 0x7ff0000000000000L;
+        }
+        if ("nan".equals(theMagnitude)) {
+            return theSign | 0x7ff8000000000000L;
+        }
+        if (theMagnitude.startsWith("nan:0x")) {
+            return theSign | 0x7ff0000000000000L | Long.parseLong(theMagnitude.substring(6), 16);
+        }
+        try {
+            return Double.doubleToRawLongBits(Double.parseDouble(toJavaLiteral(theValue)));
+        } catch (NumberFormatException e) {
+            throw aValue.error("Invalid double " + theValue);
+        }
+    }
+
+    private static String toJavaLiteral(String aValue) {
+        // Hexadecimal floats require a binary exponent in Java
+        if (aValue.contains("0x") && !aValue.contains("p") && !aValue.contains("P")) {
+            return aValue + "p0";
+        }
+        return aValue;
+    }
+}
@@ -0,0 +1,91 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Growable byte buffer with the primitive encodings of the WebAssembly binary format.
+ */
+public class WASMByteBuffer extends ByteArrayOutputStream {
+
+    public WASMByteBuffer() {
+        super(256);
+    }
+
+    public void writeByte(int aValue) {
+        write(aValue & 0xFF);
+    }
+
+    public void writeUnsignedLEB128(long aValue) {
+        long theValue = aValue;
+        do {
+            int theByte = (int) (theValue & 0x7F);
+            theValue >>>= 7;
+            if (theValue != 0) {
+                theByte |= 0x80;
+            }
+            write(theByte);
+        } while (theValue != 0);
+    }
+
+    public void writeSignedLEB128(long aValue) {
+        long theValue = aValue;
+        boolean theMore = true;
+        while (theMore) {
+            int theByte = (int) (theValue & 0x7F);
+            theValue >>= 7;
+            if ((theValue == 0 && (theByte & 0x40) == 0) || (theValue == -1 && (theByte & 0x40) != 0)) {
+                theMore = false;
+            } else {
+                theByte |= 0x80;
+            }
+            write(theByte);
+        }
+    }
+
+    public void writeInt32(int aValue) {
+        write(aValue & 0xFF);
+        write((aValue >>> 8) & 0xFF);
+        write((aValue >>> 16) & 0xFF);
+        write((aValue >>> 24) & 0xFF);
+    }
+
+    public void writeInt64(long aValue) {
+        writeInt32((int) aValue);
+        writeInt32((int) (aValue >>> 32));
+    }
+
+    public void writeName(String aName) {
+        writeBytes(aName.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void writeBytes(byte[] aData) {
+        writeUnsignedLEB128(aData.length);
+        write(aData, 0, aData.length);
+    }
+
+    public void writeBuffer(WASMByteBuffer aBuffer) {
+        writeUnsignedLEB128(aBuffer.size());
+        write(aBuffer.buf, 0, aBuffer.count);
+    }
+
+    public void writeSection(int aId, WASMByteBuffer aContent) {
+        writeByte(aId);
+        writeBuffer(aContent);
+    }
+}
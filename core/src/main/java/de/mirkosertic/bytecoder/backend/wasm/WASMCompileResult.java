@@ -19,18 +19,19 @@ import de.mirkosertic.bytecoder.backend.CompileResult;
 import de.mirkosertic.bytecoder.core.BytecodeLinkerContext;
 import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
 
-import java.util.List;
+import java.util.Map;
 
 public class WASMCompileResult implements CompileResult<String> {
 
     private final WASMMemoryLayouter memoryLayouter;
     private final BytecodeLinkerContext linkerContext;
-    private final List<String> generatedFunctions;
+    private final Map<BytecodeObjectTypeRef, Integer> vtables;
     private final String data;
+    private byte[] binaryData;
 
-    public WASMCompileResult(BytecodeLinkerContext aLinkerContext, List<String> aGeneratedFunctions, String aData, WASMMemoryLayouter aMemoryLayout) {
+    public WASMCompileResult(BytecodeLinkerContext aLinkerContext, Map<BytecodeObjectTypeRef, Integer> aVTables, String aData, WASMMemoryLayouter aMemoryLayout) {
         linkerContext = aLinkerContext;
-        generatedFunctions = aGeneratedFunctions;
+        vtables = aVTables;
         data = aData;
         memoryLayouter = aMemoryLayout;
     }
@@ -44,15 +45,22 @@ public class WASMCompileResult implements CompileResult<String> {
         return theLayout.instanceSize();
     }
 
-    public int getVTableIndexOf(BytecodeObjectTypeRef aObjectType) {
-        String theClassName = WASMWriterUtils.toClassName(aObjectType);
-
-        String theMethodName = theClassName + "__resolvevtableindex";
-        return generatedFunctions.indexOf(theMethodName);
+    public int getVTableAddressOf(BytecodeObjectTypeRef aObjectType) {
+        return vtables.get(aObjectType);
     }
 
     @Override
     public String getData() {
         return data;
     }
+
+    /**
+     * The module in the WebAssembly binary format, including a name section.
+     */
+    public byte[] getBinaryData() {
+        if (binaryData == null) {
+            binaryData = new WASMBinaryWriter(true).toBinary(data);
+        }
+        return binaryData;
+    }
 }
\ No newline at end of file
@@ -0,0 +1,239 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import de.mirkosertic.bytecoder.classlib.java.lang.TArray;
+import de.mirkosertic.bytecoder.core.BytecodeLinkedClass;
+import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
+import de.mirkosertic.bytecoder.ssa.TypeRef;
+
+/**
+ * The initial content of the heap, computed at compile time.
+ *
+ * The snapshot contains the runtime classes of all types and the object graphs referenced by static
+ * initializers evaluated at compile time. It uses the block format of the MemoryManager, so its objects
+ * are managed and collected like every other object once the program runs.
+ */
+public class WASMHeapSnapshot {
+
+    // Block format of the MemoryManager
+    private static final int BLOCK_HEADER_SIZE = 8;
+    private static final int MINIMUM_BLOCK_SIZE = 16;
+    private static final int BLOCK_USED = 1;
+
+    private static final int RUNTIME_CLASS_TYPE = -1;
+    private static final int RUNTIME_CLASS_INITSTATUS_OFFSET = 8;
+    private static final int RUNTIME_CLASS_ENUMVALUES_OFFSET = 12;
+    private static final int RUNTIME_CLASS_REFERENCE_MAP_OFFSET = 16;
+
+    private static final int OBJECT_TYPE_OFFSET = 0;
+    private static final int OBJECT_VTABLE_OFFSET = 4;
+
+    private final int startAddress;
+    private final WASMMemoryLayouter memoryLayouter;
+    private final WASMStringPool stringPool;
+    private final WASMSSAWriter.IDResolver idResolver;
+    private final int runtimeClassVTableAddress;
+    private final Map<BytecodeObjectTypeRef, Integer> runtimeClasses;
+    private final Map<Object, Integer> objects;
+    private final Deque<Object> objectsToWrite;
+    private byte[] data;
+    private int endAddress;
+
+    public WASMHeapSnapshot(int aStartAddress, WASMMemoryLayouter aMemoryLayouter, WASMStringPool aStringPool,
+            WASMSSAWriter.IDResolver aIDResolver, int aRuntimeClassVTableAddress) {
+        startAddress = aStartAddress;
+        memoryLayouter = aMemoryLayouter;
+        stringPool = aStringPool;
+        idResolver = aIDResolver;
+        runtimeClassVTableAddress = aRuntimeClassVTableAddress;
+        runtimeClasses = new HashMap<>();
+        objects = new IdentityHashMap<>();
+        objectsToWrite = new ArrayDeque<>();
+        data = new byte[1024];
+        endAddress = aStartAddress;
+    }
+
+    /**
+     * Registers all string constants used by the given values, as the string pool must be complete before
+     * the snapshot is placed behind it.
+     */
+    public static void registerStrings(Map<Integer, WASMStaticInitializerEvaluator.TypedValue> aValues, WASMStringPool aStringPool) {
+        Map<Object, Boolean> theVisited = new IdentityHashMap<>();
+        Deque<Object> theWorkList = new ArrayDeque<>();
+        aValues.values().forEach(t -> theWorkList.add(t.getValue() == null ? Boolean.FALSE : t.getValue()));
+        while (!theWorkList.isEmpty()) {
+            Object theValue = theWorkList.pop();
+            if (theVisited.put(theValue, Boolean.TRUE) != null) {
+                continue;
+            }
+            if (theValue instanceof String) {
+                aStringPool.addressOf((String) theValue);
+            } else if (theValue instanceof WASMStaticInitializerEvaluator.ObjectValue) {
+                for (WASMStaticInitializerEvaluator.TypedValue theField : ((WASMStaticInitializerEvaluator.ObjectValue) theValue).getFields().values()) {
+                    if (theField.getValue() != null) {
+                        theWorkList.add(theField.getValue());
+                    }
+                }
+            } else if (theValue instanceof WASMStaticInitializerEvaluator.ArrayValue) {
+                for (Object theElement : ((WASMStaticInitializerEvaluator.ArrayValue) theValue).getElements()) {
+                    if (theElement != null) {
+                        theWorkList.add(theElement);
+                    }
+                }
+            }
+        }
+    }
+
+    private int allocate(int aSize) {
+        int theBlockSize = (aSize + BLOCK_HEADER_SIZE + 7) & ~7;
+        if (theBlockSize < MINIMUM_BLOCK_SIZE) {
+            theBlockSize = MINIMUM_BLOCK_SIZE;
+        }
+        int theBlockStart = endAddress;
+        endAddress += theBlockSize;
+        if (endAddress - startAddress > data.length) {
+            data = Arrays.copyOf(data, Math.max(data.length * 2, endAddress - startAddress));
+        }
+        writeInt(theBlockStart, theBlockSize | BLOCK_USED);
+        return theBlockStart + BLOCK_HEADER_SIZE;
+    }
+
+    private void write(int aAddress, long aValue, int aSize) {
+        // Little endian
+        for (int i=0;i<aSize;i++) {
+            data[aAddress - startAddress + i] = (byte) (aValue >>> (i * 8));
+        }
+    }
+
+    private void writeInt(int aAddress, int aValue) {
+        write(aAddress, aValue, 4);
+    }
+
+    private void write(int aAddress, TypeRef aType, Object aValue, int aSize) {
+        switch (aType.resolve()) {
+            case FLOAT:
+                write(aAddress, Float.floatToRawIntBits(((Number) aValue).floatValue()), aSize);
+                break;
+            case DOUBLE:
+                write(aAddress, Double.doubleToRawLongBits(((Number) aValue).doubleValue()), aSize);
+                break;
+            case REFERENCE:
+                write(aAddress, addressOf(aValue), aSize);
+                break;
+            default:
+                write(aAddress, ((Number) aValue).longValue(), aSize);
+                break;
+        }
+    }
+
+    private int addressOf(Object aValue) {
+        if (aValue == null) {
+            return 0;
+        }
+        if (aValue instanceof String) {
+            return stringPool.addressOf((String) aValue);
+        }
+        Integer theAddress = objects.get(aValue);
+        if (theAddress == null) {
+            if (aValue instanceof WASMStaticInitializerEvaluator.ObjectValue) {
+                BytecodeObjectTypeRef theType = ((WASMStaticInitializerEvaluator.ObjectValue) aValue).getType().getClassName();
+                theAddress = allocate(memoryLayouter.layoutFor(theType).instanceSize());
+                writeInt(theAddress + OBJECT_TYPE_OFFSET, runtimeClassAddressOf(theType));
+                writeInt(theAddress + OBJECT_VTABLE_OFFSET, idResolver.resolveVTableAddressByType(theType));
+            } else {
+                WASMStaticInitializerEvaluator.ArrayValue theArray = (WASMStaticInitializerEvaluator.ArrayValue) aValue;
+                BytecodeObjectTypeRef theType = BytecodeObjectTypeRef.fromRuntimeClass(TArray.class);
+                int theElementSize = WASMMemoryLayouter.arrayElementSizeOf(TypeRef.toType(theArray.getElementType()));
+                theAddress = allocate(WASMMemoryLayouter.ARRAY_DATA_OFFSET + theElementSize * theArray.getElements().length);
+                writeInt(theAddress + OBJECT_TYPE_OFFSET, runtimeClassAddressOf(theType));
+                writeInt(theAddress + OBJECT_VTABLE_OFFSET, idResolver.resolveVTableAddressByType(theType));
+                writeInt(theAddress + WASMMemoryLayouter.ARRAY_ELEMENTS_OFFSET, WASMMemoryLayouter.arrayElementsWordOf(TypeRef.toType(theArray.getElementType())));
+                writeInt(theAddress + WASMMemoryLayouter.ARRAY_LENGTH_OFFSET, theArray.getElements().length);
+            }
+            objects.put(aValue, theAddress);
+            objectsToWrite.add(aValue);
+        }
+        return theAddress;
+    }
+
+    public int addRuntimeClass(BytecodeLinkedClass aClass, int aEnumValuesOffset, int aReferenceMapAddress, boolean aInitialized) {
+        int theAddress = allocate(memoryLayouter.layoutFor(aClass.getClassName()).classSize());
+        writeInt(theAddress + OBJECT_TYPE_OFFSET, RUNTIME_CLASS_TYPE);
+        writeInt(theAddress + OBJECT_VTABLE_OFFSET, runtimeClassVTableAddress);
+        writeInt(theAddress + RUNTIME_CLASS_INITSTATUS_OFFSET, aInitialized ? 1 : 0);
+        writeInt(theAddress + RUNTIME_CLASS_ENUMVALUES_OFFSET, theAddress + aEnumValuesOffset);
+        writeInt(theAddress + RUNTIME_CLASS_REFERENCE_MAP_OFFSET, aReferenceMapAddress);
+        runtimeClasses.put(aClass.getClassName(), theAddress);
+        return theAddress;
+    }
+
+    public int runtimeClassAddressOf(BytecodeObjectTypeRef aType) {
+        Integer theAddress = runtimeClasses.get(aType);
+        if (theAddress == null) {
+            throw new IllegalStateException("No runtime class for " + aType.name());
+        }
+        return theAddress;
+    }
+
+    /**
+     * Writes the static field values of a runtime class, and all objects reachable from them.
+     */
+    public void writeStatics(BytecodeLinkedClass aClass, Map<Integer, WASMStaticInitializerEvaluator.TypedValue> aStatics) {
+        int theRuntimeClass = runtimeClassAddressOf(aClass.getClassName());
+        for (Map.Entry<Integer, WASMStaticInitializerEvaluator.TypedValue> theEntry : aStatics.entrySet()) {
+            WASMStaticInitializerEvaluator.TypedValue theValue = theEntry.getValue();
+            write(theRuntimeClass + theEntry.getKey(), theValue.getType(), theValue.getValue(), WASMMemoryLayouter.sizeOf(theValue.getType()));
+        }
+        while (!objectsToWrite.isEmpty()) {
+            Object theObject = objectsToWrite.pop();
+            int theAddress = objects.get(theObject);
+            if (theObject instanceof WASMStaticInitializerEvaluator.ObjectValue) {
+                for (Map.Entry<Integer, WASMStaticInitializerEvaluator.TypedValue> theEntry : ((WASMStaticInitializerEvaluator.ObjectValue) theObject).getFields().entrySet()) {
+                    WASMStaticInitializerEvaluator.TypedValue theValue = theEntry.getValue();
+                    write(theAddress + theEntry.getKey(), theValue.getType(), theValue.getValue(), WASMMemoryLayouter.sizeOf(theValue.getType()));
+                }
+            } else {
+                WASMStaticInitializerEvaluator.ArrayValue theArray = (WASMStaticInitializerEvaluator.ArrayValue) theObject;
+                TypeRef theElementType = TypeRef.toType(theArray.getElementType());
+                int theElementSize = WASMMemoryLayouter.arrayElementSizeOf(theElementType);
+                Object[] theElements = theArray.getElements();
+                for (int i=0;i<theElements.length;i++) {
+                    write(theAddress + WASMMemoryLayouter.ARRAY_DATA_OFFSET + i * theElementSize, theElementType, theElements[i], theElementSize);
+                }
+            }
+        }
+    }
+
+    public int startAddress() {
+        return startAddress;
+    }
+
+    public int endAddress() {
+        return endAddress;
+    }
+
+    public byte[] toByteArray() {
+        return Arrays.copyOf(data, endAddress - startAddress);
+    }
+}
@@ -18,20 +18,45 @@ package de.mirkosertic.bytecoder.backend.wasm;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Objects;
 import java.util.stream.Collectors;
 
 import de.mirkosertic.bytecoder.core.BytecodeLinkedClass;
 import de.mirkosertic.bytecoder.core.BytecodeLinkerContext;
 import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodeResolvedFields;
+import de.mirkosertic.bytecoder.core.BytecodeVirtualMethodIdentifier;
+import de.mirkosertic.bytecoder.ssa.TypeRef;
 
 public class WASMMemoryLayouter {
 
-    public static final int CLASS_HEADER_SIZE = 16; // Object header plus initialization status + enum values offset
+    public static final int CLASS_HEADER_SIZE = 20; // Object header plus initialization status + enum values offset + reference map
     public static final int OBJECT_HEADER_SIZE = 8;
     public static final int OBJECT_FIELDSIZE = 4;
 
+    // The memory has a fixed number of pages, holding static data, heap and stack
+    public static final int PAGE_SIZE = 65536;
+    public static final int MEMORY_PAGES = 512;
+
+    // Static data area in front of the heap, as expected by the MemoryManager
+    public static final int HEAP_START_ADDRESS = 4;
+    public static final int HEAP_SNAPSHOT_END_ADDRESS = 12;
+    public static final int STATIC_DATA_START = 352;
+    public static final int ARRAY_REFERENCE_MAP = -1;
+
+    // Array layout, the data starts 8 byte aligned. The elements word holds the element size,
+    // plus a flag if the elements are references the garbage collector has to follow
+    public static final int ARRAY_ELEMENTS_OFFSET = 8;
+    public static final int ARRAY_ELEMENT_SIZE_MASK = 15;
+    public static final int ARRAY_ELEMENT_REFERENCES = 16;
+    public static final int ARRAY_LENGTH_OFFSET = 12;
+    public static final int ARRAY_DATA_OFFSET = 16;
+
+    // Virtual method table layout, the type id and the address of the implemented interfaces bitset
+    // followed by one slot per virtual method identifier
+    public static final int VTABLE_TYPEID_OFFSET = 0;
+    public static final int VTABLE_INTERFACES_OFFSET = 4;
+    public static final int VTABLE_METHODS_OFFSET = 8;
+
     public interface MemoryLayout {
 
         int offsetForInstanceMember(String aName);
@@ -41,63 +66,171 @@ public class WASMMemoryLayouter {
         int instanceSize();
 
         int classSize();
+
+        int[] instanceReferenceBitmap();
+
+        int[] classReferenceBitmap();
+    }
+
+    private static class ComputedMemoryLayout implements MemoryLayout {
+
+        private final BytecodeObjectTypeRef type;
+        private final Map<String, Integer> instanceOffsets;
+        private final Map<String, Integer> classOffsets;
+        private final int instanceSize;
+        private final int classSize;
+        private final int[] instanceReferenceBitmap;
+        private final int[] classReferenceBitmap;
+
+        ComputedMemoryLayout(BytecodeObjectTypeRef aType, BytecodeResolvedFields aFields) {
+            List<BytecodeResolvedFields.FieldEntry> theInstanceFields = aFields.streamForInstanceFields().collect(Collectors.toList());
+            List<BytecodeResolvedFields.FieldEntry> theClassFields = aFields.streamForStaticFields().collect(Collectors.toList());
+            type = aType;
+            instanceOffsets = offsets(OBJECT_HEADER_SIZE, theInstanceFields);
+            classOffsets = offsets(CLASS_HEADER_SIZE, theClassFields);
+            instanceSize = endOffset(OBJECT_HEADER_SIZE, theInstanceFields);
+            classSize = endOffset(CLASS_HEADER_SIZE, theClassFields);
+            instanceReferenceBitmap = referenceBitmap(OBJECT_HEADER_SIZE, theInstanceFields);
+            classReferenceBitmap = referenceBitmap(CLASS_HEADER_SIZE, theClassFields);
+        }
+
+        @Override
+        public int instanceSize() {
+            return instanceSize;
+        }
+
+        @Override
+        public int classSize() {
+            return classSize;
+        }
+
+        @Override
+        public int[] instanceReferenceBitmap() {
+            return instanceReferenceBitmap;
+        }
+
+        @Override
+        public int[] classReferenceBitmap() {
+            return classReferenceBitmap;
+        }
+
+        @Override
+        public int offsetForInstanceMember(String aName) {
+            Integer theOffset = instanceOffsets.get(aName);
+            if (theOffset == null) {
+                throw new IllegalArgumentException("Member field " + aName + " not found for type " + type.name());
+            }
+            return theOffset;
+        }
+
+        @Override
+        public int offsetForClassMember(String aName) {
+            Integer theOffset = classOffsets.get(aName);
+            if (theOffset == null) {
+                throw new IllegalArgumentException("Static field " + aName + " not found for type " + type.name());
+            }
+            return theOffset;
+        }
     }
 
-    private final Map<BytecodeObjectTypeRef, BytecodeResolvedFields> fields;
+    // Layouts are computed once, field offsets are looked up by name during code generation
+    private final Map<BytecodeObjectTypeRef, MemoryLayout> layouts;
 
     public WASMMemoryLayouter(BytecodeLinkerContext aLinkerContext) {
-        fields = new HashMap<>();
+        layouts = new HashMap<>();
         aLinkerContext.linkedClasses().forEach(aEntry -> registerClass(aEntry.targetNode()));
     }
 
     private void registerClass(BytecodeLinkedClass aClass) {
-        fields.put(aClass.getClassName(), aClass.resolvedFields());
+        layouts.put(aClass.getClassName(), new ComputedMemoryLayout(aClass.getClassName(), aClass.resolvedFields()));
     }
 
     public MemoryLayout layoutFor(BytecodeObjectTypeRef aType) {
-        if (!fields.containsKey(aType)) {
+        MemoryLayout theLayout = layouts.get(aType);
+        if (theLayout == null) {
             throw new IllegalArgumentException("No field information found for " + aType.name());
         }
-        return new MemoryLayout() {
-            @Override
-            public int instanceSize() {
-                BytecodeResolvedFields theInstanceFields = fields.get(aType);
-                return OBJECT_HEADER_SIZE + OBJECT_FIELDSIZE * (int) theInstanceFields.streamForInstanceFields().count();
-            }
+        return theLayout;
+    }
 
-            @Override
-            public int classSize() {
-                BytecodeResolvedFields theClassFields = fields.get(aType);
-                return CLASS_HEADER_SIZE + OBJECT_FIELDSIZE * (int) theClassFields.streamForStaticFields().count();
-            }
+    public static int sizeOf(TypeRef aType) {
+        switch (aType.resolve()) {
+            case LONG:
+            case DOUBLE:
+                return 8;
+            default:
+                return OBJECT_FIELDSIZE;
+        }
+    }
 
-            @Override
-            public int offsetForInstanceMember(String aName) {
-                BytecodeResolvedFields theInstanceFields = fields.get(aType);
-                List<BytecodeResolvedFields.FieldEntry> theFields = theInstanceFields.streamForInstanceFields().collect(Collectors.toList());
-                int theOffset = OBJECT_HEADER_SIZE;
-                for (BytecodeResolvedFields.FieldEntry theField : theFields) {
-                    if (Objects.equals(aName, theField.getValue().getName().stringValue())) {
-                        return theOffset;
-                    }
-                    theOffset+= OBJECT_FIELDSIZE;
-                }
-                throw new IllegalArgumentException("Member field " + aName + " not found for type " + aType.name());
-            }
+    public static int arrayElementSizeOf(TypeRef aType) {
+        // Array elements are packed, so a byte[] needs only one byte per element
+        switch (aType.resolve()) {
+            case BYTE:
+            case BOOLEAN:
+                return 1;
+            case SHORT:
+            case CHAR:
+                return 2;
+            default:
+                return sizeOf(aType);
+        }
+    }
+
+    public static int arrayElementsWordOf(TypeRef aType) {
+        if (aType.resolve() == TypeRef.Native.REFERENCE) {
+            return arrayElementSizeOf(aType) | ARRAY_ELEMENT_REFERENCES;
+        }
+        return arrayElementSizeOf(aType);
+    }
+
+    public static int vtableOffsetFor(BytecodeVirtualMethodIdentifier aIdentifier) {
+        return VTABLE_METHODS_OFFSET + aIdentifier.getIdentifier() * 4;
+    }
 
-            @Override
-            public int offsetForClassMember(String aName) {
-                BytecodeResolvedFields theInstanceFields = fields.get(aType);
-                List<BytecodeResolvedFields.FieldEntry> theFields = theInstanceFields.streamForStaticFields().collect(Collectors.toList());
-                int theOffset = CLASS_HEADER_SIZE;
-                for (BytecodeResolvedFields.FieldEntry theField : theFields) {
-                    if (Objects.equals(aName, theField.getValue().getName().stringValue())) {
-                        return theOffset;
-                    }
-                    theOffset+= OBJECT_FIELDSIZE;
-                }
-                throw new IllegalArgumentException("Static field " + aName + " not found for type " + aType.name());
+    private static int fieldSize(BytecodeResolvedFields.FieldEntry aField) {
+        return sizeOf(TypeRef.toType(aField.getValue().getTypeRef()));
+    }
+
+    private static int alignedOffset(int aOffset, BytecodeResolvedFields.FieldEntry aField) {
+        // Fields are aligned to their size, so 8 byte values never cross a word boundary
+        int theSize = fieldSize(aField);
+        return (aOffset + theSize - 1) & ~(theSize - 1);
+    }
+
+    private static Map<String, Integer> offsets(int aStartOffset, List<BytecodeResolvedFields.FieldEntry> aFields) {
+        // The first field with a given name wins
+        Map<String, Integer> theResult = new HashMap<>();
+        int theOffset = aStartOffset;
+        for (BytecodeResolvedFields.FieldEntry theField : aFields) {
+            theOffset = alignedOffset(theOffset, theField);
+            theResult.putIfAbsent(theField.getValue().getName().stringValue(), theOffset);
+            theOffset+= fieldSize(theField);
+        }
+        return theResult;
+    }
+
+    private static int endOffset(int aStartOffset, List<BytecodeResolvedFields.FieldEntry> aFields) {
+        int theOffset = aStartOffset;
+        for (BytecodeResolvedFields.FieldEntry theField : aFields) {
+            theOffset = alignedOffset(theOffset, theField) + fieldSize(theField);
+        }
+        return theOffset;
+    }
+
+    private static int[] referenceBitmap(int aStartOffset, List<BytecodeResolvedFields.FieldEntry> aFields) {
+        // Bit n of word m is set if the memory word 32 * m + n holds a reference
+        int theWords = (endOffset(aStartOffset, aFields) / OBJECT_FIELDSIZE + 31) / 32;
+        int[] theResult = new int[theWords];
+        int theOffset = aStartOffset;
+        for (BytecodeResolvedFields.FieldEntry theField : aFields) {
+            theOffset = alignedOffset(theOffset, theField);
+            if (TypeRef.toType(theField.getValue().getTypeRef()).resolve() == TypeRef.Native.REFERENCE) {
+                int theWord = theOffset / OBJECT_FIELDSIZE;
+                theResult[theWord / 32] |= 1 << (theWord % 32);
             }
-        };
+            theOffset+= fieldSize(theField);
+        }
+        return theResult;
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The instruction set of the WebAssembly MVP, indexed by text format name and by binary opcode.
+ */
+public final class WASMOpcodes {
+
+    public enum Immediate {
+        NONE, BLOCKTYPE, LABEL, LABELTABLE, FUNCTION, TYPE, LOCAL, GLOBAL, MEMORY, MEMORYINDEX, I32, I64, F32, F64
+    }
+
+    public static class Opcode {
+
+        private final String name;
+        private final int code;
+        private final Immediate immediate;
+        private final int naturalAlignment;
+
+        Opcode(String aName, int aCode, Immediate aImmediate, int aNaturalAlignment) {
+            name = aName;
+            code = aCode;
+            immediate = aImmediate;
+            naturalAlignment = aNaturalAlignment;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        public int getCode() {
+            return code;
+        }
+
+        public Immediate getImmediate() {
+            return immediate;
+        }
+
+        /**
+         * The log2 of the access size in bytes, only valid for memory instructions.
+         */
+        public int getNaturalAlignment() {
+            return naturalAlignment;
+        }
+    }
+
+    public static final int BLOCK = 0x02;
+    public static final int LOOP = 0x03;
+    public static final int IF = 0x04;
+    public static final int ELSE = 0x05;
+    public static final int END = 0x0B;
+
+    public static final int VOID = 0x40;
+    public static final int I32 = 0x7F;
+    public static final int I64 = 0x7E;
+    public static final int F32 = 0x7D;
+    public static final int F64 = 0x7C;
+    public static final int ANYFUNC = 0x70;
+    public static final int FUNC = 0x60;
+
+    private static final Map<String, Opcode> BY_NAME = new HashMap<>();
+    private static final Opcode[] BY_CODE = new Opcode[256];
+
+    static {
+        register(0x00, Immediate.NONE, "unreachable");
+        register(0x01, Immediate.NONE, "nop");
+        register(BLOCK, Immediate.BLOCKTYPE, "block");
+        register(LOOP, Immediate.BLOCKTYPE, "loop");
+        register(IF, Immediate.BLOCKTYPE, "if");
+        register(ELSE, Immediate.NONE, "else");
+        register(END, Immediate.NONE, "end");
+        register(0x0C, Immediate.LABEL, "br");
+        register(0x0D, Immediate.LABEL, "br_if");
+        register(0x0E, Immediate.LABELTABLE, "br_table");
+        register(0x0F, Immediate.NONE, "return");
+        register(0x10, Immediate.FUNCTION, "call");
+        register(0x11, Immediate.TYPE, "call_indirect");
+        register(0x1A, Immediate.NONE, "drop");
+        register(0x1B, Immediate.NONE, "select");
+        register(0x20, Immediate.LOCAL, "get_local", "local.get");
+        register(0x21, Immediate.LOCAL, "set_local", "local.set");
+        register(0x22, Immediate.LOCAL, "tee_local", "local.tee");
+        register(0x23, Immediate.GLOBAL, "get_global", "global.get");
+        register(0x24, Immediate.GLOBAL, "set_global", "global.set");
+
+        registerMemory(0x28, 2, "i32.load");
+        registerMemory(0x29, 3, "i64.load");
+        registerMemory(0x2A, 2, "f32.load");
+        registerMemory(0x2B, 3, "f64.load");
+        registerMemory(0x2C, 0, "i32.load8_s");
+        registerMemory(0x2D, 0, "i32.load8_u");
+        registerMemory(0x2E, 1, "i32.load16_s");
+        registerMemory(0x2F, 1, "i32.load16_u");
+        registerMemory(0x30, 0, "i64.load8_s");
+        registerMemory(0x31, 0, "i64.load8_u");
+        registerMemory(0x32, 1, "i64.load16_s");
+        registerMemory(0x33, 1, "i64.load16_u");
+        registerMemory(0x34, 2, "i64.load32_s");
+        registerMemory(0x35, 2, "i64.load32_u");
+        registerMemory(0x36, 2, "i32.store");
+        registerMemory(0x37, 3, "i64.store");
+        registerMemory(0x38, 2, "f32.store");
+        registerMemory(0x39, 3, "f64.store");
+        registerMemory(0x3A, 0, "i32.store8");
+        registerMemory(0x3B, 1, "i32.store16");
+        registerMemory(0x3C, 0, "i64.store8");
+        registerMemory(0x3D, 1, "i64.store16");
+        registerMemory(0x3E, 2, "i64.store32");
+        register(0x3F, Immediate.MEMORYINDEX, "current_memory", "memory.size");
+        register(0x40, Immediate.MEMORYINDEX, "grow_memory", "memory.grow");
+
+        register(0x41, Immediate.I32, "i32.const");
+        register(0x42, Immediate.I64, "i64.const");
+        register(0x43, Immediate.F32, "f32.const");
+        register(0x44, Immediate.F64, "f64.const");
+
+        registerSequence(0x45, "i32.", "eqz", "eq", "ne", "lt_s", "lt_u", "gt_s", "gt_u", "le_s", "le_u", "ge_s", "ge_u");
+        registerSequence(0x50, "i64.", "eqz", "eq", "ne", "lt_s", "lt_u", "gt_s", "gt_u", "le_s", "le_u", "ge_s", "ge_u");
+        registerSequence(0x5B, "f32.", "eq", "ne", "lt", "gt", "le", "ge");
+        registerSequence(0x61, "f64.", "eq", "ne", "lt", "gt", "le", "ge");
+        registerSequence(0x67, "i32.", "clz", "ctz", "popcnt", "add", "sub", "mul", "div_s", "div_u", "rem_s", "rem_u",
+                "and", "or", "xor", "shl", "shr_s", "shr_u", "rotl", "rotr");
+        registerSequence(0x79, "i64.", "clz", "ctz", "popcnt", "add", "sub", "mul", "div_s", "div_u", "rem_s", "rem_u",
+                "and", "or", "xor", "shl", "shr_s", "shr_u", "rotl", "rotr");
+        registerSequence(0x8B, "f32.", "abs", "neg", "ceil", "floor", "trunc", "nearest", "sqrt", "add", "sub", "mul",
+                "div", "min", "max", "copysign");
+        registerSequence(0x99, "f64.", "abs", "neg", "ceil", "floor", "trunc", "nearest", "sqrt", "add", "sub", "mul",
+                "div", "min", "max", "copysign");
+
+        register(0xA7, Immediate.NONE, "i32.wrap/i64", "i32.wrap_i64");
+        register(0xA8, Immediate.NONE, "i32.trunc_s/f32", "i32.trunc_f32_s");
+        register(0xA9, Immediate.NONE, "i32.trunc_u/f32", "i32.trunc_f32_u");
+        register(0xAA, Immediate.NONE, "i32.trunc_s/f64", "i32.trunc_f64_s");
+        register(0xAB, Immediate.NONE, "i32.trunc_u/f64", "i32.trunc_f64_u");
+        register(0xAC, Immediate.NONE, "i64.extend_s/i32", "i64.extend_i32_s");
+        register(0xAD, Immediate.NONE, "i64.extend_u/i32", "i64.extend_i32_u");
+        register(0xAE, Immediate.NONE, "i64.trunc_s/f32", "i64.trunc_f32_s");
+        register(0xAF, Immediate.NONE, "i64.trunc_u/f32", "i64.trunc_f32_u");
+        register(0xB0, Immediate.NONE, "i64.trunc_s/f64", "i64.trunc_f64_s");
+        register(0xB1, Immediate.NONE, "i64.trunc_u/f64", "i64.trunc_f64_u");
+        register(0xB2, Immediate.NONE, "f32.convert_s/i32", "f32.convert_i32_s");
+        register(0xB3, Immediate.NONE, "f32.convert_u/i32", "f32.convert_i32_u");
+        register(0xB4, Immediate.NONE, "f32.convert_s/i64", "f32.convert_i64_s");
+        register(0xB5, Immediate.NONE, "f32.convert_u/i64", "f32.convert_i64_u");
+        register(0xB6, Immediate.NONE, "f32.demote/f64", "f32.demote_f64");
+        register(0xB7, Immediate.NONE, "f64.convert_s/i32", "f64.convert_i32_s");
+        register(0xB8, Immediate.NONE, "f64.convert_u/i32", "f64.convert_i32_u");
+        register(0xB9, Immediate.NONE, "f64.convert_s/i64", "f64.convert_i64_s");
+        register(0xBA, Immediate.NONE, "f64.convert_u/i64", "f64.convert_i64_u");
+        register(0xBB, Immediate.NONE, "f64.promote/f32", "f64.promote_f32");
+        register(0xBC, Immediate.NONE, "i32.reinterpret/f32", "i32.reinterpret_f32");
+        register(0xBD, Immediate.NONE, "i64.reinterpret/f64", "i64.reinterpret_f64");
+        register(0xBE, Immediate.NONE, "f32.reinterpret/i32", "f32.reinterpret_i32");
+        register(0xBF, Immediate.NONE, "f64.reinterpret/i64", "f64.reinterpret_i64");
+    }
+
+    private WASMOpcodes() {
+    }
+
+    private static void register(int aCode, Immediate aImmediate, int aNaturalAlignment, String... aNames) {
+        Opcode theOpcode = new Opcode(aNames[0], aCode, aImmediate, aNaturalAlignment);
+        for (String theName : aNames) {
+            BY_NAME.put(theName, theOpcode);
+        }
+        BY_CODE[aCode] = theOpcode;
+    }
+
+    private static void register(int aCode, Immediate aImmediate, String... aNames) {
+        register(aCode, aImmediate, 0, aNames);
+    }
+
+    private static void registerMemory(int aCode, int aNaturalAlignment, String aName) {
+        register(aCode, Immediate.MEMORY, aNaturalAlignment, aName);
+    }
+
+    private static void registerSequence(int aFirstCode, String aPrefix, String... aNames) {
+        for (int i=0;i<aNames.length;i++) {
+            register(aFirstCode + i, Immediate.NONE, aPrefix + aNames[i]);
+        }
+    }
+
+    public static Opcode byName(String aName) {
+        return BY_NAME.get(aName);
+    }
+
+    public static Opcode byCode(int aCode) {
+        return BY_CODE[aCode];
+    }
+
+    public static int valueType(String aName) {
+        switch (aName) {
+            case "i32":
+                return I32;
+            case "i64":
+                return I64;
+            case "f32":
+                return F32;
+            case "f64":
+                return F64;
+            default:
+                throw new IllegalArgumentException("Unknown value type " + aName);
+        }
+    }
+}
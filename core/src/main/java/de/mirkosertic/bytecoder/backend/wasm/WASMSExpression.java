@@ -0,0 +1,258 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A node of the WebAssembly text format. A node is either an atom or a list of nodes.
+ */
+public class WASMSExpression {
+
+    private final String atom;
+    private final boolean string;
+    private final List<WASMSExpression> children;
+    private final int line;
+
+    private WASMSExpression(String aAtom, boolean aString, List<WASMSExpression> aChildren, int aLine) {
+        atom = aAtom;
+        string = aString;
+        children = aChildren;
+        line = aLine;
+    }
+
+    public boolean isList() {
+        return children != null;
+    }
+
+    public boolean isString() {
+        return string;
+    }
+
+    public boolean isAtom() {
+        return children == null && !string;
+    }
+
+    public boolean isAtom(String aValue) {
+        return isAtom() && atom.equals(aValue);
+    }
+
+    public boolean isName() {
+        return isAtom() && atom.startsWith("$");
+    }
+
+    public boolean isList(String aHead) {
+        return isList() && !children.isEmpty() && children.get(0).isAtom(aHead);
+    }
+
+    public String atom() {
+        return atom;
+    }
+
+    public String head() {
+        if (!isList() || children.isEmpty() || !children.get(0).isAtom()) {
+            throw error("Expected a list starting with a keyword");
+        }
+        return children.get(0).atom;
+    }
+
+    public List<WASMSExpression> children() {
+        return children;
+    }
+
+    public int size() {
+        return children.size();
+    }
+
+    public WASMSExpression get(int aIndex) {
+        if (aIndex >= children.size()) {
+            throw error("Missing argument " + aIndex);
+        }
+        return children.get(aIndex);
+    }
+
+    public byte[] stringBytes() {
+        if (!string) {
+            throw error("Expected a string");
+        }
+        ByteArrayOutputStream theResult = new ByteArrayOutputStream(atom.length());
+        for (int i=0;i<atom.length();i++) {
+            char theChar = atom.charAt(i);
+            if (theChar != '\\') {
+                byte[] theEncoded = String.valueOf(theChar).getBytes(StandardCharsets.UTF_8);
+                theResult.write(theEncoded, 0, theEncoded.length);
+                continue;
+            }
+            char theEscape = atom.charAt(++i);
+            switch (theEscape) {
+                case 'n':
+                    theResult.write('\n');
+                    break;
+                case 't':
+                    theResult.write('\t');
+                    break;
+                case 'r':
+                    theResult.write('\r');
+                    break;
+                case '\\':
+                case '\'':
+                case '"':
+                    theResult.write(theEscape);
+                    break;
+                default:
+                    theResult.write(Integer.parseInt(atom.substring(i, i + 2), 16));
+                    i++;
+            }
+        }
+        return theResult.toByteArray();
+    }
+
+    public String stringValue() {
+        return new String(stringBytes(), StandardCharsets.UTF_8);
+    }
+
+    public IllegalStateException error(String aMessage) {
+        return new IllegalStateException(aMessage + " in line " + line + " : " + this);
+    }
+
+    @Override
+    public String toString() {
+        if (string) {
+            return "\"" + atom + "\"";
+        }
+        if (!isList()) {
+            return atom;
+        }
+        StringBuilder theResult = new StringBuilder("(");
+        for (int i=0;i<children.size() && i < 4;i++) {
+            if (i > 0) {
+                theResult.append(' ');
+            }
+            WASMSExpression theChild = children.get(i);
+            theResult.append(theChild.isList() ? "(...)" : theChild.toString());
+        }
+        if (children.size() > 4) {
+            theResult.append(" ...");
+        }
+        return theResult.append(')').toString();
+    }
+
+    public static WASMSExpression parse(String aText) {
+        Parser theParser = new Parser(aText);
+        WASMSExpression theResult = theParser.next();
+        if (theResult == null || !theResult.isList()) {
+            throw new IllegalStateException("Expected a module");
+        }
+        if (theParser.next() != null) {
+            throw new IllegalStateException("Unexpected data after the module in line " + theParser.line);
+        }
+        return theResult;
+    }
+
+    private static class Parser {
+
+        private final String text;
+        private int position;
+        private int line;
+
+        Parser(String aText) {
+            text = aText;
+            line = 1;
+        }
+
+        private void skipWhitespaceAndComments() {
+            while (position < text.length()) {
+                char theChar = text.charAt(position);
+                if (theChar == '\n') {
+                    line++;
+                    position++;
+                } else if (Character.isWhitespace(theChar)) {
+                    position++;
+                } else if (text.startsWith(";;", position)) {
+                    while (position < text.length() && text.charAt(position) != '\n') {
+                        position++;
+                    }
+                } else if (text.startsWith("(;", position)) {
+                    int theEnd = text.indexOf(";)", position + 2);
+                    if (theEnd < 0) {
+                        throw new IllegalStateException("Unterminated block comment in line " + line);
+                    }
+                    for (int i=position;i<theEnd;i++) {
+                        if (text.charAt(i) == '\n') {
+                            line++;
+                        }
+                    }
+                    position = theEnd + 2;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        WASMSExpression next() {
+            skipWhitespaceAndComments();
+            if (position >= text.length()) {
+                return null;
+            }
+            int theLine = line;
+            char theChar = text.charAt(position);
+            if (theChar == ')') {
+                throw new IllegalStateException("Unexpected ) in line " + line);
+            }
+            if (theChar == '(') {
+                position++;
+                List<WASMSExpression> theChildren = new ArrayList<>();
+                while (true) {
+                    skipWhitespaceAndComments();
+                    if (position >= text.length()) {
+                        throw new IllegalStateException("Unterminated list starting in line " + theLine);
+                    }
+                    if (text.charAt(position) == ')') {
+                        position++;
+                        return new WASMSExpression(null, false, theChildren, theLine);
+                    }
+                    theChildren.add(next());
+                }
+            }
+            if (theChar == '"') {
+                int theStart = ++position;
+                while (position < text.length() && text.charAt(position) != '"') {
+                    if (text.charAt(position) == '\\') {
+                        position++;
+                    }
+                    position++;
+                }
+                if (position >= text.length()) {
+                    throw new IllegalStateException("Unterminated string in line " + theLine);
+                }
+                return new WASMSExpression(text.substring(theStart, position++), true, null, theLine);
+            }
+            int theStart = position;
+            while (position < text.length()) {
+                char theCurrent = text.charAt(position);
+                if (Character.isWhitespace(theCurrent) || theCurrent == '(' || theCurrent == ')' || theCurrent == '"'
+                        || text.startsWith(";;", position)) {
+                    break;
+                }
+                position++;
+            }
+            return new WASMSExpression(text.substring(theStart, position), false, null, theLine);
+        }
+    }
+}
@@ -22,8 +22,11 @@ import de.mirkosertic.bytecoder.backend.CompileOptions;
 import de.mirkosertic.bytecoder.backend.js.JSWriterUtils;
 import de.mirkosertic.bytecoder.classlib.Address;
 import de.mirkosertic.bytecoder.classlib.MemoryManager;
+import de.mirkosertic.bytecoder.classlib.java.lang.TArray;
 import de.mirkosertic.bytecoder.classlib.java.lang.TClass;
+import de.mirkosertic.bytecoder.classlib.java.lang.TObject;
 import de.mirkosertic.bytecoder.classlib.java.lang.TString;
+import de.mirkosertic.bytecoder.classlib.java.lang.TSystem;
 import de.mirkosertic.bytecoder.core.BytecodeAnnotation;
 import de.mirkosertic.bytecoder.core.BytecodeClass;
 import de.mirkosertic.bytecoder.core.BytecodeResolvedFields;
@@ -35,7 +38,9 @@ import de.mirkosertic.bytecoder.core.BytecodeResolvedMethods;
 import de.mirkosertic.bytecoder.core.BytecodeMethodSignature;
 import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodePrimitiveTypeRef;
+import de.mirkosertic.bytecoder.core.BytecodeTypeEncoding;
 import de.mirkosertic.bytecoder.core.BytecodeTypeRef;
+import de.mirkosertic.bytecoder.core.BytecodeUtf8Constant;
 import de.mirkosertic.bytecoder.core.BytecodeVirtualMethodIdentifier;
 import de.mirkosertic.bytecoder.relooper.Relooper;
 import de.mirkosertic.bytecoder.ssa.Program;
@@ -48,12 +53,17 @@ import de.mirkosertic.bytecoder.ssa.Variable;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
 
 public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult> {
 
@@ -67,6 +77,18 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
         }
     }
 
+    private static class CompiledMethod {
+        private final Program program;
+        private final WASMStackFrame stackFrame;
+        private final Relooper.Block reloopedBlock;
+
+        private CompiledMethod(Program aProgram, WASMStackFrame aStackFrame, Relooper.Block aReloopedBlock) {
+            program = aProgram;
+            stackFrame = aStackFrame;
+            reloopedBlock = aReloopedBlock;
+        }
+    }
+
     private final ProgramGeneratorFactory programGeneratorFactory;
 
     public WASMSSACompilerBackend(ProgramGeneratorFactory aProgramGeneratorFactory) {
@@ -88,20 +110,23 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
         theManagerClass.resolveStaticMethod("newObject", new BytecodeMethodSignature(BytecodeObjectTypeRef.fromRuntimeClass(
                 Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT}));
         theManagerClass.resolveStaticMethod("newArray", new BytecodeMethodSignature(BytecodeObjectTypeRef.fromRuntimeClass(
-                Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT}));
+                Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.BOOLEAN}));
         theManagerClass.resolveStaticMethod("newArray", new BytecodeMethodSignature(BytecodeObjectTypeRef.fromRuntimeClass(
-                Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT}));
+                Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.BOOLEAN}));
 
         BytecodeLinkedClass theStringClass = aLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(TString.class));
-        theStringClass.resolveConstructorInvocation(new BytecodeMethodSignature(BytecodePrimitiveTypeRef.VOID, new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT}));
-        theStringClass.resolveVirtualMethod("setCharAt", new BytecodeMethodSignature(BytecodePrimitiveTypeRef.VOID, new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.BYTE}));
+        // String constants are laid out at compile time, including their backing array and hash code
+        theStringClass.resolveInstanceField(new BytecodeUtf8Constant("computedHash"));
+        theStringClass.resolveInstanceField(new BytecodeUtf8Constant("data"));
+        aLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(TArray.class));
 
         StringWriter theStringWriter = new StringWriter();
         PrintWriter theWriter = new PrintWriter(theStringWriter);
 
         theWriter.println("(module");
 
-        theWriter.println("   (func $float_remainder (import \"math\" \"float_rem\") (param $p1 f32) (param $p2 f32) (result f32))\n");
+        theWriter.println("   (func $float_remainder (import \"math\" \"float_rem\") (param $p1 f32) (param $p2 f32) (result f32))");
+        theWriter.println("   (func $double_remainder (import \"math\" \"float_rem\") (param $p1 f64) (param $p2 f64) (result f64))\n");
 
         // Print imported functions first
         aLinkerContext.linkedClasses().forEach(aEntry -> {
@@ -167,44 +192,77 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
         });
 
 
+        // Every virtual method gets a fixed slot in the virtual method tables, given by its method identifier.
+        // Abstract interface methods might also be implemented by lambdas, they are dispatched by a trampoline
+        // function per method signature
+        Map<String, BytecodeMethodSignature> theLambdaSignatures = new TreeMap<>();
+        Map<BytecodeVirtualMethodIdentifier, String> theLambdaMethods = new HashMap<>();
+        aLinkerContext.linkedClasses().forEach(aEntry -> {
+
+            if (Objects.equals(aEntry.edgeType().objectTypeRef(), BytecodeObjectTypeRef.fromRuntimeClass(Address.class))) {
+                return;
+            }
+
+            boolean theInterface = aEntry.targetNode().getBytecodeClass().getAccessFlags().isInterface();
+            aEntry.targetNode().resolvedMethods().stream().forEach(aMethodMapEntry -> {
+                BytecodeMethod theMethod = aMethodMapEntry.getValue();
+                if (!isVirtual(theMethod)) {
+                    return;
+                }
+                BytecodeVirtualMethodIdentifier theMethodIdentifier = aLinkerContext.getMethodCollection().identifierFor(theMethod);
+                if (theInterface && theMethod.getAccessFlags().isAbstract()) {
+                    String theSignature = WASMWriterUtils.toMethodSignature(theMethod.getSignature(), false);
+                    theLambdaSignatures.put(theSignature, theMethod.getSignature());
+                    theLambdaMethods.put(theMethodIdentifier, theSignature);
+                }
+            });
+        });
+        int theVTableSize = WASMMemoryLayouter.VTABLE_METHODS_OFFSET / 4 + aLinkerContext.getMethodCollection().size();
+
         Map<String, String> theGlobalTypes = new HashMap<>();
-        theGlobalTypes.put("RESOLVEMETHOD", "(func (param i32) (param i32) (result i32))");
-        theGlobalTypes.put("INSTANCEOF", "(func (param i32) (param i32) (result i32))");
 
         theWriter.println();
 
+        // Index 0 is used for all unresolved virtual table slots
         List<String> theGeneratedFunctions = new ArrayList<>();
-        theGeneratedFunctions.add("LAMBDA__resolvevtableindex");
-        theGeneratedFunctions.add("RUNTIMECLASS__resolvevtableindex");
+        theGeneratedFunctions.add("VTABLE__unresolved");
         theGeneratedFunctions.add("TClass_A1TObjectgetEnumConstants");
         theGeneratedFunctions.add("TClass_desiredAssertionStatus");
+        for (String theSignature : theLambdaSignatures.keySet()) {
+            theGeneratedFunctions.add("LAMBDA__" + theSignature);
+        }
 
         List<BytecodeLinkedClass> theLinkedClasses = new ArrayList<>();
-        List<String> theStringCache = new ArrayList<>();
+        // Initialize memory layout for classes and instances
+        WASMMemoryLayouter theMemoryLayout = new WASMMemoryLayouter(aLinkerContext);
+        WASMStringPool theStringPool = new WASMStringPool(theMemoryLayout.layoutFor(theStringClass.getClassName()));
         Map<String, CallSite> theCallsites = new HashMap<>();
+        Map<BytecodeObjectTypeRef, Integer> theVTables = new HashMap<>();
+        Map<BytecodeObjectTypeRef, Integer> theLambdaVTables = new HashMap<>();
 
         WASMSSAWriter.IDResolver theResolver = new WASMSSAWriter.IDResolver() {
 
             @Override
-            public int resolveVTableMethodByType(BytecodeObjectTypeRef aObjectType) {
-                String theClassName = WASMWriterUtils.toClassName(aObjectType);
-
-                String theMethodName = theClassName + "__resolvevtableindex";
-                int theIndex = theGeneratedFunctions.indexOf(theMethodName);
-                if (theIndex < 0) {
-                    throw new IllegalStateException("Cannot resolve vtable method for " + theClassName);
+            public int resolveVTableAddressByType(BytecodeObjectTypeRef aObjectType) {
+                Integer theAddress = theVTables.get(aObjectType);
+                if (theAddress == null) {
+                    throw new IllegalStateException("Cannot resolve vtable for " + WASMWriterUtils.toClassName(aObjectType));
                 }
-                return theIndex;
+                return theAddress;
             }
 
             @Override
-            public String resolveStringPoolFunctionName(String aValue) {
-                int theIndex = theStringCache.indexOf(aValue);
-                if (theIndex >=0 ) {
-                    return "stringPool" + theIndex;
+            public int resolveLambdaVTableAddressByType(BytecodeObjectTypeRef aInterfaceType) {
+                Integer theAddress = theLambdaVTables.get(aInterfaceType);
+                if (theAddress == null) {
+                    throw new IllegalStateException("Cannot resolve lambda vtable for " + WASMWriterUtils.toClassName(aInterfaceType));
                 }
-                theStringCache.add(aValue);
-                return "stringPool" + (theStringCache.size() - 1);
+                return theAddress;
+            }
+
+            @Override
+            public int resolveStringConstantAddress(String aValue) {
+                return theStringPool.addressOf(aValue);
             }
 
             @Override
@@ -245,11 +303,6 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
 
             String theClassName = WASMWriterUtils.toClassName(aEntry.edgeType().objectTypeRef());
 
-            if (aEntry.targetNode().getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) == null) {
-                theGeneratedFunctions.add(theClassName + "__resolvevtableindex");
-                theGeneratedFunctions.add(theClassName + "__instanceof");
-            }
-
             BytecodeResolvedMethods theMethodMap = aEntry.targetNode().resolvedMethods();
             theMethodMap.stream().forEach(aMapEntry -> {
                 BytecodeMethod t = aMapEntry.getValue();
@@ -279,7 +332,15 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
             });
         });
 
-        theWriter.println("   (memory (export \"memory\") 512 512)");
+        for (BytecodeMethodSignature theSignature : theLambdaSignatures.values()) {
+            theResolver.registerGlobalType(theSignature, false);
+        }
+
+        theWriter.print("   (memory (export \"memory\") ");
+        theWriter.print(WASMMemoryLayouter.MEMORY_PAGES);
+        theWriter.print(" ");
+        theWriter.print(WASMMemoryLayouter.MEMORY_PAGES);
+        theWriter.println(")");
 
         // Write virtual method table
         if (!theGeneratedFunctions.isEmpty()) {
@@ -299,10 +360,12 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
             theWriter.println();
         }
 
-        // Initialize memory layout for classes and instances
-        WASMMemoryLayouter theMemoryLayout = new WASMMemoryLayouter(aLinkerContext);
+        // Type ids and interface bits for constant time instanceof checks
+        BytecodeTypeEncoding theTypeEncoding = new BytecodeTypeEncoding(aLinkerContext);
 
-        // Now everything else
+        // Reference maps for the garbage collector are placed in the static data area
+        Map<BytecodeObjectTypeRef, Integer> theReferenceMaps = new HashMap<>();
+        List<Integer> theStaticData = new ArrayList<>();
         aLinkerContext.linkedClasses().forEach(aEntry -> {
 
             if (Objects.equals(aEntry.edgeType().objectTypeRef(), BytecodeObjectTypeRef.fromRuntimeClass(Address.class))) {
@@ -312,35 +375,270 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
                 return;
             }
 
-            Set<BytecodeObjectTypeRef> theStaticReferences = new HashSet<>();
+            theReferenceMaps.put(aEntry.edgeType().objectTypeRef(), WASMMemoryLayouter.STATIC_DATA_START + theStaticData.size() * 4);
 
-            BytecodeResolvedMethods theMethodMap = aEntry.targetNode().resolvedMethods();
-            theMethodMap.stream().forEach(aMethodMapEntry -> {
+            WASMMemoryLayouter.MemoryLayout theLayout = theMemoryLayout.layoutFor(aEntry.edgeType().objectTypeRef());
+            if (Objects.equals(aEntry.edgeType().objectTypeRef(), BytecodeObjectTypeRef.fromRuntimeClass(TArray.class))) {
+                // Array elements are described by the array instance itself
+                theStaticData.add(WASMMemoryLayouter.ARRAY_REFERENCE_MAP);
+            } else {
+                int[] theInstanceBitmap = theLayout.instanceReferenceBitmap();
+                theStaticData.add(theInstanceBitmap.length);
+                for (int theWord : theInstanceBitmap) {
+                    theStaticData.add(theWord);
+                }
+            }
+            int[] theClassBitmap = theLayout.classReferenceBitmap();
+            theStaticData.add(theClassBitmap.length);
+            for (int theWord : theClassBitmap) {
+                theStaticData.add(theWord);
+            }
+        });
 
-                BytecodeMethod t = aMethodMapEntry.getValue();
+        // The bitsets of implemented interfaces follow the reference maps, equal bitsets are shared
+        Map<List<Integer>, Integer> theInterfaceBitsets = new HashMap<>();
+        Map<BytecodeObjectTypeRef, Integer> theInterfaceBitsetAddresses = new HashMap<>();
+        aLinkerContext.linkedClasses().forEach(aEntry -> {
 
-                // Do not generate code for abstract methods
-                if (t.getAccessFlags().isAbstract()) {
+            if (Objects.equals(aEntry.edgeType().objectTypeRef(), BytecodeObjectTypeRef.fromRuntimeClass(Address.class))) {
+                return;
+            }
+
+            List<Integer> theBitset = new ArrayList<>();
+            for (int theWord : theTypeEncoding.interfaceBitsetOf(aEntry.targetNode())) {
+                theBitset.add(theWord);
+            }
+            Integer theAddress = theInterfaceBitsets.get(theBitset);
+            if (theAddress == null) {
+                theAddress = WASMMemoryLayouter.STATIC_DATA_START + theStaticData.size() * 4;
+                theInterfaceBitsets.put(theBitset, theAddress);
+                theStaticData.addAll(theBitset);
+            }
+            theInterfaceBitsetAddresses.put(aEntry.edgeType().objectTypeRef(), theAddress);
+        });
+
+        // Virtual method tables follow the interface bitsets. Every slot holds the function table index
+        // of the implementation, unresolved slots stay 0 and trap on invocation. Each table ends with the
+        // highest slot used by its type, so the static data grows with the implemented methods only
+        int theVTableStart = WASMMemoryLayouter.STATIC_DATA_START + theStaticData.size() * 4;
+        List<int[]> theVTableData = new ArrayList<>();
+        aLinkerContext.linkedClasses().forEach(aEntry -> {
+
+            if (Objects.equals(aEntry.edgeType().objectTypeRef(), BytecodeObjectTypeRef.fromRuntimeClass(Address.class))) {
+                return;
+            }
+            if (aEntry.targetNode().getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) != null) {
+                return;
+            }
+
+            int[] theVTable = new int[theVTableSize];
+            theVTable[WASMMemoryLayouter.VTABLE_TYPEID_OFFSET / 4] = theTypeEncoding.typeIdOf(aEntry.targetNode());
+            theVTable[WASMMemoryLayouter.VTABLE_INTERFACES_OFFSET / 4] = theInterfaceBitsetAddresses.get(aEntry.edgeType().objectTypeRef());
+
+            // Methods of super classes come first, so overriding methods replace them
+            aEntry.targetNode().resolvedMethods().stream().forEach(aMethodMapEntry -> {
+
+                BytecodeMethod theMethod = aMethodMapEntry.getValue();
+                if (!isVirtual(theMethod) || theMethod.getAccessFlags().isAbstract()) {
                     return;
                 }
 
-                if (t.getAccessFlags().isNative()) {
-                    // Already written
+                int theSlot = WASMMemoryLayouter.vtableOffsetFor(aLinkerContext.getMethodCollection().identifierFor(theMethod)) / 4;
+                if (theVTable[theSlot] != 0 && aMethodMapEntry.getProvidingClass().getBytecodeClass().getAccessFlags().isInterface()) {
+                    // Default methods do not replace implementations of the class hierarchy
                     return;
                 }
 
-                if (!(aMethodMapEntry.getProvidingClass() == aEntry.targetNode())) {
-                    // Skip methods not implemented here
+                String theFullMethodName = WASMWriterUtils.toMethodName(aMethodMapEntry.getProvidingClass().getClassName(),
+                        theMethod.getName(),
+                        theMethod.getSignature());
+
+                int theIndex = theGeneratedFunctions.indexOf(theFullMethodName);
+                if (theIndex < 0) {
+                    throw new IllegalStateException("Unknown index : " + theFullMethodName);
+                }
+                theVTable[theSlot] = theIndex;
+            });
+
+            theVTables.put(aEntry.edgeType().objectTypeRef(), addVTable(theVTableData, theVTableStart, theVTable));
+        });
+
+        // Runtime classes only dispatch the methods emulated by the runtime
+        int[] theRuntimeClassVTable = new int[theVTableSize];
+        BytecodeLinkedClass theClassLinkedCass = aLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(TClass.class));
+        theRuntimeClassVTable[WASMMemoryLayouter.VTABLE_TYPEID_OFFSET / 4] = theTypeEncoding.typeIdOf(theClassLinkedCass);
+        theRuntimeClassVTable[WASMMemoryLayouter.VTABLE_INTERFACES_OFFSET / 4] = theInterfaceBitsetAddresses.get(theClassLinkedCass.getClassName());
+        theClassLinkedCass.resolvedMethods().stream().forEach(aMethodMapEntry -> {
+            BytecodeMethod theMethod = aMethodMapEntry.getValue();
+            if (!isVirtual(theMethod)) {
+                return;
+            }
+
+            int theSlot = WASMMemoryLayouter.vtableOffsetFor(aLinkerContext.getMethodCollection().identifierFor(theMethod)) / 4;
+            if (Objects.equals("desiredAssertionStatus", theMethod.getName().stringValue())) {
+                theRuntimeClassVTable[theSlot] = theGeneratedFunctions.indexOf("TClass_desiredAssertionStatus");
+            } else if (Objects.equals("getEnumConstants", theMethod.getName().stringValue())) {
+                theRuntimeClassVTable[theSlot] = theGeneratedFunctions.indexOf("TClass_A1TObjectgetEnumConstants");
+            }
+        });
+        int theRuntimeClassVTableAddress = addVTable(theVTableData, theVTableStart, theRuntimeClassVTable);
+
+        // Lambdas of unknown type share one virtual method table dispatching to their implementation method
+        int[] theLambdaVTable = new int[theVTableSize];
+        BytecodeLinkedClass theObjectLinkedClass = aLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(TObject.class));
+        theLambdaVTable[WASMMemoryLayouter.VTABLE_TYPEID_OFFSET / 4] = theTypeEncoding.typeIdOf(theObjectLinkedClass);
+        theLambdaVTable[WASMMemoryLayouter.VTABLE_INTERFACES_OFFSET / 4] = theInterfaceBitsetAddresses.get(theObjectLinkedClass.getClassName());
+        for (Map.Entry<BytecodeVirtualMethodIdentifier, String> theEntry : theLambdaMethods.entrySet()) {
+            theLambdaVTable[WASMMemoryLayouter.vtableOffsetFor(theEntry.getKey()) / 4] = theGeneratedFunctions.indexOf("LAMBDA__" + theEntry.getValue());
+        }
+        int theLambdaVTableAddress = addVTable(theVTableData, theVTableStart, theLambdaVTable);
+
+        // Every interface gets a lambda virtual method table carrying its interface bitset, so instanceof works
+        // for lambdas. Abstract methods dispatch to the implementation method, default methods are inherited
+        aLinkerContext.linkedClasses().forEach(aEntry -> {
+
+            if (!aEntry.targetNode().getBytecodeClass().getAccessFlags().isInterface()) {
+                return;
+            }
+            if (aEntry.targetNode().getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) != null) {
+                return;
+            }
+
+            int[] theVTable = new int[theVTableSize];
+            theVTable[WASMMemoryLayouter.VTABLE_TYPEID_OFFSET / 4] = theTypeEncoding.typeIdOf(theObjectLinkedClass);
+            theVTable[WASMMemoryLayouter.VTABLE_INTERFACES_OFFSET / 4] = theInterfaceBitsetAddresses.get(aEntry.edgeType().objectTypeRef());
+
+            // Lambdas are objects, so they inherit the implementations of Object first
+            Stream.concat(theObjectLinkedClass.resolvedMethods().stream(), aEntry.targetNode().resolvedMethods().stream()).forEach(aMethodMapEntry -> {
+
+                BytecodeMethod theMethod = aMethodMapEntry.getValue();
+                if (!isVirtual(theMethod)) {
                     return;
                 }
 
-                BytecodeMethodSignature theSignature = t.getSignature();
+                BytecodeVirtualMethodIdentifier theIdentifier = aLinkerContext.getMethodCollection().identifierFor(theMethod);
+                int theSlot = WASMMemoryLayouter.vtableOffsetFor(theIdentifier) / 4;
+                if (theMethod.getAccessFlags().isAbstract()) {
+                    String theLambdaSignature = theLambdaMethods.get(theIdentifier);
+                    if (theLambdaSignature != null) {
+                        theVTable[theSlot] = theGeneratedFunctions.indexOf("LAMBDA__" + theLambdaSignature);
+                    }
+                    return;
+                }
 
-                ProgramGenerator theGenerator = programGeneratorFactory.createFor(aLinkerContext);
-                Program theSSAProgram = theGenerator.generateFrom(aMethodMapEntry.getProvidingClass().getBytecodeClass(), t);
+                String theFullMethodName = WASMWriterUtils.toMethodName(aMethodMapEntry.getProvidingClass().getClassName(),
+                        theMethod.getName(),
+                        theMethod.getSignature());
 
-                //Run optimizer
-                aOptions.getOptimizer().optimize(theSSAProgram.getControlFlowGraph(), aLinkerContext);
+                int theIndex = theGeneratedFunctions.indexOf(theFullMethodName);
+                if (theIndex < 0) {
+                    throw new IllegalStateException("Unknown index : " + theFullMethodName);
+                }
+                theVTable[theSlot] = theIndex;
+            });
+
+            theLambdaVTables.put(aEntry.edgeType().objectTypeRef(), addVTable(theVTableData, theVTableStart, theVTable));
+        });
+
+        // String constants are placed behind the static data, aligned to 8 bytes. The heap starts behind them
+        theStringPool.placeAt((vtableEnd(theVTableData, theVTableStart) + 7) & ~7);
+        if (!theStaticData.isEmpty()) {
+            theWriter.print("   (data (i32.const ");
+            theWriter.print(WASMMemoryLayouter.STATIC_DATA_START);
+            theWriter.print(") \"");
+            for (Integer theWord : theStaticData) {
+                writeDataWord(theWriter, theWord);
+            }
+            theWriter.println("\")");
+        }
+        int theVTableAddress = theVTableStart;
+        for (int i=0;i<theVTableData.size();i++) {
+            // The memory is zero initialized, so only the used part of the table is written
+            int[] theVTable = theVTableData.get(i);
+            int theAddress = theVTableAddress;
+            theVTableAddress += theVTable.length * 4;
+            int theFirst = 0;
+            while (theFirst < theVTable.length && theVTable[theFirst] == 0) {
+                theFirst++;
+            }
+            if (theFirst == theVTable.length) {
+                continue;
+            }
+            int theLast = theVTable.length - 1;
+            while (theVTable[theLast] == 0) {
+                theLast--;
+            }
+            theWriter.print("   (data (i32.const ");
+            theWriter.print(theAddress + theFirst * 4);
+            theWriter.print(") \"");
+            for (int j=theFirst;j<=theLast;j++) {
+                writeDataWord(theWriter, theVTable[j]);
+            }
+            theWriter.println("\")");
+        }
+        theWriter.println();
+
+        // Linking is complete, so the methods can be compiled independently of each other. The
+        // SSA form is generated, optimized and relooped in parallel, but written in method order
+        // as the writer registers string constants, global types and callsites
+        aLinkerContext.freeze();
+
+        List<BytecodeResolvedMethods.MethodEntry> theMethodsToCompile = new ArrayList<>();
+        aLinkerContext.linkedClasses().forEach(aEntry -> {
+            if (Objects.equals(aEntry.edgeType().objectTypeRef(), BytecodeObjectTypeRef.fromRuntimeClass(Address.class))) {
+                return;
+            }
+            if (aEntry.targetNode().getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) != null) {
+                return;
+            }
+            aEntry.targetNode().resolvedMethods().stream().forEach(aMethodMapEntry -> {
+                BytecodeMethod t = aMethodMapEntry.getValue();
+                // Do not generate code for abstract methods, native methods are already written
+                if (!t.getAccessFlags().isAbstract() && !t.getAccessFlags().isNative() && aMethodMapEntry.getProvidingClass() == aEntry.targetNode()) {
+                    theMethodsToCompile.add(aMethodMapEntry);
+                }
+            });
+        });
+        Stream<BytecodeResolvedMethods.MethodEntry> theMethodStream = aOptions.isParallelCodeGeneration()
+                ? theMethodsToCompile.parallelStream()
+                : theMethodsToCompile.stream();
+        List<CompiledMethod> theCompiledMethodList = theMethodStream
+                .map(aEntry -> compileMethod(aOptions, aLinkerContext, aEntry))
+                .collect(Collectors.toList());
+        Map<BytecodeResolvedMethods.MethodEntry, CompiledMethod> theCompiledMethods = new HashMap<>();
+        for (int i=0;i<theMethodsToCompile.size();i++) {
+            theCompiledMethods.put(theMethodsToCompile.get(i), theCompiledMethodList.get(i));
+        }
+
+        // Now everything else
+        aLinkerContext.linkedClasses().forEach(aEntry -> {
+
+            if (Objects.equals(aEntry.edgeType().objectTypeRef(), BytecodeObjectTypeRef.fromRuntimeClass(Address.class))) {
+                return;
+            }
+            if (aEntry.targetNode().getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) != null) {
+                return;
+            }
+
+            Set<BytecodeObjectTypeRef> theStaticReferences = new HashSet<>();
+
+            BytecodeResolvedMethods theMethodMap = aEntry.targetNode().resolvedMethods();
+            theMethodMap.stream().forEach(aMethodMapEntry -> {
+
+                // Inherited methods are written by the class providing them
+                if (aMethodMapEntry.getProvidingClass() != aEntry.targetNode()) {
+                    return;
+                }
+
+                CompiledMethod theCompiledMethod = theCompiledMethods.get(aMethodMapEntry);
+                if (theCompiledMethod == null) {
+                    // Abstract, native or not implemented here
+                    return;
+                }
+
+                BytecodeMethod t = aMethodMapEntry.getValue();
+                BytecodeMethodSignature theSignature = t.getSignature();
+                Program theSSAProgram = theCompiledMethod.program;
 
                 theWriter.print("   (func ");
                 theWriter.print("$");
@@ -372,14 +670,22 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
                 }
                 theWriter.println();
 
+                if (aEntry.targetNode().getClassName().equals(BytecodeObjectTypeRef.fromRuntimeClass(TSystem.class))
+                        && "arraycopy".equals(t.getName().stringValue())) {
+                    // Replaced by a copy of the raw element data, as arrays are packed
+                    writeArrayCopyBody(theWriter, theSSAProgram.getArguments());
+                    theWriter.println("   )");
+                    theWriter.println();
+                    return;
+                }
+
                 theStaticReferences.addAll(theSSAProgram.getStaticReferences());
 
-                WASMSSAWriter theSSAWriter = new WASMSSAWriter(aOptions, theSSAProgram, "         ", theWriter, aLinkerContext, theResolver, theMemoryLayout);
+                WASMSSAWriter theSSAWriter = new WASMSSAWriter(aOptions, theSSAProgram, theCompiledMethod.stackFrame, "         ", theWriter, aLinkerContext, theResolver, theMemoryLayout, theTypeEncoding);
 
                 for (Variable theVariable : theSSAProgram.getVariables()) {
 
-                    if (!(theVariable.isSynthetic()) &&
-                        !theSSAWriter.isStackVariable(theVariable)) {
+                    if (!theVariable.isSynthetic()) {
 
                         theSSAWriter.print("(local $");
                         theSSAWriter.print(theVariable.getName());
@@ -390,15 +696,7 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
                     }
                 }
 
-                // Try to reloop it!
-                try {
-                    Relooper theRelooper = new Relooper();
-                    Relooper.Block theReloopedBlock = theRelooper.reloop(theSSAProgram.getControlFlowGraph());
-
-                    theSSAWriter.writeRelooped(theReloopedBlock);
-                } catch (Exception e) {
-                    throw new IllegalStateException("Error relooping cfg", e);
-                }
+                theSSAWriter.writeRelooped(theCompiledMethod.reloopedBlock);
 
                 theWriter.println("   )");
                 theWriter.println();
@@ -407,103 +705,6 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
             BytecodeLinkedClass theLinkedClass = aEntry.targetNode();
             String theClassName = WASMWriterUtils.toClassName(aEntry.edgeType().objectTypeRef());
 
-            theWriter.print("   (func ");
-            theWriter.print("$");
-            theWriter.print(theClassName);
-            theWriter.println("__resolvevtableindex (param $thisRef i32) (param $p1 i32) (result i32)");
-
-            theMethodMap.stream().forEach(aMethodMapEntry -> {
-
-                BytecodeMethod theMethod = aMethodMapEntry.getValue();
-                if (theMethod.getAccessFlags().isStatic()) {
-                    return;
-                }
-                if (theMethod.getAccessFlags().isPrivate()) {
-                    return;
-                }
-                if (theMethod.isConstructor()) {
-                    return;
-                }
-                if (theMethod.getAccessFlags().isAbstract()) {
-                    return;
-                }
-
-                if (theMethod == BytecodeLinkedClass.GET_CLASS_PLACEHOLDER) {
-                    // This method cannot be called as it is handled by TypeOfValue
-                    return;
-                }
-
-                BytecodeVirtualMethodIdentifier theMethodIdentifier = aLinkerContext.getMethodCollection().identifierFor(theMethod);
-
-                theWriter.println("         (block $b");
-                theWriter.print("             (br_if $b (i32.ne (get_local $p1) (i32.const ");
-                theWriter.print(theMethodIdentifier.getIdentifier());
-                theWriter.println(")))");
-
-                String theFullMethodName = WASMWriterUtils.toMethodName(aMethodMapEntry.getProvidingClass().getClassName(),
-                        theMethod.getName(),
-                        theMethod.getSignature());
-
-                int theIndex = theGeneratedFunctions.indexOf(theFullMethodName);
-                if (theIndex < 0) {
-                    throw new IllegalStateException("Unknown index : " + theFullMethodName);
-                }
-
-                theWriter.print("             (return (i32.const ");
-                theWriter.print(theIndex);
-                theWriter.println("))");
-                theWriter.println("         )");
-            });
-
-            theWriter.println("         (block $b");
-            theWriter.print("             (br_if $b (i32.ne (get_local $p1) (i32.const ");
-            theWriter.print(WASMSSAWriter.GENERATED_INSTANCEOF_METHOD_ID);
-            theWriter.println(")))");
-
-            String theFullMethodName = theClassName + "__instanceof";
-
-            int theIndex = theGeneratedFunctions.indexOf(theFullMethodName);
-            if (theIndex < 0) {
-                throw new IllegalStateException("Unknown index : " + theFullMethodName);
-            }
-
-            theWriter.print("             (return (i32.const ");
-            theWriter.print(theIndex);
-            theWriter.println("))");
-            theWriter.println("         )");
-
-
-            theWriter.println("         (unreachable)");
-            theWriter.println("   )");
-            theWriter.println();
-
-            // Instanceof method
-            theWriter.print("   (func ");
-            theWriter.print("$");
-            theWriter.print(theClassName);
-            theWriter.println("__instanceof (param $thisRef i32) (param $p1 i32) (result i32)");
-
-            for (BytecodeLinkedClass theType : theLinkedClass.getImplementingTypes()) {
-
-                theWriter.print("         (block $block");
-                theWriter.print(theType.getUniqueId());
-                theWriter.println();
-
-                theWriter.print("             (br_if $block");
-                theWriter.print(theType.getUniqueId());
-                theWriter.print(" (i32.ne (get_local $p1) (i32.const ");
-                theWriter.print(theType.getUniqueId());
-                theWriter.println(")))");
-
-                theWriter.println("             (return (i32.const 1))");
-
-                theWriter.println("         )");
-            }
-
-            theWriter.println("         (return (i32.const 0))");
-            theWriter.println("   )");
-            theWriter.println();
-
 
             theWriter.print("   (func ");
             theWriter.print("$");
@@ -553,13 +754,13 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
             theWriter.println();
 
             Program theSSAProgram = theEntry.getValue().program;
+            WASMStackFrame theStackFrame = WASMStackFrame.of(theSSAProgram, theEntry.getValue().bootstrapMethod.getExpressions());
 
-            WASMSSAWriter theSSAWriter = new WASMSSAWriter(aOptions, theSSAProgram, "         ", theWriter, aLinkerContext, theResolver, theMemoryLayout);
+            WASMSSAWriter theSSAWriter = new WASMSSAWriter(aOptions, theSSAProgram, theStackFrame, "         ", theWriter, aLinkerContext, theResolver, theMemoryLayout, theTypeEncoding);
 
             for (Variable theVariable : theSSAProgram.getVariables()) {
 
-                if (!(theVariable.isSynthetic()) &&
-                    !(theSSAWriter.isStackVariable(theVariable))) {
+                if (!theVariable.isSynthetic()) {
 
                     theSSAWriter.print("(local $");
                     theSSAWriter.print(theVariable.getName());
@@ -577,92 +778,95 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
             theWriter.println();
         }
 
-        theWriter.println("   (func $newRuntimeClass (param $type i32) (param $staticSize i32) (param $enumValuesOffset i32) (result i32)");
-        theWriter.println("         (local $newRef i32)");
-        theWriter.println("         (set_local $newRef");
-        theWriter.print("              (call $MemoryManager_AddressnewObjectINTINTINT (i32.const 0) (get_local $staticSize) (i32.const -1) (i32.const ");
-        theWriter.print(theGeneratedFunctions.indexOf("RUNTIMECLASS__resolvevtableindex"));
-        theWriter.println("))");
-        theWriter.println("         )");
-        theWriter.println("         (i32.store offset=12 (get_local $newRef) (i32.add (get_local $newRef) (get_local $enumValuesOffset)))");
-        theWriter.println("         (return (get_local $newRef))");
+        theWriter.println("   (func $VTABLE__unresolved");
+        theWriter.println("         (unreachable)");
         theWriter.println("   )");
         theWriter.println();
 
-        theWriter.println("   (func $LAMBDA__resolvevtableindex (param $thisRef i32) (param $methodId i32) (result i32)");
-        theWriter.println("         (return (i32.load offset=8 (get_local $thisRef)))");
-        theWriter.println("   )");
-        theWriter.println();
+        // Lambdas store the function table index of their implementation method
+        for (Map.Entry<String, BytecodeMethodSignature> theEntry : theLambdaSignatures.entrySet()) {
+            BytecodeMethodSignature theSignature = theEntry.getValue();
+
+            theWriter.print("   (func $LAMBDA__");
+            theWriter.print(theEntry.getKey());
+            theWriter.print(" (param $thisRef i32)");
+            for (int i = 0; i < theSignature.getArguments().length; i++) {
+                theWriter.print(" (param $p");
+                theWriter.print(i + 1);
+                theWriter.print(" ");
+                theWriter.print(WASMWriterUtils.toType(TypeRef.toType(theSignature.getArguments()[i])));
+                theWriter.print(")");
+            }
+            if (!theSignature.getReturnType().isVoid()) {
+                theWriter.print(" (result ");
+                theWriter.print(WASMWriterUtils.toType(TypeRef.toType(theSignature.getReturnType())));
+                theWriter.print(")");
+            }
+            theWriter.println();
 
-        int theLambdaVTableResolveIndex = theGeneratedFunctions.indexOf("LAMBDA__resolvevtableindex");
-        if (theLambdaVTableResolveIndex < 0) {
-            throw new IllegalStateException("Cannot resolve LAMBDA__resolvevtableindex");
+            theWriter.print("         (call_indirect $t_");
+            theWriter.print(theEntry.getKey());
+            theWriter.print(" (get_local $thisRef)");
+            for (int i = 0; i < theSignature.getArguments().length; i++) {
+                theWriter.print(" (get_local $p");
+                theWriter.print(i + 1);
+                theWriter.print(")");
+            }
+            theWriter.println(" (i32.load offset=8 (get_local $thisRef)))");
+            theWriter.println("   )");
+            theWriter.println();
         }
 
+        // The type of a lambda is the lambda vtable address of its functional interface, 0 if unknown
         theWriter.println("   (func $newLambda (param $type i32) (param $implMethodNumber i32) (result i32)");
         theWriter.println("         (local $newRef i32)");
         theWriter.println("         (set_local $newRef");
-        theWriter.print("            (call $MemoryManager_AddressnewObjectINTINTINT (i32.const 0) (i32.const 12) (get_local $type) (i32.const ");
-        theWriter.print(theLambdaVTableResolveIndex);
-        theWriter.println("))");
+        theWriter.print("            (call $MemoryManager_AddressnewObjectINTINTINT (i32.const 0) (i32.const 12) (i32.const 0) (select (get_local $type) (i32.const ");
+        theWriter.print(theLambdaVTableAddress);
+        theWriter.println(") (get_local $type)))");
         theWriter.println("         )");
         theWriter.println("         (i32.store offset=8 (get_local $newRef) (get_local $implMethodNumber))");
         theWriter.println("         (return (get_local $newRef))");
         theWriter.println("   )");
         theWriter.println();
 
-        theWriter.println("   (func $compareValueI32 (param $p1 i32) (param $p2 i32) (result i32)");
-        theWriter.println("     (block $b1");
-        theWriter.println("         (br_if $b1");
-        theWriter.println("             (i32.ne (get_local $p1) (get_local $p2))");
-        theWriter.println("         )");
-        theWriter.println("         (return (i32.const 0))");
-        theWriter.println("     )");
-        theWriter.println("     (block $b2");
-        theWriter.println("         (br_if $b2");
-        theWriter.println("             (i32.ge_s (get_local $p1) (get_local $p2))");
-        theWriter.println("         )");
-        theWriter.println("         (return (i32.const -1))");
-        theWriter.println("     )");
-        theWriter.println("     (return (i32.const 1))");
-        theWriter.println("   )");
-        theWriter.println();
+        writeCompareFunction(theWriter, "i32", "ge_s");
+        writeCompareFunction(theWriter, "i64", "ge_s");
+        writeCompareFunction(theWriter, "f32", "ge");
+        writeCompareFunction(theWriter, "f64", "ge");
 
-        theWriter.println("   (func $compareValueF32 (param $p1 f32) (param $p2 f32) (result i32)");
-        theWriter.println("     (block $b1");
-        theWriter.println("         (br_if $b1");
-        theWriter.println("             (f32.ne (get_local $p1) (get_local $p2))");
+        theWriter.println("   (func $INSTANCEOF_CLASS (param $thisRef i32) (param $first i32) (param $range i32) (result i32)");
+        theWriter.println("     (block $nullcheck");
+        theWriter.println("         (br_if $nullcheck");
+        theWriter.println("             (i32.ne (get_local $thisRef) (i32.const 0))");
         theWriter.println("         )");
         theWriter.println("         (return (i32.const 0))");
         theWriter.println("     )");
-        theWriter.println("     (block $b2");
-        theWriter.println("         (br_if $b2");
-        theWriter.println("             (f32.ge (get_local $p1) (get_local $p2))");
-        theWriter.println("         )");
-        theWriter.println("         (return (i32.const -1))");
+        theWriter.println("     (i32.le_u");
+        theWriter.print("         (i32.sub (i32.load offset=");
+        theWriter.print(WASMMemoryLayouter.VTABLE_TYPEID_OFFSET);
+        theWriter.println(" (i32.load offset=4 (get_local $thisRef))) (get_local $first))");
+        theWriter.println("         (get_local $range)");
         theWriter.println("     )");
-        theWriter.println("     (return (i32.const 1))");
         theWriter.println("   )");
         theWriter.println();
 
-        theWriter.println("   (func $INSTANCEOF_CHECK (param $thisRef i32) (param $type i32) (result i32)");
+        theWriter.println("   (func $INSTANCEOF_INTERFACE (param $thisRef i32) (param $wordOffset i32) (param $mask i32) (result i32)");
         theWriter.println("     (block $nullcheck");
         theWriter.println("         (br_if $nullcheck");
         theWriter.println("             (i32.ne (get_local $thisRef) (i32.const 0))");
         theWriter.println("         )");
         theWriter.println("         (return (i32.const 0))");
         theWriter.println("     )");
-        theWriter.println("     (call_indirect $t_INSTANCEOF");
-        theWriter.println("         (get_local $thisRef)");
-        theWriter.println("         (get_local $type)");
-        theWriter.println("         (call_indirect $t_RESOLVEMETHOD");
-        theWriter.println("             (get_local $thisRef)");
-        theWriter.print("             (i32.const ");
-        theWriter.print(WASMSSAWriter.GENERATED_INSTANCEOF_METHOD_ID);
-        theWriter.println(")");
-        theWriter.println("             (i32.load offset=4 (get_local $thisRef))");
+        theWriter.println("     (i32.ne");
+        theWriter.println("         (i32.and");
+        theWriter.print("             (i32.load (i32.add (i32.load offset=");
+        theWriter.print(WASMMemoryLayouter.VTABLE_INTERFACES_OFFSET);
+        theWriter.println(" (i32.load offset=4 (get_local $thisRef))) (get_local $wordOffset)))");
+        theWriter.println("             (get_local $mask)");
         theWriter.println("         )");
-        theWriter.println("      )");
+        theWriter.println("         (i32.const 0)");
+        theWriter.println("     )");
         theWriter.println("   )");
         theWriter.println();
 
@@ -676,144 +880,92 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
         theWriter.println("   )");
         theWriter.println();
 
-        theWriter.println("   (func $RUNTIMECLASS__resolvevtableindex (param $thisRef i32) (param $methodId i32) (result i32)");
-
-        BytecodeLinkedClass theClassLinkedCass = aLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(TClass.class));
-        BytecodeResolvedMethods theRuntimeMethodMap = theClassLinkedCass.resolvedMethods();
-        theRuntimeMethodMap.stream().forEach(aMethodMapEntry -> {
-            BytecodeMethod theMethod = aMethodMapEntry.getValue();
-            if (!theMethod.getAccessFlags().isStatic()) {
-
-                BytecodeVirtualMethodIdentifier theMethodIdentifier = aLinkerContext.getMethodCollection().identifierFor(theMethod);
-
-                theWriter.println("     (block $m" + theMethodIdentifier.getIdentifier());
-                theWriter.println("         (br_if $m" + theMethodIdentifier.getIdentifier() + " (i32.ne (get_local $methodId) (i32.const " + theMethodIdentifier.getIdentifier() + ")))");
-                if (Objects.equals("getClass", theMethod.getName().stringValue())) {
-                    theWriter.println("         (unreachable)");
-                } else if (Objects
-                        .equals("toString", theMethod.getName().stringValue())) {
-                    theWriter.println("         (unreachable)");
-                } else if (Objects
-                        .equals("equals", theMethod.getName().stringValue())) {
-                    theWriter.println("         (unreachable)");
-                } else if (Objects
-                        .equals("hashCode", theMethod.getName().stringValue())) {
-                    theWriter.println("         (unreachable)");
-                } else if (Objects.equals("desiredAssertionStatus",
-                        theMethod.getName().stringValue())) {
-                    theWriter.println("         (return (i32.const " + theGeneratedFunctions.indexOf("TClass_desiredAssertionStatus") + "))");
-                } else if (Objects
-                        .equals("getEnumConstants",
-                                theMethod.getName().stringValue())) {
-                    theWriter.println("         (return (i32.const " + theGeneratedFunctions.indexOf("TClass_A1TObjectgetEnumConstants") + "))");
-                } else {
-                    theWriter.println("         (unreachable)");
-                }
-                theWriter.println("     )");
-            }
-        });
-
-        theWriter.println("     (unreachable)");
-        theWriter.println("   )");
-        theWriter.println();
-
-        List<String> theGlobalVariables = new ArrayList<>();
-
-        theWriter.println("   (func $bootstrap");
-
-        theWriter.println("      (set_global $STACKTOP (i32.sub (i32.mul (current_memory) (i32.const 65536)) (i32.const 1)))");
-
-        // Globals for static class data
+        // Static initializers without side effects outside of their class are evaluated at compile time,
+        // the objects they create become part of the heap snapshot
+        List<BytecodeLinkedClass> theRuntimeClasses = new ArrayList<>();
         aLinkerContext.linkedClasses().forEach(aEntry -> {
-
             if (Objects.equals(aEntry.edgeType().objectTypeRef(), BytecodeObjectTypeRef.fromRuntimeClass(Address.class))) {
                 return;
             }
             if (aEntry.targetNode().getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) != null) {
                 return;
             }
-
-            theGlobalVariables.add(WASMWriterUtils.toClassName(aEntry.edgeType().objectTypeRef()) + "__runtimeClass");
-
-            theWriter.print("      (set_global $");
-            theWriter.print(WASMWriterUtils.toClassName(aEntry.edgeType().objectTypeRef()));
-            theWriter.print("__runtimeClass (call $newRuntimeClass");
-
-            theWriter.print(" (i32.const ");
-            theWriter.print(aEntry.targetNode().getUniqueId());
-            theWriter.print(")");
-
-            WASMMemoryLayouter.MemoryLayout theLayout = theMemoryLayout.layoutFor(aEntry.edgeType().objectTypeRef());
-
-            theWriter.print(" (i32.const ");
-            theWriter.print(theLayout.classSize());
-            theWriter.print(")");
-
-            BytecodeResolvedFields theStaticFields = aEntry.targetNode().resolvedFields();
-            if (theStaticFields.fieldByName("$VALUES") != null) {
-                theWriter.print(" (i32.const ");
-                theWriter.print(theLayout.offsetForClassMember("$VALUES"));
-                theWriter.println(")");
-            } else {
-                theWriter.print(" (i32.const -1)");
-            }
-
-            theWriter.println("))");
+            theRuntimeClasses.add(aEntry.targetNode());
         });
 
-        WASMMemoryLayouter.MemoryLayout theStringMemoryLayout = theMemoryLayout.layoutFor(theStringClass.getClassName());
-        for (int i=0;i<theStringCache.size();i++) {
-
-            String theData = theStringCache.get(i);
-
-            theGlobalVariables.add("stringPool" + i);
+        Map<BytecodeLinkedClass, Map<Integer, WASMStaticInitializerEvaluator.TypedValue>> theEvaluatedStatics = new LinkedHashMap<>();
+        if (aOptions.isPreInitializeStatics()) {
+            WASMStaticInitializerEvaluator theEvaluator = new WASMStaticInitializerEvaluator(aLinkerContext, programGeneratorFactory, theMemoryLayout);
+            for (BytecodeLinkedClass theClass : theRuntimeClasses) {
+                Map<Integer, WASMStaticInitializerEvaluator.TypedValue> theStatics = theEvaluator.evaluate(theClass);
+                if (theStatics != null) {
+                    WASMHeapSnapshot.registerStrings(theStatics, theStringPool);
+                    theEvaluatedStatics.put(theClass, theStatics);
+                }
+            }
+        }
 
-            theWriter.print("      ;; init of ");
-            theWriter.println(theData.replaceAll("(?:\\n|\\r)", ""));
-            
-            theWriter.print("      (set_global $stringPool");
-            theWriter.print(i);
-            theWriter.print(" (call $MemoryManager_AddressnewObjectINTINTINT");
+        // All string constants are known now, so the heap snapshot with the runtime classes starts behind them
+        WASMHeapSnapshot theSnapshot = new WASMHeapSnapshot(theStringPool.endAddress(), theMemoryLayout, theStringPool, theResolver, theRuntimeClassVTableAddress);
+        for (BytecodeLinkedClass theClass : theRuntimeClasses) {
+            WASMMemoryLayouter.MemoryLayout theLayout = theMemoryLayout.layoutFor(theClass.getClassName());
+            int theEnumValuesOffset = -1;
+            if (theClass.resolvedFields().fieldByName("$VALUES") != null) {
+                theEnumValuesOffset = theLayout.offsetForClassMember("$VALUES");
+            }
+            theSnapshot.addRuntimeClass(theClass, theEnumValuesOffset, theReferenceMaps.get(theClass.getClassName()), theEvaluatedStatics.containsKey(theClass));
+        }
+        for (Map.Entry<BytecodeLinkedClass, Map<Integer, WASMStaticInitializerEvaluator.TypedValue>> theEntry : theEvaluatedStatics.entrySet()) {
+            theSnapshot.writeStatics(theEntry.getKey(), theEntry.getValue());
+        }
 
-            theWriter.print(" (i32.const 0)"); // Unused argument
+        theWriter.print("   (data (i32.const ");
+        theWriter.print(WASMMemoryLayouter.HEAP_START_ADDRESS);
+        theWriter.print(") \"");
+        writeDataWord(theWriter, theSnapshot.startAddress());
+        theWriter.println("\")");
+        theWriter.print("   (data (i32.const ");
+        theWriter.print(WASMMemoryLayouter.HEAP_SNAPSHOT_END_ADDRESS);
+        theWriter.print(") \"");
+        writeDataWord(theWriter, theSnapshot.endAddress());
+        theWriter.println("\")");
+        if (!theStringPool.isEmpty()) {
+            writeDataSegment(theWriter, theStringPool.startAddress(), theStringPool.toByteArray(
+                    theSnapshot.runtimeClassAddressOf(theStringClass.getClassName()),
+                    theResolver.resolveVTableAddressByType(theStringClass.getClassName()),
+                    theSnapshot.runtimeClassAddressOf(BytecodeObjectTypeRef.fromRuntimeClass(TArray.class)),
+                    theResolver.resolveVTableAddressByType(BytecodeObjectTypeRef.fromRuntimeClass(TArray.class))));
+        }
+        writeDataSegment(theWriter, theSnapshot.startAddress(), theSnapshot.toByteArray());
+        theWriter.println();
 
-            theWriter.print(" (i32.const ");
-            theWriter.print(theStringMemoryLayout.instanceSize());
-            theWriter.print(")");
+        // The memory has a fixed size, the heap and the stack need the space behind the static data
+        if (theSnapshot.endAddress() >= WASMMemoryLayouter.MEMORY_PAGES * WASMMemoryLayouter.PAGE_SIZE) {
+            throw new IllegalStateException("Static data of " + theSnapshot.endAddress() + " bytes does not fit into "
+                    + WASMMemoryLayouter.MEMORY_PAGES + " pages of memory");
+        }
 
-            theWriter.print(" (i32.const ");
-            theWriter.print(theStringClass.getUniqueId());
-            theWriter.print(")");
+        theWriter.println("   (func $bootstrap");
 
-            theWriter.print(" (i32.const ");
-            theWriter.print(theResolver.resolveVTableMethodByType(theStringClass.getClassName()));
-            theWriter.print(")");
-            theWriter.println("))");
+        theWriter.println("      (set_global $STACKTOP (i32.mul (current_memory) (i32.const 65536)))");
 
-            theWriter.print("      (call $TString_VOIDinitINT ");
-            theWriter.print("(get_global $stringPool");
-            theWriter.print(i);
-            theWriter.print(") ");
-            theWriter.print("(i32.const ");
-            theWriter.print(theData.length());
+        // The runtime classes are pinned by a stack frame below all others, so they are never garbage collected
+        int thePinnedSize = WASMStackFrame.HEADER_SIZE + theRuntimeClasses.size() * 4;
+        if (thePinnedSize > WASMStackFrame.MAXIMUM_FRAME_SIZE) {
+            throw new IllegalStateException("Too many runtime classes to pin : " + theRuntimeClasses.size());
+        }
+        theWriter.print("      (set_global $STACKTOP (i32.sub (get_global $STACKTOP) (i32.const ");
+        theWriter.print(thePinnedSize);
+        theWriter.println(")))");
+        theWriter.print("      (i32.store (get_global $STACKTOP) (i32.const ");
+        theWriter.print(theRuntimeClasses.size() << 16 | thePinnedSize);
+        theWriter.println("))");
+        for (int i=0;i<theRuntimeClasses.size();i++) {
+            theWriter.print("      (i32.store offset=");
+            theWriter.print(WASMStackFrame.HEADER_SIZE + i * 4);
+            theWriter.print(" (get_global $STACKTOP) (i32.const ");
+            theWriter.print(theSnapshot.runtimeClassAddressOf(theRuntimeClasses.get(i).getClassName()));
             theWriter.println("))");
-
-            for (int j=0;j<theData.length();j++) {
-                int theChar = theData.charAt(j);
-
-                theWriter.print("      (call $TString_VOIDsetCharAtINTBYTE ");
-                theWriter.print("(get_global $stringPool");
-                theWriter.print(i);
-                theWriter.print(") ");
-                theWriter.print("(i32.const ");
-                theWriter.print(j);
-                theWriter.print(") ");
-                theWriter.print("(i32.const ");
-                theWriter.print(theChar);
-                theWriter.print(")");
-                theWriter.println(")");
-
-            }
         }
 
         aLinkerContext.linkedClasses().forEach(aEntry -> {
@@ -829,44 +981,19 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
             }
         });
 
-        // After the Bootstrap, we need to all the static stuff on the stack, so it is not garbage collected
-        theWriter.print("      (set_global $STACKTOP (i32.sub (get_global $STACKTOP) (i32.const ");
-        theWriter.print(theGlobalVariables.size() * 4);
-        theWriter.println(")))");
-        for (int i=0;i<theGlobalVariables.size();i++) {
-            theWriter.print("      (i32.store offset=");
-            theWriter.print(i * 4);
-            theWriter.print(" (get_global $STACKTOP) (get_global $");
-            theWriter.print(theGlobalVariables.get(i));
-            theWriter.println("))");
-        }
-
         theWriter.println("   )");
         theWriter.println();
 
-        for (int i=0;i<theStringCache.size();i++) {
-
-            theWriter.print("   (global $stringPool");
-            theWriter.print(i);
-            theWriter.println(" (mut i32) (i32.const 0))");
-        }
-
         theWriter.println("   (global $STACKTOP (mut i32) (i32.const 0))");
 
-        // Globals for static class data
-        aLinkerContext.linkedClasses().forEach(aEntry -> {
-
-            if (Objects.equals(aEntry.edgeType().objectTypeRef(), BytecodeObjectTypeRef.fromRuntimeClass(Address.class))) {
-                return;
-            }
-            if (aEntry.targetNode().getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) != null) {
-                return;
-            }
-
+        // Runtime classes are part of the heap snapshot, so their addresses are constant
+        for (BytecodeLinkedClass theClass : theRuntimeClasses) {
             theWriter.print("   (global $");
-            theWriter.print(WASMWriterUtils.toClassName(aEntry.edgeType().objectTypeRef()));
-            theWriter.println("__runtimeClass (mut i32) (i32.const 0))");
-        });
+            theWriter.print(WASMWriterUtils.toClassName(theClass.getClassName()));
+            theWriter.print("__runtimeClass i32 (i32.const ");
+            theWriter.print(theSnapshot.runtimeClassAddressOf(theClass.getClassName()));
+            theWriter.println("))");
+        }
 
         theWriter.println();
 
@@ -909,11 +1036,171 @@ public class WASMSSACompilerBackend implements CompileBackend<WASMCompileResult>
         theWriter.println(")");
         theWriter.flush();
 
-        return new WASMCompileResult(aLinkerContext, theGeneratedFunctions, theStringWriter.toString(), theMemoryLayout);
+        return new WASMCompileResult(aLinkerContext, theVTables, theStringWriter.toString(), theMemoryLayout);
     }
 
     @Override
     public String generatedFileName() {
         return "bytecoder.wat";
     }
-}
\ No newline at end of file
+
+    private CompiledMethod compileMethod(CompileOptions aOptions, BytecodeLinkerContext aLinkerContext, BytecodeResolvedMethods.MethodEntry aEntry) {
+        BytecodeMethod theMethod = aEntry.getValue();
+
+        ProgramGenerator theGenerator = programGeneratorFactory.createFor(aLinkerContext);
+        Program theSSAProgram = theGenerator.generateFrom(aEntry.getProvidingClass().getBytecodeClass(), theMethod);
+
+        //Run optimizer
+        aOptions.getOptimizer().optimize(theSSAProgram.getControlFlowGraph(), aLinkerContext);
+
+        // The stack frame has to be computed before relooping, as it might split expressions
+        WASMStackFrame theStackFrame = WASMStackFrame.of(theSSAProgram);
+
+        // Try to reloop it!
+        try {
+            Relooper theRelooper = new Relooper();
+            return new CompiledMethod(theSSAProgram, theStackFrame, theRelooper.reloop(theSSAProgram.getControlFlowGraph()));
+        } catch (Exception e) {
+            throw new IllegalStateException("Error relooping cfg", e);
+        }
+    }
+
+    private static boolean isVirtual(BytecodeMethod aMethod) {
+        if (aMethod.getAccessFlags().isStatic() || aMethod.getAccessFlags().isPrivate()) {
+            return false;
+        }
+        if (aMethod.isConstructor()) {
+            return false;
+        }
+        // getClass() is handled by TypeOfValue
+        return aMethod != BytecodeLinkedClass.GET_CLASS_PLACEHOLDER;
+    }
+
+    private static void writeCompareFunction(PrintWriter aWriter, String aType, String aGreaterOrEquals) {
+        aWriter.println("   (func $compareValue" + aType.toUpperCase() + " (param $p1 " + aType + ") (param $p2 " + aType + ") (result i32)");
+        aWriter.println("     (block $b1");
+        aWriter.println("         (br_if $b1");
+        aWriter.println("             (" + aType + ".ne (get_local $p1) (get_local $p2))");
+        aWriter.println("         )");
+        aWriter.println("         (return (i32.const 0))");
+        aWriter.println("     )");
+        aWriter.println("     (block $b2");
+        aWriter.println("         (br_if $b2");
+        aWriter.println("             (" + aType + "." + aGreaterOrEquals + " (get_local $p1) (get_local $p2))");
+        aWriter.println("         )");
+        aWriter.println("         (return (i32.const -1))");
+        aWriter.println("     )");
+        aWriter.println("     (return (i32.const 1))");
+        aWriter.println("   )");
+        aWriter.println();
+    }
+
+    private static void writeArrayCopyBody(PrintWriter aWriter, List<Program.Argument> aArguments) {
+        String theSource = aArguments.get(0).getVariable().getName();
+        String theSourcePos = aArguments.get(1).getVariable().getName();
+        String theTarget = aArguments.get(2).getVariable().getName();
+        String theTargetPos = aArguments.get(3).getVariable().getName();
+        String theLength = aArguments.get(4).getVariable().getName();
+
+        aWriter.println("      (local $elementSize i32)");
+        aWriter.println("      (local $from i32)");
+        aWriter.println("      (local $to i32)");
+        aWriter.println("      (local $remaining i32)");
+        aWriter.println("      (set_local $elementSize (i32.and (i32.load offset=" + WASMMemoryLayouter.ARRAY_ELEMENTS_OFFSET
+                + " (get_local $" + theSource + ")) (i32.const " + WASMMemoryLayouter.ARRAY_ELEMENT_SIZE_MASK + ")))");
+        aWriter.println("      (set_local $remaining (i32.mul (get_local $" + theLength + ") (get_local $elementSize)))");
+        aWriter.println("      (set_local $from (i32.add (i32.add (get_local $" + theSource + ") (i32.const " + WASMMemoryLayouter.ARRAY_DATA_OFFSET
+                + ")) (i32.mul (get_local $" + theSourcePos + ") (get_local $elementSize))))");
+        aWriter.println("      (set_local $to (i32.add (i32.add (get_local $" + theTarget + ") (i32.const " + WASMMemoryLayouter.ARRAY_DATA_OFFSET
+                + ")) (i32.mul (get_local $" + theTargetPos + ") (get_local $elementSize))))");
+
+        // Copy eight bytes at a time, and the remaining bytes one by one. If the target starts
+        // behind the source, we copy backwards, so overlapping regions are not overwritten before
+        // they are read
+        aWriter.println("      (block $forward");
+        aWriter.println("         (br_if $forward (i32.le_u (get_local $to) (get_local $from)))");
+        aWriter.println("         (set_local $from (i32.add (get_local $from) (get_local $remaining)))");
+        aWriter.println("         (set_local $to (i32.add (get_local $to) (get_local $remaining)))");
+        aWriter.println("         (block $bytesDone");
+        aWriter.println("            (loop $words");
+        aWriter.println("               (br_if $bytesDone (i32.lt_u (get_local $remaining) (i32.const 8)))");
+        aWriter.println("               (set_local $from (i32.sub (get_local $from) (i32.const 8)))");
+        aWriter.println("               (set_local $to (i32.sub (get_local $to) (i32.const 8)))");
+        aWriter.println("               (i64.store (get_local $to) (i64.load (get_local $from)))");
+        aWriter.println("               (set_local $remaining (i32.sub (get_local $remaining) (i32.const 8)))");
+        aWriter.println("               (br $words)");
+        aWriter.println("            )");
+        aWriter.println("         )");
+        aWriter.println("         (block $done");
+        aWriter.println("            (loop $bytes");
+        aWriter.println("               (br_if $done (i32.eqz (get_local $remaining)))");
+        aWriter.println("               (set_local $from (i32.sub (get_local $from) (i32.const 1)))");
+        aWriter.println("               (set_local $to (i32.sub (get_local $to) (i32.const 1)))");
+        aWriter.println("               (i32.store8 (get_local $to) (i32.load8_u (get_local $from)))");
+        aWriter.println("               (set_local $remaining (i32.sub (get_local $remaining) (i32.const 1)))");
+        aWriter.println("               (br $bytes)");
+        aWriter.println("            )");
+        aWriter.println("         )");
+        aWriter.println("         (return)");
+        aWriter.println("      )");
+        aWriter.println("      (block $wordsDone");
+        aWriter.println("         (loop $words");
+        aWriter.println("            (br_if $wordsDone (i32.lt_u (get_local $remaining) (i32.const 8)))");
+        aWriter.println("            (i64.store (get_local $to) (i64.load (get_local $from)))");
+        aWriter.println("            (set_local $from (i32.add (get_local $from) (i32.const 8)))");
+        aWriter.println("            (set_local $to (i32.add (get_local $to) (i32.const 8)))");
+        aWriter.println("            (set_local $remaining (i32.sub (get_local $remaining) (i32.const 8)))");
+        aWriter.println("            (br $words)");
+        aWriter.println("         )");
+        aWriter.println("      )");
+        aWriter.println("      (block $done");
+        aWriter.println("         (loop $bytes");
+        aWriter.println("            (br_if $done (i32.eqz (get_local $remaining)))");
+        aWriter.println("            (i32.store8 (get_local $to) (i32.load8_u (get_local $from)))");
+        aWriter.println("            (set_local $from (i32.add (get_local $from) (i32.const 1)))");
+        aWriter.println("            (set_local $to (i32.add (get_local $to) (i32.const 1)))");
+        aWriter.println("            (set_local $remaining (i32.sub (get_local $remaining) (i32.const 1)))");
+        aWriter.println("            (br $bytes)");
+        aWriter.println("         )");
+        aWriter.println("      )");
+    }
+
+    private static int vtableEnd(List<int[]> aVTableData, int aVTableStart) {
+        int theEnd = aVTableStart;
+        for (int[] theVTable : aVTableData) {
+            theEnd += theVTable.length * 4;
+        }
+        return theEnd;
+    }
+
+    private static int addVTable(List<int[]> aVTableData, int aVTableStart, int[] aVTable) {
+        // Unused slots at the end are cut off, the header with type id and interfaces is always kept
+        int theLength = aVTable.length;
+        while (theLength > WASMMemoryLayouter.VTABLE_METHODS_OFFSET / 4 && aVTable[theLength - 1] == 0) {
+            theLength--;
+        }
+        int theAddress = vtableEnd(aVTableData, aVTableStart);
+        aVTableData.add(Arrays.copyOf(aVTable, theLength));
+        return theAddress;
+    }
+
+    private static void writeDataWord(PrintWriter aWriter, int aValue) {
+        // Little endian, every byte as an escaped hex value
+        for (int i=0;i<4;i++) {
+            aWriter.print(String.format("\\%02x", (aValue >>> (i * 8)) & 0xff));
+        }
+    }
+
+    private static void writeDataSegment(PrintWriter aWriter, int aAddress, byte[] aData) {
+        if (aData.length == 0) {
+            return;
+        }
+        aWriter.print("   (data (i32.const ");
+        aWriter.print(aAddress);
+        aWriter.print(") \"");
+        for (byte theByte : aData) {
+            aWriter.print(String.format("\\%02x", theByte & 0xff));
+        }
+        aWriter.println("\")");
+    }
+}
@@ -17,9 +17,13 @@ package de.mirkosertic.bytecoder.backend.wasm;
 
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
+import java.util.SortedMap;
+import java.util.TreeMap;
 
 import de.mirkosertic.bytecoder.backend.CompileOptions;
 import de.mirkosertic.bytecoder.backend.IndentSSAWriter;
@@ -27,12 +31,15 @@ import de.mirkosertic.bytecoder.classlib.Address;
 import de.mirkosertic.bytecoder.classlib.MemoryManager;
 import de.mirkosertic.bytecoder.classlib.java.lang.TArray;
 import de.mirkosertic.bytecoder.core.BytecodeClass;
+import de.mirkosertic.bytecoder.core.BytecodeFieldRefConstant;
 import de.mirkosertic.bytecoder.core.BytecodeResolvedFields;
+import de.mirkosertic.bytecoder.core.BytecodeArrayTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodeLinkedClass;
 import de.mirkosertic.bytecoder.core.BytecodeLinkerContext;
 import de.mirkosertic.bytecoder.core.BytecodeMethodSignature;
 import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodePrimitiveTypeRef;
+import de.mirkosertic.bytecoder.core.BytecodeTypeEncoding;
 import de.mirkosertic.bytecoder.core.BytecodeTypeRef;
 import de.mirkosertic.bytecoder.core.BytecodeVirtualMethodIdentifier;
 import de.mirkosertic.bytecoder.relooper.Relooper;
@@ -101,13 +108,13 @@ import de.mirkosertic.bytecoder.ssa.VariableAssignmentExpression;
 
 public class WASMSSAWriter extends IndentSSAWriter {
 
-    public static final int GENERATED_INSTANCEOF_METHOD_ID = -1;
-
     public interface IDResolver {
 
-        int resolveVTableMethodByType(BytecodeObjectTypeRef aObjectType);
+        int resolveVTableAddressByType(BytecodeObjectTypeRef aObjectType);
+
+        int resolveLambdaVTableAddressByType(BytecodeObjectTypeRef aInterfaceType);
 
-        String resolveStringPoolFunctionName(String aValue);
+        int resolveStringConstantAddress(String aValue);
 
         String resolveCallsiteBootstrapFor(BytecodeClass aOwningClass, String aCallsiteId, Program aProgram, RegionNode aBootstrapMethod);
 
@@ -116,49 +123,28 @@ public class WASMSSAWriter extends IndentSSAWriter {
         void registerGlobalType(BytecodeMethodSignature aSignature, boolean aStatic);
     }
 
-    private final List<Variable> stackVariables;
+    // Switches with a range up to this size and gap factor are dispatched by a jump table, others by a
+    // binary search with at most this number of comparisons at the leaves
+    private static final long MAXIMUM_TABLE_SIZE = 1024;
+    private static final long MAXIMUM_TABLE_GAP_FACTOR = 3;
+    private static final int MAXIMUM_LINEAR_SEARCH = 3;
+
+    private final WASMStackFrame stackFrame;
     private final IDResolver idResolver;
     private final WASMMemoryLayouter memoryLayouter;
+    private final BytecodeTypeEncoding typeEncoding;
 
-    public WASMSSAWriter(CompileOptions aOptions, Program aProgram, String aIndent, PrintWriter aWriter, BytecodeLinkerContext aLinkerContext, IDResolver aIDResolver,
-                         WASMMemoryLayouter aMemoryLayouter) {
+    public WASMSSAWriter(CompileOptions aOptions, Program aProgram, WASMStackFrame aStackFrame, String aIndent, PrintWriter aWriter, BytecodeLinkerContext aLinkerContext, IDResolver aIDResolver,
+                         WASMMemoryLayouter aMemoryLayouter, BytecodeTypeEncoding aTypeEncoding) {
         super(aOptions, aProgram, aIndent, aWriter, aLinkerContext);
-        stackVariables = new ArrayList<>();
+        stackFrame = aStackFrame;
         idResolver = aIDResolver;
         memoryLayouter = aMemoryLayouter;
-        for (Variable theVariable : aProgram.getVariables()) {
-            if (theVariable.resolveType().resolve() == TypeRef.Native.REFERENCE) {
-                stackVariables.add(theVariable);
-            }
-        }
-    }
-
-    private int stackSize() {
-        return stackVariables.size() * 4;
-    }
-
-    public boolean isStackVariable(Variable aVariable) {
-        for (Variable theVariable : stackVariables) {
-            if (Objects.equals(theVariable.getName(), aVariable.getName())) {
-                return true;
-            }
-        }
-        return false;
-    }
-
-    private int stackOffsetFor(Variable aVariable) {
-        int theStart = 0;
-        for (Variable theVariable : stackVariables) {
-            if (Objects.equals(theVariable.getName(), aVariable.getName())) {
-                return theStart;
-            }
-            theStart += 4;
-        }
-        throw new IllegalStateException("Unknown variable : " + aVariable);
+        typeEncoding = aTypeEncoding;
     }
 
     private WASMSSAWriter withDeeperIndent() {
-        return new WASMSSAWriter(options, program, indent + "    ", writer, linkerContext, idResolver, memoryLayouter);
+        return new WASMSSAWriter(options, program, stackFrame, indent + "    ", writer, linkerContext, idResolver, memoryLayouter, typeEncoding);
     }
 
     public void writeExpressionList(ExpressionList aList) {
@@ -179,6 +165,12 @@ public class WASMSSAWriter extends IndentSSAWriter {
         if (aExpression instanceof CheckCastExpression) {
             return;
         }
+
+        List<Variable> theRoots = stackFrame.rootsAt(aExpression);
+        if (theRoots != null) {
+            writeSafepoint(theRoots);
+        }
+
         if (aExpression instanceof ReturnExpression) {
             writeReturnExpression((ReturnExpression) aExpression);
             return;
@@ -276,105 +268,153 @@ public class WASMSSAWriter extends IndentSSAWriter {
     }
 
     private void writeLookupSwitchExpression(LookupSwitchExpression aExpression) {
-        println("(block $outer");
-
-        Value theValue = aExpression.incomingDataFlows().get(0);
-
-        WASMSSAWriter theChild2 = withDeeperIndent();
-
-        // For each statement
-        for (Map.Entry<Long, ExpressionList> theEntry : aExpression.getPairs().entrySet()) {
-            theChild2.print ("(block $switch_");
-            theChild2.print(theEntry.getKey());
-            theChild2.println();
-
-            WASMSSAWriter theChild3 = theChild2.withDeeperIndent();
-            theChild3.print("(br_if $switch_");
-            theChild3.print(theEntry.getKey());
-            theChild3.print(" (i32.ne (i32.const ");
-            theChild3.print(theEntry.getKey());
-            theChild3.print(") ");
-
-            theChild3.writeValue(theValue);
-            theChild3.print("))");
-            theChild3.println();
-
-            theChild3.writeExpressionList(theEntry.getValue());
-            theChild3.println();
-
-            theChild3.writeExpressionList(theEntry.getValue());
-
-            theChild3.println("(br $outer)");
-
-            theChild2.println(")");
-        }
-
-        writeExpressionList(aExpression.getDefaultExpressions());
-        println(")");
+        writeSwitch(aExpression.incomingDataFlows().get(0), new TreeMap<>(aExpression.getPairs()), aExpression.getDefaultExpressions());
     }
 
     private void writeTableSwitchExpression(TableSwitchExpression aExpression) {
-        println("(block $tableswitch");
-
-        Value theValue = aExpression.incomingDataFlows().get(0);
-
-        WASMSSAWriter theChild1 = withDeeperIndent();
-
-        theChild1.println("(block $label$0");
-
-        WASMSSAWriter theChild2 = theChild1.withDeeperIndent();
-        theChild2.println("(block $label$1");
-
-        WASMSSAWriter theChild3 = theChild2.withDeeperIndent();
-        theChild3.print("(br_if $label$1 (i32.lt_s ");
-        theChild3.writeValue(theValue);
-        theChild3.print(" (i32.const ");
-        theChild3.print(aExpression.getLowValue());
-        theChild3.println(")))");
-
-        theChild3.print("(br_if $label$0 (i32.le_s ");
-        theChild3.writeValue(theValue);
-        theChild3.print(" (i32.const ");
-        theChild3.print(aExpression.getHighValue());
-        theChild3.println(")))");
-
-        theChild3.writeExpressionList(aExpression.getDefaultExpressions());
-        theChild3.println();
-
-        theChild3.println("(br $tableswitch)");
-
-        theChild2.println(")");
-
-        theChild1.println(")");
-
-        WASMSSAWriter theChild4 = withDeeperIndent();
-        // For each statement
+        // The cases are stored as offsets to the low value
+        SortedMap<Long, ExpressionList> theCases = new TreeMap<>();
         for (Map.Entry<Long, ExpressionList> theEntry : aExpression.getOffsets().entrySet()) {
-            theChild4.print ("(block $switch_");
-            theChild4.print(theEntry.getKey());
-            theChild4.println();
-
-            WASMSSAWriter theChild5 = theChild4.withDeeperIndent();
-            theChild5.print("(br_if $switch_");
-            theChild5.print(theEntry.getKey());
-            theChild5.print(" (i32.ne (i32.const ");
-            theChild5.print(theEntry.getKey());
-            theChild5.print(") (i32.sub ");
+            theCases.put(aExpression.getLowValue() + theEntry.getKey(), theEntry.getValue());
+        }
+        writeSwitch(aExpression.incomingDataFlows().get(0), theCases, aExpression.getDefaultExpressions());
+    }
 
-            theChild5.writeValue(theValue);
-            theChild5.print(" (i32.const ");
-            theChild5.print(aExpression.getLowValue());
-            theChild5.print("))))");
-            theChild5.println();
+    private void writeSwitch(Value aValue, SortedMap<Long, ExpressionList> aCases, ExpressionList aDefault) {
+        if (aCases.isEmpty()) {
+            print("(drop ");
+            writeValue(aValue);
+            println(")");
+            writeExpressionList(aDefault);
+            return;
+        }
+
+        // Every case is a block, the code of a case follows the end of its block. Cases jumping
+        // to the same target share the block
+        List<ExpressionList> theBodies = new ArrayList<>();
+        Map<Object, Integer> theBodyByTarget = new HashMap<>();
+        Map<Long, Integer> theBodyIndex = new HashMap<>();
+        for (Map.Entry<Long, ExpressionList> theEntry : aCases.entrySet()) {
+            Object theTarget = switchTargetOf(theEntry.getValue());
+            Integer theIndex = theTarget != null ? theBodyByTarget.get(theTarget) : null;
+            if (theIndex == null) {
+                theIndex = theBodies.size();
+                theBodies.add(theEntry.getValue());
+                if (theTarget != null) {
+                    theBodyByTarget.put(theTarget, theIndex);
+                }
+            }
+            theBodyIndex.put(theEntry.getKey(), theIndex);
+        }
+
+        List<WASMSSAWriter> theWriters = new ArrayList<>();
+        theWriters.add(this);
+        println("(block $switch_end");
+        theWriters.add(withDeeperIndent());
+        theWriters.get(1).println("(block $switch_default");
+        for (int i = theBodies.size() - 1; i >= 0; i--) {
+            WASMSSAWriter theWriter = theWriters.get(theWriters.size() - 1).withDeeperIndent();
+            theWriter.print("(block $switch_case_");
+            theWriter.print(i);
+            theWriter.println();
+            theWriters.add(theWriter);
+        }
+
+        WASMSSAWriter theDispatch = theWriters.get(theWriters.size() - 1).withDeeperIndent();
+        long theMinimum = aCases.firstKey();
+        long theRange = aCases.lastKey() - theMinimum + 1;
+        if (theRange <= MAXIMUM_TABLE_SIZE && theRange <= aCases.size() * MAXIMUM_TABLE_GAP_FACTOR) {
+            // Dense keys are dispatched by a jump table. Values out of range, including values
+            // below the minimum, are greater than the table size when compared unsigned
+            theDispatch.print("(br_table");
+            for (long theKey = theMinimum; theKey <= aCases.lastKey(); theKey++) {
+                Integer theIndex = theBodyIndex.get(theKey);
+                if (theIndex != null) {
+                    theDispatch.print(" $switch_case_");
+                    theDispatch.print(theIndex);
+                } else {
+                    theDispatch.print(" $switch_default");
+                }
+            }
+            theDispatch.print(" $switch_default ");
+            if (theMinimum != 0) {
+                theDispatch.print("(i32.sub ");
+                theDispatch.writeValue(aValue);
+                theDispatch.print(" (i32.const ");
+                theDispatch.print(theMinimum);
+                theDispatch.print("))");
+            } else {
+                theDispatch.writeValue(aValue);
+            }
+            theDispatch.println(")");
+        } else {
+            // Sparse keys are dispatched by a binary search
+            theDispatch.print("(set_local $__switch__ ");
+            theDispatch.writeValue(aValue);
+            theDispatch.println(")");
+            long[] theKeys = new long[aCases.size()];
+            int theOffset = 0;
+            for (Long theKey : aCases.keySet()) {
+                theKeys[theOffset++] = theKey;
+            }
+            theDispatch.writeSwitchSearch(theKeys, 0, theKeys.length, theBodyIndex);
+        }
 
-            theChild5.writeExpressionList(theEntry.getValue());
-            theChild5.println();
+        for (int i = 0; i < theBodies.size(); i++) {
+            WASMSSAWriter theWriter = theWriters.get(theWriters.size() - 1 - i);
+            theWriter.println(")");
+            theWriter.writeExpressionList(theBodies.get(i));
+            theWriter.println("(br $switch_end)");
+        }
+        theWriters.get(1).println(")");
+        theWriters.get(1).writeExpressionList(aDefault);
+        println(")");
+    }
 
-            theChild4.println(")");
+    /**
+     * Identifies the jump target of a case consisting of a single jump, or null if the case has other code.
+     */
+    private static Object switchTargetOf(ExpressionList aCase) {
+        if (aCase.size() != 1) {
+            return null;
+        }
+        Expression theExpression = aCase.lastExpression();
+        if (theExpression instanceof GotoExpression) {
+            return Arrays.asList(GotoExpression.class, ((GotoExpression) theExpression).getJumpTarget());
         }
+        if (theExpression instanceof BreakExpression) {
+            BreakExpression theBreak = (BreakExpression) theExpression;
+            return Arrays.asList(BreakExpression.class, theBreak.blockToBreak(), theBreak.jumpTarget(),
+                    theBreak.isSilent(), theBreak.isSetLabelRequired());
+        }
+        if (theExpression instanceof ContinueExpression) {
+            ContinueExpression theContinue = (ContinueExpression) theExpression;
+            return Arrays.asList(ContinueExpression.class, theContinue.labelToReturnTo(), theContinue.jumpTarget());
+        }
+        return null;
+    }
 
+    private void writeSwitchSearch(long[] aKeys, int aFrom, int aTo, Map<Long, Integer> aBodyIndex) {
+        if (aTo - aFrom <= MAXIMUM_LINEAR_SEARCH) {
+            for (int i = aFrom; i < aTo; i++) {
+                print("(br_if $switch_case_");
+                print(aBodyIndex.get(aKeys[i]));
+                print(" (i32.eq (get_local $__switch__) (i32.const ");
+                print(aKeys[i]);
+                println(")))");
+            }
+            println("(br $switch_default)");
+            return;
+        }
+        int theMiddle = (aFrom + aTo) >>> 1;
+        println("(block $switch_lower");
+        WASMSSAWriter theUpper = withDeeperIndent();
+        theUpper.print("(br_if $switch_lower (i32.lt_s (get_local $__switch__) (i32.const ");
+        theUpper.print(aKeys[theMiddle]);
+        theUpper.println(")))");
+        theUpper.writeSwitchSearch(aKeys, theMiddle, aTo, aBodyIndex);
         println(")");
-        println("(unreachable)");
+        writeSwitchSearch(aKeys, aFrom, theMiddle, aBodyIndex);
     }
 
     private void writeInvokeVirtualExpression(InvokeVirtualMethodExpression aExpression) {
@@ -389,21 +429,16 @@ public class WASMSSAWriter extends IndentSSAWriter {
         Value theIndex = theIncomingData.get(1);
         Value theValue = theIncomingData.get(2);
 
+        TypeRef theArrayType = aExpression.getArrayType();
+        int theElementSize = WASMMemoryLayouter.arrayElementSizeOf(theArrayType);
+
         // If the index is a constant, we can precompute the offset.
         if (theIndex instanceof IntegerValue) {
-            int offset = 20 + ((IntegerValue)theIndex).getIntValue() * 4;
+            int offset = WASMMemoryLayouter.ARRAY_DATA_OFFSET + ((IntegerValue)theIndex).getIntValue() * theElementSize;
 
-            switch (aExpression.getArrayType().resolve()) {
-                case DOUBLE:
-                case FLOAT: {
-                    print("(f32.store ");
-                    break;
-                }
-                default: {
-                    print("(i32.store ");
-                    break;
-                }
-            }
+            print("(");
+            print(arrayStoreInstruction(theArrayType));
+            print(" ");
 
             print("offset="+offset+" ");
 
@@ -416,17 +451,11 @@ public class WASMSSAWriter extends IndentSSAWriter {
             return;
         }
 
-        switch (aExpression.getArrayType().resolve()) {
-            case DOUBLE:
-            case FLOAT: {
-                println("(f32.store offset=20 ");
-                break;
-            }
-            default: {
-                println("(i32.store offset=20 ");
-                break;
-            }
-        }
+        print("(");
+        print(arrayStoreInstruction(theArrayType));
+        print(" offset=");
+        print(WASMMemoryLayouter.ARRAY_DATA_OFFSET);
+        println();
 
         WASMSSAWriter theChild = withDeeperIndent();
 
@@ -434,8 +463,9 @@ public class WASMSSAWriter extends IndentSSAWriter {
         theChild.writeValue(theArray);
         theChild.print(" (i32.mul ");
         theChild.writeValue(theIndex);
-        theChild.print(" (i32.const 4)");
-        theChild.println("))");
+        theChild.print(" (i32.const ");
+        theChild.print(theElementSize);
+        theChild.println(")))");
 
         theChild.writeValue(theValue);
         theChild.println();
@@ -453,26 +483,24 @@ public class WASMSSAWriter extends IndentSSAWriter {
         println();
     }
 
+    private BytecodeLinkedClass declaringClassOf(BytecodeFieldRefConstant aField) {
+        // Static fields are stored in the runtime class of their declaring class
+        return linkerContext.resolveClass(BytecodeObjectTypeRef.fromUtf8Constant(aField.getClassIndex().getClassConstant().getConstant()))
+                .declaringClassOfStaticField(aField.getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue());
+    }
+
     private void writePutStaticExpression(PutStaticExpression aExpression) {
 
-        WASMMemoryLayouter.MemoryLayout theLayout = memoryLayouter.layoutFor(BytecodeObjectTypeRef.fromUtf8Constant(aExpression.getField().getClassIndex().getClassConstant().getConstant()));
+        BytecodeLinkedClass theDeclaringClass = declaringClassOf(aExpression.getField());
+        WASMMemoryLayouter.MemoryLayout theLayout = memoryLayouter.layoutFor(theDeclaringClass.getClassName());
         int theMemoryOffset = theLayout.offsetForClassMember(aExpression.getField().getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue());
 
         List<Value> theIncomingData = aExpression.incomingDataFlows();
 
-        String theClassName = WASMWriterUtils.toClassName(aExpression.getField().getClassIndex().getClassConstant());
-        switch (theIncomingData.get(0).resolveType().resolve()) {
-            case DOUBLE:
-            case FLOAT: {
-                print("(f32.store offset=");
-                break;
-            }
-            default: {
-                print("(i32.store offset=");
-                break;
-            }
-
-        }
+        String theClassName = WASMWriterUtils.toClassName(theDeclaringClass.getClassName());
+        print("(");
+        print(WASMWriterUtils.toType(theIncomingData.get(0).resolveType()));
+        print(".store offset=");
         print(theMemoryOffset);
         println();
 
@@ -508,15 +536,9 @@ public class WASMSSAWriter extends IndentSSAWriter {
         BytecodeResolvedFields theInstanceFields = theLinkedClass.resolvedFields();
         BytecodeResolvedFields.FieldEntry theField = theInstanceFields.fieldByName(aExpression.getField().getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue());
 
-        switch (TypeRef.toType(theField.getValue().getTypeRef()).resolve()) {
-            case DOUBLE:
-            case FLOAT:
-                print("(f32.store offset=");
-                break;
-            default:
-                print("(i32.store offset=");
-                break;
-        }
+        print("(");
+        print(WASMWriterUtils.toType(TypeRef.toType(theField.getValue().getTypeRef())));
+        print(".store offset=");
         print(theMemoryOffset);
         println();
 
@@ -574,41 +596,16 @@ public class WASMSSAWriter extends IndentSSAWriter {
             return;
         }
 
-        if (isStackVariable(theVariable)) {
-            switch (theVariable.resolveType().resolve()) {
-                case DOUBLE:
-                case FLOAT: {
-                    print("(f32.store offset=");
-                    break;
-                }
-                case UNKNOWN:
-                    throw new IllegalStateException();
-                default: {
-                    print("(i32.store offset=");
-                    break;
-                }
-            }
-            print(stackOffsetFor(theVariable));
-            println(" (get_local $SP)");
-
-            WASMSSAWriter theChild = withDeeperIndent();
-            theChild.writeValue(theNewValue);
-
-            println();
-            println(")");
-
-        } else {
-            println(";; setting local variable with type " + theVariable.resolveType().resolve() + " with value of type " + theNewValue.resolveType().resolve());
-            print("(set_local $");
-            print(theVariable.getName());
-            println();
+        println(";; setting local variable with type " + theVariable.resolveType().resolve() + " with value of type " + theNewValue.resolveType().resolve());
+        print("(set_local $");
+        print(theVariable.getName());
+        println();
 
-            WASMSSAWriter theChild = withDeeperIndent();
-            theChild.writeValue(theNewValue);
+        WASMSSAWriter theChild = withDeeperIndent();
+        theChild.writeValue(theNewValue);
 
-            println();
-            println(")");
-        }
+        println();
+        println(")");
     }
 
     private void writeValue(Value aValue) {
@@ -772,8 +769,11 @@ public class WASMSSAWriter extends IndentSSAWriter {
     }
 
     private void writeSqrtValue(SqrtExpression aValue) {
-        print("(f32.sqrt ");
-        writeValue(aValue.incomingDataFlows().get(0));
+        Value theValue = aValue.incomingDataFlows().get(0);
+        print("(");
+        print(WASMWriterUtils.toType(theValue.resolveType()));
+        print(".sqrt ");
+        writeValue(theValue);
         print(")");
     }
 
@@ -789,14 +789,14 @@ public class WASMSSAWriter extends IndentSSAWriter {
                         BytecodeObjectTypeRef.fromRuntimeClass(MemoryManager.class),
                         "newArray",
                         new BytecodeMethodSignature(BytecodeObjectTypeRef.fromRuntimeClass(
-                                Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT}));
+                                Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.BOOLEAN}));
                 break;
             case 2:
                 theMethodName = WASMWriterUtils.toMethodName(
                         BytecodeObjectTypeRef.fromRuntimeClass(MemoryManager.class),
                         "newArray",
                         new BytecodeMethodSignature(BytecodeObjectTypeRef.fromRuntimeClass(
-                                Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT}));
+                                Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.BOOLEAN}));
                 break;
             default:
                 throw new IllegalStateException("Unsupported number of dimensions : " + theDimensions.size());
@@ -811,13 +811,31 @@ public class WASMSSAWriter extends IndentSSAWriter {
             writeValue(theDimension);
         }
 
+        // The size of a single element of the innermost arrays
+        BytecodeArrayTypeRef theArrayType = (BytecodeArrayTypeRef) theType;
+        boolean theInnermostReferences = theArrayType.getDepth() > theDimensions.size() || !theArrayType.getType().isPrimitive();
+        print(" (i32.const ");
+        if (theInnermostReferences) {
+            print(WASMMemoryLayouter.OBJECT_FIELDSIZE);
+        } else {
+            print(WASMMemoryLayouter.arrayElementSizeOf(TypeRef.toType(theArrayType.getType())));
+        }
+        print(")");
+
         // We also need the runtime class
         print(" (get_global $TArray__runtimeClass)");
-        // Plus the vtable index
+        // Plus the vtable address
         print(" (i32.const ");
-        print(idResolver.resolveVTableMethodByType(BytecodeObjectTypeRef.fromRuntimeClass(TArray.class)));
+        print(idResolver.resolveVTableAddressByType(BytecodeObjectTypeRef.fromRuntimeClass(TArray.class)));
         print(")");
 
+        // Do the innermost arrays hold references?
+        if (theInnermostReferences) {
+            print(" (i32.const 1)");
+        } else {
+            print(" (i32.const 0)");
+        }
+
         println(") ;; new array of type " + theType);
     }
 
@@ -862,11 +880,20 @@ public class WASMSSAWriter extends IndentSSAWriter {
     }
 
     private void writeMethodTypeValue(MethodTypeExpression aValue) {
-//        print("(i32.const ");
-//        print(idResolver.resolveTypeIDForSignature(aValue.getSignature()));
-//        print(")");
+        // Method types are only used to create lambdas, so they are represented by the lambda vtable
+        // of the returned functional interface
         println();
         println(";; " + WASMWriterUtils.toMethodSignature(aValue.getSignature(), false));
+        BytecodeTypeRef theReturnType = aValue.getSignature().getReturnType();
+        if (theReturnType instanceof BytecodeObjectTypeRef) {
+            BytecodeLinkedClass theLinkedClass = linkerContext.isLinkedOrNull((BytecodeObjectTypeRef) theReturnType);
+            if (theLinkedClass != null && theLinkedClass.getBytecodeClass().getAccessFlags().isInterface()) {
+                print("(i32.const ");
+                print(idResolver.resolveLambdaVTableAddressByType(theLinkedClass.getClassName()));
+                print(")");
+                return;
+            }
+        }
         print("(i32.const 0)");
     }
 
@@ -886,8 +913,17 @@ public class WASMSSAWriter extends IndentSSAWriter {
     }
 
     private void writeDoubleValue(DoubleValue aValue) {
-        print("(f32.const ");
-        print(aValue.getDoubleValue());
+        double theValue = aValue.getDoubleValue();
+        print("(f64.const ");
+        if (Double.isNaN(theValue)) {
+            print("nan");
+        } else if (theValue == Double.POSITIVE_INFINITY) {
+            print("inf");
+        } else if (theValue == Double.NEGATIVE_INFINITY) {
+            print("-inf");
+        } else {
+            print(theValue);
+        }
         print(")");
     }
 
@@ -895,10 +931,27 @@ public class WASMSSAWriter extends IndentSSAWriter {
 
         BytecodeLinkedClass theClass = linkerContext.resolveClass(BytecodeObjectTypeRef.fromUtf8Constant(aValue.getType().getConstant()));
 
-        print("(call $INSTANCEOF_CHECK ");
+        if (typeEncoding.isInterface(theClass)) {
+            // Test the bit of the interface in the bitset of the type
+            int theBit = typeEncoding.interfaceBitOf(theClass);
+            print("(call $INSTANCEOF_INTERFACE ");
+            writeValue(aValue.incomingDataFlows().get(0));
+            print(" (i32.const ");
+            print((theBit / 32) * 4);
+            print(") (i32.const ");
+            print(1 << (theBit % 32));
+            println("))");
+            return;
+        }
+
+        // Subclasses have type ids in the interval from the class type id to its last subtype id
+        int theFirst = typeEncoding.typeIdOf(theClass);
+        print("(call $INSTANCEOF_CLASS ");
         writeValue(aValue.incomingDataFlows().get(0));
         print(" (i32.const ");
-        print(theClass.getUniqueId());
+        print(theFirst);
+        print(") (i32.const ");
+        print(typeEncoding.lastSubtypeIdOf(theClass) - theFirst);
         println("))");
     }
 
@@ -907,11 +960,18 @@ public class WASMSSAWriter extends IndentSSAWriter {
         switch (theValue.resolveType().resolve()) {
             case DOUBLE:
             case FLOAT: {
-                    print("(f32.neg ");
+                    print("(");
+                    print(WASMWriterUtils.toType(theValue.resolveType()));
+                    print(".neg ");
                     writeValue(theValue);
                     print(")");
                 }
                 break;
+            case LONG:
+                print("(i64.sub (i64.const 0) ");
+                writeValue(theValue);
+                print(")");
+                break;
             default:
                 print("(i32.mul (i32.const -1) ");
                 writeValue(theValue);
@@ -933,9 +993,14 @@ public class WASMSSAWriter extends IndentSSAWriter {
 
         switch (theValue1Type) {
             case DOUBLE:
+                print("(call $compareValueF64 ");
+                break;
             case FLOAT:
                 print("(call $compareValueF32 ");
                 break;
+            case LONG:
+                print("(call $compareValueI64 ");
+                break;
             default:
                 print("(call $compareValueI32 ");
                 break;
@@ -947,17 +1012,13 @@ public class WASMSSAWriter extends IndentSSAWriter {
     }
 
     private void writeArrayEntryValue(ArrayEntryExpression aValue) {
-        switch (aValue.resolveType().resolve()) {
-            case DOUBLE:
-            case FLOAT: {
-                print("(f32.load offset=20 ");
-                break;
-            }
-            default: {
-                print("(i32.load offset=20 ");
-                break;
-            }
-        }
+        TypeRef theType = aValue.resolveType();
+
+        print("(");
+        print(arrayLoadInstruction(theType));
+        print(" offset=");
+        print(WASMMemoryLayouter.ARRAY_DATA_OFFSET);
+        print(" ");
 
         List<Value> theIncomingFlows = aValue.incomingDataFlows();
 
@@ -965,15 +1026,45 @@ public class WASMSSAWriter extends IndentSSAWriter {
         writeValue(theIncomingFlows.get(0));
         print(" (i32.mul ");
         writeValue(theIncomingFlows.get(1));
-        print(" (i32.const 4)");
-        println("))");
+        print(" (i32.const ");
+        print(WASMMemoryLayouter.arrayElementSizeOf(theType));
+        println(")))");
 
         println(")");
     }
 
+    private static String arrayLoadInstruction(TypeRef aElementType) {
+        // Packed elements are sign or zero extended to i32 while loading
+        switch (aElementType.resolve()) {
+            case BYTE:
+            case BOOLEAN:
+                return "i32.load8_s";
+            case SHORT:
+                return "i32.load16_s";
+            case CHAR:
+                return "i32.load16_u";
+            default:
+                return WASMWriterUtils.toType(aElementType) + ".load";
+        }
+    }
+
+    private static String arrayStoreInstruction(TypeRef aElementType) {
+        // Packed elements are truncated while storing
+        switch (aElementType.resolve()) {
+            case BYTE:
+            case BOOLEAN:
+                return "i32.store8";
+            case SHORT:
+            case CHAR:
+                return "i32.store16";
+            default:
+                return WASMWriterUtils.toType(aElementType) + ".store";
+        }
+    }
+
     private void writeStringValue(StringValue aValue) {
-        print("(get_global $");
-        print(idResolver.resolveStringPoolFunctionName(aValue.getStringValue()));
+        print("(i32.const ");
+        print(idResolver.resolveStringConstantAddress(aValue.getStringValue()));
         print(")");
     }
 
@@ -985,7 +1076,7 @@ public class WASMSSAWriter extends IndentSSAWriter {
                 BytecodeObjectTypeRef.fromRuntimeClass(MemoryManager.class),
                 "newArray",
                 new BytecodeMethodSignature(BytecodeObjectTypeRef.fromRuntimeClass(
-                        Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT}));
+                        Address.class), new BytecodeTypeRef[] {BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.INT, BytecodePrimitiveTypeRef.BOOLEAN}));
 
         print("(call $");
         print(theMethodName);
@@ -993,26 +1084,52 @@ public class WASMSSAWriter extends IndentSSAWriter {
 
         withDeeperIndent().writeValue(aValue.incomingDataFlows().get(0));
 
+        // The size of a single element
+        print(" (i32.const ");
+        print(WASMMemoryLayouter.arrayElementSizeOf(TypeRef.toType(theType)));
+        print(")");
+
         // We also need the runtime class
         print(" (get_global $TArray__runtimeClass)");
-        // Plus the vtable index
+        // Plus the vtable address
         print(" (i32.const ");
-        print(idResolver.resolveVTableMethodByType(BytecodeObjectTypeRef.fromRuntimeClass(TArray.class)));
+        print(idResolver.resolveVTableAddressByType(BytecodeObjectTypeRef.fromRuntimeClass(TArray.class)));
         print(")");
+        // Plus the information if the garbage collector has to follow the elements
+        if (theType.isPrimitive()) {
+            print(" (i32.const 0)");
+        } else {
+            print(" (i32.const 1)");
+        }
 
         println(") ;; new array of type " + theType);
     }
 
     private void writeArrayLengthValue(ArrayLengthExpression aValue) {
-        println("(i32.load offset=16 ");
+        print("(i32.load offset=");
+        print(WASMMemoryLayouter.ARRAY_LENGTH_OFFSET);
+        println();
         withDeeperIndent().writeValue(aValue.incomingDataFlows().get(0));
         println();
         println(")");
     }
 
     private void writeFloorValue(FloorExpression aValue) {
-        println("(i32.trunc_s/f32 (f32.floor ");
-        withDeeperIndent().writeValue(aValue.incomingDataFlows().get(0));
+        Value theValue = aValue.incomingDataFlows().get(0);
+        String theSourceType = WASMWriterUtils.toType(theValue.resolveType());
+        if (theSourceType.startsWith("i")) {
+            // Integer division truncates towards zero just like the JVM does
+            writeValue(theValue);
+            return;
+        }
+        print("(");
+        print(WASMWriterUtils.toType(aValue.resolveType()));
+        print(".trunc_s/");
+        print(theSourceType);
+        print(" (");
+        print(theSourceType);
+        println(".floor ");
+        withDeeperIndent().writeValue(theValue);
         println("))");
     }
 
@@ -1037,32 +1154,20 @@ public class WASMSSAWriter extends IndentSSAWriter {
             println();
         }
 
+        BytecodeVirtualMethodIdentifier theMethodIdentifier = linkerContext.getMethodCollection().toIdentifier(aValue.getMethodName(), aValue.getSignature());
+        if (theMethodIdentifier == null) {
+            throw new IllegalStateException("No virtual table slot for " + aValue.getMethodName());
+        }
 
+        // The function table index is loaded from the slot of the virtual method table
         WASMSSAWriter theChild = withDeeperIndent();
-        theChild.println("(call_indirect $t_RESOLVEMETHOD");
-
-        WASMSSAWriter theChild2 = theChild.withDeeperIndent();
-
-        theChild2.writeValue(theTarget);
-        theChild2.println();
-
-        // This is the method number
-        theChild2.print("(i32.const ");
-
-        BytecodeVirtualMethodIdentifier theMethodIdentifier = linkerContext.getMethodCollection().identifierFor(aValue.getMethodName(), aValue.getSignature());
-        theChild2.print(theMethodIdentifier.getIdentifier());
-
-        theChild2.println(")");
-
-        // And this is the pointer into the function table
-        theChild2.print("(i32.load offset=4 ");
-        theChild2.writeValue(theTarget);
-        theChild2.println(")");   // This is id of the virtual table method
-
-        theChild.println(")");
+        theChild.print("(i32.load offset=");
+        theChild.print(WASMMemoryLayouter.vtableOffsetFor(theMethodIdentifier));
+        theChild.print(" (i32.load offset=4 ");
+        theChild.writeValue(theTarget);
+        theChild.println("))");
 
         println(")");
-
     }
 
     private void writeFloatValue(FloatValue aValue) {
@@ -1098,7 +1203,9 @@ public class WASMSSAWriter extends IndentSSAWriter {
     private void writeTypeConversion(TypeConversionExpression aValue) {
         TypeRef theTargetType = aValue.resolveType();
         Value theSource = aValue.incomingDataFlows().get(0);
-        if (Objects.equals(theTargetType.resolve(), theSource.resolveType().resolve())) {
+        String theTargetWASMType = WASMWriterUtils.toType(theTargetType);
+        String theSourceWASMType = WASMWriterUtils.toType(theSource.resolveType());
+        if (Objects.equals(theTargetWASMType, theSourceWASMType)) {
             // No conversion needed!
             writeValue(theSource);
             return;
@@ -1107,27 +1214,33 @@ public class WASMSSAWriter extends IndentSSAWriter {
             case DOUBLE:
             case FLOAT: {
                 // Convert floating point to something else
-                switch (aValue.resolveType().resolve()) {
-                    case DOUBLE:
+                switch (theTargetType.resolve()) {
+                    case DOUBLE: {
+                        print("(f64.promote/f32 ");
+                        break;
+                    }
                     case FLOAT: {
-                        // No conversion needed
-                        writeValue(theSource);
-                        return;
+                        print("(f32.demote/f64 ");
+                        break;
                     }
                     case INT:
                     case SHORT:
                     case BYTE:
                     case LONG:
                     case CHAR: {
-                        // Convert f32 to i32
-                        print("(i32.trunc_s/f32 ");
-                        writeValue(theSource);
-                        print(")");
-                        return;
+                        print("(");
+                        print(theTargetWASMType);
+                        print(".trunc_s/");
+                        print(theSourceWASMType);
+                        print(" ");
+                        break;
                     }
                     default:
                         throw new IllegalStateException("target type " + aValue.resolveType() + " not supported!");
                 }
+                writeValue(theSource);
+                print(")");
+                return;
             }
             case INT:
             case LONG:
@@ -1135,28 +1248,33 @@ public class WASMSSAWriter extends IndentSSAWriter {
             case SHORT:
             case CHAR: {
                 // Convert integer type to something else
-                // Convert floating point to something else
-                switch (aValue.resolveType().resolve()) {
-                case DOUBLE:
-                case FLOAT: {
-                    // Convert i32 to f32
-                    print("(f32.convert_s/i32 ");
-                    writeValue(theSource);
-                    print(")");
-                    return;
-                }
-                case INT:
-                case SHORT:
-                case BYTE:
-                case LONG:
-                case CHAR: {
-                    // No conversion needed
-                    writeValue(theSource);
-                    return;
-                }
-                default:
-                    throw new IllegalStateException("target type " + aValue.resolveType() + " not supported!");
+                switch (theTargetType.resolve()) {
+                    case DOUBLE:
+                    case FLOAT: {
+                        print("(");
+                        print(theTargetWASMType);
+                        print(".convert_s/");
+                        print(theSourceWASMType);
+                        print(" ");
+                        break;
+                    }
+                    case LONG: {
+                        print("(i64.extend_s/i32 ");
+                        break;
+                    }
+                    case INT:
+                    case SHORT:
+                    case BYTE:
+                    case CHAR: {
+                        print("(i32.wrap/i64 ");
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException("target type " + aValue.resolveType() + " not supported!");
                 }
+                writeValue(theSource);
+                print(")");
+                return;
             }
             default:
                 throw new IllegalStateException("Conversion of " + theSource.resolveType() + " not supported!");
@@ -1217,15 +1335,15 @@ public class WASMSSAWriter extends IndentSSAWriter {
     }
 
     private void writeLongValue(LongValue aValue) {
-        print("(i32.const ");
+        print("(i64.const ");
         print(aValue.getLongValue());
         print(")");
     }
 
     private void writeGetStaticValue(GetStaticExpression aValue) {
-        BytecodeLinkedClass theLinkedClass = linkerContext.resolveClass(BytecodeObjectTypeRef.fromUtf8Constant(aValue.getField().getClassIndex().getClassConstant().getConstant()));
+        BytecodeLinkedClass theLinkedClass = declaringClassOf(aValue.getField());
 
-        WASMMemoryLayouter.MemoryLayout theLayout = memoryLayouter.layoutFor(BytecodeObjectTypeRef.fromUtf8Constant(aValue.getField().getClassIndex().getClassConstant().getConstant()));
+        WASMMemoryLayouter.MemoryLayout theLayout = memoryLayouter.layoutFor(theLinkedClass.getClassName());
         int theMemoryOffset = theLayout.offsetForClassMember(aValue.getField().getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue());
         String theFieldName = aValue.getField().getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue();
         BytecodeResolvedFields theStaticFields = theLinkedClass.resolvedFields();
@@ -1234,18 +1352,10 @@ public class WASMSSAWriter extends IndentSSAWriter {
             throw new IllegalStateException("Field " + theFieldName + " is not static!");
         }
 
-        String theClassName = WASMWriterUtils.toClassName(aValue.getField().getClassIndex().getClassConstant());
-        switch (TypeRef.toType(theField.getValue().getTypeRef()).resolve()) {
-            case DOUBLE:
-            case FLOAT: {
-                print("(f32.load offset=");
-                break;
-            }
-            default: {
-                print("(i32.load offset=");
-                break;
-            }
-        }
+        String theClassName = WASMWriterUtils.toClassName(theLinkedClass.getClassName());
+        print("(");
+        print(WASMWriterUtils.toType(TypeRef.toType(theField.getValue().getTypeRef())));
+        print(".load offset=");
         print(theMemoryOffset);
         println();
 
@@ -1278,8 +1388,8 @@ public class WASMSSAWriter extends IndentSSAWriter {
         print(") (get_global $");
         print(WASMWriterUtils.toClassName(theLinkedClass.getClassName()));
         print("__runtimeClass) (i32.const ");
-        print(idResolver.resolveVTableMethodByType(theType));
-        print(")) ;; object of type " + aValue.getType().getConstant().stringValue());
+        print(idResolver.resolveVTableAddressByType(theType));
+        println(")) ;; object of type " + aValue.getType().getConstant().stringValue());
     }
 
     private void writeGetFieldValue(GetFieldExpression aValue) {
@@ -1295,15 +1405,9 @@ public class WASMSSAWriter extends IndentSSAWriter {
             throw new IllegalStateException("Field " + theFieldName + " is static!");
         }
 
-        switch (TypeRef.toType(theField.getValue().getTypeRef()).resolve()) {
-            case DOUBLE:
-            case FLOAT:
-                print("(f32.load offset=");
-                break;
-            default:
-                print("(i32.load offset=");
-                break;
-        }
+        print("(");
+        print(WASMWriterUtils.toType(TypeRef.toType(theField.getValue().getTypeRef())));
+        print(".load offset=");
         print(theMemoryOffset);
         println();
 
@@ -1335,8 +1439,9 @@ public class WASMSSAWriter extends IndentSSAWriter {
     }
 
     private void writeInvokeStaticValue(InvokeStaticMethodExpression aValue) {
+        BytecodeLinkedClass theDeclaringClass = linkerContext.resolveClass(aValue.getClassName()).declaringClassOfStaticMethod(aValue.getMethodName(), aValue.getSignature());
         print("(call $");
-        print(WASMWriterUtils.toMethodName(aValue.getClassName(), aValue.getMethodName(), aValue.getSignature()));
+        print(WASMWriterUtils.toMethodName(theDeclaringClass.getClassName(), aValue.getMethodName(), aValue.getSignature()));
 
         print(" (i32.const 0)"); // UNUSED Argument
 
@@ -1396,7 +1501,7 @@ public class WASMSSAWriter extends IndentSSAWriter {
                 break;
             }
             case LESSTHAN: {
-                if ("i32".equals(theType1)) {
+                if (theType1.startsWith("i")) {
                     println("(" + theType1 + ".lt_s ");
                 } else {
                     println("(" + theType1 + ".lt ");
@@ -1411,7 +1516,7 @@ public class WASMSSAWriter extends IndentSSAWriter {
                 break;
             }
             case LESSTHANOREQUALS: {
-                if ("i32".equals(theType1)) {
+                if (theType1.startsWith("i")) {
                     println("(" + theType1 + ".le_s ");
                 } else {
                     println("(" + theType1 + ".le ");
@@ -1426,7 +1531,7 @@ public class WASMSSAWriter extends IndentSSAWriter {
                 break;
             }
             case GREATEROREQUALS: {
-                if ("i32".equals(theType1)) {
+                if (theType1.startsWith("i")) {
                     println("(" + theType1 + ".ge_s ");
                 } else {
                     println("(" + theType1 + ".ge ");
@@ -1441,7 +1546,7 @@ public class WASMSSAWriter extends IndentSSAWriter {
                 break;
             }
             case GREATERTHAN: {
-                if ("i32".equals(theType1)) {
+                if (theType1.startsWith("i")) {
                     println("(" + theType1 + ".gt_s ");
                 } else {
                     println("(" + theType1 + ".gt ");
@@ -1480,20 +1585,24 @@ public class WASMSSAWriter extends IndentSSAWriter {
                 break;
             }
             case DIV: {
-                println("(f32.div ");
+                if (theType1.startsWith("i")) {
+                    println("(" + theType1 + ".div_s ");
+                } else {
+                    println("(" + theType1 + ".div ");
+                }
 
                 WASMSSAWriter theChild = withDeeperIndent();
-                theChild.printVariableNameOrValueAsFloat(theValue1);
+                theChild.writeValue(theValue1);
                 theChild.println();
-                theChild.printVariableNameOrValueAsFloat(theValue2);
+                theChild.writeValue(theValue2);
                 theChild.println();
 
                 println(")");
                 break;
             }
             case REMAINDER: {
-                if (theValue1.resolveType().resolve() == TypeRef.Native.INT) {
-                    println("(i32.rem_s ");
+                if (theType1.startsWith("i")) {
+                    println("(" + theType1 + ".rem_s ");
 
                     WASMSSAWriter theChild = withDeeperIndent();
                     theChild.writeValue(theValue1);
@@ -1504,7 +1613,11 @@ public class WASMSSAWriter extends IndentSSAWriter {
                     println(")");
                     break;
                 }
-                print("(call $float_remainder ");
+                if ("f64".equals(theType1)) {
+                    print("(call $double_remainder ");
+                } else {
+                    print("(call $float_remainder ");
+                }
 
                 WASMSSAWriter theChild = withDeeperIndent();
                 theChild.writeValue(theValue1);
@@ -1569,7 +1682,7 @@ public class WASMSSAWriter extends IndentSSAWriter {
                 WASMSSAWriter theChild = withDeeperIndent();
                 theChild.writeValue(theValue1);
                 theChild.println();
-                theChild.writeValue(theValue2);
+                theChild.writeShiftDistance(theValue2, theType1);
                 theChild.println();
 
                 println(")");
@@ -1581,7 +1694,7 @@ public class WASMSSAWriter extends IndentSSAWriter {
                 WASMSSAWriter theChild = withDeeperIndent();
                 theChild.writeValue(theValue1);
                 theChild.println();
-                theChild.writeValue(theValue2);
+                theChild.writeShiftDistance(theValue2, theType1);
                 theChild.println();
 
                 println(")");
@@ -1593,7 +1706,7 @@ public class WASMSSAWriter extends IndentSSAWriter {
                 WASMSSAWriter theChild = withDeeperIndent();
                 theChild.writeValue(theValue1);
                 theChild.println();
-                theChild.writeValue(theValue2);
+                theChild.writeShiftDistance(theValue2, theType1);
                 theChild.println();
 
                 println(")");
@@ -1616,51 +1729,44 @@ public class WASMSSAWriter extends IndentSSAWriter {
         println(")");
     }
 
-    private void printVariableNameOrValueAsFloat(Value aValue) {
-        switch (aValue.resolveType().resolve()) {
-            case DOUBLE:
-            case FLOAT:
-                writeValue(aValue);
-                break;
-            default:
-                print("(f32.convert_s/i32 ");
-                writeValue(aValue);
-                print(")");
-                break;
+    private void writeShiftDistance(Value aValue, String aType) {
+        // The shift distance is always an int, but WebAssembly requires both operands to be of the same type
+        if ("i64".equals(aType) && !"i64".equals(WASMWriterUtils.toType(aValue.resolveType()))) {
+            print("(i64.extend_u/i32 ");
+            writeValue(aValue);
+            print(")");
+            return;
         }
+        writeValue(aValue);
     }
 
     private void printVariableName(Variable aVariable) {
-        if (isStackVariable(aVariable)) {
-            switch (aVariable.resolveType().resolve()) {
-                case DOUBLE:
-                case FLOAT:
-                    print("(f32.load offset=");
-                    break;
-                case UNKNOWN:
-                    throw new IllegalStateException();
-                default:
-                    print("(i32.load offset=");
-                    break;
-            }
-            print(stackOffsetFor(aVariable));
-            print(" (get_local $SP)");
-            print(")");
-        } else {
-            print("(get_local ");
-            print("$");
-            print(aVariable.getName());
-            print(")");
+        print("(get_local ");
+        print("$");
+        print(aVariable.getName());
+        print(")");
+    }
+
+    private void writeSafepoint(List<Variable> aRoots) {
+        // Spill the live references, so the garbage collector sees them while a new object is allocated
+        int theOffset = WASMStackFrame.HEADER_SIZE;
+        for (Variable theRoot : aRoots) {
+            print("(i32.store offset=");
+            print(theOffset);
+            print(" (get_local $SP) ");
+            printVariableName(theRoot);
+            println(")");
+            theOffset += 4;
         }
+        print("(i32.store (get_local $SP) (i32.const ");
+        print(stackFrame.headerFor(aRoots));
+        println("))");
     }
 
     public void printStackEnter() {
-
-        int theStackSize = stackSize();
+        int theStackSize = stackFrame.size();
         if (theStackSize > 0) {
             println("(local $SP i32)");
-            println("(local $OLD_SP i32)");
-            println("(set_local $OLD_SP (get_global $STACKTOP))");
             print("(set_global $STACKTOP (i32.sub (get_global $STACKTOP) (i32.const ");
             print(theStackSize);
             println(")))");
@@ -1669,15 +1775,17 @@ public class WASMSSAWriter extends IndentSSAWriter {
     }
 
     private void printStackExit() {
-
-        int theStackSize = stackSize();
+        int theStackSize = stackFrame.size();
         if (theStackSize > 0) {
-            println("(set_global $STACKTOP (get_local $OLD_SP))");
+            print("(set_global $STACKTOP (i32.add (get_local $SP) (i32.const ");
+            print(theStackSize);
+            println(")))");
         }
     }
 
     public void writeRelooped(Relooper.Block aBlock) {
         println("(local $__label__ i32)");
+        println("(local $__switch__ i32)");
         printStackEnter();
         writeReloopedInternal(aBlock);
         println("(unreachable)");
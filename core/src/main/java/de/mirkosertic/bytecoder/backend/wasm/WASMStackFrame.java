@@ -0,0 +1,341 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import de.mirkosertic.bytecoder.ssa.ArrayEntryExpression;
+import de.mirkosertic.bytecoder.ssa.ArrayLengthExpression;
+import de.mirkosertic.bytecoder.ssa.ArrayStoreExpression;
+import de.mirkosertic.bytecoder.ssa.BinaryExpression;
+import de.mirkosertic.bytecoder.ssa.ByteValue;
+import de.mirkosertic.bytecoder.ssa.CheckCastExpression;
+import de.mirkosertic.bytecoder.ssa.ClassReferenceValue;
+import de.mirkosertic.bytecoder.ssa.CompareExpression;
+import de.mirkosertic.bytecoder.ssa.ComputedMemoryLocationReadExpression;
+import de.mirkosertic.bytecoder.ssa.ComputedMemoryLocationWriteExpression;
+import de.mirkosertic.bytecoder.ssa.CurrentExceptionExpression;
+import de.mirkosertic.bytecoder.ssa.DoubleValue;
+import de.mirkosertic.bytecoder.ssa.Expression;
+import de.mirkosertic.bytecoder.ssa.ExpressionList;
+import de.mirkosertic.bytecoder.ssa.ExpressionListContainer;
+import de.mirkosertic.bytecoder.ssa.FixedBinaryExpression;
+import de.mirkosertic.bytecoder.ssa.FloatValue;
+import de.mirkosertic.bytecoder.ssa.FloorExpression;
+import de.mirkosertic.bytecoder.ssa.GetFieldExpression;
+import de.mirkosertic.bytecoder.ssa.GetStaticExpression;
+import de.mirkosertic.bytecoder.ssa.GotoExpression;
+import de.mirkosertic.bytecoder.ssa.IFExpression;
+import de.mirkosertic.bytecoder.ssa.InstanceOfExpression;
+import de.mirkosertic.bytecoder.ssa.IntegerValue;
+import de.mirkosertic.bytecoder.ssa.LongValue;
+import de.mirkosertic.bytecoder.ssa.LookupSwitchExpression;
+import de.mirkosertic.bytecoder.ssa.MemorySizeExpression;
+import de.mirkosertic.bytecoder.ssa.NegatedExpression;
+import de.mirkosertic.bytecoder.ssa.NullValue;
+import de.mirkosertic.bytecoder.ssa.PHIExpression;
+import de.mirkosertic.bytecoder.ssa.Program;
+import de.mirkosertic.bytecoder.ssa.PutFieldExpression;
+import de.mirkosertic.bytecoder.ssa.PutStaticExpression;
+import de.mirkosertic.bytecoder.ssa.RegionNode;
+import de.mirkosertic.bytecoder.ssa.ReturnExpression;
+import de.mirkosertic.bytecoder.ssa.ReturnValueExpression;
+import de.mirkosertic.bytecoder.ssa.SetMemoryLocationExpression;
+import de.mirkosertic.bytecoder.ssa.ShortValue;
+import de.mirkosertic.bytecoder.ssa.SqrtExpression;
+import de.mirkosertic.bytecoder.ssa.StackTopExpression;
+import de.mirkosertic.bytecoder.ssa.StringValue;
+import de.mirkosertic.bytecoder.ssa.TableSwitchExpression;
+import de.mirkosertic.bytecoder.ssa.ThrowExpression;
+import de.mirkosertic.bytecoder.ssa.TypeConversionExpression;
+import de.mirkosertic.bytecoder.ssa.TypeOfExpression;
+import de.mirkosertic.bytecoder.ssa.TypeRef;
+import de.mirkosertic.bytecoder.ssa.UnreachableExpression;
+import de.mirkosertic.bytecoder.ssa.Value;
+import de.mirkosertic.bytecoder.ssa.Variable;
+import de.mirkosertic.bytecoder.ssa.VariableAssignmentExpression;
+
+/**
+ * The shadow stack frame of a function, which makes its references visible to the garbage collector.
+ *
+ * Variables live in WebAssembly locals. The garbage collector can only run while a new object is
+ * allocated, so every expression that might allocate is a safepoint. Right before a safepoint, the
+ * references that are live during it are spilled into the root slots of the frame, and the frame
+ * header is set to the size of the frame and the number of spilled roots. The collector walks the
+ * frames using their headers and only follows the slots in use, so frames never need to be cleared.
+ *
+ * References on the WebAssembly operand stack are invisible to the collector. Statements that keep a
+ * computed reference on the operand stack while evaluating a safepoint are split up, so the reference
+ * is kept in a variable instead.
+ */
+public class WASMStackFrame {
+
+    // The header holds the number of roots in the upper and the frame size in the lower half
+    public static final int HEADER_SIZE = 4;
+    public static final int MAXIMUM_FRAME_SIZE = 0xFFFF;
+
+    // Expressions and values that never call code that might allocate
+    private static final Set<Class<? extends Value>> NON_ALLOCATING = new HashSet<>(Arrays.asList(
+            Variable.class, IntegerValue.class, LongValue.class, FloatValue.class, DoubleValue.class, ByteValue.class,
+            ShortValue.class, NullValue.class, StringValue.class, ClassReferenceValue.class, CurrentExceptionExpression.class,
+            PHIExpression.class, GetFieldExpression.class, GetStaticExpression.class, ArrayEntryExpression.class,
+            ArrayLengthExpression.class, BinaryExpression.class, FixedBinaryExpression.class, CompareExpression.class,
+            NegatedExpression.class, TypeConversionExpression.class, CheckCastExpression.class, InstanceOfExpression.class,
+            FloorExpression.class, SqrtExpression.class, TypeOfExpression.class, StackTopExpression.class,
+            MemorySizeExpression.class, ComputedMemoryLocationReadExpression.class, ComputedMemoryLocationWriteExpression.class,
+            SetMemoryLocationExpression.class, VariableAssignmentExpression.class, PutFieldExpression.class,
+            PutStaticExpression.class, ArrayStoreExpression.class, IFExpression.class, GotoExpression.class,
+            ReturnExpression.class, ReturnValueExpression.class, ThrowExpression.class, UnreachableExpression.class,
+            TableSwitchExpression.class, LookupSwitchExpression.class));
+
+    private final Map<Expression, List<Variable>> roots;
+    private final int rootSlots;
+
+    private WASMStackFrame(Map<Expression, List<Variable>> aRoots) {
+        roots = aRoots;
+        int theSlots = 0;
+        for (List<Variable> theRoots : aRoots.values()) {
+            theSlots = Math.max(theSlots, theRoots.size());
+        }
+        rootSlots = theSlots;
+        if (size() > MAXIMUM_FRAME_SIZE) {
+            throw new IllegalStateException("Stack frame with " + rootSlots + " roots is too large");
+        }
+    }
+
+    /**
+     * Computes the frame of a method. Statements keeping references on the operand stack across a
+     * safepoint are split up, so this has to run before the program is relooped.
+     */
+    public static WASMStackFrame of(Program aProgram) {
+        Analysis theAnalysis = new Analysis(aProgram);
+        List<RegionNode> theNodes = aProgram.getControlFlowGraph().getKnownNodes();
+        for (RegionNode theNode : theNodes) {
+            theAnalysis.splitUnsafeStatements(theNode.getExpressions());
+        }
+
+        // Backward data flow analysis of the live variables, until a fixpoint is reached
+        boolean theChanged = true;
+        while (theChanged) {
+            theChanged = false;
+            for (int i = theNodes.size() - 1; i >= 0; i--) {
+                RegionNode theNode = theNodes.get(i);
+                Set<Variable> theLive = theAnalysis.liveBefore(theNode.getExpressions(), Collections.emptySet());
+                if (!theLive.equals(theAnalysis.liveIn.put(theNode, theLive))) {
+                    theChanged = true;
+                }
+            }
+        }
+
+        theAnalysis.recordRoots = true;
+        for (RegionNode theNode : theNodes) {
+            theAnalysis.liveBefore(theNode.getExpressions(), Collections.emptySet());
+        }
+        return new WASMStackFrame(theAnalysis.roots);
+    }
+
+    /**
+     * Computes the frame of straight line code without jumps.
+     */
+    public static WASMStackFrame of(Program aProgram, ExpressionList aExpressions) {
+        Analysis theAnalysis = new Analysis(aProgram);
+        theAnalysis.splitUnsafeStatements(aExpressions);
+        theAnalysis.recordRoots = true;
+        theAnalysis.liveBefore(aExpressions, Collections.emptySet());
+        return new WASMStackFrame(theAnalysis.roots);
+    }
+
+    /**
+     * The size of the frame in bytes, or zero if no frame is required.
+     */
+    public int size() {
+        if (rootSlots == 0) {
+            return 0;
+        }
+        return HEADER_SIZE + rootSlots * 4;
+    }
+
+    /**
+     * The references to spill before the expression, or null if it is not a safepoint.
+     */
+    public List<Variable> rootsAt(Expression aExpression) {
+        if (rootSlots == 0) {
+            return null;
+        }
+        return roots.get(aExpression);
+    }
+
+    public int headerFor(List<Variable> aRoots) {
+        return aRoots.size() << 16 | size();
+    }
+
+    private static boolean isSafepoint(Value aValue) {
+        if (!NON_ALLOCATING.contains(aValue.getClass())) {
+            return true;
+        }
+        if (aValue instanceof Variable) {
+            return false;
+        }
+        for (Value theValue : aValue.incomingDataFlows()) {
+            if (isSafepoint(theValue)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static boolean isReference(Value aValue) {
+        return aValue.resolveType().resolve() == TypeRef.Native.REFERENCE;
+    }
+
+    private static boolean isTrivial(Value aValue) {
+        return aValue instanceof Variable || aValue instanceof IntegerValue || aValue instanceof LongValue
+                || aValue instanceof FloatValue || aValue instanceof DoubleValue || aValue instanceof ByteValue
+                || aValue instanceof ShortValue || aValue instanceof NullValue || aValue instanceof StringValue
+                || aValue instanceof ClassReferenceValue;
+    }
+
+    private static class Analysis {
+
+        private final Program program;
+        private final Map<RegionNode, Set<Variable>> liveIn;
+        private final Map<Expression, List<Variable>> roots;
+        private boolean recordRoots;
+
+        Analysis(Program aProgram) {
+            program = aProgram;
+            liveIn = new HashMap<>();
+            roots = new IdentityHashMap<>();
+        }
+
+        void splitUnsafeStatements(ExpressionList aExpressions) {
+            for (Expression theExpression : aExpressions.toList()) {
+                if (theExpression instanceof ExpressionListContainer) {
+                    for (ExpressionList theList : ((ExpressionListContainer) theExpression).getExpressionLists()) {
+                        splitUnsafeStatements(theList);
+                    }
+                }
+                if (keepsReferenceOnOperandStack(theExpression)) {
+                    for (Value theValue : theExpression.incomingDataFlows()) {
+                        split(aExpressions, theExpression, theExpression, theValue);
+                    }
+                } else if (theExpression instanceof ReturnValueExpression && isSafepoint(theExpression)) {
+                    // The frame is left before the value is returned, so the value is computed first
+                    Value theValue = theExpression.incomingDataFlows().get(0);
+                    hoist(aExpressions, theExpression, theExpression, theValue);
+                }
+            }
+        }
+
+        private boolean keepsReferenceOnOperandStack(Value aValue) {
+            if (aValue instanceof Variable) {
+                return false;
+            }
+            List<Value> theOperands = aValue.incomingDataFlows();
+            for (int i = 0; i < theOperands.size(); i++) {
+                Value theOperand = theOperands.get(i);
+                if (isReference(theOperand) && !isTrivial(theOperand)) {
+                    // The operands might be evaluated in any order
+                    for (int j = 0; j < theOperands.size(); j++) {
+                        if (i != j && isSafepoint(theOperands.get(j))) {
+                            return true;
+                        }
+                    }
+                }
+                if (keepsReferenceOnOperandStack(theOperand)) {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private void split(ExpressionList aExpressions, Expression aStatement, Value aUser, Value aValue) {
+            if (isTrivial(aValue)) {
+                return;
+            }
+            // Operands are evaluated first, so the evaluation order stays the same
+            for (Value theOperand : aValue.incomingDataFlows()) {
+                split(aExpressions, aStatement, aValue, theOperand);
+            }
+            hoist(aExpressions, aStatement, aUser, aValue);
+        }
+
+        private void hoist(ExpressionList aExpressions, Expression aStatement, Value aUser, Value aValue) {
+            Variable theVariable = program.createVariable(aValue.resolveType());
+            theVariable.initializeWith(aValue);
+            aExpressions.addBefore(new VariableAssignmentExpression(theVariable, aValue).withComment("Split for the garbage collector"), aStatement);
+            aUser.replaceIncomingDataEdge(aValue, theVariable);
+        }
+
+        Set<Variable> liveBefore(ExpressionList aExpressions, Set<Variable> aLiveAfter) {
+            Set<Variable> theLive = new HashSet<>(aLiveAfter);
+            List<Expression> theExpressions = aExpressions.toList();
+            for (int i = theExpressions.size() - 1; i >= 0; i--) {
+                Expression theExpression = theExpressions.get(i);
+                if (theExpression instanceof GotoExpression) {
+                    RegionNode theTarget = program.getControlFlowGraph().nodeStartingAt(((GotoExpression) theExpression).getJumpTarget());
+                    theLive = new HashSet<>(liveIn.getOrDefault(theTarget, Collections.emptySet()));
+                    continue;
+                }
+                if (theExpression instanceof ReturnExpression || theExpression instanceof ReturnValueExpression
+                        || theExpression instanceof ThrowExpression || theExpression instanceof UnreachableExpression) {
+                    theLive = new HashSet<>();
+                }
+                if (theExpression instanceof ExpressionListContainer) {
+                    // The nested lists are alternatives, continuing with the following expression
+                    Set<Variable> theLiveAfter = new HashSet<>(theLive);
+                    for (ExpressionList theList : ((ExpressionListContainer) theExpression).getExpressionLists()) {
+                        theLive.addAll(liveBefore(theList, theLiveAfter));
+                    }
+                }
+                if (theExpression instanceof VariableAssignmentExpression) {
+                    theLive.remove(((VariableAssignmentExpression) theExpression).getVariable());
+                }
+                collectUsedVariables(theExpression, theLive);
+
+                if (recordRoots && isSafepoint(theExpression)) {
+                    List<Variable> theRoots = new ArrayList<>();
+                    for (Variable theVariable : theLive) {
+                        if (isReference(theVariable)) {
+                            theRoots.add(theVariable);
+                        }
+                    }
+                    theRoots.sort((o1, o2) -> o1.getName().compareTo(o2.getName()));
+                    roots.put(theExpression, theRoots);
+                }
+            }
+            return theLive;
+        }
+
+        private static void collectUsedVariables(Value aValue, Set<Variable> aResult) {
+            for (Value theValue : aValue.incomingDataFlows()) {
+                if (theValue instanceof Variable) {
+                    aResult.add((Variable) theValue);
+                } else {
+                    collectUsedVariables(theValue, aResult);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,585 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+import de.mirkosertic.bytecoder.api.EmulatedByRuntime;
+import de.mirkosertic.bytecoder.api.Import;
+import de.mirkosertic.bytecoder.core.BytecodeFieldRefConstant;
+import de.mirkosertic.bytecoder.core.BytecodeLinkedClass;
+import de.mirkosertic.bytecoder.core.BytecodeLinkerContext;
+import de.mirkosertic.bytecoder.core.BytecodeMethod;
+import de.mirkosertic.bytecoder.core.BytecodeMethodSignature;
+import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
+import de.mirkosertic.bytecoder.core.BytecodeTypeRef;
+import de.mirkosertic.bytecoder.ssa.ArrayEntryExpression;
+import de.mirkosertic.bytecoder.ssa.ArrayLengthExpression;
+import de.mirkosertic.bytecoder.ssa.ArrayStoreExpression;
+import de.mirkosertic.bytecoder.ssa.BinaryExpression;
+import de.mirkosertic.bytecoder.ssa.ByteValue;
+import de.mirkosertic.bytecoder.ssa.DirectInvokeMethodExpression;
+import de.mirkosertic.bytecoder.ssa.DoubleValue;
+import de.mirkosertic.bytecoder.ssa.Expression;
+import de.mirkosertic.bytecoder.ssa.ExpressionList;
+import de.mirkosertic.bytecoder.ssa.FixedBinaryExpression;
+import de.mirkosertic.bytecoder.ssa.FloatValue;
+import de.mirkosertic.bytecoder.ssa.GetFieldExpression;
+import de.mirkosertic.bytecoder.ssa.GetStaticExpression;
+import de.mirkosertic.bytecoder.ssa.GotoExpression;
+import de.mirkosertic.bytecoder.ssa.IFExpression;
+import de.mirkosertic.bytecoder.ssa.IntegerValue;
+import de.mirkosertic.bytecoder.ssa.InvokeStaticMethodExpression;
+import de.mirkosertic.bytecoder.ssa.LongValue;
+import de.mirkosertic.bytecoder.ssa.NegatedExpression;
+import de.mirkosertic.bytecoder.ssa.NewArrayExpression;
+import de.mirkosertic.bytecoder.ssa.NewObjectExpression;
+import de.mirkosertic.bytecoder.ssa.NullValue;
+import de.mirkosertic.bytecoder.ssa.Program;
+import de.mirkosertic.bytecoder.ssa.ProgramGeneratorFactory;
+import de.mirkosertic.bytecoder.ssa.PutFieldExpression;
+import de.mirkosertic.bytecoder.ssa.PutStaticExpression;
+import de.mirkosertic.bytecoder.ssa.RegionNode;
+import de.mirkosertic.bytecoder.ssa.ReturnExpression;
+import de.mirkosertic.bytecoder.ssa.ReturnValueExpression;
+import de.mirkosertic.bytecoder.ssa.ShortValue;
+import de.mirkosertic.bytecoder.ssa.StringValue;
+import de.mirkosertic.bytecoder.ssa.TypeRef;
+import de.mirkosertic.bytecoder.ssa.Value;
+import de.mirkosertic.bytecoder.ssa.Variable;
+import de.mirkosertic.bytecoder.ssa.VariableAssignmentExpression;
+
+/**
+ * Evaluates static initializers at compile time.
+ *
+ * Supported are branches and loops over int arithmetic and reference comparisons. The code may
+ * create arrays and objects, invoke constructors and static methods of the initialized class, and
+ * access its own static fields. Everything else, for instance long or floating point arithmetic,
+ * switches, exceptions or access to other classes, might have side effects or depend on the
+ * runtime, so such initializers are left to the runtime. Loops are bounded by a step limit.
+ *
+ * The result is a set of static field values, keyed by their offset in the runtime class. Values
+ * are boxed primitives, strings, {@link ObjectValue}s, {@link ArrayValue}s or null.
+ */
+public class WASMStaticInitializerEvaluator {
+
+    private static final int MAX_STEPS = 100000;
+    private static final int MAX_CALL_DEPTH = 32;
+
+    private static final Object VOID = new Object();
+
+    public static class ObjectValue {
+
+        private final BytecodeLinkedClass type;
+        private final Map<Integer, TypedValue> fields;
+
+        ObjectValue(BytecodeLinkedClass aType) {
+            type = aType;
+            fields = new HashMap<>();
+        }
+
+        public BytecodeLinkedClass getType() {
+            return type;
+        }
+
+        public Map<Integer, TypedValue> getFields() {
+            return fields;
+        }
+    }
+
+    public static class ArrayValue {
+
+        private final BytecodeTypeRef elementType;
+        private final Object[] elements;
+
+        ArrayValue(BytecodeTypeRef aElementType, int aLength) {
+            elementType = aElementType;
+            elements = new Object[aLength];
+            Object theDefault = defaultValue(TypeRef.toType(aElementType));
+            for (int i=0;i<aLength;i++) {
+                elements[i] = theDefault;
+            }
+        }
+
+        public BytecodeTypeRef getElementType() {
+            return elementType;
+        }
+
+        public Object[] getElements() {
+            return elements;
+        }
+    }
+
+    public static class TypedValue {
+
+        private final TypeRef type;
+        private final Object value;
+
+        TypedValue(TypeRef aType, Object aValue) {
+            type = aType;
+            value = aValue;
+        }
+
+        public TypeRef getType() {
+            return type;
+        }
+
+        public Object getValue() {
+            return value;
+        }
+    }
+
+    private static class Completion {
+
+        private final RegionNode jumpTarget;
+        private final Object returnValue;
+
+        Completion(RegionNode aJumpTarget, Object aReturnValue) {
+            jumpTarget = aJumpTarget;
+            returnValue = aReturnValue;
+        }
+    }
+
+    private static class NotEvaluableException extends RuntimeException {
+
+        NotEvaluableException(String aMessage) {
+            super(aMessage);
+        }
+    }
+
+    private final BytecodeLinkerContext linkerContext;
+    private final ProgramGeneratorFactory programGeneratorFactory;
+    private final WASMMemoryLayouter memoryLayouter;
+
+    private BytecodeLinkedClass initializedClass;
+    private Map<Integer, TypedValue> statics;
+    private int steps;
+
+    public WASMStaticInitializerEvaluator(BytecodeLinkerContext aLinkerContext, ProgramGeneratorFactory aProgramGeneratorFactory,
+            WASMMemoryLayouter aMemoryLayouter) {
+        linkerContext = aLinkerContext;
+        programGeneratorFactory = aProgramGeneratorFactory;
+        memoryLayouter = aMemoryLayouter;
+    }
+
+    /**
+     * Returns the static field values of the class after its static initializer ran, or null if the
+     * initializer cannot be evaluated at compile time.
+     */
+    public Map<Integer, TypedValue> evaluate(BytecodeLinkedClass aClass) {
+        BytecodeMethod theInitializer = aClass.getBytecodeClass().classInitializerOrNull();
+        if (theInitializer == null) {
+            return null;
+        }
+        Map<Integer, TypedValue> theStatics = new HashMap<>();
+        initializedClass = aClass;
+        statics = theStatics;
+        steps = 0;
+        try {
+            invoke(aClass, theInitializer, new ArrayList<>(), 0);
+            return theStatics;
+        } catch (NotEvaluableException e) {
+            linkerContext.getLogger().debug("Static initializer of {} is evaluated at runtime : {}", aClass.getClassName().name(), e.getMessage());
+            return null;
+        } finally {
+            initializedClass = null;
+            statics = null;
+        }
+    }
+
+    private static Object defaultValue(TypeRef aType) {
+        switch (aType.resolve()) {
+            case LONG:
+                return 0L;
+            case FLOAT:
+                return 0f;
+            case DOUBLE:
+                return 0d;
+            case REFERENCE:
+                return null;
+            default:
+                return 0;
+        }
+    }
+
+    private static String fieldName(BytecodeFieldRefConstant aField) {
+        return aField.getNameAndTypeIndex().getNameAndType().getNameIndex().getName().stringValue();
+    }
+
+    private static TypeRef fieldType(BytecodeFieldRefConstant aField) {
+        return TypeRef.toType(aField.getNameAndTypeIndex().getNameAndType().getDescriptorIndex().fieldType());
+    }
+
+    private static BytecodeObjectTypeRef fieldOwner(BytecodeFieldRefConstant aField) {
+        return BytecodeObjectTypeRef.fromUtf8Constant(aField.getClassIndex().getClassConstant().getConstant());
+    }
+
+    private int staticOffsetOf(BytecodeFieldRefConstant aField) {
+        // Fields inherited from a super class are stored in the runtime class of the super class
+        if (!Objects.equals(fieldOwner(aField), initializedClass.getClassName())
+                || linkerContext.resolveClass(fieldOwner(aField)).declaringClassOfStaticField(fieldName(aField)) != initializedClass) {
+            throw new NotEvaluableException("Access to static field " + fieldName(aField) + " of " + fieldOwner(aField).name());
+        }
+        return memoryLayouter.layoutFor(initializedClass.getClassName()).offsetForClassMember(fieldName(aField));
+    }
+
+    private int instanceOffsetOf(BytecodeFieldRefConstant aField) {
+        return memoryLayouter.layoutFor(fieldOwner(aField)).offsetForInstanceMember(fieldName(aField));
+    }
+
+    private static int intValueOf(Object aValue) {
+        if (!(aValue instanceof Integer)) {
+            throw new NotEvaluableException("Expected an int value, got " + aValue);
+        }
+        return (Integer) aValue;
+    }
+
+    private static ObjectValue objectValueOf(Object aValue) {
+        if (!(aValue instanceof ObjectValue)) {
+            throw new NotEvaluableException("Expected an object, got " + aValue);
+        }
+        return (ObjectValue) aValue;
+    }
+
+    private static Object[] elementsOf(Object aValue, int aIndex) {
+        if (!(aValue instanceof ArrayValue)) {
+            throw new NotEvaluableException("Expected an array, got " + aValue);
+        }
+        Object[] theElements = ((ArrayValue) aValue).elements;
+        if (aIndex < 0 || aIndex >= theElements.length) {
+            throw new NotEvaluableException("Array index out of bounds");
+        }
+        return theElements;
+    }
+
+    private boolean isEvaluable(BytecodeLinkedClass aClass, BytecodeMethod aMethod) {
+        if (aMethod.getAccessFlags().isNative() || aMethod.getAccessFlags().isAbstract()) {
+            return false;
+        }
+        if (aMethod.getAttributes().getAnnotationByType(Import.class.getName()) != null) {
+            return false;
+        }
+        return aClass.getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) == null;
+    }
+
+    private Object invoke(BytecodeLinkedClass aClass, BytecodeMethod aMethod, List<Object> aArguments, int aDepth) {
+        if (aDepth > MAX_CALL_DEPTH) {
+            throw new NotEvaluableException("Call depth exceeded");
+        }
+        if (!isEvaluable(aClass, aMethod)) {
+            throw new NotEvaluableException("Cannot evaluate " + aClass.getClassName().name() + "." + aMethod.getName().stringValue());
+        }
+
+        Program theProgram = programGeneratorFactory.createFor(linkerContext).generateFrom(aClass.getBytecodeClass(), aMethod);
+        List<Program.Argument> theArguments = theProgram.getArguments();
+        if (theArguments.size() != aArguments.size()) {
+            throw new NotEvaluableException("Argument count mismatch");
+        }
+        Map<Variable, Object> theVariables = new HashMap<>();
+        for (int i=0;i<theArguments.size();i++) {
+            theVariables.put(theArguments.get(i).getVariable(), aArguments.get(i));
+        }
+
+        RegionNode theCurrent = theProgram.getControlFlowGraph().startNode();
+        while (true) {
+            Completion theCompletion = execute(theProgram, theCurrent.getExpressions(), theVariables, aDepth);
+            if (theCompletion == null) {
+                throw new NotEvaluableException("Unexpected end of region");
+            }
+            if (theCompletion.jumpTarget == null) {
+                return theCompletion.returnValue;
+            }
+            theCurrent = theCompletion.jumpTarget;
+        }
+    }
+
+    private Completion execute(Program aProgram, ExpressionList aExpressions, Map<Variable, Object> aVariables, int aDepth) {
+        for (Expression theExpression : aExpressions.toList()) {
+            if (++steps > MAX_STEPS) {
+                throw new NotEvaluableException("Too many steps");
+            }
+            if (theExpression instanceof ReturnExpression) {
+                return new Completion(null, VOID);
+            }
+            if (theExpression instanceof ReturnValueExpression) {
+                return new Completion(null, evaluate(theExpression.incomingDataFlows().get(0), aVariables, aDepth));
+            }
+            if (theExpression instanceof GotoExpression) {
+                return new Completion(aProgram.getControlFlowGraph().nodeStartingAt(((GotoExpression) theExpression).getJumpTarget()), null);
+            }
+            if (theExpression instanceof IFExpression) {
+                Object theCondition = evaluate(theExpression.incomingDataFlows().get(0), aVariables, aDepth);
+                if (!(theCondition instanceof Boolean)) {
+                    throw new NotEvaluableException("Expected a boolean value, got " + theCondition);
+                }
+                if ((Boolean) theCondition) {
+                    Completion theCompletion = execute(aProgram, ((IFExpression) theExpression).getExpressions(), aVariables, aDepth);
+                    if (theCompletion != null) {
+                        return theCompletion;
+                    }
+                }
+                continue;
+            }
+            execute(theExpression, aVariables, aDepth);
+        }
+        return null;
+    }
+
+    private void execute(Expression aExpression, Map<Variable, Object> aVariables, int aDepth) {
+        List<Value> theIncomingData = aExpression.incomingDataFlows();
+        if (aExpression instanceof VariableAssignmentExpression) {
+            VariableAssignmentExpression theAssignment = (VariableAssignmentExpression) aExpression;
+            aVariables.put(theAssignment.getVariable(), evaluate(theAssignment.getValue(), aVariables, aDepth));
+            return;
+        }
+        if (aExpression instanceof PutStaticExpression) {
+            BytecodeFieldRefConstant theField = ((PutStaticExpression) aExpression).getField();
+            int theOffset = staticOffsetOf(theField);
+            statics.put(theOffset, new TypedValue(fieldType(theField), evaluate(theIncomingData.get(0), aVariables, aDepth)));
+            return;
+        }
+        if (aExpression instanceof PutFieldExpression) {
+            BytecodeFieldRefConstant theField = ((PutFieldExpression) aExpression).getField();
+            ObjectValue theTarget = objectValueOf(evaluate(theIncomingData.get(0), aVariables, aDepth));
+            Object theValue = evaluate(theIncomingData.get(1), aVariables, aDepth);
+            theTarget.fields.put(instanceOffsetOf(theField), new TypedValue(fieldType(theField), theValue));
+            return;
+        }
+        if (aExpression instanceof ArrayStoreExpression) {
+            Object theArray = evaluate(theIncomingData.get(0), aVariables, aDepth);
+            int theIndex = intValueOf(evaluate(theIncomingData.get(1), aVariables, aDepth));
+            Object theValue = evaluate(theIncomingData.get(2), aVariables, aDepth);
+            elementsOf(theArray, theIndex)[theIndex] = theValue;
+            return;
+        }
+        if (aExpression instanceof DirectInvokeMethodExpression || aExpression instanceof InvokeStaticMethodExpression) {
+            evaluate(aExpression, aVariables, aDepth);
+            return;
+        }
+        throw new NotEvaluableException("Unsupported expression " + aExpression.getClass().getSimpleName());
+    }
+
+    private Object evaluate(Value aValue, Map<Variable, Object> aVariables, int aDepth) {
+        if (aValue instanceof Variable) {
+            if (!aVariables.containsKey(aValue)) {
+                throw new NotEvaluableException("Variable " + ((Variable) aValue).getName() + " is not initialized");
+            }
+            return aVariables.get(aValue);
+        }
+        if (aValue instanceof NullValue) {
+            return null;
+        }
+        if (aValue instanceof IntegerValue) {
+            return ((IntegerValue) aValue).getIntValue();
+        }
+        if (aValue instanceof ByteValue) {
+            return (int) ((ByteValue) aValue).getByteValue();
+        }
+        if (aValue instanceof ShortValue) {
+            return (int) ((ShortValue) aValue).getShortValue();
+        }
+        if (aValue instanceof LongValue) {
+            return ((LongValue) aValue).getLongValue();
+        }
+        if (aValue instanceof FloatValue) {
+            return ((FloatValue) aValue).getFloatValue();
+        }
+        if (aValue instanceof DoubleValue) {
+            return ((DoubleValue) aValue).getDoubleValue();
+        }
+        if (aValue instanceof StringValue) {
+            return ((StringValue) aValue).getStringValue();
+        }
+
+        List<Value> theIncomingData = aValue.incomingDataFlows();
+        if (aValue instanceof BinaryExpression) {
+            Object theLeft = evaluate(theIncomingData.get(0), aVariables, aDepth);
+            Object theRight = evaluate(theIncomingData.get(1), aVariables, aDepth);
+            return binary(((BinaryExpression) aValue).getOperator(), theLeft, theRight);
+        }
+        if (aValue instanceof FixedBinaryExpression) {
+            Object theValue = evaluate(theIncomingData.get(0), aVariables, aDepth);
+            switch (((FixedBinaryExpression) aValue).getOperator()) {
+                case ISNULL:
+                    return theValue == null;
+                case ISNONNULL:
+                    return theValue != null;
+                default:
+                    return intValueOf(theValue) == 0;
+            }
+        }
+        if (aValue instanceof NegatedExpression) {
+            return -intValueOf(evaluate(theIncomingData.get(0), aVariables, aDepth));
+        }
+        if (aValue instanceof NewObjectExpression) {
+            BytecodeLinkedClass theType = linkerContext.resolveClass(BytecodeObjectTypeRef.fromUtf8Constant(((NewObjectExpression) aValue).getType().getConstant()));
+            // Creating an instance of another class would trigger its initialization
+            if (theType != initializedClass && theType.hasClassInitializer()) {
+                throw new NotEvaluableException("Instantiation of " + theType.getClassName().name());
+            }
+            if (theType.getBytecodeClass().getAttributes().getAnnotationByType(EmulatedByRuntime.class.getName()) != null) {
+                throw new NotEvaluableException("Instantiation of " + theType.getClassName().name());
+            }
+            return new ObjectValue(theType);
+        }
+        if (aValue instanceof NewArrayExpression) {
+            int theLength = intValueOf(evaluate(theIncomingData.get(0), aVariables, aDepth));
+            if (theLength < 0) {
+                throw new NotEvaluableException("Negative array size");
+            }
+            return new ArrayValue(((NewArrayExpression) aValue).getType(), theLength);
+        }
+        if (aValue instanceof GetStaticExpression) {
+            int theOffset = staticOffsetOf(((GetStaticExpression) aValue).getField());
+            TypedValue theValue = statics.get(theOffset);
+            if (theValue == null) {
+                // The field might have a constant value attribute, we do not know its value yet
+                throw new NotEvaluableException("Static field read before it is written");
+            }
+            return theValue.value;
+        }
+        if (aValue instanceof GetFieldExpression) {
+            BytecodeFieldRefConstant theField = ((GetFieldExpression) aValue).getField();
+            ObjectValue theTarget = objectValueOf(evaluate(theIncomingData.get(0), aVariables, aDepth));
+            TypedValue theValue = theTarget.fields.get(instanceOffsetOf(theField));
+            if (theValue == null) {
+                return defaultValue(fieldType(theField));
+            }
+            return theValue.value;
+        }
+        if (aValue instanceof ArrayEntryExpression) {
+            Object theArray = evaluate(theIncomingData.get(0), aVariables, aDepth);
+            int theIndex = intValueOf(evaluate(theIncomingData.get(1), aVariables, aDepth));
+            return elementsOf(theArray, theIndex)[theIndex];
+        }
+        if (aValue instanceof ArrayLengthExpression) {
+            Object theArray = evaluate(theIncomingData.get(0), aVariables, aDepth);
+            if (!(theArray instanceof ArrayValue)) {
+                throw new NotEvaluableException("Expected an array, got " + theArray);
+            }
+            return ((ArrayValue) theArray).elements.length;
+        }
+        if (aValue instanceof DirectInvokeMethodExpression) {
+            DirectInvokeMethodExpression theInvocation = (DirectInvokeMethodExpression) aValue;
+            BytecodeLinkedClass theClass = linkerContext.resolveClass(theInvocation.getClazz());
+            return invokeResult(theClass, findMethod(theClass, theInvocation.getMethodName(), theInvocation.getSignature()),
+                    evaluateAll(theIncomingData, aVariables, aDepth), aDepth);
+        }
+        if (aValue instanceof InvokeStaticMethodExpression) {
+            InvokeStaticMethodExpression theInvocation = (InvokeStaticMethodExpression) aValue;
+            if (!Objects.equals(theInvocation.getClassName(), initializedClass.getClassName())) {
+                throw new NotEvaluableException("Invocation of static method of " + theInvocation.getClassName().name());
+            }
+            BytecodeMethod theMethod = findMethod(initializedClass, theInvocation.getMethodName(), theInvocation.getSignature());
+            return invokeResult(initializedClass, theMethod, evaluateAll(theIncomingData, aVariables, aDepth), aDepth);
+        }
+        throw new NotEvaluableException("Unsupported value " + aValue.getClass().getSimpleName());
+    }
+
+    private static Object binary(BinaryExpression.Operator aOperator, Object aLeft, Object aRight) {
+        if (!(aLeft instanceof Integer) || !(aRight instanceof Integer)) {
+            // Only references can be compared for identity, everything else is int arithmetic
+            if (isReference(aLeft) && isReference(aRight)) {
+                switch (aOperator) {
+                    case EQUALS:
+                        return aLeft == aRight;
+                    case NOTEQUALS:
+                        return aLeft != aRight;
+                }
+            }
+            throw new NotEvaluableException("Unsupported operands for " + aOperator + " : " + aLeft + ", " + aRight);
+        }
+        int theLeft = (Integer) aLeft;
+        int theRight = (Integer) aRight;
+        switch (aOperator) {
+            case EQUALS:
+                return theLeft == theRight;
+            case NOTEQUALS:
+                return theLeft != theRight;
+            case LESSTHAN:
+                return theLeft < theRight;
+            case LESSTHANOREQUALS:
+                return theLeft <= theRight;
+            case GREATERTHAN:
+                return theLeft > theRight;
+            case GREATEROREQUALS:
+                return theLeft >= theRight;
+            case ADD:
+                return theLeft + theRight;
+            case SUB:
+                return theLeft - theRight;
+            case MUL:
+                return theLeft * theRight;
+            case DIV:
+                if (theRight == 0) {
+                    throw new NotEvaluableException("Division by zero");
+                }
+                return theLeft / theRight;
+            case REMAINDER:
+                if (theRight == 0) {
+                    throw new NotEvaluableException("Division by zero");
+                }
+                return theLeft % theRight;
+            case BINARYAND:
+                return theLeft & theRight;
+            case BINARYOR:
+                return theLeft | theRight;
+            case BINARYXOR:
+                return theLeft ^ theRight;
+            case BINARYSHIFTLEFT:
+                return theLeft << theRight;
+            case BINARYSHIFTRIGHT:
+                return theLeft >> theRight;
+            case BINARYUNSIGNEDSHIFTRIGHT:
+                return theLeft >>> theRight;
+            default:
+                throw new NotEvaluableException("Unsupported operator " + aOperator);
+        }
+    }
+
+    private static boolean isReference(Object aValue) {
+        return aValue == null || aValue instanceof ObjectValue || aValue instanceof ArrayValue;
+    }
+
+    private Object invokeResult(BytecodeLinkedClass aClass, BytecodeMethod aMethod, List<Object> aArguments, int aDepth) {
+        Object theResult = invoke(aClass, aMethod, aArguments, aDepth + 1);
+        return theResult == VOID ? null : theResult;
+    }
+
+    private List<Object> evaluateAll(List<Value> aValues, Map<Variable, Object> aVariables, int aDepth) {
+        List<Object> theResult = new ArrayList<>();
+        for (Value theValue : aValues) {
+            theResult.add(evaluate(theValue, aVariables, aDepth));
+        }
+        return theResult;
+    }
+
+    private static BytecodeMethod findMethod(BytecodeLinkedClass aClass, String aMethodName, BytecodeMethodSignature aSignature) {
+        BytecodeLinkedClass theCurrent = aClass;
+        while (theCurrent != null) {
+            BytecodeMethod theMethod = theCurrent.getBytecodeClass().methodByNameAndSignatureOrNull(aMethodName, aSignature);
+            if (theMethod != null) {
+                return theMethod;
+            }
+            theCurrent = theCurrent.getSuperClass();
+        }
+        throw new NotEvaluableException("Cannot find method " + aMethodName);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import de.mirkosertic.bytecoder.ssa.TypeRef;
+
+/**
+ * String constants laid out at compile time.
+ *
+ * Every constant is a string object immediately followed by its byte array, both 8 byte aligned.
+ * The pool is placed behind the static data once its size is known, so the constants are never
+ * touched by the garbage collector. The type words point to the runtime classes in the heap snapshot
+ * behind the pool.
+ */
+public class WASMStringPool {
+
+    private final WASMMemoryLayouter.MemoryLayout stringLayout;
+    private final Map<String, Integer> addresses;
+    private final List<String> constants;
+    private int startAddress;
+    private int endAddress;
+
+    public WASMStringPool(WASMMemoryLayouter.MemoryLayout aStringLayout) {
+        stringLayout = aStringLayout;
+        addresses = new HashMap<>();
+        constants = new ArrayList<>();
+        startAddress = -1;
+    }
+
+    public void placeAt(int aStartAddress) {
+        if (startAddress >= 0) {
+            throw new IllegalStateException("String pool is already placed at " + startAddress);
+        }
+        startAddress = aStartAddress;
+        endAddress = aStartAddress;
+    }
+
+    private static int aligned(int aSize) {
+        return (aSize + 7) & ~7;
+    }
+
+    private int stringObjectSize() {
+        return aligned(stringLayout.instanceSize());
+    }
+
+    private static int byteArraySize(String aValue) {
+        return aligned(WASMMemoryLayouter.ARRAY_DATA_OFFSET + aValue.length());
+    }
+
+    public int addressOf(String aValue) {
+        if (startAddress < 0) {
+            throw new IllegalStateException("String pool is not placed yet");
+        }
+        Integer theAddress = addresses.get(aValue);
+        if (theAddress == null) {
+            theAddress = endAddress;
+            addresses.put(aValue, theAddress);
+            constants.add(aValue);
+            endAddress += stringObjectSize() + byteArraySize(aValue);
+        }
+        return theAddress;
+    }
+
+    public int startAddress() {
+        return startAddress;
+    }
+
+    public int endAddress() {
+        return endAddress;
+    }
+
+    public boolean isEmpty() {
+        return constants.isEmpty();
+    }
+
+    static int hashCodeOf(String aValue) {
+        // Same as TString.hashCode(), strings are stored as bytes
+        int theHash = 0;
+        for (int i=0;i<aValue.length();i++) {
+            theHash = 31 * theHash + (byte) aValue.charAt(i);
+        }
+        return theHash;
+    }
+
+    private static void writeInt(byte[] aData, int aOffset, int aValue) {
+        // Little endian
+        for (int i=0;i<4;i++) {
+            aData[aOffset + i] = (byte) (aValue >>> (i * 8));
+        }
+    }
+
+    public byte[] toByteArray(int aStringRuntimeClassAddress, int aStringVTableAddress, int aArrayRuntimeClassAddress, int aArrayVTableAddress) {
+        byte[] theResult = new byte[endAddress - startAddress];
+        int theOffset = 0;
+        for (String theValue : constants) {
+            int theArrayOffset = theOffset + stringObjectSize();
+
+            writeInt(theResult, theOffset, aStringRuntimeClassAddress);
+            writeInt(theResult, theOffset + 4, aStringVTableAddress);
+            writeInt(theResult, theOffset + stringLayout.offsetForInstanceMember("computedHash"), hashCodeOf(theValue));
+            writeInt(theResult, theOffset + stringLayout.offsetForInstanceMember("data"), startAddress + theArrayOffset);
+
+            writeInt(theResult, theArrayOffset, aArrayRuntimeClassAddress);
+            writeInt(theResult, theArrayOffset + 4, aArrayVTableAddress);
+            writeInt(theResult, theArrayOffset + WASMMemoryLayouter.ARRAY_ELEMENTS_OFFSET, WASMMemoryLayouter.arrayElementsWordOf(TypeRef.Native.BYTE));
+            writeInt(theResult, theArrayOffset + WASMMemoryLayouter.ARRAY_LENGTH_OFFSET, theValue.length());
+            for (int i=0;i<theValue.length();i++) {
+                theResult[theArrayOffset + WASMMemoryLayouter.ARRAY_DATA_OFFSET + i] = (byte) theValue.charAt(i);
+            }
+
+            theOffset = theArrayOffset + byteArraySize(theValue);
+        }
+        return theResult;
+    }
+}
@@ -86,9 +86,11 @@ public class WASMWriterUtils {
     public static String toType(TypeRef aType) {
         switch (aType.resolve()) {
             case DOUBLE:
-                return "f32";
+                return "f64";
             case FLOAT:
                 return "f32";
+            case LONG:
+                return "i64";
             default:
                 return "i32";
         }
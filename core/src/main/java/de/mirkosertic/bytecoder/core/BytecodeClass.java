@@ -15,7 +15,8 @@
  */
 package de.mirkosertic.bytecoder.core;
 
-import java.util.Objects;
+import java.util.HashMap;
+import java.util.Map;
 
 import de.mirkosertic.bytecoder.api.OverrideParentClass;
 
@@ -29,6 +30,8 @@ public class BytecodeClass {
     private final BytecodeField[] fields;
     private final BytecodeMethod[] methods;
     private final BytecodeAttributeInfo[] classAttributes;
+    private Map<String, BytecodeField> fieldsByName;
+    private Map<String, BytecodeMethod> methodsByNameAndSignature;
 
     public BytecodeClass(BytecodeConstantPool aConstantPool, BytecodeAccessFlags aAccessFlags, BytecodeClassinfoConstant aThisClass, BytecodeClassinfoConstant aSuperClass, BytecodeInterface[] aInterfaces, BytecodeField[] aFields, BytecodeMethod[] aMethods, BytecodeAttributeInfo[] aClassAttributes) {
         constantPool = aConstantPool;
@@ -58,21 +61,23 @@ public class BytecodeClass {
     }
 
     public BytecodeField fieldByName(String aName) {
-        for (BytecodeField theField : fields) {
-            if (Objects.equals(theField.getName().stringValue(), aName)) {
-                return theField;
+        if (fieldsByName == null) {
+            fieldsByName = new HashMap<>();
+            for (BytecodeField theField : fields) {
+                fieldsByName.putIfAbsent(theField.getName().stringValue(), theField);
             }
         }
-        return null;
+        return fieldsByName.get(aName);
     }
 
     public BytecodeMethod methodByNameAndSignatureOrNull(String aMethodName, BytecodeMethodSignature aSignature) {
-        for (BytecodeMethod theMethod : methods) {
-            if (Objects.equals(aMethodName, theMethod.getName().stringValue()) && theMethod.getSignature().metchesExactlyTo(aSignature)) {
-                return theMethod;
+        if (methodsByNameAndSignature == null) {
+            methodsByNameAndSignature = new HashMap<>();
+            for (BytecodeMethod theMethod : methods) {
+                methodsByNameAndSignature.putIfAbsent(theMethod.getSignature().lookupKey(theMethod.getName().stringValue()), theMethod);
             }
         }
-        return null;
+        return methodsByNameAndSignature.get(aSignature.lookupKey(aMethodName));
     }
 
     public BytecodeClassinfoConstant getSuperClass() {
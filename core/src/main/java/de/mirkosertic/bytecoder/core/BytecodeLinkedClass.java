@@ -17,7 +17,9 @@ package de.mirkosertic.bytecoder.core;
 
 import de.mirkosertic.bytecoder.api.EmulatedByRuntime;
 import de.mirkosertic.bytecoder.api.Import;
+import de.mirkosertic.bytecoder.api.opencl.OpenCLFunction;
 import de.mirkosertic.bytecoder.classlib.java.lang.TClass;
+import de.mirkosertic.bytecoder.graph.EdgeType;
 import de.mirkosertic.bytecoder.graph.Node;
 
 import java.util.HashMap;
@@ -48,12 +50,35 @@ public class BytecodeLinkedClass extends Node {
     private final BytecodeClass bytecodeClass;
     private final BytecodeLinkerContext linkerContext;
     private BytecodeMethod classInitializer;
+    private BytecodeResolvedFields resolvedFields;
+    private int resolvedFieldsGeneration;
+    private BytecodeResolvedMethods resolvedMethods;
+    private int resolvedMethodsGeneration;
+    private final Map<String, BytecodeField> linkedFields;
+    private final Map<String, BytecodeMethod> linkedMethods;
 
     public BytecodeLinkedClass(int aUniqueId, BytecodeLinkerContext aLinkerContext, BytecodeObjectTypeRef aClassName, BytecodeClass aBytecodeClass) {
         uniqueId = aUniqueId;
         className = aClassName;
         bytecodeClass = aBytecodeClass;
         linkerContext = aLinkerContext;
+        linkedFields = new HashMap<>();
+        linkedMethods = new HashMap<>();
+    }
+
+    @Override
+    public <T extends Node> T addEdgeTo(EdgeType aType, T aTargetNode) {
+        // New fields, methods or super types invalidate the resolved members of this class and all its subclasses
+        linkerContext.linkChanged();
+        // Keep the name and signature indexes of linked members in sync with the graph
+        if (aType instanceof BytecodeProvidesFieldEdgeType) {
+            BytecodeField theField = (BytecodeField) aTargetNode;
+            linkedFields.put(theField.getName().stringValue(), theField);
+        } else if (aType instanceof BytecodeProvidesMethodEdgeType) {
+            BytecodeMethod theMethod = (BytecodeMethod) aTargetNode;
+            linkedMethods.put(theMethod.getSignature().lookupKey(theMethod.getName().stringValue()), theMethod);
+        }
+        return super.addEdgeTo(aType, aTargetNode);
     }
 
     public boolean emulatedByRuntime() {
@@ -77,7 +102,7 @@ public class BytecodeLinkedClass extends Node {
         if (aIncludeSelf) {
             theResult.add(this);
         }
-        outgoingEdges(BytecodeImplementsEdgeType.filter()).forEach(edge -> {
+        outgoingEdges(BytecodeImplementsEdgeType.class).forEach(edge -> {
             BytecodeLinkedClass theLinkedClass = (BytecodeLinkedClass) edge.targetNode();
             theResult.addAll(theLinkedClass.getImplementingTypes());
         });
@@ -90,7 +115,7 @@ public class BytecodeLinkedClass extends Node {
 
     public BytecodeLinkedClass getSuperClass() {
         return (BytecodeLinkedClass) singleOutgoingNodeMatching(
-                BytecodeSubclassOfEdgeType.filter()).orElse(null);
+                BytecodeSubclassOfEdgeType.class).orElse(null);
     }
 
     public void resolveClassInitializer(BytecodeMethod aMethod) {
@@ -101,13 +126,12 @@ public class BytecodeLinkedClass extends Node {
     public boolean resolveStaticField(BytecodeUtf8Constant aName) {
         String theFieldName = aName.stringValue();
 
-        if (outgoingEdges(BytecodeProvidesFieldEdgeType.filter())
-                .map(t -> (BytecodeField) t.targetNode())
-                .anyMatch(t -> Objects.equals(t.getName().stringValue(), theFieldName) && t.getAccessFlags().isStatic())) {
+        BytecodeField theField = linkedFields.get(theFieldName);
+        if (theField != null && theField.getAccessFlags().isStatic()) {
             return true;
         }
 
-        BytecodeField theField = bytecodeClass.fieldByName(theFieldName);
+        theField = bytecodeClass.fieldByName(theFieldName);
         if (theField != null) {
             if (!theField.getAccessFlags().isStatic()) {
                 throw new IllegalStateException("Field " + theFieldName + " is not static in " + className.name());
@@ -140,10 +164,7 @@ public class BytecodeLinkedClass extends Node {
         String theFieldName = aName.stringValue();
 
         // Do we already have a link?
-        Map<String, BytecodeField> theFields = new HashMap<>();
-        outgoingEdges(BytecodeProvidesFieldEdgeType.filter()).map(t-> (BytecodeField) t.targetNode()).forEach(t -> theFields.put(t.getName().stringValue(), t));
-
-        BytecodeField theField = theFields.get(theFieldName);
+        BytecodeField theField = linkedFields.get(theFieldName);
         if (theField != null) {
             if (theField.getAccessFlags().isStatic()) {
                 throw new IllegalStateException("Field " + theFieldName + " is static in " + className.name());
@@ -173,29 +194,51 @@ public class BytecodeLinkedClass extends Node {
     }
 
     public BytecodeResolvedFields resolvedFields() {
+        if (resolvedFields == null || resolvedFieldsGeneration != linkerContext.linkGeneration()) {
+            resolvedFields = computeResolvedFields();
+            resolvedFieldsGeneration = linkerContext.linkGeneration();
+        }
+        return resolvedFields;
+    }
+
+    private BytecodeResolvedFields computeResolvedFields() {
+        final BytecodeResolvedFields theMap = new BytecodeResolvedFields();
         BytecodeLinkedClass theSuperclass = getSuperClass();
-        final BytecodeResolvedFields theMap = theSuperclass != null ? theSuperclass.resolvedFields() : new BytecodeResolvedFields();
+        if (theSuperclass != null) {
+            theMap.merge(theSuperclass.resolvedFields());
+        }
 
         for (BytecodeLinkedClass theImplementedInterface : getImplementingTypes(false, false)) {
             BytecodeResolvedFields theInterfaceFields = theImplementedInterface.resolvedFields();
             theMap.merge(theInterfaceFields);
         }
 
-        outgoingEdges(BytecodeProvidesFieldEdgeType.filter())
+        outgoingEdges(BytecodeProvidesFieldEdgeType.class)
                 .map(t -> (BytecodeField) t.targetNode()).forEach(aField -> theMap.register(BytecodeLinkedClass.this, aField));
         return theMap;
     }
 
     public BytecodeResolvedMethods resolvedMethods() {
+        if (resolvedMethods == null || resolvedMethodsGeneration != linkerContext.linkGeneration()) {
+            resolvedMethods = computeResolvedMethods();
+            resolvedMethodsGeneration = linkerContext.linkGeneration();
+        }
+        return resolvedMethods;
+    }
+
+    private BytecodeResolvedMethods computeResolvedMethods() {
+        final BytecodeResolvedMethods theMap = new BytecodeResolvedMethods();
         BytecodeLinkedClass theSuperclass = getSuperClass();
-        final BytecodeResolvedMethods theMap = theSuperclass != null ? theSuperclass.resolvedMethods() : new BytecodeResolvedMethods();
+        if (theSuperclass != null) {
+            theMap.merge(theSuperclass.resolvedMethods());
+        }
 
         for (BytecodeLinkedClass theImplementedInterface : getImplementingTypes(false, false)) {
             BytecodeResolvedMethods theInterfaceMethods = theImplementedInterface.resolvedMethods();
             theMap.merge(theInterfaceMethods);
         }
 
-        outgoingEdges(BytecodeProvidesMethodEdgeType.filter())
+        outgoingEdges(BytecodeProvidesMethodEdgeType.class)
                 .forEach(aEdge -> theMap.register((BytecodeLinkedClass) aEdge.sourceNode(), (BytecodeMethod) aEdge.targetNode()));
         return theMap;
     }
@@ -217,9 +260,7 @@ public class BytecodeLinkedClass extends Node {
     public boolean resolveVirtualMethod(String aMethodName, BytecodeMethodSignature aSignature) {
 
         // Do we already have a link?
-        if (outgoingEdges(BytecodeProvidesMethodEdgeType.filter())
-                .map(t -> (BytecodeMethod) t.targetNode())
-                .anyMatch(t -> Objects.equals(t.getName().stringValue(), aMethodName) && t.getSignature().metchesExactlyTo(aSignature))) {
+        if (linkedMethods.containsKey(aSignature.lookupKey(aMethodName))) {
             return true;
         }
 
@@ -253,9 +294,7 @@ public class BytecodeLinkedClass extends Node {
     public boolean resolveConstructorInvocation(BytecodeMethodSignature aSignature) {
 
         // Do we aready have a link?
-        if (outgoingEdges(BytecodeProvidesMethodEdgeType.filter())
-                .map(t -> (BytecodeMethod) t.targetNode())
-                .anyMatch(t -> t.isConstructor() && t.getSignature().metchesExactlyTo(aSignature))) {
+        if (linkedMethods.containsKey(aSignature.lookupKey("<init>"))) {
             return true;
         }
 
@@ -278,9 +317,7 @@ public class BytecodeLinkedClass extends Node {
     public boolean resolvePrivateMethod(String aMethodName, BytecodeMethodSignature aSignature) {
 
         // Do we already have a link?
-        if (outgoingEdges(BytecodeProvidesMethodEdgeType.filter())
-                .map(t -> (BytecodeMethod) t.targetNode())
-                .anyMatch(t -> Objects.equals(t.getName().stringValue(), aMethodName) && t.getSignature().metchesExactlyTo(aSignature))) {
+        if (linkedMethods.containsKey(aSignature.lookupKey(aMethodName))) {
             return true;
         }
 
@@ -303,9 +340,8 @@ public class BytecodeLinkedClass extends Node {
     public boolean resolveStaticMethod(String aMethodName, BytecodeMethodSignature aSignature) {
 
         // Do we already have a link?
-        if (outgoingEdges(BytecodeProvidesMethodEdgeType.filter())
-                .map(t -> (BytecodeMethod) t.targetNode())
-                .anyMatch(t -> t.getAccessFlags().isStatic() && Objects.equals(t.getName().stringValue(), aMethodName) && t.getSignature().metchesExactlyTo(aSignature))) {
+        BytecodeMethod theLinkedMethod = linkedMethods.get(aSignature.lookupKey(aMethodName));
+        if (theLinkedMethod != null && theLinkedMethod.getAccessFlags().isStatic()) {
             return true;
         }
 
@@ -324,12 +360,40 @@ public class BytecodeLinkedClass extends Node {
 
         BytecodeLinkedClass theSuperClass = getSuperClass();
         if (theSuperClass != null) {
-            return theSuperClass.resolveVirtualMethod(aMethodName, aSignature);
+            return theSuperClass.resolveStaticMethod(aMethodName, aSignature);
         }
 
         return false;
     }
 
+    /**
+     * The class declaring a static field referenced through this class. Only this class is initialized
+     * by an access to the field, and not the class it was referenced through (JLS 12.4.1).
+     */
+    public BytecodeLinkedClass declaringClassOfStaticField(String aFieldName) {
+        BytecodeResolvedFields.FieldEntry theEntry = resolvedFields().fieldByName(aFieldName);
+        if (theEntry == null || !theEntry.getValue().getAccessFlags().isStatic()) {
+            throw new IllegalStateException("No static field " + aFieldName + " in " + className.name());
+        }
+        return theEntry.getProvidingClass();
+    }
+
+    /**
+     * The class declaring a static method referenced through this class, see {@link #declaringClassOfStaticField(String)}.
+     */
+    public BytecodeLinkedClass declaringClassOfStaticMethod(String aMethodName, BytecodeMethodSignature aSignature) {
+        String theKey = aSignature.lookupKey(aMethodName);
+        BytecodeLinkedClass theCurrent = this;
+        while (theCurrent != null) {
+            BytecodeMethod theMethod = theCurrent.linkedMethods.get(theKey);
+            if (theMethod != null && theMethod.getAccessFlags().isStatic()) {
+                return theCurrent;
+            }
+            theCurrent = theCurrent.getSuperClass();
+        }
+        throw new IllegalStateException("No static method " + aMethodName + " in " + className.name());
+    }
+
     private void resolveMethodSignatureAndBody(BytecodeMethod aMethod) {
         BytecodeMethodSignature theSignature = aMethod.getSignature();
         link(theSignature.getReturnType());
@@ -343,6 +407,8 @@ public class BytecodeLinkedClass extends Node {
                     // Will be linked dynamically
                     // No need to worry
                 }
+            } else if (aMethod.getAttributes().getAnnotationByType(OpenCLFunction.class.getName()) != null) {
+                // Mapped to an OpenCL builtin function, the JVM implementation is never compiled
             } else {
                 BytecodeCodeAttributeInfo theCode = aMethod.getCode(bytecodeClass);
                 BytecodeProgram theProgram = theCode.getProgramm();
@@ -391,13 +457,27 @@ public class BytecodeLinkedClass extends Node {
             for (BytecodeMethod theMethod : theAbstractMethods) {
                 BytecodeLinkedClass.this.resolveVirtualMethod(theMethod.getName().stringValue(), theMethod.getSignature());
             }
+
+            // Methods overriding a linked implementation must be linked too, as they are
+            // the target of virtual invocations on instances of this class
+            List<BytecodeMethod> theOverriddenMethods = theResolvedMethods.stream().map(BytecodeResolvedMethods.MethodEntry::getValue)
+                    .filter(t -> t != GET_CLASS_PLACEHOLDER)
+                    .filter(t -> !t.getAccessFlags().isAbstract() && !t.getAccessFlags().isStatic() && !t.getAccessFlags().isPrivate() && !t.isConstructor())
+                    .collect(Collectors.toList());
+            for (BytecodeMethod theMethod : theOverriddenMethods) {
+                BytecodeMethod theOverride = bytecodeClass.methodByNameAndSignatureOrNull(theMethod.getName().stringValue(), theMethod.getSignature());
+                if (theOverride != null && !theOverride.getAccessFlags().isStatic()) {
+                    BytecodeLinkedClass.this.resolveVirtualMethod(theMethod.getName().stringValue(), theMethod.getSignature());
+                }
+            }
         }
     }
 
     public boolean implementsMethod(BytecodeVirtualMethodIdentifier aIdentifier) {
-        // Do we already have a link?
-        return outgoingEdges(BytecodeProvidesMethodEdgeType.filter())
-                .map(t -> (BytecodeMethod) t.targetNode())
-                .map(t -> linkerContext.getMethodCollection().identifierFor(t)).anyMatch(t -> Objects.equals(t, aIdentifier));
+        // Do we already have a link? This is only a lookup, no new identifiers are registered
+        BytecodeMethodCollection theCollection = linkerContext.getMethodCollection();
+        return linkedMethods.values().stream()
+                .map(t -> theCollection.toIdentifier(t.getName().stringValue(), t.getSignature()))
+                .anyMatch(t -> t != null && Objects.equals(t, aIdentifier));
     }
 }
\ No newline at end of file
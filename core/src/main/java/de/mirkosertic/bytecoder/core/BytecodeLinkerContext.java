@@ -19,21 +19,26 @@ import de.mirkosertic.bytecoder.api.Export;
 import de.mirkosertic.bytecoder.api.Logger;
 import de.mirkosertic.bytecoder.graph.Edge;
 
+import java.util.HashMap;
 import java.util.List;
-import java.util.Optional;
+import java.util.Map;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 public class BytecodeLinkerContext {
 
     private final RootNode rootNode;
+    private final Map<BytecodeObjectTypeRef, BytecodeLinkedClass> linkedClassesByName;
     private final BytecodeLoader loader;
     private final BytecodeMethodCollection methodCollection;
     private final Logger logger;
     private int classIdCounter;
+    private int linkGeneration;
+    private boolean frozen;
 
     public BytecodeLinkerContext(BytecodeLoader aLoader, Logger aLogger) {
         rootNode = new RootNode();
+        linkedClassesByName = new HashMap<>();
         loader = aLoader;
         methodCollection = new BytecodeMethodCollection();
         logger = aLogger;
@@ -52,24 +57,58 @@ public class BytecodeLinkerContext {
         return methodCollection;
     }
 
+    int linkGeneration() {
+        return linkGeneration;
+    }
+
+    void linkChanged() {
+        if (frozen) {
+            throw new IllegalStateException("Link graph is frozen, no more classes or members can be linked");
+        }
+        // Resolved members of linked classes are cached until the next change of the link graph
+        linkGeneration++;
+    }
+
+    /**
+     * Marks the end of the linking phase.
+     *
+     * All member caches and virtual method identifiers are computed, so the link graph can be read
+     * concurrently by code generation afterwards. Every attempt to link something new fails.
+     */
+    public void freeze() {
+        linkedClasses().map(Edge::targetNode).forEach(aClass -> {
+            aClass.resolvedFields();
+            aClass.resolvedMethods().stream().forEach(aEntry -> methodCollection.identifierFor(aEntry.getValue()));
+        });
+        frozen = true;
+    }
+
     public BytecodeLinkedClass isLinkedOrNull(BytecodeUtf8Constant aConstant) {
         BytecodeObjectTypeRef theTypeRef = BytecodeObjectTypeRef.fromUtf8Constant(aConstant);
-        Optional<BytecodeLinkedClass> theFoundLink = rootNode.singleOutgoingNodeMatching(BytecodeLinkedClassEdgeType.filter(theTypeRef));
-        return theFoundLink.orElse(null);
+        return linkedClassesByName.get(theTypeRef);
+    }
+
+    public BytecodeLinkedClass isLinkedOrNull(BytecodeObjectTypeRef aTypeRef) {
+        return linkedClassesByName.get(loader.toRealName(aTypeRef));
     }
 
     public BytecodeLinkedClass resolveClass(BytecodeObjectTypeRef aTypeRef) {
 
         BytecodeObjectTypeRef theRealName = loader.toRealName(aTypeRef);
-        Optional<BytecodeLinkedClass> theFoundLink = rootNode.singleOutgoingNodeMatching(BytecodeLinkedClassEdgeType.filter(theRealName));
-        if (theFoundLink.isPresent()) {
-            return theFoundLink.get();
+        BytecodeLinkedClass theFoundLink = linkedClassesByName.get(theRealName);
+        if (theFoundLink != null) {
+            return theFoundLink;
+        }
+
+        if (frozen) {
+            throw new IllegalStateException("Link graph is frozen, cannot link " + theRealName.name());
         }
 
         try {
             BytecodeClass theLoadedClass = loader.loadByteCode(aTypeRef);
             BytecodeLinkedClass theLinkedClass = new BytecodeLinkedClass(classIdCounter++, this, aTypeRef, theLoadedClass);
             rootNode.addEdgeTo(new BytecodeLinkedClassEdgeType(theRealName), theLinkedClass);
+            linkedClassesByName.put(theRealName, theLinkedClass);
 
             BytecodeLinkedClass theParentClass = null;
             BytecodeClassinfoConstant theSuperClass = theLoadedClass.getSuperClass();
@@ -114,7 +153,7 @@ public class BytecodeLinkerContext {
     }
 
     public Stream<Edge<BytecodeLinkedClassEdgeType, BytecodeLinkedClass>> linkedClasses() {
-        return rootNode.outgoingEdges(BytecodeLinkedClassEdgeType.filter());
+        return rootNode.outgoingEdges(BytecodeLinkedClassEdgeType.class);
     }
 
     public void linkTypeRef(BytecodeTypeRef aTypeRef) {
@@ -135,15 +174,20 @@ public class BytecodeLinkerContext {
 
     public void resolveAbstractMethodsInSubclasses() {
         List<BytecodeLinkedClass> theLinkedClasses = linkedClasses().map(Edge::targetNode).collect(Collectors.toList());
+        long theLinkedMethods = linkedMethodCount();
         for (BytecodeLinkedClass theLinked : theLinkedClasses) {
             theLinked.resolveInheritedAbstractMethods();
         }
-        if (linkedClasses().count() != theLinkedClasses.size()) {
-            // New classes were added, we maybe have to resolve them as well
+        if (linkedClasses().count() != theLinkedClasses.size() || linkedMethodCount() != theLinkedMethods) {
+            // New classes or methods were added, we maybe have to resolve them as well
             resolveAbstractMethodsInSubclasses();
         }
     }
 
+    private long linkedMethodCount() {
+        return linkedClasses().mapToLong(t -> t.targetNode().outgoingEdges(BytecodeProvidesMethodEdgeType.class).count()).sum();
+    }
+
     public List<BytecodeLinkedClass> getClassesImplementingVirtualMethod(BytecodeVirtualMethodIdentifier aIdentifier) {
         return linkedClasses()
                 .map(Edge::targetNode)
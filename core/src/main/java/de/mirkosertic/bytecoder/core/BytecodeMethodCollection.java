@@ -44,6 +44,10 @@ public class BytecodeMethodCollection {
         return knownIdentifier.get(toSignature(aMethodName, aSignature));
     }
 
+    public int size() {
+        return knownIdentifier.size();
+    }
+
     private String toSignature(String aMethodName, BytecodeMethodSignature aSignature) {
         StringBuilder theStringBuilder = new StringBuilder();
         theStringBuilder.append(toSignature(aSignature.getReturnType()));
@@ -51,6 +51,17 @@ public class BytecodeMethodSignature {
         return true;
     }
 
+    String lookupKey(String aMethodName) {
+        StringBuilder theBuilder = new StringBuilder(aMethodName);
+        theBuilder.append("(");
+        for (BytecodeTypeRef theArgument : arguments) {
+            theBuilder.append(theArgument.name()).append(";");
+        }
+        theBuilder.append(")");
+        theBuilder.append(returnType.name());
+        return theBuilder.toString();
+    }
+
     @Override
     public String toString() {
         StringBuilder theBuilder = new StringBuilder(returnType.name());
@@ -16,8 +16,9 @@
 package de.mirkosertic.bytecoder.core;
 
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
-import java.util.Objects;
+import java.util.Map;
 import java.util.stream.Stream;
 
 public class BytecodeResolvedFields {
@@ -41,17 +42,27 @@ public class BytecodeResolvedFields {
     }
 
     protected final List<FieldEntry> entries;
+    // The last registered field wins, so fields of subclasses hide fields of their super classes
+    private final Map<String, FieldEntry> entriesByName;
 
     public BytecodeResolvedFields() {
         entries = new ArrayList<>();
+        entriesByName = new HashMap<>();
+    }
+
+    private void add(FieldEntry aEntry) {
+        entries.add(aEntry);
+        entriesByName.put(aEntry.getValue().getName().stringValue(), aEntry);
     }
 
     public void register(BytecodeLinkedClass aProvidingClass, BytecodeField aValue) {
-        entries.add(new FieldEntry(aProvidingClass, aValue));
+        add(new FieldEntry(aProvidingClass, aValue));
     }
 
     public void merge(BytecodeResolvedFields aOtherFields) {
-        entries.addAll(aOtherFields.entries);
+        for (FieldEntry theEntry : aOtherFields.entries) {
+            add(theEntry);
+        }
     }
 
     public Stream<FieldEntry> stream() {
@@ -67,12 +78,6 @@ public class BytecodeResolvedFields {
     }
 
     public FieldEntry fieldByName(String aFieldName) {
-        for (int i = entries.size() - 1; i >= 0; i--) {
-            FieldEntry theEntry = entries.get(i);
-            if (Objects.equals(theEntry.getValue().getName().stringValue(), aFieldName)) {
-                return theEntry;
-            }
-        }
-        return null;
+        return entriesByName.get(aFieldName);
     }
 }
\ No newline at end of file
@@ -16,8 +16,10 @@
 package de.mirkosertic.bytecoder.core;
 
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Objects;
+import java.util.Set;
 import java.util.stream.Stream;
 
 public class BytecodeResolvedMethods {
@@ -57,14 +59,16 @@ public class BytecodeResolvedMethods {
     }
 
     protected final List<MethodEntry> entries;
+    private final Set<MethodEntry> knownEntries;
 
     public BytecodeResolvedMethods() {
         entries = new ArrayList<>();
+        knownEntries = new HashSet<>();
     }
 
     public void merge(BytecodeResolvedMethods aOtherMethods) {
         for (MethodEntry theOtherEntry : aOtherMethods.entries) {
-            if (!entries.contains(theOtherEntry)) {
+            if (knownEntries.add(theOtherEntry)) {
                 entries.add(theOtherEntry);
             }
         }
@@ -72,7 +76,7 @@ public class BytecodeResolvedMethods {
 
     public void register(BytecodeLinkedClass aProvidingClass, BytecodeMethod aMethod) {
         MethodEntry theNewEntry = new MethodEntry(aProvidingClass, aMethod);
-        if (!entries.contains(theNewEntry)) {
+        if (knownEntries.add(theNewEntry)) {
             entries.add(theNewEntry);
         }
     }
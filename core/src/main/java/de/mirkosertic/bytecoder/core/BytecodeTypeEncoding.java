@@ -0,0 +1,105 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.core;
+
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+
+import de.mirkosertic.bytecoder.graph.Edge;
+
+/**
+ * Type ids allowing constant time type checks.
+ *
+ * Classes are numbered in depth first order of the class hierarchy, so all subclasses of a class
+ * have ids in the interval from the id of the class to its last subtype id. Every interface gets
+ * a bit, and every type gets a bitset of all the interfaces it implements.
+ */
+public class BytecodeTypeEncoding {
+
+    private final Map<BytecodeLinkedClass, Integer> typeIds;
+    private final Map<BytecodeLinkedClass, Integer> lastSubtypeIds;
+    private final Map<BytecodeLinkedClass, Integer> interfaceBits;
+    private final int interfaceWords;
+
+    public BytecodeTypeEncoding(BytecodeLinkerContext aLinkerContext) {
+        typeIds = new HashMap<>();
+        lastSubtypeIds = new HashMap<>();
+        interfaceBits = new HashMap<>();
+
+        List<BytecodeLinkedClass> theClasses = aLinkerContext.linkedClasses().map(Edge::targetNode)
+                .sorted(Comparator.comparingInt(BytecodeLinkedClass::getUniqueId)).collect(Collectors.toList());
+        for (BytecodeLinkedClass theClass : theClasses) {
+            if (theClass.getSuperClass() == null) {
+                number(theClass);
+            }
+            if (theClass.getBytecodeClass().getAccessFlags().isInterface()) {
+                interfaceBits.put(theClass, interfaceBits.size());
+            }
+        }
+        interfaceWords = (interfaceBits.size() + 31) / 32;
+    }
+
+    private void number(BytecodeLinkedClass aClass) {
+        typeIds.put(aClass, typeIds.size());
+        aClass.incomingEdges(BytecodeSubclassOfEdgeType.class)
+                .map(t -> (BytecodeLinkedClass) ((Edge) t).sourceNode())
+                .sorted(Comparator.comparingInt(BytecodeLinkedClass::getUniqueId))
+                .forEach(this::number);
+        lastSubtypeIds.put(aClass, typeIds.size() - 1);
+    }
+
+    private static <T> T lookup(Map<BytecodeLinkedClass, T> aMap, BytecodeLinkedClass aClass) {
+        T theResult = aMap.get(aClass);
+        if (theResult == null) {
+            throw new IllegalStateException("No type id for " + aClass.getClassName().name());
+        }
+        return theResult;
+    }
+
+    public int typeIdOf(BytecodeLinkedClass aClass) {
+        return lookup(typeIds, aClass);
+    }
+
+    public int lastSubtypeIdOf(BytecodeLinkedClass aClass) {
+        return lookup(lastSubtypeIds, aClass);
+    }
+
+    public boolean isInterface(BytecodeLinkedClass aClass) {
+        return interfaceBits.containsKey(aClass);
+    }
+
+    public int interfaceBitOf(BytecodeLinkedClass aClass) {
+        return lookup(interfaceBits, aClass);
+    }
+
+    public int interfaceWords() {
+        return interfaceWords;
+    }
+
+    public int[] interfaceBitsetOf(BytecodeLinkedClass aClass) {
+        int[] theResult = new int[interfaceWords];
+        for (BytecodeLinkedClass theType : aClass.getImplementingTypes()) {
+            Integer theBit = interfaceBits.get(theType);
+            if (theBit != null) {
+                theResult[theBit / 32] |= 1 << (theBit % 32);
+            }
+        }
+        return theResult;
+    }
+}
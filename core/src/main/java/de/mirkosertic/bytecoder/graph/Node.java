@@ -16,7 +16,10 @@
 package de.mirkosertic.bytecoder.graph;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Optional;
 import java.util.function.Predicate;
 import java.util.stream.Collectors;
@@ -26,14 +29,28 @@ public abstract class Node {
 
     private final List<Edge> outgoingEdges;
     private final List<Edge> incomingEdges;
+    // Edges indexed by the class of their edge type, so lookups by type do not scan all edges
+    private final Map<Class<? extends EdgeType>, List<Edge>> outgoingEdgesByType;
+    private final Map<Class<? extends EdgeType>, List<Edge>> incomingEdgesByType;
 
     public Node() {
         outgoingEdges = new ArrayList<>();
         incomingEdges = new ArrayList<>();
+        outgoingEdgesByType = new HashMap<>();
+        incomingEdgesByType = new HashMap<>();
+    }
+
+    private static void index(Map<Class<? extends EdgeType>, List<Edge>> aIndex, Edge aEdge) {
+        aIndex.computeIfAbsent(aEdge.edgeType().getClass(), t -> new ArrayList<>()).add(aEdge);
+    }
+
+    private static List<Edge> lookup(Map<Class<? extends EdgeType>, List<Edge>> aIndex, Class<? extends EdgeType> aType) {
+        return aIndex.getOrDefault(aType, Collections.emptyList());
     }
 
     protected void addIncomingEdge(Edge aEdge) {
         incomingEdges.add(aEdge);
+        index(incomingEdgesByType, aEdge);
     }
 
     public <T extends Edge> Stream<T> outgoingEdges() {
@@ -43,9 +60,15 @@ public abstract class Node {
     public <T extends Edge> Stream<T> outgoingEdges(Predicate<EdgeType> aPredicate) {
         return (Stream<T>) outgoingEdges().filter(t -> aPredicate.test(t.edgeType()));
     }
+
+    public <T extends Edge> Stream<T> outgoingEdges(Class<? extends EdgeType> aType) {
+        return (Stream<T>) lookup(outgoingEdgesByType, aType).stream();
+    }
+
     public <T extends Node> T addEdgeTo(EdgeType aType, T aTargetNode) {
         Edge theNewEdge = new Edge(this, aType, aTargetNode);
         outgoingEdges.add(theNewEdge);
+        index(outgoingEdgesByType, theNewEdge);
         aTargetNode.addIncomingEdge(theNewEdge);
         return aTargetNode;
     }
@@ -58,6 +81,10 @@ public abstract class Node {
         return (Stream<T>) incomingEdges().filter(t -> aPredicate.test(t.edgeType()));
     }
 
+    public <T extends Edge> Stream<T> incomingEdges(Class<? extends EdgeType> aType) {
+        return (Stream<T>) lookup(incomingEdgesByType, aType).stream();
+    }
+
     public <T extends Node> Optional<T> singleOutgoingNodeMatching(Predicate<EdgeType> aPredicate) {
         List<Edge> theEdges = outgoingEdges(aPredicate).collect(Collectors.toList());
         if (theEdges.isEmpty()) {
@@ -68,4 +95,15 @@ public abstract class Node {
         }
         return Optional.of((T) theEdges.get(0).targetNode());
     }
+
+    public <T extends Node> Optional<T> singleOutgoingNodeMatching(Class<? extends EdgeType> aType) {
+        List<Edge> theEdges = lookup(outgoingEdgesByType, aType);
+        if (theEdges.isEmpty()) {
+            return Optional.empty();
+        }
+        if (theEdges.size() > 1) {
+            throw new IllegalStateException("Too many edges found!");
+        }
+        return Optional.of((T) theEdges.get(0).targetNode());
+    }
 }
\ No newline at end of file
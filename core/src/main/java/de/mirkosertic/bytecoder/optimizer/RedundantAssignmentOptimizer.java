@@ -46,7 +46,7 @@ public class RedundantAssignmentOptimizer extends RecursiveExpressionVisitor imp
             Value theValue = theAssignment.getValue();
 
             // Check if there is only one data flow
-            List<Edge> theDataEdges = theVariable.outgoingEdges(DataFlowEdgeType.filter()).collect(Collectors.toList());
+            List<Edge> theDataEdges = theVariable.outgoingEdges(DataFlowEdgeType.class).collect(Collectors.toList());
             if (theDataEdges.size() == 1) {
                 List<Value> theIncomingData = aExpression.incomingDataFlows();
                 if (theIncomingData.contains(theVariable)) {
@@ -867,7 +867,7 @@ public final class NaiveProgramGenerator implements ProgramGenerator {
 
                     aHelper.push(theValue1);
                     aHelper.push(theValue2);
-                    aHelper.push(theValue2);
+                    aHelper.push(theValue1);
                 } else {
                     Value theValue2 = aHelper.pop();
                     Value theValue3 = aHelper.pop();
@@ -876,7 +876,7 @@ public final class NaiveProgramGenerator implements ProgramGenerator {
                     aHelper.push(theValue1);
                     aHelper.push(theValue3);
                     aHelper.push(theValue2);
-                    aHelper.push(theValue2);
+                    aHelper.push(theValue1);
                 }
             } else if (theInstruction instanceof BytecodeInstructionDUPX1) {
                 BytecodeInstructionDUPX1 theINS = (BytecodeInstructionDUPX1) theInstruction;
@@ -1574,7 +1574,7 @@ public final class NaiveProgramGenerator implements ProgramGenerator {
                         }
                         if (theArgumentConstant instanceof BytecodeIntegerConstant) {
                             BytecodeIntegerConstant thePrimitive = (BytecodeIntegerConstant) theArgumentConstant;
-                            theArguments.add(theInitNode.newVariable(TypeRef.Native.INT, new LongValue(thePrimitive.getIntegerValue())));
+                            theArguments.add(theInitNode.newVariable(TypeRef.Native.INT, new IntegerValue(thePrimitive.getIntegerValue())));
                             continue;
                         }
                         if (theArgumentConstant instanceof BytecodeFloatConstant) {
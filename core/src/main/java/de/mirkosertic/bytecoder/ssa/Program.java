@@ -46,6 +46,7 @@ public class Program {
     private final List<Variable> variables;
     private final Set<Variable> globals;
     private final List<Argument> arguments;
+    private int variableCounter;
 
     public Program() {
         controlFlowGraph = new ControlFlowGraph(this);
@@ -106,8 +107,8 @@ public class Program {
     }
 
     public Variable createVariable(TypeRef aType) {
-        int theIndex = variables.size();
-        Variable theNewVariable = new Variable(aType, "var" + theIndex);
+        // Variables might have been deleted, so the names are taken from a counter
+        Variable theNewVariable = new Variable(aType, "var" + variableCounter++);
         variables.add(theNewVariable);
         return theNewVariable;
     }
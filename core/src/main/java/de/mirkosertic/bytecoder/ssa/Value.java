@@ -46,11 +46,11 @@ public abstract class Value extends Node {
     }
 
     public <T extends Value> List<T> incomingDataFlows() {
-        return incomingEdges(DataFlowEdgeType.filter()).map(t -> (T) t.sourceNode()).collect(Collectors.toList());
+        return incomingEdges(DataFlowEdgeType.class).map(t -> (T) t.sourceNode()).collect(Collectors.toList());
     }
 
     public List<Edge> incomingDataFlowEdges() {
-        return incomingEdges(DataFlowEdgeType.filter()).collect(Collectors.toList());
+        return incomingEdges(DataFlowEdgeType.class).collect(Collectors.toList());
     }
 
     public List<Edge> incomingDataFlowEdgesRecursive() {
@@ -70,7 +70,7 @@ public abstract class Value extends Node {
     }
 
     public void replaceIncomingDataEdge(Value aOldValue, Value aNewValue) {
-        incomingEdges(DataFlowEdgeType.filter()).forEach(aEdge -> {
+        incomingEdges(DataFlowEdgeType.class).forEach(aEdge -> {
             if (aEdge.sourceNode() == aOldValue) {
                 aEdge.newSourceIs(aNewValue);
             }
@@ -78,7 +78,7 @@ public abstract class Value extends Node {
     }
 
     public void routeIncomingDataFlowsTo(Value aNewExpression) {
-        incomingEdges(DataFlowEdgeType.filter()).forEach(aEdge -> {
+        incomingEdges(DataFlowEdgeType.class).forEach(aEdge -> {
             aEdge.newTargetId(aNewExpression);
             aNewExpression.addIncomingEdge(aEdge);
         });
@@ -15,10 +15,12 @@
  */
 package de.mirkosertic.bytecoder.unittest;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.lang.reflect.Method;
@@ -27,7 +29,6 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.logging.Level;
 
-import org.apache.commons.io.IOUtils;
 import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.Description;
@@ -176,7 +177,7 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
             StringWriter theStrWriter = new StringWriter();
             PrintWriter theCodeWriter = new PrintWriter(theStrWriter);
 
-            CompileOptions theOptions = new CompileOptions(LOGGER, true, KnownOptimizer.ALL);
+            CompileOptions theOptions = new CompileOptions(LOGGER, true, KnownOptimizer.ALL, true);
             theCodeWriter.println(theCompileTarget.compileToJS(theOptions, testClass.getJavaClass(), aFrameworkMethod.getName(), theSignature).getData());
 
             String theFilename = theCompileTarget.toClassName(theTypeRef) + "." + theCompileTarget.toMethodName(aFrameworkMethod.getName(), theSignature) + "_js.html";
@@ -269,7 +270,7 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
 
             theCodeWriter.println("console.log(\"Starting test\");");
             theCodeWriter.println("bytecoder.bootstrap();");
-            theCodeWriter.println("var theTestInstance = new " + theCompileTarget.toClassName(theTypeRef) + ".Create();");
+            theCodeWriter.println("var theTestInstance = new (" + theCompileTarget.toClassName(theTypeRef) + ".classInitCheck().Create)();");
             theCodeWriter.println("theTestInstance." + theCompileTarget.toMethodName(aFrameworkMethod.getName(), theSignature) + "(theTestInstance);");
             theCodeWriter.println("var theLastException = " + theCompileTarget.toClassName(BytecodeObjectTypeRef.fromRuntimeClass(
                     ExceptionRethrower.class)) + "." + theCompileTarget.toMethodName("getLastOutcomeOrNullAndReset", theGetLastExceptionSignature) + "();");
@@ -342,7 +343,7 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
             BytecodeMethodSignature theSignature = theCompileTarget.toMethodSignature(aFrameworkMethod.getMethod());
             BytecodeObjectTypeRef theTypeRef = new BytecodeObjectTypeRef(testClass.getName());
 
-            CompileOptions theOptions = new CompileOptions(LOGGER, true, KnownOptimizer.ALL);
+            CompileOptions theOptions = new CompileOptions(LOGGER, true, KnownOptimizer.ALL, true, true);
             WASMCompileResult theResult = (WASMCompileResult) theCompileTarget.compileToJS(theOptions, testClass.getJavaClass(), aFrameworkMethod.getName(), theSignature);
 
             String theFileName = theCompileTarget.toClassName(theTypeRef) + "." + theCompileTarget.toMethodName(aFrameworkMethod.getName(), theSignature) + ".html";
@@ -356,10 +357,12 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
             theGeneratedFilesDir.mkdirs();
             File theGeneratedFile = new File(theGeneratedFilesDir, theFileName);
 
-            // Copy WABT Tools
-            File theWABTFile = new File(theGeneratedFilesDir, "libwabt.js");
-            try (FileOutputStream theOS = new FileOutputStream(theWABTFile)) {
-                IOUtils.copy(getClass().getResourceAsStream("/libwabt.js"), theOS);
+            // The binary is assembled in the JVM, the text format is kept in the page for debugging
+            byte[] theBinary = theResult.getBinaryData();
+            StringBuilder theHexBinary = new StringBuilder(theBinary.length * 2);
+            for (byte theByte : theBinary) {
+                theHexBinary.append(Character.forDigit((theByte >> 4) & 0xF, 16));
+                theHexBinary.append(Character.forDigit(theByte & 0xF, 16));
             }
 
             PrintWriter theWriter = new PrintWriter(theGeneratedFile);
@@ -372,8 +375,6 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
             theWriter.println("        <h1>Compilation result</h1>");
             theWriter.println("        <pre id=\"compileresult\">");
             theWriter.println("        </pre>");
-            theWriter.println("        <script src=\"libwabt.js\">");
-            theWriter.println("        </script>");
             theWriter.println("        <script>");
             theWriter.println("            var runningInstance;");
             theWriter.println("            var runningInstanceMemory;");
@@ -388,12 +389,12 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
             theWriter.println();
 
             theWriter.println("            function bytecoder_logByteArrayAsString(acaller, value) {");
-            theWriter.println("                 var theLength = bytecoder_IntInMemory(value + 16);");
+            theWriter.println("                 var theLength = bytecoder_IntInMemory(value + 12);");
             theWriter.println("                 var theData = '';");
-            theWriter.println("                 value = value + 20;");
+            theWriter.println("                 value = value + 16;");
             theWriter.println("                 for (var i=0;i<theLength;i++) {");
-            theWriter.println("                     var theCharCode = bytecoder_IntInMemory(value);");
-            theWriter.println("                     value = value + 4;");
+            theWriter.println("                     var theCharCode = runningInstanceMemory[value];");
+            theWriter.println("                     value = value + 1;");
             theWriter.println("                     theData+= String.fromCharCode(theCharCode);");
             theWriter.println("                 }");
             theWriter.println("                 console.log(theData);");
@@ -401,25 +402,26 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
             theWriter.println();
 
             theWriter.println("            function bytecoder_logDebug(caller,value) {");
-            theWriter.println("                 console.log(value);");
+            theWriter.println("                 console.log('' + value);");
             theWriter.println("            }");
             theWriter.println();
 
             theWriter.println("            function compile() {");
             theWriter.println("                console.log('Test started');");
             theWriter.println("                try {");
-            theWriter.println("                    var module = wabt.parseWat('test.wast', document.getElementById(\"modulecode\").innerText);");
-            theWriter.println("                    module.resolveNames();");
-            theWriter.println("                    module.validate();");
-            theWriter.println("                    var binaryOutput = module.toBinary({log: true, write_debug_names:true});");
-            theWriter.println("                    document.getElementById(\"compileresult\").innerText = binaryOutput.log;");
-            theWriter.println("                    var binaryBuffer = binaryOutput.buffer;");
+            theWriter.print("                    var binaryHex = '");
+            theWriter.print(theHexBinary);
+            theWriter.println("';");
+            theWriter.println("                    var binaryBuffer = new Uint8Array(binaryHex.length / 2);");
+            theWriter.println("                    for (var i=0;i<binaryBuffer.length;i++) {");
+            theWriter.println("                        binaryBuffer[i] = parseInt(binaryHex.substr(i * 2, 2), 16);");
+            theWriter.println("                    }");
             theWriter.println("                    console.log('Size of compiled WASM binary is ' + binaryBuffer.length);");
             theWriter.println();
             theWriter.println("                    var theInstantiatePromise = WebAssembly.instantiate(binaryBuffer, {");
             theWriter.println("                         tsystem: {");
-            theWriter.println("                             currentTimeMillis: function() {return Date.now();},");
-            theWriter.println("                             nanoTime: function() {return Date.now() * 1000000;},");
+            theWriter.println("                             currentTimeMillis: function() {return BigInt(Date.now());},");
+            theWriter.println("                             nanoTime: function() {return BigInt(Date.now()) * BigInt(1000000);},");
             theWriter.println("                             logDebug: bytecoder_logDebug,");
             theWriter.println("                             writeByteArrayToConsole: bytecoder_logByteArrayAsString,");
             theWriter.println("                         },");
@@ -479,7 +481,7 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
             theWriter.print(",");
             theWriter.print(theResult.getTypeIDFor(theTypeRef));
             theWriter.print(",");
-            theWriter.print(theResult.getVTableIndexOf(theTypeRef));
+            theWriter.print(theResult.getVTableAddressOf(theTypeRef));
             theWriter.println(", 0);");
             theWriter.println("                             runningInstance.exports.logMemoryLayout(0);");
             theWriter.println("                             console.log(\"Bootstrapped\")");
@@ -550,6 +552,9 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
             try  (PrintWriter theWATWriter = new PrintWriter(new FileWriter(new File(theGeneratedFilesDir, theCompileTarget.toClassName(theTypeRef) + "." + theCompileTarget.toMethodName(aFrameworkMethod.getName(), theSignature) + ".wat")))) {
                 theWATWriter.println(theResult.getData());
             }
+            try (OutputStream theWASMStream = new BufferedOutputStream(new FileOutputStream(new File(theGeneratedFilesDir, theCompileTarget.toClassName(theTypeRef) + "." + theCompileTarget.toMethodName(aFrameworkMethod.getName(), theSignature) + ".wasm")))) {
+                theWASMStream.write(theBinary);
+            }
 
             // Invoke test in browser
             theDriver = newDriverForTest();
@@ -586,6 +591,9 @@ public class BytecoderUnitTestRunner extends ParentRunner<FrameworkMethod> {
     protected void runChild(FrameworkMethod aFrameworkMethod, RunNotifier aRunNotifier) {
         if (getDescription().getAnnotation(WASMOnly.class) != null) {
             testWASMBackendFrameworkMethod(aFrameworkMethod, aRunNotifier);
+        } else if (getDescription().getAnnotation(JSOnly.class) != null) {
+            testJSJVMBackendFrameworkMethod(aFrameworkMethod, aRunNotifier);
+            testJSBackendFrameworkMethod(aFrameworkMethod, aRunNotifier);
         } else {
             testJSJVMBackendFrameworkMethod(aFrameworkMethod, aRunNotifier);
             testJSBackendFrameworkMethod(aFrameworkMethod, aRunNotifier);
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.opencl;
+
+import static de.mirkosertic.bytecoder.api.opencl.GlobalFunctions.get_global_id;
+import static de.mirkosertic.bytecoder.api.opencl.GlobalFunctions.get_global_size;
+
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.mirkosertic.bytecoder.api.opencl.Context;
+import de.mirkosertic.bytecoder.api.opencl.Kernel;
+import de.mirkosertic.bytecoder.unittest.Slf4JLogger;
+
+public class CPUContextTest {
+
+    @Test
+    public void testEveryWorkItemIsProcessedOnce() throws Exception {
+        int theSize = 100003;
+        final int[] theCounts = new int[theSize];
+        final int[] theSizes = new int[theSize];
+
+        try (Context theContext = new CPUPlatform(new Slf4JLogger()).createContext()) {
+            theContext.compute(theSize, new Kernel() {
+                public void processWorkItem() {
+                    int id = get_global_id(0);
+                    theCounts[id]++;
+                    theSizes[id] = get_global_size(0);
+                }
+            });
+        }
+
+        for (int i=0;i<theSize;i++) {
+            Assert.assertEquals(1, theCounts[i]);
+            Assert.assertEquals(theSize, theSizes[i]);
+        }
+    }
+
+    @Test
+    public void testSingleWorkItem() throws Exception {
+        final int[] theResult = new int[] {-1};
+
+        try (Context theContext = new CPUPlatform(new Slf4JLogger()).createContext()) {
+            theContext.compute(1, new Kernel() {
+                public void processWorkItem() {
+                    theResult[get_global_id(0)] = 42;
+                }
+            });
+        }
+
+        Assert.assertEquals(42, theResult[0]);
+    }
+
+    @Test
+    public void testAsyncComputationsRunInOrder() throws Exception {
+        int theSize = 1000;
+        final int[] theData = new int[theSize];
+
+        try (Context theContext = new CPUPlatform(new Slf4JLogger()).createContext()) {
+            theContext.bind(theData);
+            Kernel theKernel = new Kernel() {
+                public void processWorkItem() {
+                    int id = get_global_id(0);
+                    theData[id] = theData[id] * 2 + 1;
+                }
+            };
+            Future<Void> theLast = null;
+            for (int i=0;i<10;i++) {
+                theLast = theContext.computeAsync(theSize, theKernel);
+            }
+            theLast.get();
+            theContext.read(theData);
+            theContext.unbind(theData);
+        }
+
+        for (int i=0;i<theSize;i++) {
+            Assert.assertEquals(1023, theData[i]);
+        }
+    }
+
+    @Test
+    public void testFailedComputationDoesNotAffectFollowingOnes() throws Exception {
+        int theSize = 100;
+        final int[] theData = new int[theSize];
+
+        try (Context theContext = new CPUPlatform(new Slf4JLogger()).createContext()) {
+            theContext.bind(theData);
+            Future<Void> theFailed = theContext.computeAsync(theSize, new Kernel() {
+                public void processWorkItem() {
+                    throw new IllegalStateException("Failed");
+                }
+            });
+            Future<Void> theNext = theContext.computeAsync(theSize, new Kernel() {
+                public void processWorkItem() {
+                    int id = get_global_id(0);
+                    theData[id] = id;
+                }
+            });
+
+            try {
+                theFailed.get();
+                Assert.fail("Failure was expected");
+            } catch (ExecutionException e) {
+                // Expected
+            }
+            theNext.get();
+            theContext.read(theData);
+            theContext.unbind(theData);
+        }
+
+        for (int i=0;i<theSize;i++) {
+            Assert.assertEquals(i, theData[i]);
+        }
+    }
+}
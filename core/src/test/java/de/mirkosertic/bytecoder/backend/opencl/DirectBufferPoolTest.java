@@ -0,0 +1,60 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.opencl;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class DirectBufferPoolTest {
+
+    @Test
+    public void testReleasedBufferIsReused() {
+        DirectBufferPool thePool = new DirectBufferPool();
+        ByteBuffer theBuffer = thePool.acquire(1000);
+        Assert.assertTrue(theBuffer.isDirect());
+        Assert.assertEquals(ByteOrder.nativeOrder(), theBuffer.order());
+        Assert.assertEquals(1000, theBuffer.remaining());
+
+        thePool.release(theBuffer);
+        ByteBuffer theSmaller = thePool.acquire(800);
+        Assert.assertSame(theBuffer, theSmaller);
+        Assert.assertEquals(800, theSmaller.remaining());
+    }
+
+    @Test
+    public void testMuchLargerBufferIsNotUsedForSmallRequest() {
+        DirectBufferPool thePool = new DirectBufferPool();
+        ByteBuffer theBuffer = thePool.acquire(1000);
+        thePool.release(theBuffer);
+
+        Assert.assertNotSame(theBuffer, thePool.acquire(100));
+        Assert.assertSame(theBuffer, thePool.acquire(1000));
+    }
+
+    @Test
+    public void testTooSmallBufferIsNotUsed() {
+        DirectBufferPool thePool = new DirectBufferPool();
+        ByteBuffer theBuffer = thePool.acquire(100);
+        thePool.release(theBuffer);
+
+        ByteBuffer theLarger = thePool.acquire(200);
+        Assert.assertNotSame(theBuffer, theLarger);
+        Assert.assertEquals(200, theLarger.remaining());
+    }
+}
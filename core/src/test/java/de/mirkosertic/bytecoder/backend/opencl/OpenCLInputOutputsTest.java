@@ -0,0 +1,187 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.opencl;
+
+import static de.mirkosertic.bytecoder.api.opencl.GlobalFunctions.get_global_id;
+import static de.mirkosertic.bytecoder.api.opencl.GlobalFunctions.get_global_size;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.mirkosertic.bytecoder.api.opencl.Float2;
+import de.mirkosertic.bytecoder.api.opencl.Kernel;
+import de.mirkosertic.bytecoder.backend.CompileOptions;
+import de.mirkosertic.bytecoder.core.BytecodeLinkerContext;
+import de.mirkosertic.bytecoder.core.BytecodeLoader;
+import de.mirkosertic.bytecoder.core.BytecodeMethodSignature;
+import de.mirkosertic.bytecoder.core.BytecodePackageReplacer;
+import de.mirkosertic.bytecoder.optimizer.KnownOptimizer;
+import de.mirkosertic.bytecoder.unittest.Slf4JLogger;
+
+public class OpenCLInputOutputsTest {
+
+    private Map<String, OpenCLInputOutputs.KernelArgument.Type> argumentsOf(Kernel aKernel) throws Exception {
+        OpenCLCompileBackend theBackend = new OpenCLCompileBackend();
+        CompileOptions theOptions = new CompileOptions(new Slf4JLogger(), false, KnownOptimizer.ALL);
+
+        Class<?> theKernelClass = aKernel.getClass();
+        BytecodeMethodSignature theSignature = theBackend.signatureFrom(theKernelClass.getDeclaredMethod("processWorkItem"));
+
+        BytecodeLoader theLoader = new BytecodeLoader(getClass().getClassLoader(), new BytecodePackageReplacer());
+        BytecodeLinkerContext theLinkerContext = new BytecodeLinkerContext(theLoader, theOptions.getLogger());
+        OpenCLCompileResult theResult = theBackend.generateCodeFor(theOptions, theLinkerContext, theKernelClass, "processWorkItem", theSignature);
+
+        Map<String, OpenCLInputOutputs.KernelArgument.Type> theArguments = new HashMap<>();
+        for (OpenCLInputOutputs.KernelArgument theArgument : theResult.getInputOutputs().arguments()) {
+            theArguments.put(theArgument.getField().getValue().getName().stringValue(), theArgument.getType());
+        }
+        return theArguments;
+    }
+
+    @Test
+    public void testReadAndWrittenArrays() throws Exception {
+        float[] theA = new float[10];
+        float[] theB = new float[10];
+        float[] theResult = new float[10];
+
+        Map<String, OpenCLInputOutputs.KernelArgument.Type> theArguments = argumentsOf(new Kernel() {
+            public void processWorkItem() {
+                int id = get_global_id(0);
+                float a = theA[id];
+                float b = theB[id];
+                theResult[id] = a + b;
+            }
+        });
+
+        Assert.assertEquals(3, theArguments.size());
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUT, theArguments.get("val$theA"));
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUT, theArguments.get("val$theB"));
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.OUTPUT, theArguments.get("val$theResult"));
+    }
+
+    @Test
+    public void testUpdatedArray() throws Exception {
+        int[] theData = new int[10];
+
+        Map<String, OpenCLInputOutputs.KernelArgument.Type> theArguments = argumentsOf(new Kernel() {
+            public void processWorkItem() {
+                int id = get_global_id(0);
+                theData[id] = theData[id] * 2;
+            }
+        });
+
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUTOUTPUT, theArguments.get("val$theData"));
+    }
+
+    @Test
+    public void testUnusedMemberIsNoArgument() throws Exception {
+        float[] theA = new float[10];
+
+        Map<String, OpenCLInputOutputs.KernelArgument.Type> theArguments = argumentsOf(new Kernel() {
+
+            private final float[] theUnused = new float[10];
+
+            public void processWorkItem() {
+                int id = get_global_id(0);
+                theA[id] = id;
+            }
+        });
+
+        Assert.assertEquals(1, theArguments.size());
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.OUTPUT, theArguments.get("val$theA"));
+    }
+
+    @Test
+    public void testVectorElements() throws Exception {
+        Float2[] theIn = new Float2[10];
+        Float2[] theOut = new Float2[10];
+
+        Map<String, OpenCLInputOutputs.KernelArgument.Type> theArguments = argumentsOf(new Kernel() {
+            public void processWorkItem() {
+                int id = get_global_id(0);
+                Float2 a = theIn[id];
+                Float2 b = theOut[id];
+                b.s1 = a.s0;
+            }
+        });
+
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUT, theArguments.get("val$theIn"));
+        // Only a part of the element is written, so the other parts must survive
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUTOUTPUT, theArguments.get("val$theOut"));
+    }
+
+    @Test
+    public void testArraysAccessedInLoopAndHelper() throws Exception {
+        float[] theValues = new float[10];
+        float[] theSums = new float[10];
+
+        Map<String, OpenCLInputOutputs.KernelArgument.Type> theArguments = argumentsOf(new Kernel() {
+
+            private float twice(float aValue) {
+                return aValue * 2 + theValues[0];
+            }
+
+            public void processWorkItem() {
+                int id = get_global_id(0);
+                int theMax = get_global_size(0);
+                float theSum = 0;
+                for (int i=0;i<theMax;i++) {
+                    theSum = theSum + twice(theValues[i]);
+                }
+                theSums[id] = theSum;
+            }
+        });
+
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUT, theArguments.get("val$theValues"));
+        // The store is not in the first block, so it is not known to be executed by every work item
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUTOUTPUT, theArguments.get("val$theSums"));
+    }
+
+    @Test
+    public void testConditionallyWrittenArray() throws Exception {
+        float[] theA = new float[10];
+        float[] theResult = new float[10];
+
+        Map<String, OpenCLInputOutputs.KernelArgument.Type> theArguments = argumentsOf(new Kernel() {
+            public void processWorkItem() {
+                int id = get_global_id(0);
+                if (theA[id] > 0) {
+                    theResult[id] = theA[id];
+                }
+            }
+        });
+
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUT, theArguments.get("val$theA"));
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUTOUTPUT, theArguments.get("val$theResult"));
+    }
+
+    @Test
+    public void testArrayWrittenAtOtherIndex() throws Exception {
+        float[] theResult = new float[10];
+
+        Map<String, OpenCLInputOutputs.KernelArgument.Type> theArguments = argumentsOf(new Kernel() {
+            public void processWorkItem() {
+                int id = get_global_id(0);
+                theResult[0] = id;
+            }
+        });
+
+        Assert.assertEquals(OpenCLInputOutputs.KernelArgument.Type.INPUTOUTPUT, theArguments.get("val$theResult"));
+    }
+}
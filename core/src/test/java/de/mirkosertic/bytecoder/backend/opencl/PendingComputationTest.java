@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.opencl;
+
+import static org.jocl.CL.CL_SUCCESS;
+
+import java.util.Collections;
+
+import org.jocl.cl_event;
+import org.junit.Assert;
+import org.junit.Test;
+
+public class PendingComputationTest {
+
+    private static class TestDataRef extends OpenCLContext.DataRef {
+
+        private int updates;
+
+        TestDataRef(DirectBufferPool aPool) {
+            super(null, null, 4);
+            readBuffer = aPool.acquire(4);
+        }
+
+        @Override
+        void updateFromBuffer() {
+            updates++;
+        }
+    }
+
+    private static class TestComputation extends OpenCLContext.PendingComputation {
+
+        private boolean completed;
+
+        TestComputation(TestDataRef aOutput, DirectBufferPool aPool) {
+            super(new cl_event[0], Collections.singletonList(aOutput), aPool);
+        }
+
+        @Override
+        boolean eventsCompleted() {
+            return completed;
+        }
+
+        @Override
+        int awaitEvents() {
+            completed = true;
+            return CL_SUCCESS;
+        }
+    }
+
+    @Test
+    public void testHostDataIsUpdatedOnceDone() throws Exception {
+        DirectBufferPool thePool = new DirectBufferPool();
+        TestDataRef theOutput = new TestDataRef(thePool);
+        TestComputation theComputation = new TestComputation(theOutput, thePool);
+
+        Assert.assertFalse(theComputation.isDone());
+        Assert.assertEquals(0, theOutput.updates);
+
+        theComputation.completed = true;
+        Assert.assertTrue(theComputation.isDone());
+        Assert.assertEquals(1, theOutput.updates);
+
+        // Results are copied only once
+        theComputation.get();
+        Assert.assertTrue(theComputation.isDone());
+        Assert.assertEquals(1, theOutput.updates);
+    }
+
+    @Test
+    public void testGetUpdatesHostData() throws Exception {
+        DirectBufferPool thePool = new DirectBufferPool();
+        TestDataRef theOutput = new TestDataRef(thePool);
+        TestComputation theComputation = new TestComputation(theOutput, thePool);
+
+        theComputation.get();
+        Assert.assertEquals(1, theOutput.updates);
+        Assert.assertTrue(theComputation.isDone());
+    }
+}
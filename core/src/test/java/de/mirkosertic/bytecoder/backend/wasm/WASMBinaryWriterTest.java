@@ -0,0 +1,138 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+public class WASMBinaryWriterTest {
+
+    private static byte[] bytes(int... aValues) {
+        byte[] theResult = new byte[aValues.length];
+        for (int i=0;i<aValues.length;i++) {
+            theResult[i] = (byte) aValues[i];
+        }
+        return theResult;
+    }
+
+    @Test
+    public void testUnsignedLEB128() {
+        WASMByteBuffer theBuffer = new WASMByteBuffer();
+        theBuffer.writeUnsignedLEB128(0);
+        theBuffer.writeUnsignedLEB128(127);
+        theBuffer.writeUnsignedLEB128(128);
+        theBuffer.writeUnsignedLEB128(624485);
+        assertArrayEquals(bytes(0x00, 0x7F, 0x80, 0x01, 0xE5, 0x8E, 0x26), theBuffer.toByteArray());
+    }
+
+    @Test
+    public void testSignedLEB128() {
+        WASMByteBuffer theBuffer = new WASMByteBuffer();
+        theBuffer.writeSignedLEB128(-1);
+        theBuffer.writeSignedLEB128(63);
+        theBuffer.writeSignedLEB128(64);
+        theBuffer.writeSignedLEB128(-123456);
+        theBuffer.writeSignedLEB128(Long.MIN_VALUE);
+        assertArrayEquals(bytes(0x7F, 0x3F, 0xC0, 0x00, 0xC0, 0xBB, 0x78,
+                0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x80, 0x7F), theBuffer.toByteArray());
+    }
+
+    @Test
+    public void testModule() {
+        String theModule = "(module\n"
+                + "   (memory (export \"memory\") 1 1)\n"
+                + "   (func $add (param $a i32) (param $b i32) (result i32) ;; comment\n"
+                + "      (block $exit\n"
+                + "         (br_if $exit (i32.eqz (get_local $a)))\n"
+                + "         (return (i32.add (get_local $a) (get_local $b)))\n"
+                + "      )\n"
+                + "      (i32.load8_s offset=16 (get_local $b))\n"
+                + "   )\n"
+                + "   (export \"add\" (func $add))\n"
+                + ")";
+        byte[] theBinary = new WASMBinaryWriter(false).toBinary(theModule);
+        assertArrayEquals(bytes(
+                0x00, 0x61, 0x73, 0x6D, 0x01, 0x00, 0x00, 0x00,
+                // Type section
+                0x01, 0x07, 0x01, 0x60, 0x02, 0x7F, 0x7F, 0x01, 0x7F,
+                // Function section
+                0x03, 0x02, 0x01, 0x00,
+                // Memory section
+                0x05, 0x04, 0x01, 0x01, 0x01, 0x01,
+                // Export section
+                0x07, 0x10, 0x02, 0x06, 'm', 'e', 'm', 'o', 'r', 'y', 0x02, 0x00, 0x03, 'a', 'd', 'd', 0x00, 0x00,
+                // Code section
+                0x0A, 0x17, 0x01, 0x15, 0x00,
+                0x02, 0x40,
+                0x20, 0x00, 0x45, 0x0D, 0x00,
+                0x20, 0x00, 0x20, 0x01, 0x6A, 0x0F,
+                0x0B,
+                0x20, 0x01, 0x2C, 0x00, 0x10,
+                0x0B), theBinary);
+    }
+
+    @Test
+    public void testUnknownLabelIsRejected() {
+        try {
+            new WASMBinaryWriter(false).toBinary("(module (func $f (br $unknown)))");
+            fail("Exception expected");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    private static void assertRejected(String aModule) {
+        try {
+            new WASMBinaryWriter(false).toBinary(aModule);
+            fail("Exception expected");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+
+    @Test
+    public void testDuplicateFunctionIsRejected() {
+        assertRejected("(module (func $f) (func $f))");
+        assertRejected("(module (import \"env\" \"f\" (func $f)) (func $f))");
+    }
+
+    @Test
+    public void testDuplicateTypeIsRejected() {
+        assertRejected("(module (type $t (func)) (type $t (func (param i32))))");
+    }
+
+    @Test
+    public void testDuplicateGlobalIsRejected() {
+        assertRejected("(module (global $g i32 (i32.const 0)) (global $g i32 (i32.const 1)))");
+    }
+
+    @Test
+    public void testCorruptBinaryIsRejected() {
+        byte[] theBinary = new WASMBinaryWriter(true).toBinary("(module (func $f (param $a i32) (drop (get_local $a))))");
+        new WASMBinaryValidator().validate(theBinary);
+        // Truncate the last section
+        byte[] theTruncated = new byte[theBinary.length - 1];
+        System.arraycopy(theBinary, 0, theTruncated, 0, theTruncated.length);
+        try {
+            new WASMBinaryValidator().validate(theTruncated);
+            fail("Exception expected");
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.mirkosertic.bytecoder.backend.CompileOptions;
+import de.mirkosertic.bytecoder.backend.CompileTarget;
+import de.mirkosertic.bytecoder.core.BytecodeMethodSignature;
+import de.mirkosertic.bytecoder.optimizer.KnownOptimizer;
+import de.mirkosertic.bytecoder.unittest.Slf4JLogger;
+
+public class WASMSSACompilerBackendTest {
+
+    private static final Pattern FUNCTION = Pattern.compile("\\(func \\$(\\S+)");
+
+    public static class Base {
+
+        public int value() {
+            return 1;
+        }
+
+        public int inherited() {
+            return 2;
+        }
+    }
+
+    public static class Derived extends Base {
+
+        @Override
+        public int value() {
+            return 3;
+        }
+
+        @Override
+        public String toString() {
+            return "Derived";
+        }
+    }
+
+    public static class EntryPoint {
+
+        public static int result;
+
+        public static void main() {
+            Base theBase = new Derived();
+            result = theBase.value() + theBase.inherited() + theBase.toString().length();
+        }
+    }
+
+    @Test
+    public void testInheritedMethodsAreWrittenOnce() throws Exception {
+        CompileTarget theTarget = new CompileTarget(getClass().getClassLoader(), CompileTarget.BackendType.wasm);
+        BytecodeMethodSignature theSignature = theTarget.toMethodSignature(EntryPoint.class.getMethod("main"));
+        CompileOptions theOptions = new CompileOptions(new Slf4JLogger(), true, KnownOptimizer.ALL, false);
+        WASMCompileResult theResult = (WASMCompileResult) theTarget.compileToJS(theOptions, EntryPoint.class, "main", theSignature);
+
+        Set<String> theNames = new HashSet<>();
+        Matcher theMatcher = FUNCTION.matcher(theResult.getData());
+        while (theMatcher.find()) {
+            Assert.assertTrue("Duplicate function " + theMatcher.group(1), theNames.add(theMatcher.group(1)));
+        }
+        Assert.assertFalse(theNames.contains("WASMSSACompilerBackendTest$Derived_INTinherited"));
+        Assert.assertTrue(theNames.contains("WASMSSACompilerBackendTest$Base_INTinherited"));
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import java.util.Map;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.mirkosertic.bytecoder.core.BytecodeLinkedClass;
+import de.mirkosertic.bytecoder.core.BytecodeLinkerContext;
+import de.mirkosertic.bytecoder.core.BytecodeLoader;
+import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
+import de.mirkosertic.bytecoder.core.BytecodePackageReplacer;
+import de.mirkosertic.bytecoder.ssa.NaiveProgramGenerator;
+import de.mirkosertic.bytecoder.unittest.Slf4JLogger;
+
+public class WASMStaticInitializerEvaluatorTest {
+
+    public enum Color {
+        RED, GREEN, BLUE
+    }
+
+    public static class Squares {
+
+        public static final int[] VALUES = new int[10];
+
+        static {
+            for (int i = 0; i < VALUES.length; i++) {
+                VALUES[i] = i * i;
+            }
+        }
+    }
+
+    public static class Entry {
+
+        public final int key;
+
+        public Entry(int aKey) {
+            key = aKey;
+        }
+    }
+
+    public static class Entries {
+
+        public static final Entry[] ENTRIES = new Entry[4];
+
+        static {
+            for (int i = 0; i < ENTRIES.length; i++) {
+                if (i % 2 == 0) {
+                    ENTRIES[i] = new Entry(i + 10);
+                }
+            }
+        }
+    }
+
+    public static class ForeignStaticInvocation {
+
+        public static final long TIME = System.currentTimeMillis();
+    }
+
+    public static class LongArithmetic {
+
+        public static long VALUE = 7;
+
+        static {
+            VALUE = VALUE * 3;
+        }
+    }
+
+    public static class EndlessLoop {
+
+        public static int VALUE;
+
+        static {
+            while (VALUE >= 0) {
+                VALUE = VALUE | 1;
+            }
+        }
+    }
+
+    private BytecodeLinkerContext linkerContext;
+    private WASMMemoryLayouter memoryLayouter;
+
+    private Map<Integer, WASMStaticInitializerEvaluator.TypedValue> evaluate(Class aClass) {
+        BytecodeLoader theLoader = new BytecodeLoader(WASMStaticInitializerEvaluatorTest.class.getClassLoader(), new BytecodePackageReplacer());
+        linkerContext = new BytecodeLinkerContext(theLoader, Slf4JLogger.INSTANCE);
+        BytecodeLinkedClass theClass = linkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(aClass));
+        memoryLayouter = new WASMMemoryLayouter(linkerContext);
+        return new WASMStaticInitializerEvaluator(linkerContext, NaiveProgramGenerator.FACTORY, memoryLayouter).evaluate(theClass);
+    }
+
+    private Object staticValue(Map<Integer, WASMStaticInitializerEvaluator.TypedValue> aStatics, Class aClass, String aFieldName) {
+        int theOffset = memoryLayouter.layoutFor(BytecodeObjectTypeRef.fromRuntimeClass(aClass)).offsetForClassMember(aFieldName);
+        Assert.assertTrue(aFieldName + " is not set", aStatics.containsKey(theOffset));
+        return aStatics.get(theOffset).getValue();
+    }
+
+    @Test
+    public void testEnumValues() {
+        Map<Integer, WASMStaticInitializerEvaluator.TypedValue> theStatics = evaluate(Color.class);
+        Assert.assertNotNull(theStatics);
+
+        WASMStaticInitializerEvaluator.ArrayValue theValues = (WASMStaticInitializerEvaluator.ArrayValue) staticValue(theStatics, Color.class, "$VALUES");
+        Assert.assertEquals(3, theValues.getElements().length);
+        Assert.assertSame(staticValue(theStatics, Color.class, "RED"), theValues.getElements()[0]);
+        Assert.assertSame(staticValue(theStatics, Color.class, "GREEN"), theValues.getElements()[1]);
+        Assert.assertSame(staticValue(theStatics, Color.class, "BLUE"), theValues.getElements()[2]);
+        for (Object theElement : theValues.getElements()) {
+            Assert.assertEquals(Color.class.getName(), ((WASMStaticInitializerEvaluator.ObjectValue) theElement).getType().getClassName().name());
+        }
+    }
+
+    @Test
+    public void testPrimitiveArrayFilledInLoop() {
+        Map<Integer, WASMStaticInitializerEvaluator.TypedValue> theStatics = evaluate(Squares.class);
+        Assert.assertNotNull(theStatics);
+
+        WASMStaticInitializerEvaluator.ArrayValue theValues = (WASMStaticInitializerEvaluator.ArrayValue) staticValue(theStatics, Squares.class, "VALUES");
+        Assert.assertEquals(10, theValues.getElements().length);
+        for (int i = 0; i < 10; i++) {
+            Assert.assertEquals(i * i, theValues.getElements()[i]);
+        }
+    }
+
+    @Test
+    public void testReferenceArrayFilledConditionally() {
+        Map<Integer, WASMStaticInitializerEvaluator.TypedValue> theStatics = evaluate(Entries.class);
+        Assert.assertNotNull(theStatics);
+
+        WASMStaticInitializerEvaluator.ArrayValue theEntries = (WASMStaticInitializerEvaluator.ArrayValue) staticValue(theStatics, Entries.class, "ENTRIES");
+        Object[] theElements = theEntries.getElements();
+        Assert.assertEquals(4, theElements.length);
+        Assert.assertNull(theElements[1]);
+        Assert.assertNull(theElements[3]);
+
+        int theKeyOffset = memoryLayouter.layoutFor(BytecodeObjectTypeRef.fromRuntimeClass(Entry.class)).offsetForInstanceMember("key");
+        WASMStaticInitializerEvaluator.ObjectValue theFirst = (WASMStaticInitializerEvaluator.ObjectValue) theElements[0];
+        WASMStaticInitializerEvaluator.ObjectValue theThird = (WASMStaticInitializerEvaluator.ObjectValue) theElements[2];
+        Assert.assertEquals(10, theFirst.getFields().get(theKeyOffset).getValue());
+        Assert.assertEquals(12, theThird.getFields().get(theKeyOffset).getValue());
+    }
+
+    @Test
+    public void testForeignStaticInvocationIsLeftToTheRuntime() {
+        Assert.assertNull(evaluate(ForeignStaticInvocation.class));
+    }
+
+    @Test
+    public void testLongArithmeticIsLeftToTheRuntime() {
+        Assert.assertNull(evaluate(LongArithmetic.class));
+    }
+
+    @Test
+    public void testEndlessLoopIsLeftToTheRuntime() {
+        Assert.assertNull(evaluate(EndlessLoop.class));
+    }
+}
@@ -0,0 +1,99 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.backend.wasm;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class WASMStringPoolTest {
+
+    // Object header, computedHash and data
+    private static final WASMMemoryLayouter.MemoryLayout STRING_LAYOUT = new WASMMemoryLayouter.MemoryLayout() {
+        @Override
+        public int offsetForInstanceMember(String aName) {
+            return "computedHash".equals(aName) ? 8 : 12;
+        }
+
+        @Override
+        public int offsetForClassMember(String aName) {
+            throw new IllegalArgumentException(aName);
+        }
+
+        @Override
+        public int instanceSize() {
+            return 16;
+        }
+
+        @Override
+        public int classSize() {
+            return 20;
+        }
+
+        @Override
+        public int[] instanceReferenceBitmap() {
+            return new int[] {1 << 3};
+        }
+
+        @Override
+        public int[] classReferenceBitmap() {
+            return new int[0];
+        }
+    };
+
+    private static int intAt(byte[] aData, int aOffset) {
+        return (aData[aOffset] & 0xff) | (aData[aOffset + 1] & 0xff) << 8 | (aData[aOffset + 2] & 0xff) << 16 | (aData[aOffset + 3] & 0xff) << 24;
+    }
+
+    @Test
+    public void testConstantsAreDeduplicated() {
+        WASMStringPool thePool = new WASMStringPool(STRING_LAYOUT);
+        thePool.placeAt(1000);
+        assertEquals(1000, thePool.addressOf("Hello"));
+        // String object plus array header and 5 bytes rounded up to 8
+        assertEquals(1040, thePool.addressOf("World!"));
+        assertEquals(1000, thePool.addressOf("Hello"));
+        assertEquals(1080, thePool.endAddress());
+    }
+
+    @Test
+    public void testLayout() {
+        WASMStringPool thePool = new WASMStringPool(STRING_LAYOUT);
+        thePool.placeAt(1000);
+        thePool.addressOf("abc");
+        byte[] theData = thePool.toByteArray(300, 400, 350, 500);
+        assertEquals(thePool.endAddress() - thePool.startAddress(), theData.length);
+
+        // The string
+        assertEquals(300, intAt(theData, 0));
+        assertEquals(400, intAt(theData, 4));
+        assertEquals("abc".hashCode(), intAt(theData, 8));
+        assertEquals(1016, intAt(theData, 12));
+
+        // The array
+        assertEquals(350, intAt(theData, 16));
+        assertEquals(500, intAt(theData, 20));
+        assertEquals(1, intAt(theData, 24));
+        assertEquals(3, intAt(theData, 28));
+        assertEquals('a', theData[32]);
+        assertEquals('c', theData[34]);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void testPoolMustBePlaced() {
+        new WASMStringPool(STRING_LAYOUT).addressOf("Hello");
+    }
+}
@@ -23,92 +23,290 @@ public class MemoryManagerSimpleTest {
     @Test
     public void testInit() {
         MemoryManager.initWithSize(1000);
-        Assert.assertEquals(1000, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(640, MemoryManager.freeMem(), 0);
         Assert.assertEquals(0, MemoryManager.usedMem(), 0);
     }
 
     @Test
     public void testMalloc() {
         MemoryManager.initWithSize(1000);
-        Assert.assertEquals(1000, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(640, MemoryManager.freeMem(), 0);
         Assert.assertEquals(0, MemoryManager.usedMem(), 0);
 
         Address theMalloc = MemoryManager.malloc(100);
-        Assert.assertEquals(36, Address.getStart(theMalloc) , 0);
+        Assert.assertEquals(360, Address.getStart(theMalloc) , 0);
 
-        Assert.assertEquals(892, MemoryManager.freeMem(), 0);
-        Assert.assertEquals(108, MemoryManager.usedMem(), 0);
+        Assert.assertEquals(528, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(112, MemoryManager.usedMem(), 0);
 
         Address theMalloc2 = MemoryManager.malloc(150);
-        Assert.assertEquals(144, Address.getStart(theMalloc2) , 0);
+        Assert.assertEquals(472, Address.getStart(theMalloc2) , 0);
 
-        Assert.assertEquals(734, MemoryManager.freeMem(), 0);
-        Assert.assertEquals(266, MemoryManager.usedMem(), 0);
+        Assert.assertEquals(368, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(272, MemoryManager.usedMem(), 0);
     }
 
     @Test
     public void testMallocFree() {
         MemoryManager.initWithSize(1000);
-        Assert.assertEquals(1000, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(640, MemoryManager.freeMem(), 0);
         Assert.assertEquals(0, MemoryManager.usedMem(), 0);
 
         Address theMalloc = MemoryManager.malloc(100);
-        Assert.assertEquals(36, Address.getStart(theMalloc) , 0);
-        Assert.assertEquals(892, MemoryManager.freeMem(), 0);
-        Assert.assertEquals(108, MemoryManager.usedMem(), 0);
+        Assert.assertEquals(360, Address.getStart(theMalloc) , 0);
+        Assert.assertEquals(528, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(112, MemoryManager.usedMem(), 0);
 
         MemoryManager.free(theMalloc);
-        Assert.assertEquals(1000, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(640, MemoryManager.freeMem(), 0);
         Assert.assertEquals(0, MemoryManager.usedMem(), 0);
 
         theMalloc = MemoryManager.malloc(100);
-        Assert.assertEquals(36, Address.getStart(theMalloc) , 0);
-        Assert.assertEquals(892, MemoryManager.freeMem(), 0);
-        Assert.assertEquals(108, MemoryManager.usedMem(), 0);
+        Assert.assertEquals(360, Address.getStart(theMalloc) , 0);
+        Assert.assertEquals(528, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(112, MemoryManager.usedMem(), 0);
+    }
+
+    @Test
+    public void testDoubleFree() {
+        MemoryManager.initWithSize(1000);
+
+        Address theMalloc = MemoryManager.malloc(100);
+        MemoryManager.free(theMalloc);
+        MemoryManager.free(theMalloc);
+
+        Assert.assertEquals(640, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(0, MemoryManager.usedMem(), 0);
+    }
+
+    @Test
+    public void testFreeCoalescesNeighbours() {
+        MemoryManager.initWithSize(1000);
+
+        Address theMalloc1 = MemoryManager.malloc(100);
+        Address theMalloc2 = MemoryManager.malloc(100);
+        Address theMalloc3 = MemoryManager.malloc(100);
+        Assert.assertEquals(304, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(336, MemoryManager.usedMem(), 0);
+
+        MemoryManager.free(theMalloc1);
+        MemoryManager.free(theMalloc3);
+        MemoryManager.free(theMalloc2);
+        Assert.assertEquals(640, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(0, MemoryManager.usedMem(), 0);
+
+        // Only possible if all blocks were merged back into one
+        Address theBig = MemoryManager.malloc(632);
+        Assert.assertEquals(360, Address.getStart(theBig) , 0);
+        Assert.assertEquals(0, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(640, MemoryManager.usedMem(), 0);
+    }
+
+    @Test
+    public void testSmallBlockIsReused() {
+        MemoryManager.initWithSize(1000);
+
+        Address theMalloc1 = MemoryManager.malloc(32);
+        Address theMalloc2 = MemoryManager.malloc(32);
+        MemoryManager.free(theMalloc1);
+
+        Address theMalloc3 = MemoryManager.malloc(32);
+        Assert.assertEquals(Address.getStart(theMalloc1), Address.getStart(theMalloc3) , 0);
     }
 
     @Test
     public void testMallocGC() {
         MemoryManager.initWithSize(1000);
-        Assert.assertEquals(1000, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(640, MemoryManager.freeMem(), 0);
         Assert.assertEquals(0, MemoryManager.usedMem(), 0);
 
         Address theMalloc1 = MemoryManager.malloc(100);
         Address theMalloc2 = MemoryManager.malloc(200);
 
-        Assert.assertEquals(684, MemoryManager.freeMem(), 0);
-        Assert.assertEquals(316, MemoryManager.usedMem(), 0);
+        Assert.assertEquals(320, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(320, MemoryManager.usedMem(), 0);
 
         MemoryManager.GC();
 
-        Assert.assertEquals(1000, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(640, MemoryManager.freeMem(), 0);
         Assert.assertEquals(0, MemoryManager.usedMem(), 0);
     }
 
     @Test
-    public void testMallocGCPartial() {
+    public void testMallocGCUnreachableGraph() {
         MemoryManager.initWithSize(1000);
-        Assert.assertEquals(1000, MemoryManager.freeMem(), 0);
-        Assert.assertEquals(0, MemoryManager.usedMem(), 0);
 
         Address theMalloc1 = MemoryManager.malloc(100);
         Address theMalloc2 = MemoryManager.malloc(200);
         Address.setIntValue(theMalloc1, 0, Address.getStart(theMalloc2));
 
-        // Malloc1 references malloc2, but it is not references
-        // Malloc2 will be GCed first, then Malloc2
-
-        Assert.assertEquals(684, MemoryManager.freeMem(), 0);
-        Assert.assertEquals(316, MemoryManager.usedMem(), 0);
+        Assert.assertEquals(320, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(320, MemoryManager.usedMem(), 0);
 
+        // Malloc1 references malloc2, but nothing references malloc1,
+        // so both are collected in one run
         MemoryManager.GC();
 
-        Assert.assertEquals(792, MemoryManager.freeMem(), 0);
-        Assert.assertEquals(208, MemoryManager.usedMem(), 0);
+        Assert.assertEquals(640, MemoryManager.freeMem(), 0);
+        Assert.assertEquals(0, MemoryManager.usedMem(), 0);
+    }
 
-        MemoryManager.GC();
+    private static int initWithReferenceMap() {
+        // A type with two instance fields, where only the second one is a reference
+        MemoryManager.initTestMemory(1100);
+        Address theMap = new Address(352);
+        Address.setIntValue(theMap, 0, 1);
+        Address.setIntValue(theMap, 4, 1 << 3);
+        Address.setIntValue(theMap, 8, 0);
+        MemoryManager.initHeap(368, 1000);
+
+        // The runtime class
+        Address theClass = MemoryManager.newObject(20, -1, 0);
+        Address.setIntValue(theClass, 16, 352);
+        return Address.getStart(theClass);
+    }
+
+    private static int setRoots(int... aRoots) {
+        // A single stack frame, the header holds the number of roots and the frame size
+        int theFrameSize = 4 + aRoots.length * 4;
+        Address.setIntValue(new Address(1000), 0, aRoots.length << 16 | theFrameSize);
+        for (int i=0;i<aRoots.length;i++) {
+            Address.setIntValue(new Address(1000), 4 + i * 4, aRoots[i]);
+        }
+        return 1000 + theFrameSize;
+    }
+
+    @Test
+    public void testGCFollowsReferenceFields() {
+        int theClass = initWithReferenceMap();
+
+        Address theRoot = MemoryManager.newObject(16, theClass, 0);
+        Address theChild = MemoryManager.newObject(16, theClass, 0);
+        Address theGrandChild = MemoryManager.newObject(16, theClass, 0);
+        Address theGarbage = MemoryManager.newObject(16, theClass, 0);
+        Address.setIntValue(theRoot, 12, Address.getStart(theChild));
+        Address.setIntValue(theChild, 12, Address.getStart(theGrandChild));
+        Address.setIntValue(theGarbage, 12, Address.getStart(theChild));
+        Assert.assertEquals(128, MemoryManager.usedMem(), 0);
+
+        MemoryManager.collect(1000, setRoots(Address.getStart(theRoot)));
+
+        // Class, root, child and grandchild survive
+        Assert.assertEquals(104, MemoryManager.usedMem(), 0);
+        Assert.assertEquals(Address.getStart(theChild), Address.getIntValue(theRoot, 12), 0);
+
+        // Everything is collected once the root is gone
+        MemoryManager.collect(1000, setRoots(0));
+        Assert.assertEquals(0, MemoryManager.usedMem(), 0);
+    }
+
+    @Test
+    public void testGCIgnoresPrimitiveFields() {
+        int theClass = initWithReferenceMap();
+
+        Address theRoot = MemoryManager.newObject(16, theClass, 0);
+        Address theOther = MemoryManager.newObject(16, theClass, 0);
+
+        // An int looking like a pointer does not keep the other object alive
+        Address.setIntValue(theRoot, 8, Address.getStart(theOther));
+
+        MemoryManager.collect(1000, setRoots(Address.getStart(theRoot)));
+
+        Assert.assertEquals(56, MemoryManager.usedMem(), 0);
+    }
+
+    @Test
+    public void testGCHandlesCycles() {
+        int theClass = initWithReferenceMap();
+
+        Address theFirst = MemoryManager.newObject(16, theClass, 0);
+        Address theSecond = MemoryManager.newObject(16, theClass, 0);
+        Address.setIntValue(theFirst, 12, Address.getStart(theSecond));
+        Address.setIntValue(theSecond, 12, Address.getStart(theFirst));
+
+        MemoryManager.collect(1000, setRoots(Address.getStart(theFirst)));
+        Assert.assertEquals(80, MemoryManager.usedMem(), 0);
+
+        MemoryManager.collect(1000, setRoots(0));
+        Assert.assertEquals(0, MemoryManager.usedMem(), 0);
+    }
+
+    @Test
+    public void testGCIgnoresSlotsBehindTheRoots() {
+        int theClass = initWithReferenceMap();
+
+        Address theRoot = MemoryManager.newObject(16, theClass, 0);
+        Address theStale = MemoryManager.newObject(16, theClass, 0);
+
+        // A frame with two slots, but only the first one is in use at the current safepoint
+        Address theFrame = new Address(1000);
+        Address.setIntValue(theFrame, 0, 1 << 16 | 12);
+        Address.setIntValue(theFrame, 4, Address.getStart(theRoot));
+        Address.setIntValue(theFrame, 8, Address.getStart(theStale));
+        MemoryManager.collect(1000, 1012);
+
+        Assert.assertEquals(56, MemoryManager.usedMem(), 0);
+    }
+
+    @Test
+    public void testGCWalksAllFrames() {
+        int theClass = initWithReferenceMap();
+
+        Address theFirst = MemoryManager.newObject(16, theClass, 0);
+        Address theSecond = MemoryManager.newObject(16, theClass, 0);
+        MemoryManager.newObject(16, theClass, 0);
+
+        // The callee frame without roots is followed by the frame of its caller
+        Address theFrames = new Address(1000);
+        Address.setIntValue(theFrames, 0, 8);
+        Address.setIntValue(theFrames, 4, Address.getStart(theSecond));
+        Address.setIntValue(theFrames, 8, 2 << 16 | 12);
+        Address.setIntValue(theFrames, 12, Address.getStart(theFirst));
+        Address.setIntValue(theFrames, 16, Address.getStart(theSecond));
+        MemoryManager.collect(1000, 1020);
+
+        Assert.assertEquals(80, MemoryManager.usedMem(), 0);
+    }
+
+    @Test
+    public void testMallocCollectsIfOutOfMemory() {
+        MemoryManager.initWithSize(1000);
+
+        MemoryManager.malloc(300);
+        MemoryManager.malloc(300);
+        Assert.assertEquals(16, MemoryManager.freeMem(), 0);
+
+        // There are no roots, so the garbage is collected and the allocation succeeds
+        Address theMalloc = MemoryManager.malloc(300);
+        Assert.assertEquals(360, Address.getStart(theMalloc), 0);
+        Assert.assertEquals(312, MemoryManager.usedMem(), 0);
+    }
+
+    @Test
+    public void testNewMultiArraySurvivesGC() {
+        MemoryManager.initTestMemory(1100);
+        Address theMap = new Address(352);
+        Address.setIntValue(theMap, 0, -1);
+        Address.setIntValue(theMap, 4, 0);
+        MemoryManager.initHeap(360, 1000);
+
+        // The array class, and garbage filling up the heap except for the outer array
+        Address theClass = MemoryManager.newObject(20, -1, 0);
+        Address.setIntValue(theClass, 16, 352);
+        MemoryManager.malloc(560);
+        Assert.assertEquals(32, MemoryManager.freeMem(), 0);
+
+        // Allocating the subarrays collects the garbage, but not the array under construction
+        Address theArray = MemoryManager.newArray(2, 3, 4, Address.getStart(theClass), 0, false);
+        Assert.assertEquals(2, Address.getIntValue(theArray, 12), 0);
+        for (int i=0;i<2;i++) {
+            Address theSubArray = new Address(Address.getIntValue(theArray, 16 + i * 4));
+            Assert.assertEquals(3, Address.getIntValue(theSubArray, 12), 0);
+        }
+        Assert.assertEquals(32 + 32 + 2 * 40, MemoryManager.usedMem(), 0);
 
-        Assert.assertEquals(1000, MemoryManager.freeMem(), 0);
+        // Nothing is pinned anymore once the array was created
+        MemoryManager.collect(1000, setRoots(0));
         Assert.assertEquals(0, MemoryManager.usedMem(), 0);
     }
 }
@@ -87,4 +87,55 @@ public class TStringBuilderTest {
         theBuilder.append(-123.123d);
         assertEquals("-123.123", theBuilder.toString());
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testAppendManyChars() {
+        StringBuilder theBuilder = new StringBuilder();
+        for (int i=0;i<1000;i++) {
+            theBuilder.append((char) ('a' + i % 26));
+        }
+        assertEquals(1000, theBuilder.length(), 0);
+        assertEquals('a', theBuilder.charAt(0), 0);
+        assertEquals('l', theBuilder.charAt(999), 0);
+    }
+
+    @Test
+    public void testAppendFractionWithLeadingZero() {
+        TStringBuilder theBuilder = new TStringBuilder();
+        theBuilder.append(1.05d);
+        assertEquals("1.05", theBuilder.toString());
+    }
+
+    @Test
+    public void testAppendNegativeFraction() {
+        TStringBuilder theBuilder = new TStringBuilder();
+        theBuilder.append(-0.5d);
+        assertEquals("-0.5", theBuilder.toString());
+    }
+
+    @Test
+    public void testAppendRoundedDouble() {
+        TStringBuilder theBuilder = new TStringBuilder();
+        theBuilder.append(9.99999d);
+        assertEquals("10.0", theBuilder.toString());
+    }
+
+    @Test
+    public void testAppendLong() {
+        TStringBuilder theBuilder = new TStringBuilder();
+        theBuilder.append(1234567890123L);
+        theBuilder.append(',');
+        theBuilder.append(-42L);
+        theBuilder.append(',');
+        theBuilder.append(0L);
+        assertEquals("1234567890123,-42,0", theBuilder.toString());
+    }
+
+    @Test
+    public void testReverse() {
+        StringBuilder theBuilder = new StringBuilder();
+        theBuilder.append("Hello");
+        theBuilder.reverse();
+        assertEquals("olleH", theBuilder.toString());
+    }
+}
@@ -56,6 +56,33 @@ public class TArrayListTest {
         Assert.assertEquals(new Integer(11), theList.get(10));
     }
 
+    @Test
+    public void addMany() throws Exception {
+        TArrayList theList = new TArrayList();
+        for (int i=0;i<1000;i++) {
+            theList.add(new Integer(i));
+        }
+        Assert.assertEquals(1000, theList.size(), 0);
+        Assert.assertEquals(new Integer(0), theList.get(0));
+        Assert.assertEquals(new Integer(500), theList.get(500));
+        Assert.assertEquals(new Integer(999), theList.get(999));
+    }
+
+    @Test
+    public void ensureCapacityAndTrimToSize() throws Exception {
+        TArrayList theList = new TArrayList(2);
+        theList.ensureCapacity(100);
+        for (int i=0;i<50;i++) {
+            theList.add(new Integer(i));
+        }
+        theList.trimToSize();
+        Assert.assertEquals(50, theList.size(), 0);
+        Assert.assertEquals(new Integer(49), theList.get(49));
+        theList.add(new Integer(50));
+        Assert.assertEquals(51, theList.size(), 0);
+        Assert.assertEquals(new Integer(50), theList.get(50));
+    }
+
     @Test
     public void clear() throws Exception {
         TArrayList theList = new TArrayList();
@@ -97,6 +124,19 @@ public class TArrayListTest {
         Assert.assertTrue(theList.contains(new Integer(2)));
     }
 
+    @Test
+    public void removeShiftsFollowingElements() throws Exception {
+        TArrayList theList = new TArrayList();
+        for (int i=0;i<20;i++) {
+            theList.add(new Integer(i));
+        }
+        Assert.assertTrue(theList.remove(new Integer(5)));
+        Assert.assertEquals(19, theList.size(), 0);
+        Assert.assertEquals(new Integer(4), theList.get(4));
+        Assert.assertEquals(new Integer(6), theList.get(5));
+        Assert.assertEquals(new Integer(19), theList.get(18));
+    }
+
     @Test
     public void testToArray() {
         TArrayList theList = new TArrayList();
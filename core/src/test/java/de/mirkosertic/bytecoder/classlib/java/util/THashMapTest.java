@@ -20,7 +20,10 @@ import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -44,4 +47,68 @@ public class THashMapTest {
         assertEquals(new Integer(3000), theOldValue2);
         assertEquals(new Integer(4000), theMap.get(new Integer(255)));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testManyEntries() {
+        HashMap<Integer, Integer> theMap = new HashMap<>();
+        for (int i=0;i<500;i++) {
+            assertNull(theMap.put(new Integer(i * 7), new Integer(i)));
+        }
+        assertEquals(500, theMap.size(), 0);
+        for (int i=0;i<500;i++) {
+            assertEquals(new Integer(i), theMap.get(new Integer(i * 7)));
+        }
+        assertFalse(theMap.containsKey(new Integer(3)));
+
+        // Removing entries must keep all other entries reachable
+        for (int i=0;i<500;i+=2) {
+            assertEquals(new Integer(i), theMap.remove(new Integer(i * 7)));
+        }
+        assertEquals(250, theMap.size(), 0);
+        for (int i=0;i<500;i++) {
+            if (i % 2 == 0) {
+                assertFalse(theMap.containsKey(new Integer(i * 7)));
+            } else {
+                assertEquals(new Integer(i), theMap.get(new Integer(i * 7)));
+            }
+        }
+    }
+
+    @Test
+    public void testViews() {
+        HashMap<String, Integer> theMap = new HashMap<>();
+        theMap.put("a", new Integer(1));
+        theMap.put("b", new Integer(2));
+        theMap.put("c", new Integer(3));
+
+        Set<String> theKeys = theMap.keySet();
+        Collection<Integer> theValues = theMap.values();
+        assertEquals(3, theKeys.size(), 0);
+        assertTrue(theKeys.contains("b"));
+        assertTrue(theValues.contains(new Integer(3)));
+
+        int theSum = 0;
+        for (Map.Entry<String, Integer> theEntry : theMap.entrySet()) {
+            theSum += theEntry.getValue().intValue();
+            assertEquals(theEntry.getValue(), theMap.get(theEntry.getKey()));
+        }
+        assertEquals(6, theSum, 0);
+
+        // The views are backed by the map
+        theKeys.remove("a");
+        assertFalse(theMap.containsKey("a"));
+        theMap.put("d", new Integer(4));
+        assertEquals(3, theValues.size(), 0);
+        assertTrue(theValues.contains(new Integer(4)));
+    }
+
+    @Test
+    public void testNullKey() {
+        HashMap<String, String> theMap = new HashMap<>();
+        assertNull(theMap.put(null, "a"));
+        assertTrue(theMap.containsKey(null));
+        assertEquals("a", theMap.get(null));
+        assertEquals("a", theMap.remove(null));
+        assertTrue(theMap.isEmpty());
+    }
+}
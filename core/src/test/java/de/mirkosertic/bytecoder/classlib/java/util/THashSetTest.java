@@ -47,4 +47,25 @@ public class THashSetTest {
         assertTrue(theValue.isEmpty());
         assertFalse(theValue.contains("1"));
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testManyElementsAndIteration() {
+        HashSet<Integer> theValue = new HashSet<>();
+        for (int i=0;i<300;i++) {
+            assertTrue(theValue.add(new Integer(i)));
+        }
+        assertEquals(300, theValue.size(), 0);
+        for (int i=0;i<300;i+=3) {
+            assertTrue(theValue.remove(new Integer(i)));
+        }
+        int theCount = 0;
+        int theSum = 0;
+        for (Integer theElement : theValue) {
+            assertTrue(theElement.intValue() % 3 != 0);
+            theCount++;
+            theSum += theElement.intValue();
+        }
+        assertEquals(200, theCount, 0);
+        assertEquals(30000, theSum, 0);
+    }
+}
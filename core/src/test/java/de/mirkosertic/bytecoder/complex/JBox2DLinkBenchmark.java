@@ -0,0 +1,132 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.complex;
+
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Ignore;
+import org.junit.Test;
+
+import de.mirkosertic.bytecoder.api.Logger;
+import de.mirkosertic.bytecoder.classlib.java.lang.TClass;
+import de.mirkosertic.bytecoder.classlib.java.lang.TObject;
+import de.mirkosertic.bytecoder.classlib.java.lang.invoke.TCallSite;
+import de.mirkosertic.bytecoder.classlib.java.lang.invoke.TMethodHandle;
+import de.mirkosertic.bytecoder.core.BytecodeArrayTypeRef;
+import de.mirkosertic.bytecoder.core.BytecodeLinkedClass;
+import de.mirkosertic.bytecoder.core.BytecodeLinkerContext;
+import de.mirkosertic.bytecoder.core.BytecodeLoader;
+import de.mirkosertic.bytecoder.core.BytecodeMethodSignature;
+import de.mirkosertic.bytecoder.core.BytecodeObjectTypeRef;
+import de.mirkosertic.bytecoder.core.BytecodePackageReplacer;
+import de.mirkosertic.bytecoder.core.BytecodePrimitiveTypeRef;
+import de.mirkosertic.bytecoder.core.BytecodeTypeRef;
+import de.mirkosertic.bytecoder.unittest.Slf4JLogger;
+
+/**
+ * Measures the time required to link the test methods of the JBox2D test.
+ *
+ * The benchmark is ignored by default and not executed as a part of the test suite, remove the
+ * {@link Ignore} annotation to run it manually, for instance from the IDE.
+ */
+@Ignore("Benchmark, run manually")
+public class JBox2DLinkBenchmark {
+
+    private static final int WARMUP_ROUNDS = 3;
+    private static final int MEASURED_ROUNDS = 10;
+
+    private static final Logger SILENT = new Logger() {
+        @Override
+        public void info(String aMessage, Object... aArguments) {
+        }
+
+        @Override
+        public void warn(String aMessage, Object... aArguments) {
+        }
+
+        @Override
+        public void debug(String aMessage, Object... aArguments) {
+        }
+    };
+
+    private static BytecodeTypeRef toTypeRef(Class aClass) {
+        if (aClass == void.class) {
+            return BytecodePrimitiveTypeRef.VOID;
+        }
+        return BytecodeObjectTypeRef.fromRuntimeClass(aClass);
+    }
+
+    private static int link(BytecodeLoader aLoader, Method aMethod) {
+        BytecodeLinkerContext theLinkerContext = new BytecodeLinkerContext(aLoader, SILENT);
+
+        BytecodeLinkedClass theClassLinkedCass = theLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(TClass.class));
+        theClassLinkedCass.resolveConstructorInvocation(new BytecodeMethodSignature(
+                BytecodePrimitiveTypeRef.VOID, new BytecodeTypeRef[] {}));
+
+        BytecodeLinkedClass theCallsite = theLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(TCallSite.class));
+        theCallsite.resolveVirtualMethod("getTarget", new BytecodeMethodSignature(BytecodeObjectTypeRef.fromRuntimeClass(
+                TMethodHandle.class), new BytecodeTypeRef[0]));
+
+        BytecodeLinkedClass theMethodHandle = theLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(TMethodHandle.class));
+        theMethodHandle.resolveVirtualMethod("invokeExact", new BytecodeMethodSignature(BytecodeObjectTypeRef.fromRuntimeClass(TObject.class),
+                new BytecodeTypeRef[] {new BytecodeArrayTypeRef(BytecodeObjectTypeRef.fromRuntimeClass(TObject.class), 1)}));
+
+        BytecodeLinkedClass theClass = theLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(aMethod.getDeclaringClass()));
+        theClass.resolveVirtualMethod(aMethod.getName(), new BytecodeMethodSignature(toTypeRef(aMethod.getReturnType()), new BytecodeTypeRef[0]));
+
+        theLinkerContext.resolveAbstractMethodsInSubclasses();
+
+        return (int) theLinkerContext.linkedClasses().count();
+    }
+
+    @Test
+    public void linkJBox2DTestMethods() {
+        List<Method> theTestMethods = new ArrayList<>();
+        for (Method theMethod : JBox2DTest.class.getDeclaredMethods()) {
+            if (theMethod.isAnnotationPresent(Test.class)) {
+                theTestMethods.add(theMethod);
+            }
+        }
+
+        BytecodeLoader theLoader = new BytecodeLoader(JBox2DLinkBenchmark.class.getClassLoader(), new BytecodePackageReplacer());
+
+        long[] theTimes = new long[MEASURED_ROUNDS];
+        int theLinkedClasses = 0;
+        for (int i = -WARMUP_ROUNDS; i < MEASURED_ROUNDS; i++) {
+            long theStart = System.nanoTime();
+            theLinkedClasses = 0;
+            for (Method theMethod : theTestMethods) {
+                theLinkedClasses += link(theLoader, theMethod);
+            }
+            if (i >= 0) {
+                theTimes[i] = System.nanoTime() - theStart;
+            }
+        }
+        Arrays.sort(theTimes);
+
+        Assert.assertFalse(theTestMethods.isEmpty());
+        Assert.assertTrue(theLinkedClasses > 0);
+
+        Slf4JLogger theLogger = new Slf4JLogger();
+        theLogger.info("Linked {} test methods, {} classes in total", theTestMethods.size(), theLinkedClasses);
+        theLogger.info("Min    : {}ms", theTimes[0] / 1000000);
+        theLogger.info("Median : {}ms", theTimes[MEASURED_ROUNDS / 2] / 1000000);
+    }
+}
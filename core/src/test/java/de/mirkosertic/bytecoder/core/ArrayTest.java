@@ -71,6 +71,23 @@ public class ArrayTest {
         Assert.assertEquals(0, chars[0], 0);
     }
 
+    @Test
+    public void testPackedElements() {
+        byte[] theBytes = new byte[5];
+        short[] theShorts = new short[5];
+        char[] theChars = new char[5];
+        for (int i=0;i<5;i++) {
+            theBytes[i] = (byte) (-100 - i);
+            theShorts[i] = (short) (-30000 - i);
+            theChars[i] = (char) (60000 + i);
+        }
+        for (int i=0;i<5;i++) {
+            Assert.assertEquals(-100 - i, theBytes[i], 0);
+            Assert.assertEquals(-30000 - i, theShorts[i], 0);
+            Assert.assertEquals(60000 + i, theChars[i], 0);
+        }
+    }
+
     @Test
     public void testInts() {
         ints[4] = 10;
@@ -92,6 +109,49 @@ public class ArrayTest {
         Assert.assertFalse(booleans[0]);
     }
 
+    @Test
+    public void testArrayCopy() {
+        int[] theSource = new int[] {1, 2, 3, 4, 5};
+        int[] theTarget = new int[5];
+        System.arraycopy(theSource, 1, theTarget, 2, 3);
+        Assert.assertEquals(0, theTarget[1], 0);
+        Assert.assertEquals(2, theTarget[2], 0);
+        Assert.assertEquals(4, theTarget[4], 0);
+
+        // Overlapping regions are copied as if through a temporary array
+        System.arraycopy(theSource, 0, theSource, 1, 4);
+        Assert.assertEquals(1, theSource[0], 0);
+        Assert.assertEquals(1, theSource[1], 0);
+        Assert.assertEquals(2, theSource[2], 0);
+        Assert.assertEquals(4, theSource[4], 0);
+    }
+
+    @Test
+    public void testPackedArrayCopy() {
+        byte[] theBytes = new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12};
+        System.arraycopy(theBytes, 0, theBytes, 2, 10);
+        Assert.assertEquals(1, theBytes[0], 0);
+        Assert.assertEquals(1, theBytes[2], 0);
+        Assert.assertEquals(10, theBytes[11], 0);
+        System.arraycopy(theBytes, 2, theBytes, 0, 10);
+        Assert.assertEquals(1, theBytes[0], 0);
+        Assert.assertEquals(10, theBytes[9], 0);
+
+        char[] theChars = new char[] {'a', 'b', 'c'};
+        char[] theCharTarget = new char[4];
+        System.arraycopy(theChars, 1, theCharTarget, 2, 2);
+        Assert.assertEquals(0, theCharTarget[1], 0);
+        Assert.assertEquals('b', theCharTarget[2], 0);
+        Assert.assertEquals('c', theCharTarget[3], 0);
+
+        long[] theLongs = new long[] {1, 2, 3};
+        long[] theLongTarget = new long[3];
+        System.arraycopy(theLongs, 0, theLongTarget, 1, 2);
+        Assert.assertEquals(0, theLongTarget[0], 0);
+        Assert.assertEquals(1, theLongTarget[1], 0);
+        Assert.assertEquals(2, theLongTarget[2], 0);
+    }
+
     @Test
     public void testEntries() {
         Entry theEntry = new Entry();
@@ -0,0 +1,84 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+import de.mirkosertic.bytecoder.unittest.Slf4JLogger;
+
+public class BytecodeLinkedClassTest {
+
+    public static class Base {
+
+        public int baseValue;
+
+        public int compute() {
+            return baseValue;
+        }
+    }
+
+    public static class Derived extends Base {
+
+        public int derivedValue;
+
+        @Override
+        public int compute() {
+            return derivedValue;
+        }
+    }
+
+    private static BytecodeLinkedClass link(Class aClass) {
+        BytecodeLoader theLoader = new BytecodeLoader(BytecodeLinkedClassTest.class.getClassLoader(), new BytecodePackageReplacer());
+        BytecodeLinkerContext theLinkerContext = new BytecodeLinkerContext(theLoader, Slf4JLogger.INSTANCE);
+        return theLinkerContext.resolveClass(BytecodeObjectTypeRef.fromRuntimeClass(aClass));
+    }
+
+    @Test
+    public void testResolvedFieldsAreCachedUntilTheLinkChanges() {
+        BytecodeLinkedClass theDerived = link(Derived.class);
+
+        BytecodeResolvedFields theFields = theDerived.resolvedFields();
+        Assert.assertSame(theFields, theDerived.resolvedFields());
+        Assert.assertNull(theFields.fieldByName("baseValue"));
+
+        // Linking a field of the super class invalidates the fields of the subclass
+        Assert.assertTrue(theDerived.resolveInstanceField(new BytecodeUtf8Constant("baseValue")));
+        Assert.assertTrue(theDerived.resolveInstanceField(new BytecodeUtf8Constant("derivedValue")));
+
+        BytecodeResolvedFields theNewFields = theDerived.resolvedFields();
+        Assert.assertNotSame(theFields, theNewFields);
+        Assert.assertEquals(Base.class.getName(), theNewFields.fieldByName("baseValue").getProvidingClass().getClassName().name());
+        Assert.assertEquals(Derived.class.getName(), theNewFields.fieldByName("derivedValue").getProvidingClass().getClassName().name());
+        Assert.assertEquals(2, theNewFields.streamForInstanceFields().count());
+    }
+
+    @Test
+    public void testResolvedMethodsAreCachedUntilTheLinkChanges() {
+        BytecodeLinkedClass theDerived = link(Derived.class);
+        BytecodeMethodSignature theSignature = new BytecodeMethodSignature(BytecodePrimitiveTypeRef.INT, new BytecodeTypeRef[0]);
+
+        BytecodeResolvedMethods theMethods = theDerived.resolvedMethods();
+        Assert.assertSame(theMethods, theDerived.resolvedMethods());
+        Assert.assertFalse(theMethods.stream().anyMatch(t -> "compute".equals(t.getValue().getName().stringValue())));
+
+        Assert.assertTrue(theDerived.resolveVirtualMethod("compute", theSignature));
+
+        BytecodeResolvedMethods theNewMethods = theDerived.resolvedMethods();
+        Assert.assertNotSame(theMethods, theNewMethods);
+        Assert.assertEquals(1, theNewMethods.stream().filter(t -> "compute".equals(t.getValue().getName().stringValue())).count());
+    }
+}
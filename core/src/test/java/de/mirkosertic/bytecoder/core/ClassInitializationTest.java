@@ -0,0 +1,239 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import de.mirkosertic.bytecoder.unittest.BytecoderUnitTestRunner;
+import de.mirkosertic.bytecoder.unittest.JSOnly;
+
+/**
+ * Classes are initialized on their first active use (JLS 12.4.1). The WASM backend initializes all
+ * classes in advance, so these tests only run on the JVM and the JS backend.
+ */
+@RunWith(BytecoderUnitTestRunner.class)
+@JSOnly
+public class ClassInitializationTest {
+
+    public static class Recorder {
+
+        public static int step;
+        public static boolean derivedInitialized;
+
+        public static int next() {
+            step = step + 1;
+            return step;
+        }
+    }
+
+    public static class FieldAccessed {
+
+        public static int value;
+        public static int initializedAt;
+
+        static {
+            initializedAt = Recorder.next();
+            value = 42;
+        }
+    }
+
+    public static class MethodInvoked {
+
+        public static int initializedAt;
+
+        static {
+            initializedAt = Recorder.next();
+        }
+
+        public static int value() {
+            return 43;
+        }
+    }
+
+    public static class Instantiated {
+
+        public static int initializedAt;
+
+        static {
+            initializedAt = Recorder.next();
+        }
+    }
+
+    public static class StaticBase {
+
+        public static int baseValue;
+
+        static {
+            baseValue = 7;
+        }
+
+        public static int baseMethod() {
+            return 8;
+        }
+    }
+
+    public static class StaticDerived extends StaticBase {
+
+        public static int derivedValue;
+
+        static {
+            Recorder.derivedInitialized = true;
+            derivedValue = 9;
+        }
+    }
+
+    public static class OrderBase {
+
+        public static int initializedAt;
+
+        static {
+            initializedAt = Recorder.next();
+        }
+    }
+
+    public static class OrderDerived extends OrderBase {
+
+        public static int derivedInitializedAt;
+
+        static {
+            derivedInitializedAt = Recorder.next();
+        }
+    }
+
+    public static class ConditionallyAccessed {
+
+        public static int value;
+
+        static {
+            value = 42;
+        }
+    }
+
+    public static class AccessedInLoop {
+
+        public static int value;
+
+        static {
+            value = 3;
+        }
+    }
+
+    public static class AccessedAfterInvocation {
+
+        public static int value;
+
+        static {
+            value = 5;
+        }
+
+        public static int twice() {
+            return value * 2;
+        }
+    }
+
+    public static class ElisionBase {
+
+        public static int baseValue;
+
+        static {
+            baseValue = 1;
+        }
+    }
+
+    public static class ElisionDerived extends ElisionBase {
+
+        public static int derivedValue;
+
+        static {
+            derivedValue = 2;
+        }
+    }
+
+    @Test
+    public void testInitializedOnFirstStaticFieldAccess() {
+        int theBefore = Recorder.next();
+        Assert.assertEquals(42, FieldAccessed.value, 0);
+        Assert.assertEquals(theBefore + 1, FieldAccessed.initializedAt, 0);
+    }
+
+    @Test
+    public void testInitializedOnFirstStaticMethodInvocation() {
+        int theBefore = Recorder.next();
+        Assert.assertEquals(43, MethodInvoked.value(), 0);
+        Assert.assertEquals(theBefore + 1, MethodInvoked.initializedAt, 0);
+    }
+
+    @Test
+    public void testInitializedOnFirstInstantiation() {
+        int theBefore = Recorder.next();
+        Assert.assertNotNull(new Instantiated());
+        Assert.assertEquals(theBefore + 1, Instantiated.initializedAt, 0);
+    }
+
+    @Test
+    public void testStaticFieldThroughSubclassInitializesDeclaringClassOnly() {
+        Assert.assertEquals(7, StaticDerived.baseValue, 0);
+        Assert.assertFalse(Recorder.derivedInitialized);
+    }
+
+    @Test
+    public void testStaticMethodThroughSubclassInitializesDeclaringClassOnly() {
+        Assert.assertEquals(8, StaticDerived.baseMethod(), 0);
+        Assert.assertFalse(Recorder.derivedInitialized);
+    }
+
+    @Test
+    public void testSuperClassIsInitializedFirst() {
+        Assert.assertNotNull(new OrderDerived());
+        Assert.assertTrue(OrderBase.initializedAt < OrderDerived.derivedInitializedAt);
+    }
+
+    @Test
+    public void testAccessAfterConditionalAccessIsChecked() {
+        int theResult = 0;
+        if (Recorder.step < 0) {
+            theResult = ConditionallyAccessed.value;
+        }
+        theResult = theResult + ConditionallyAccessed.value;
+        Assert.assertEquals(42, theResult, 0);
+    }
+
+    @Test
+    public void testAccessInDominatedLoop() {
+        int theSum = AccessedInLoop.value;
+        for (int i = 0; i < 4; i++) {
+            theSum = theSum + AccessedInLoop.value;
+        }
+        Assert.assertEquals(15, theSum, 0);
+    }
+
+    @Test
+    public void testAccessAfterStaticInvocation() {
+        int theTwice = AccessedAfterInvocation.twice();
+        int theValue = AccessedAfterInvocation.value;
+        Assert.assertEquals(10, theTwice, 0);
+        Assert.assertEquals(5, theValue, 0);
+    }
+
+    @Test
+    public void testSubclassIsCheckedAfterInheritedAccess() {
+        int theBase = ElisionDerived.baseValue;
+        int theDerived = ElisionDerived.derivedValue;
+        Assert.assertEquals(3, theBase + theDerived, 0);
+    }
+}
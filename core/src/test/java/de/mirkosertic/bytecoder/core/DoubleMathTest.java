@@ -63,4 +63,9 @@ public class DoubleMathTest {
         Assert.assertEquals(3, theResult, 0);
     }
 
+    @Test
+    public void testDoublePrecision() {
+        double theResult = add(1d, 0.0000000001d);
+        Assert.assertTrue(theResult > 1d);
+    }
 }
@@ -0,0 +1,89 @@
+/*
+ * Copyright 2018 Mirko Sertic
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *       http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package de.mirkosertic.bytecoder.core;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import de.mirkosertic.bytecoder.unittest.BytecoderUnitTestRunner;
+
+@RunWith(BytecoderUnitTestRunner.class)
+public class GarbageCollectionTest {
+
+    public static class Node {
+
+        private final int value;
+        private final Node next;
+
+        public Node(int aValue, Node aNext) {
+            value = aValue;
+            next = aNext;
+        }
+    }
+
+    private static int[] garbage(int aSize) {
+        return new int[aSize];
+    }
+
+    @Test
+    public void testAllocateMoreThanTheHeap() {
+        // Far more than the heap is allocated, while a linked list has to survive every collection
+        Node theList = null;
+        for (int i=0;i<10000;i++) {
+            int[] theGarbage = garbage(4000);
+            theGarbage[3999] = i;
+            if (i % 10 == 0) {
+                theList = new Node(theGarbage[3999], theList);
+            }
+        }
+
+        int theCount = 0;
+        int theSum = 0;
+        while (theList != null) {
+            theCount++;
+            theSum += theList.value;
+            theList = theList.next;
+        }
+        Assert.assertEquals(1000, theCount, 0);
+        Assert.assertEquals(4995000, theSum, 0);
+    }
+
+    @Test
+    public void testLiveReferencesSurviveCollectionDuringCall() {
+        Node theFirst = new Node(1, null);
+        Node theSecond = new Node(2, theFirst);
+        int theSum = 0;
+        for (int i=0;i<100;i++) {
+            // The nodes are only referenced by locals while the garbage is allocated
+            theSum += garbage(100000).length / 100000 + theSecond.value + theFirst.value;
+        }
+        Assert.assertEquals(400, theSum, 0);
+        Assert.assertEquals(1, theSecond.next.value, 0);
+    }
+
+    @Test
+    public void testMultiArraysUnderPressure() {
+        int theSum = 0;
+        for (int i=0;i<200;i++) {
+            int[][] theArray = new int[100][1000];
+            theArray[99][999] = i;
+            theArray[0][0] = 1;
+            theSum += theArray[99][999] + theArray[0][0];
+        }
+        Assert.assertEquals(19900 + 200, theSum, 0);
+    }
+}
@@ -29,6 +29,29 @@ public class InstanceOfTest {
     public static class Type2 extends Type1 {
     }
 
+    public static class Type3 extends Type1 implements Marker2 {
+    }
+
+    public static class Type4 extends Type3 {
+    }
+
+    public interface Marker1 {
+    }
+
+    public interface Marker2 extends Marker1 {
+    }
+
+    public interface Producer {
+        int produce();
+    }
+
+    public interface Consumer {
+        void consume(int aValue);
+    }
+
+    public interface SpecialProducer extends Producer {
+    }
+
     @Test
     public void testInstanceOf() {
         Assert.assertFalse(null instanceof Object);
@@ -40,4 +63,46 @@ public class InstanceOfTest {
         Assert.assertTrue(new Type2() instanceof Type1);
         Assert.assertTrue(new Type2() instanceof Type2);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testSiblingClasses() {
+        Object theType2 = new Type2();
+        Object theType3 = new Type3();
+        Assert.assertFalse(theType2 instanceof Type3);
+        Assert.assertFalse(theType3 instanceof Type2);
+        Assert.assertTrue(new Type4() instanceof Type3);
+        Assert.assertTrue(new Type4() instanceof Type1);
+    }
+
+    @Test
+    public void testInterfaces() {
+        Object theNull = null;
+        Object theType2 = new Type2();
+        Object theType4 = new Type4();
+        Assert.assertFalse(theNull instanceof Marker1);
+        Assert.assertFalse(theType2 instanceof Marker1);
+        Assert.assertFalse(theType2 instanceof Marker2);
+        Assert.assertTrue(new Type3() instanceof Marker2);
+        Assert.assertTrue(new Type3() instanceof Marker1);
+        Assert.assertTrue(theType4 instanceof Marker2);
+        Assert.assertTrue(theType4 instanceof Marker1);
+    }
+
+    @Test
+    public void testLambdas() {
+        Object theProducer = (Producer) () -> 42;
+        Object theConsumer = (Consumer) aValue -> {};
+        Object theSpecialProducer = (SpecialProducer) () -> 43;
+        Assert.assertTrue(theProducer instanceof Producer);
+        Assert.assertTrue(theProducer instanceof Object);
+        Assert.assertFalse(theProducer instanceof Consumer);
+        Assert.assertFalse(theProducer instanceof SpecialProducer);
+        Assert.assertFalse(theProducer instanceof Type1);
+        Assert.assertTrue(theConsumer instanceof Consumer);
+        Assert.assertFalse(theConsumer instanceof Producer);
+        Assert.assertTrue(theSpecialProducer instanceof SpecialProducer);
+        Assert.assertTrue(theSpecialProducer instanceof Producer);
+        Assert.assertEquals(42, ((Producer) theProducer).produce(), 0);
+        Assert.assertEquals(43, ((Producer) theSpecialProducer).produce(), 0);
+    }
+}
@@ -71,6 +71,12 @@ public class LongMathTest {
         Assert.assertEquals(3, theResult, 0);
     }
 
+    @Test
+    public void testAddBeyondIntRange() {
+        long theResult = add(3000000000L, 3000000000L);
+        Assert.assertEquals(6000000000d, theResult, 0);
+    }
+
     @Test
     public void testShiftRight() {
         int theResult = (int) sleft(1000L, 1);
@@ -25,11 +25,49 @@ public class MemberInitializationTest {
 
     public static int staticMember = 18;
 
+    public static int staticInt;
+    public static long staticLong;
+    public static float staticFloat;
+    public static double staticDouble;
+    public static boolean staticBoolean;
+    public static char staticChar;
+    public static byte staticByte;
+    public static short staticShort;
+
     public static class StaticClassWithStuffInside {
 
         public int member = 12;
     }
 
+    public static class StaticTables {
+
+        public static final int[] SQUARES = new int[8];
+        public static final StaticClassWithStuffInside[] INSTANCES = new StaticClassWithStuffInside[4];
+
+        static {
+            for (int i = 0; i < SQUARES.length; i++) {
+                SQUARES[i] = i * i;
+                if (i < INSTANCES.length) {
+                    INSTANCES[i] = new StaticClassWithStuffInside();
+                    INSTANCES[i].member = i + 100;
+                }
+            }
+        }
+    }
+
+    public static class ClassWithDefaults {
+
+        public int intMember;
+        public long longMember;
+        public float floatMember;
+        public double doubleMember;
+        public boolean booleanMember;
+        public char charMember;
+        public byte byteMember;
+        public short shortMember;
+        public Object objectMember;
+    }
+
     @Test
     public void testInstanceGetAndSet() {
         StaticClassWithStuffInside theInstance = new StaticClassWithStuffInside();
@@ -37,4 +75,44 @@ public class MemberInitializationTest {
         Assert.assertEquals(12, theResult, 0);
         Assert.assertEquals(18, MemberInitializationTest.staticMember, 0);
     }
+
+    @Test
+    public void testStaticPrimitiveDefaults() {
+        Assert.assertTrue(staticInt == 0);
+        Assert.assertTrue(staticLong == 0L);
+        Assert.assertTrue(staticFloat == 0.0f);
+        Assert.assertTrue(staticDouble == 0.0d);
+        Assert.assertFalse(staticBoolean);
+        Assert.assertTrue(staticChar == 0);
+        Assert.assertTrue(staticByte == 0);
+        Assert.assertTrue(staticShort == 0);
+        Assert.assertEquals(1, staticInt + 1, 0);
+        Assert.assertEquals(1.5d, staticDouble + 1.5d, 0);
+    }
+
+    @Test
+    public void testInstancePrimitiveDefaults() {
+        ClassWithDefaults theInstance = new ClassWithDefaults();
+        Assert.assertTrue(theInstance.intMember == 0);
+        Assert.assertTrue(theInstance.longMember == 0L);
+        Assert.assertTrue(theInstance.floatMember == 0.0f);
+        Assert.assertTrue(theInstance.doubleMember == 0.0d);
+        Assert.assertFalse(theInstance.booleanMember);
+        Assert.assertTrue(theInstance.charMember == 0);
+        Assert.assertTrue(theInstance.byteMember == 0);
+        Assert.assertTrue(theInstance.shortMember == 0);
+        Assert.assertNull(theInstance.objectMember);
+        Assert.assertEquals(1, theInstance.intMember + 1, 0);
+        Assert.assertEquals(1.5d, theInstance.doubleMember + 1.5d, 0);
+    }
+
+    @Test
+    public void testStaticTablesFilledInLoop() {
+        Assert.assertEquals(8, StaticTables.SQUARES.length, 0);
+        Assert.assertEquals(0, StaticTables.SQUARES[0], 0);
+        Assert.assertEquals(49, StaticTables.SQUARES[7], 0);
+        Assert.assertEquals(4, StaticTables.INSTANCES.length, 0);
+        Assert.assertEquals(100, StaticTables.INSTANCES[0].member, 0);
+        Assert.assertEquals(103, StaticTables.INSTANCES[3].member, 0);
+    }
 }
@@ -31,4 +31,22 @@ public class MultiArrayTest {
         Assert.assertEquals("Hello", theStrings[0][0]);
         Assert.assertEquals("World", theStrings[4][11]);
     }
-}
\ No newline at end of file
+
+    @Test
+    public void testMultiIntArray() {
+        int[][] theInts = new int[3][4];
+        theInts[2][3] = 42;
+        Assert.assertEquals(4, theInts[1].length, 0);
+        Assert.assertEquals(0, theInts[0][0], 0);
+        Assert.assertEquals(42, theInts[2][3], 0);
+    }
+
+    @Test
+    public void testPartialMultiArray() {
+        double[][] theDoubles = new double[2][];
+        Assert.assertNull(theDoubles[0]);
+        theDoubles[1] = new double[3];
+        theDoubles[1][2] = 1.5d;
+        Assert.assertEquals(1.5d, theDoubles[1][2], 0);
+    }
+}
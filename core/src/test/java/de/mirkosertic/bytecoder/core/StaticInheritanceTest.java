@@ -31,6 +31,14 @@ public class StaticInheritanceTest {
         }
     }
 
+    public static class BaseClassWithField {
+
+        public static int value = 7;
+    }
+
+    public static class SubclassWithField extends BaseClassWithField {
+    }
+
     public static class Subclass extends BaseClass {
 
         public int call() {
@@ -48,4 +56,12 @@ public class StaticInheritanceTest {
         Subclass theInstance = new Subclass();
         Assert.assertEquals(42, theInstance.call(), 0);
     }
+
+    @Test
+    public void testInheritedFieldAccess() {
+        Assert.assertEquals(7, SubclassWithField.value, 0);
+        SubclassWithField.value = 8;
+        Assert.assertEquals(8, BaseClassWithField.value, 0);
+        Assert.assertEquals(8, SubclassWithField.value, 0);
+    }
 }
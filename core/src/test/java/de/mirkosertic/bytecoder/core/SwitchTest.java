@@ -57,4 +57,65 @@ public class SwitchTest {
         Assert.assertEquals(4, compute(4), 0);
         Assert.assertEquals(5, compute(5), 0);
     }
-}
\ No newline at end of file
+
+    public static int computeSparse(int aValue) {
+        switch (aValue) {
+        case -100000:
+            return 1;
+        case -5:
+            return 2;
+        case 0:
+            return 3;
+        case 17:
+            return 4;
+        case 1000:
+            return 5;
+        case 65536:
+            return 6;
+        case 1000000:
+            return 7;
+        default:
+            return 99;
+        }
+    }
+
+    @Test
+    public void testSparseSwitch() {
+        Assert.assertEquals(1, computeSparse(-100000), 0);
+        Assert.assertEquals(2, computeSparse(-5), 0);
+        Assert.assertEquals(3, computeSparse(0), 0);
+        Assert.assertEquals(4, computeSparse(17), 0);
+        Assert.assertEquals(5, computeSparse(1000), 0);
+        Assert.assertEquals(6, computeSparse(65536), 0);
+        Assert.assertEquals(7, computeSparse(1000000), 0);
+        Assert.assertEquals(99, computeSparse(-6), 0);
+        Assert.assertEquals(99, computeSparse(18), 0);
+        Assert.assertEquals(99, computeSparse(Integer.MAX_VALUE), 0);
+        Assert.assertEquals(99, computeSparse(Integer.MIN_VALUE), 0);
+    }
+
+    public static int computeShared(int aValue) {
+        switch (aValue) {
+        case -2:
+        case -1:
+            return 1;
+        case 1:
+        case 3:
+            return 2;
+        default:
+            return 99;
+        }
+    }
+
+    @Test
+    public void testSharedCases() {
+        Assert.assertEquals(1, computeShared(-2), 0);
+        Assert.assertEquals(1, computeShared(-1), 0);
+        Assert.assertEquals(99, computeShared(0), 0);
+        Assert.assertEquals(2, computeShared(1), 0);
+        Assert.assertEquals(99, computeShared(2), 0);
+        Assert.assertEquals(2, computeShared(3), 0);
+        Assert.assertEquals(99, computeShared(-3), 0);
+        Assert.assertEquals(99, computeShared(Integer.MIN_VALUE), 0);
+    }
+}
@@ -37,6 +37,19 @@ public class VirtualMethodTest {
         }
     }
 
+    public static class OtherThing extends SimpleThing {
+
+        @Override
+        public int compute() {
+            return 20;
+        }
+
+        @Override
+        public int hashCode() {
+            return 42;
+        }
+    }
+
     @Test
     public void testSimpleThing() {
         Assert.assertEquals(0, new SimpleThing().compute(), 0);
@@ -53,4 +66,20 @@ public class VirtualMethodTest {
         SimpleThing theSimple = theThing;
         Assert.assertEquals(10, theSimple.compute(), 0);
     }
+
+    @Test
+    public void testPolymorphicInvocation() {
+        SimpleThing[] theThings = new SimpleThing[] {new SimpleThing(), new ExtendedThing(), new OtherThing()};
+        int theSum = 0;
+        for (int i=0;i<theThings.length;i++) {
+            theSum += theThings[i].compute();
+        }
+        Assert.assertEquals(30, theSum, 0);
+    }
+
+    @Test
+    public void testOverriddenObjectMethod() {
+        Object theThing = new OtherThing();
+        Assert.assertEquals(42, theThing.hashCode(), 0);
+    }
 }
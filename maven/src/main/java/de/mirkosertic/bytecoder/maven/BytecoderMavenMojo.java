@@ -15,19 +15,18 @@
  */
 package de.mirkosertic.bytecoder.maven;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.FileWriter;
-import java.io.IOException;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLClassLoader;
 import java.util.ArrayList;
 import java.util.List;
-import java.util.logging.Level;
 
-import org.apache.commons.io.IOUtils;
 import org.apache.maven.artifact.Artifact;
 import org.apache.maven.plugin.AbstractMojo;
 import org.apache.maven.plugin.MojoExecutionException;
@@ -38,16 +37,7 @@ import org.apache.maven.plugins.annotations.Mojo;
 import org.apache.maven.plugins.annotations.Parameter;
 import org.apache.maven.plugins.annotations.ResolutionScope;
 import org.apache.maven.project.MavenProject;
-import org.openqa.selenium.chrome.ChromeDriverService;
-import org.openqa.selenium.chrome.ChromeOptions;
-import org.openqa.selenium.logging.LogEntry;
-import org.openqa.selenium.logging.LogType;
-import org.openqa.selenium.logging.LoggingPreferences;
-import org.openqa.selenium.remote.CapabilityType;
-import org.openqa.selenium.remote.DesiredCapabilities;
-import org.openqa.selenium.remote.RemoteWebDriver;
 
-import com.google.common.io.Files;
 import com.google.javascript.jscomp.CommandLineRunner;
 import com.google.javascript.jscomp.CompilationLevel;
 import com.google.javascript.jscomp.Compiler;
@@ -110,6 +100,18 @@ public class BytecoderMavenMojo extends AbstractMojo {
     @Parameter(required = false, defaultValue = "false")
     protected boolean debugOutput;
 
+    /**
+     * Shall methods be compiled in parallel?
+     */
+    @Parameter(required = false, defaultValue = "false")
+    protected boolean parallelCodeGeneration;
+
+    /**
+     * Shall static initializers be evaluated at compile time where possible?
+     */
+    @Parameter(required = false, defaultValue = "false")
+    protected boolean preInitializeStatics;
+
     /**
      * The closure optimization level.
      */
@@ -133,7 +135,7 @@ public class BytecoderMavenMojo extends AbstractMojo {
             BytecodeMethodSignature theSignature = new BytecodeMethodSignature(BytecodePrimitiveTypeRef.VOID,
                     new BytecodeTypeRef[] { new BytecodeArrayTypeRef(BytecodeObjectTypeRef.fromRuntimeClass(TString.class), 1) });
 
-            CompileOptions theOptions = new CompileOptions(new Slf4JLogger(), debugOutput, KnownOptimizer.ALL);
+            CompileOptions theOptions = new CompileOptions(new Slf4JLogger(), debugOutput, KnownOptimizer.ALL, parallelCodeGeneration, preInitializeStatics);
             CompileResult theCode = theCompileTarget.compileToJS(theOptions, theTargetClass, "main", theSignature);
             try (PrintWriter theWriter = new PrintWriter(new FileWriter(theBytecoderFileName))) {
                 theWriter.println(theCode.getData());
@@ -160,15 +162,12 @@ public class BytecoderMavenMojo extends AbstractMojo {
             }
 
             if (theCode instanceof WASMCompileResult) {
+                // The binary is assembled and validated in the JVM, the text format above is kept for debugging
                 WASMCompileResult theWASMCompileResult = (WASMCompileResult) theCode;
-                int[] theWASM = wat2wasm(theWASMCompileResult);
                 File theBytecoderWASMFileName = new File(theBytecoderDirectory, "bytecoder.wasm");
-                try (FileOutputStream theFos = new FileOutputStream(theBytecoderWASMFileName)) {
-                    for (int aTheWASM : theWASM) {
-                        theFos.write(aTheWASM);
-                    }
+                try (OutputStream theStream = new BufferedOutputStream(new FileOutputStream(theBytecoderWASMFileName))) {
+                    theStream.write(theWASMCompileResult.getBinaryData());
                 }
-
             }
 
         } catch (Exception e) {
@@ -176,95 +175,6 @@ public class BytecoderMavenMojo extends AbstractMojo {
         }
     }
 
-    private int[] wat2wasm(WASMCompileResult aResult) throws IOException {
-        String theChromeDriverBinary = System.getenv("CHROMEDRIVER_BINARY");
-        if (theChromeDriverBinary == null || theChromeDriverBinary.isEmpty()) {
-            throw new RuntimeException("No chromedriver binary found! Please set CHROMEDRIVER_BINARY environment variable!");
-        }
-
-        ChromeDriverService.Builder theDriverServiceBuilder = new ChromeDriverService.Builder();
-        theDriverServiceBuilder = theDriverServiceBuilder.withVerbose(false);
-        theDriverServiceBuilder = theDriverServiceBuilder.usingDriverExecutable(new File(theChromeDriverBinary));
-
-        ChromeDriverService theDriverService = theDriverServiceBuilder.build();
-        theDriverService.start();
-
-        File theTempDirectory = Files.createTempDir();
-        File theGeneratedFile = new File(theTempDirectory, "compile.html");
-
-        // Copy WABT Tools
-        File theWABTFile = new File(theTempDirectory, "libwabt.js");
-        try (FileOutputStream theOS = new FileOutputStream(theWABTFile)) {
-            IOUtils.copy(getClass().getResourceAsStream("/libwabt.js"), theOS);
-        }
-
-        PrintWriter theWriter = new PrintWriter(theGeneratedFile);
-        theWriter.println("<html>");
-        theWriter.println("    <body>");
-        theWriter.println("        <h1>Module code</h1>");
-        theWriter.println("        <pre id=\"modulecode\">");
-        theWriter.println(aResult.getData());
-        theWriter.println("        </pre>");
-        theWriter.println("        <h1>Compilation result</h1>");
-        theWriter.println("        <pre id=\"compileresult\">");
-        theWriter.println("        </pre>");
-        theWriter.println("        <script src=\"libwabt.js\">");
-        theWriter.println("        </script>");
-        theWriter.println("        <script>");
-        theWriter.println("            function compile() {");
-        theWriter.println("                console.log('Compilation started');");
-        theWriter.println("                try {");
-        theWriter.println("                    var module = wabt.parseWat('test.wast', document.getElementById(\"modulecode\").innerText);");
-        theWriter.println("                    module.resolveNames();");
-        theWriter.println("                    module.validate();");
-        theWriter.println("                    var binaryOutput = module.toBinary({log: true, write_debug_names:true});");
-        theWriter.println("                    document.getElementById(\"compileresult\").innerText = binaryOutput.log;");
-        theWriter.println("                    return binaryOutput.buffer;");
-        theWriter.println("                } catch (e) {");
-        theWriter.println("                    document.getElementById(\"compileresult\").innerText = e.toString();");
-        theWriter.println("                    console.log(e.toString());");
-        theWriter.println("                    console.log(e.stack);");
-        theWriter.println("                }");
-        theWriter.println("            }");
-        theWriter.println("        </script>");
-        theWriter.println("    </body>");
-        theWriter.println("</html>");
-
-        theWriter.flush();
-        theWriter.close();
-
-        ChromeOptions theOptions = new ChromeOptions();
-        theOptions.addArguments("headless");
-        theOptions.addArguments("disable-gpu");
-
-        LoggingPreferences theLoggingPreferences = new LoggingPreferences();
-        theLoggingPreferences.enable(LogType.BROWSER, Level.ALL);
-        theOptions.setCapability(CapabilityType.LOGGING_PREFS, theLoggingPreferences);
-
-        DesiredCapabilities theCapabilities = DesiredCapabilities.chrome();
-        theCapabilities.setCapability(ChromeOptions.CAPABILITY, theOptions);
-
-        RemoteWebDriver theDriver = new RemoteWebDriver(theDriverService.getUrl(), theCapabilities);
-
-        theDriver.get(theGeneratedFile.toURI().toURL().toString());
-
-        ArrayList<Long> theResult = (ArrayList<Long>) theDriver.executeScript("return compile();");
-        int[] theBinaryDara = new int[theResult.size()];
-        for (int i=0;i<theResult.size();i++) {
-            long theLongValue = theResult.get(i);
-            theBinaryDara[i] = (int) (theLongValue);
-        }
-        List<LogEntry> theAll = theDriver.manage().logs().get(LogType.BROWSER).getAll();
-        for (LogEntry theEntry : theAll) {
-            System.out.println(theEntry.getMessage());
-        }
-
-        theDriver.close();
-        theDriverService.stop();
-
-        return theBinaryDara;
-    }
-
     protected boolean isSupportedScope(String scope) {
         switch (scope) {
         case Artifact.SCOPE_COMPILE: